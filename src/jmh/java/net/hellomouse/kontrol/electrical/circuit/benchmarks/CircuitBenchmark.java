@@ -0,0 +1,82 @@
+package net.hellomouse.kontrol.electrical.circuit.benchmarks;
+
+import net.hellomouse.kontrol.electrical.circuit.simulation.SimulatedBlockEntity;
+import net.hellomouse.kontrol.electrical.circuit.simulation.SimulatedLayout;
+import net.hellomouse.kontrol.electrical.circuit.simulation.SimulatedWorld;
+import net.minecraft.util.math.BlockPos;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Circuits built from blocks in a SimulatedWorld, for each SimulatedLayout and size
+ * (in blocks). Unlike SolveBenchmark this includes floodfills, block entity ticks
+ * and the thermal sim.
+ *
+ * - floodfill: first tick after all blocks are placed
+ * - tick: server tick of a built world
+ * - update: remove a block in the middle and tick, then place it again and tick
+ *
+ * @author Bowserinator
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CircuitBenchmark {
+    @Param({ "CABLE_RUN", "GRID", "BUSBAR", "TINY_CIRCUITS" })
+    public SimulatedLayout layout;
+
+    @Param({ "100", "1000", "10000" })
+    public int blocks;
+
+    @Param({ "false", "true" })
+    public boolean solveInBackground;
+
+    private SimulatedWorld world;
+    private BlockPos probe;
+
+    /** World with all blocks placed and no circuits yet, new for each invocation */
+    @State(Scope.Thread)
+    public static class PlacedWorld {
+        private SimulatedWorld world;
+
+        @Setup(Level.Invocation)
+        public void setup(CircuitBenchmark benchmark) {
+            world = new SimulatedWorld(benchmark.solveInBackground);
+            benchmark.layout.place(world, BlockPos.ORIGIN, benchmark.blocks);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        world = new SimulatedWorld(solveInBackground);
+        layout.place(world, BlockPos.ORIGIN, blocks);
+        world.tick(2);
+        probe = layout.getProbe(BlockPos.ORIGIN, blocks);
+    }
+
+    @Benchmark
+    public SimulatedWorld floodfill(PlacedWorld placed) {
+        placed.world.tick();
+        return placed.world;
+    }
+
+    @Benchmark
+    public SimulatedWorld tick() {
+        world.tick();
+        return world;
+    }
+
+    @Benchmark
+    public SimulatedWorld update() {
+        SimulatedBlockEntity removed = world.remove(probe);
+        world.tick();
+        world.place(probe, removed.copy());
+        world.tick();
+        return world;
+    }
+}
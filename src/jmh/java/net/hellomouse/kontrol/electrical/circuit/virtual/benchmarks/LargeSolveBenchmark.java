@@ -0,0 +1,59 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.benchmarks;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * SolveBenchmark at 50,000 nodes, where building a circuit takes seconds. Not run by
+ * default, select it with ./gradlew jmh -PjmhInclude=LargeSolveBenchmark. Builds are
+ * timed one at a time (single shot), with fewer iterations, in about 5 minutes.
+ *
+ * @author Bowserinator
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class LargeSolveBenchmark {
+    @Param({ "SERIES", "PARALLEL", "GRID", "CABLE_STAR", "RC_LADDER", "RLC_LADDER", "DIODE_ARRAY", "LED_ARRAY" })
+    public Topology topology;
+
+    @Param({ "50000" })
+    public int nodes;
+
+    private VirtualCircuit circuit;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        circuit = topology.create(nodes);
+        circuit.solve();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public double[] build() {
+        VirtualCircuit circuit = topology.create(nodes);
+        circuit.solve();
+        return circuit.getNodalVoltages();
+    }
+
+    @Benchmark
+    public double[] solve() {
+        circuit.solve();
+        return circuit.getNodalVoltages();
+    }
+
+    @Benchmark
+    public double[] step() {
+        circuit.wake(); // Don't measure a sleeping circuit once it reaches steady state
+        circuit.step();
+        return circuit.getNodalVoltages();
+    }
+}
@@ -0,0 +1,61 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.benchmarks;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Solve latency of VirtualCircuit for each Topology and size. Run with ./gradlew jmh,
+ * which also reports allocations (-prof gc), see the jmh block in build.gradle.
+ * Sizes stop at 10,000 nodes so a full run takes about 15 minutes, see
+ * LargeSolveBenchmark for 50,000 nodes.
+ *
+ * - build: add all components and solve a new circuit (floodfills and topology changes)
+ * - solve: solve again without changes (cached factorization)
+ * - step: advance time by one tick (capacitors, inductors, diodes)
+ *
+ * @author Bowserinator
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SolveBenchmark {
+    @Param({ "SERIES", "PARALLEL", "GRID", "CABLE_STAR", "RC_LADDER", "RLC_LADDER", "DIODE_ARRAY", "LED_ARRAY" })
+    public Topology topology;
+
+    @Param({ "10", "100", "1000", "10000" })
+    public int nodes;
+
+    private VirtualCircuit circuit;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        circuit = topology.create(nodes);
+        circuit.solve();
+    }
+
+    @Benchmark
+    public double[] build() {
+        VirtualCircuit circuit = topology.create(nodes);
+        circuit.solve();
+        return circuit.getNodalVoltages();
+    }
+
+    @Benchmark
+    public double[] solve() {
+        circuit.solve();
+        return circuit.getNodalVoltages();
+    }
+
+    @Benchmark
+    public double[] step() {
+        circuit.wake(); // Don't measure a sleeping circuit once it reaches steady state
+        circuit.step();
+        return circuit.getNodalVoltages();
+    }
+}
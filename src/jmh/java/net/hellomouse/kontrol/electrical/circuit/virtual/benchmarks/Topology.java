@@ -0,0 +1,161 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.benchmarks;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+
+
+/**
+ * Circuits to benchmark, each built with about the given number of nodes.
+ * Every circuit is driven by a 10 V source from node 1 to ground (node 0).
+ * @author Bowserinator
+ */
+public enum Topology {
+    /** Resistors in series, each node loaded to ground */
+    SERIES {
+        @Override
+        void build(VirtualCircuit circuit, int nodes) {
+            for (int node = 1; node < nodes; node++) {
+                circuit.addComponent(new VirtualResistor(10), node, node + 1);
+                circuit.addComponent(new VirtualResistor(1000), node + 1, 0);
+            }
+        }
+    },
+
+    /** sqrt(nodes) series chains of resistors in parallel between the source and ground */
+    PARALLEL {
+        @Override
+        void build(VirtualCircuit circuit, int nodes) {
+            int side = side(nodes);
+            int node = 2;
+            for (int chain = 0; chain < side; chain++) {
+                int previous = 1;
+                for (int i = 0; i < side - 1; i++) {
+                    circuit.addComponent(new VirtualResistor(10 + chain), previous, node);
+                    previous = node++;
+                }
+                circuit.addComponent(new VirtualResistor(10), previous, 0);
+            }
+        }
+    },
+
+    /** Square grid of resistors, source at one corner and ground at the opposite corner */
+    GRID {
+        @Override
+        void build(VirtualCircuit circuit, int nodes) {
+            int side = side(nodes);
+            for (int y = 0; y < side; y++) {
+                for (int x = 0; x < side; x++) {
+                    int node = 1 + y * side + x;
+                    if (x + 1 < side) circuit.addComponent(new VirtualResistor(10), node, node + 1);
+                    if (y + 1 < side) circuit.addComponent(new VirtualResistor(10), node, node + side);
+                }
+            }
+            circuit.addComponent(new VirtualResistor(10), side * side, 0);
+        }
+    },
+
+    /**
+     * Tree of cables as CableBlockEntity builds them: each cable has a center node with
+     * a low resistance to each connected face. Every cable connects up to 3 more, leaves
+     * are loaded to ground
+     */
+    CABLE_STAR {
+        @Override
+        void build(VirtualCircuit circuit, int nodes) {
+            int cables = Math.max(1, nodes / 2);
+            // Cable i has center node 2i + 1, and shares face node 2i with its parent
+            for (int i = 1; i < cables; i++) {
+                int parent = (i - 1) / 3;
+                circuit.addComponent(new VirtualResistor(CABLE_RESISTANCE), 2 * parent + 1, 2 * i);
+                circuit.addComponent(new VirtualResistor(CABLE_RESISTANCE), 2 * i, 2 * i + 1);
+                if (3 * i + 1 >= cables)
+                    circuit.addComponent(new VirtualResistor(1000), 2 * i + 1, 0);
+            }
+        }
+    },
+
+    /** Series resistors with a capacitor from each node to ground */
+    RC_LADDER {
+        @Override
+        void build(VirtualCircuit circuit, int nodes) {
+            for (int node = 1; node < nodes; node++) {
+                circuit.addComponent(new VirtualResistor(10), node, node + 1);
+                circuit.addComponent(new VirtualCapacitor(0.001), node + 1, 0);
+            }
+            circuit.addComponent(new VirtualResistor(1000), nodes, 0);
+        }
+    },
+
+    /** Series resistors and inductors with a capacitor from every other node to ground */
+    RLC_LADDER {
+        @Override
+        void build(VirtualCircuit circuit, int nodes) {
+            for (int node = 1; node + 2 <= nodes; node += 2) {
+                circuit.addComponent(new VirtualResistor(10), node, node + 1);
+                circuit.addComponent(new VirtualInductor(0.01), node + 1, node + 2);
+                circuit.addComponent(new VirtualCapacitor(0.001), node + 2, 0);
+            }
+            circuit.addComponent(new VirtualResistor(1000), 1 + 2 * ((nodes - 1) / 2), 0);
+        }
+    },
+
+    /** Shockley model diodes to ground along a resistor chain, solved with Newton-Raphson */
+    DIODE_ARRAY {
+        @Override
+        void build(VirtualCircuit circuit, int nodes) {
+            for (int node = 1; node < nodes; node++) {
+                circuit.addComponent(new VirtualResistor(10), node, node + 1);
+                circuit.addComponent(new VirtualDiode(0.7).model(VirtualDiode.Model.SHOCKLEY), node + 1, 0);
+            }
+        }
+    },
+
+    /**
+     * LEDs as DiodeBlockEntity builds them (low resistance, diode, low resistance) in
+     * parallel across the source, each with a current limiting resistor. Forward
+     * voltages cycle through the LED colors
+     */
+    LED_ARRAY {
+        @Override
+        void build(VirtualCircuit circuit, int nodes) {
+            int node = 2;
+            for (int i = 0; node + 3 <= nodes + 1; i++) {
+                circuit.addComponent(new VirtualResistor(100), 1, node);
+                circuit.addComponent(new VirtualResistor(LOW_RESISTANCE), node, node + 1);
+                circuit.addComponent(new VirtualDiode(LED_FORWARD_VOLTAGES[i % LED_FORWARD_VOLTAGES.length]), node + 1, node + 2);
+                circuit.addComponent(new VirtualResistor(LOW_RESISTANCE), node + 2, 0);
+                node += 3;
+            }
+        }
+    };
+
+    // Same as CircuitValues (which needs Minecraft to load)
+    private static final double CABLE_RESISTANCE = 0.1;
+    private static final double LOW_RESISTANCE = 0.01;
+    // Same as LEDBlockEntity colors
+    private static final double[] LED_FORWARD_VOLTAGES = { 3.3, 1.7, 2.2, 3.5, 2.1, 3.2, 3.2 };
+
+    /**
+     * Add the topology's components to a circuit
+     * @param circuit Circuit with the source and ground
+     * @param nodes Number of nodes (approximate)
+     */
+    abstract void build(VirtualCircuit circuit, int nodes);
+
+    /**
+     * Create a circuit with the topology
+     * @param nodes Number of nodes (approximate, at least 3)
+     * @return Circuit, not solved yet
+     */
+    public VirtualCircuit create(int nodes) {
+        VirtualCircuit circuit = new VirtualCircuit();
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        build(circuit, Math.max(3, nodes));
+        return circuit;
+    }
+
+    private static int side(int nodes) {
+        return Math.max(2, (int)Math.round(Math.sqrt(nodes)));
+    }
+}
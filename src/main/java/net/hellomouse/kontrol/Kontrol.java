@@ -2,7 +2,9 @@ package net.hellomouse.kontrol;
 
 import net.fabricmc.api.ModInitializer;
 import net.hellomouse.kontrol.config.KontrolConfig;
+import net.hellomouse.kontrol.electrical.circuit.CircuitManager;
 import net.hellomouse.kontrol.registry.block.ElectricalBlockRegistry;
+import net.hellomouse.kontrol.registry.command.CommandRegistry;
 import net.hellomouse.kontrol.registry.item.ElectricalItemRegistry;
 
 
@@ -63,6 +65,8 @@ public class Kontrol implements ModInitializer {
     public void onInitialize() {
         ElectricalBlockRegistry.register();
         ElectricalItemRegistry.register();
+        CommandRegistry.register();
+        CircuitManager.registerEvents();
         System.out.println("LOADED");
 
 
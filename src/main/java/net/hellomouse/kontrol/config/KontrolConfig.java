@@ -4,6 +4,7 @@ import com.moandjiezana.toml.Toml;
 import com.moandjiezana.toml.TomlWriter;
 import net.fabricmc.loader.api.FabricLoader;
 import net.hellomouse.kontrol.Kontrol;
+import net.hellomouse.kontrol.electrical.circuit.CircuitValues;
 import org.apache.logging.log4j.LogManager;
 
 import java.io.File;
@@ -24,6 +25,8 @@ public class KontrolConfig {
     private boolean electricalHeating = true;
     private boolean batteryAging = true;
     private boolean generateOres = true;
+    // Time (ms) circuits may spend being updated per tick and world, see CircuitManager
+    private double solveBudget = CircuitValues.SOLVE_BUDGET_MS;
 
     private KontrolConfig() {}
 
@@ -65,4 +68,5 @@ public class KontrolConfig {
     public boolean getElectricalHeating() { return electricalHeating; }
     public boolean getBatteryAging() { return batteryAging; }
     public boolean getGenerateOres() { return generateOres; }
+    public double getSolveBudget() { return solveBudget; }
 }
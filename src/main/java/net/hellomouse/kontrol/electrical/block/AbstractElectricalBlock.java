@@ -1,6 +1,8 @@
 package net.hellomouse.kontrol.electrical.block;
 
 import net.hellomouse.kontrol.electrical.block.entity.AbstractElectricalBlockEntity;
+import net.hellomouse.kontrol.electrical.circuit.CircuitManager;
+import net.hellomouse.kontrol.electrical.circuit.ICircuitWorld;
 import net.minecraft.block.*;
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.block.piston.PistonBehavior;
@@ -28,8 +30,15 @@ public abstract class AbstractElectricalBlock extends BlockWithEntity {
     @Override
     public BlockState getStateForNeighborUpdate(BlockState state, Direction dir, BlockState blockstateOther, WorldAccess world, BlockPos pos, BlockPos otherPos) {
         BlockEntity entity = world.getBlockEntity(pos);
-        if (entity instanceof AbstractElectricalBlockEntity)
-            ((AbstractElectricalBlockEntity) entity).updateAmbientTemperature();
+        if (entity instanceof AbstractElectricalBlockEntity) {
+            // Electrical block entities don't tick, a new neighbour may connect it to a circuit
+            // or change its ambient temperature. Both are updated once at the end of the tick
+            if (world instanceof ICircuitWorld) {
+                CircuitManager manager = ((ICircuitWorld) world).getCircuitManager();
+                manager.scheduleAttach((AbstractElectricalBlockEntity) entity);
+                manager.getAmbientTemperatures().invalidate((AbstractElectricalBlockEntity) entity);
+            }
+        }
 
         state = super.getStateForNeighborUpdate(state, dir, blockstateOther, world, pos, otherPos);
         return state;
@@ -1,7 +1,7 @@
 package net.hellomouse.kontrol.electrical.block.entity;
 
 import net.hellomouse.kontrol.electrical.circuit.Circuit;
-import net.hellomouse.kontrol.electrical.circuit.IHasCircuitManager;
+import net.hellomouse.kontrol.electrical.circuit.ICircuitWorld;
 import net.hellomouse.kontrol.electrical.circuit.thermal.ThermalComponent;
 import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.AbstractVirtualComponent;
@@ -10,8 +10,7 @@ import net.minecraft.block.BlockState;
 import net.minecraft.block.entity.BlockEntity;
 import net.minecraft.block.entity.BlockEntityType;
 import net.minecraft.nbt.CompoundTag;
-import net.minecraft.server.world.ServerWorld;
-import net.minecraft.util.Tickable;
+import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
 
 import java.util.ArrayList;
@@ -24,7 +23,7 @@ import java.util.UUID;
  * Block entity for an electrical block
  * @author Bowserinator
  */
-public abstract class AbstractElectricalBlockEntity extends BlockEntity implements Tickable {
+public abstract class AbstractElectricalBlockEntity extends BlockEntity {
     // Node ids assigned to each face as a temporary step. Not normalized, nor will all node ids be used
     // Use normalizedOutgoingNodes unless you know what you're doing
     protected ArrayList<Integer> outgoingNodes = new ArrayList<>();
@@ -37,8 +36,9 @@ public abstract class AbstractElectricalBlockEntity extends BlockEntity implemen
     protected ArrayList<Integer> normalizedOutgoingNodes = new ArrayList<>();
     // Maps normalized node ID => Direction
     protected HashMap<Integer, Direction> normalizedNodeToDir = new HashMap<>();
-    // Nodal voltages, maps iteration order for normalizedOutgoingNodes
-    protected ArrayList<Double> nodalVoltages = new ArrayList<>();
+    // Node ids of each terminal in the solved circuit, same order as normalizedOutgoingNodes
+    // Voltages are read from the circuit's solution using these as offsets
+    private int[] terminalNodes = new int[0];
 
     // Internal circuit, will have new node ids assigned when added to circuit
     protected VirtualCircuit internalCircuit = new VirtualCircuit();
@@ -70,12 +70,22 @@ public abstract class AbstractElectricalBlockEntity extends BlockEntity implemen
     // Thermal Simulation
     // -------------------------------------
 
-    /** Update the local ambient temperature, call when surrounding blocks / biome changes */
-    public void updateAmbientTemperature() { thermal.updateAmbientTemperature(world, pos); }
+    /**
+     * Update the local ambient temperature, call when surrounding blocks / biome changes.
+     * Usually called by the AmbientTemperatureCache, after a neighbour update
+     */
+    public void updateAmbientTemperature() {
+        if (thermal.updateAmbientTemperature(world, pos) && circuit != null)
+            circuit.markThermalDirty();
+    }
 
-    public void thermalSim() {
-        if (this.circuit != null)
-            thermal.tick(world, pos, getDissipatedPower());
+    /**
+     * Thermal state of the block, simulated by its circuit (see ThermalArray)
+     * @return Thermal component, ambient temperature set
+     */
+    public ThermalComponent getThermal() {
+        thermal.initAmbientTemperature(world, pos);
+        return thermal;
     }
 
     public double getDissipatedPower() {
@@ -99,6 +109,20 @@ public abstract class AbstractElectricalBlockEntity extends BlockEntity implemen
 
     public boolean recomputeEveryTick() { return false; }
 
+    /**
+     * Does the block do something every tick (see tick)? Block entities don't tick by
+     * themselves, active ones are ticked by the CircuitManager
+     * @return Is active?
+     */
+    public boolean isActive() { return recomputeEveryTick(); }
+
+    /**
+     * Does the block show the circuit's state to players (ie, lights, scopes)?
+     * Circuits with one are solved first when the tick's solve budget runs out
+     * @return Has visible output?
+     */
+    public boolean hasVisibleOutput() { return false; }
+
 
     /**
      * Returns the internal circuit representation of this block entity
@@ -108,6 +132,14 @@ public abstract class AbstractElectricalBlockEntity extends BlockEntity implemen
      */
     public abstract VirtualCircuit getInternalCircuit();
 
+    /**
+     * Components of the internal circuit as last generated, without re-generating it
+     * @return Components, do not modify
+     */
+    public ArrayList<AbstractVirtualComponent> getInternalComponents() {
+        return internalCircuit.getComponents();
+    }
+
     /**
      * Preliminary outgoing node generation. All 6 possible outgoing nodes (1 for
      * each face of a cube) is assigned a unique ID in Circuit, and nodes are replaced
@@ -134,85 +166,135 @@ public abstract class AbstractElectricalBlockEntity extends BlockEntity implemen
     }
 
 
-    @Override
-    public void tick() {
-        boolean dirty = false;
-
-        if (world != null && !world.isClient) {
-            // Force computation of sides next tick
-            // TODO: why?
-           // computedConnectedSides = false;
-
-            markDirty(); // For thermal sim
-
-            // ALL THIS TODO
-            // If not part of a circuit initiate floodfill from Circuitmanager
-
-            if (circuit == null) {
-                // Check neighbors for non-null components
-
-                boolean found = false;
-                for (Direction dir : Direction.values()) {
-                    BlockEntity _otherEntity = world.getBlockEntity(pos.offset(dir));
-
-                    if (_otherEntity instanceof AbstractElectricalBlockEntity) {
-                        AbstractElectricalBlockEntity otherEntity = (AbstractElectricalBlockEntity)_otherEntity;
-
-                        if (canConnectTo(dir, otherEntity) && otherEntity.canConnectTo(dir.getOpposite(), this)) {
-                            AbstractElectricalBlockEntity e2 = ((AbstractElectricalBlockEntity)world.getBlockEntity(pos.offset(dir)));
-                            Circuit c = e2.getCircuit();
-                            if (c != null && !e2.isRemoved() && !c.isDeleted()) {
-                                found = true;
-                                c.flagElementAdded(e2.getPos());
-                                // System.out.println("Found connecting circuit, flaging as invalid");
-                                break;
-                            }
-                        }
-                    }
-                }
+    /**
+     * World the block's circuit is in, the server world (see CircuitTickMixin)
+     * unless overridden (ie, for a SimulatedWorld)
+     * @return Circuit world, null on the client
+     */
+    public ICircuitWorld getCircuitWorld() {
+        return world instanceof ICircuitWorld ? (ICircuitWorld)world : null;
+    }
 
-                if (!found && canStartFloodfill()) {
-                    circuit = new Circuit((ServerWorld)world, pos, UUID.randomUUID()); // savedCircuitUUID == null ? UUID.randomUUID() : savedCircuitUUID
-                    circuit = ((IHasCircuitManager)world).getCircuitManager().addCircuit(circuit);
-                    //if (circuit != null)
-                    //    System.out.println("Generating circuit for " + this.getPos());
-                }
-            }
+    /**
+     * Block entity next to this one. Only electrical block entities are
+     * returned on the server, see ElectricalBlockIndex
+     * @param dir Direction
+     * @return Block entity, null if there is none
+     */
+    protected BlockEntity getNeighbor(Direction dir) {
+        ICircuitWorld circuitWorld = getCircuitWorld();
+        if (circuitWorld != null)
+            return circuitWorld.getElectricalBlocks().get(BlockPos.offset(pos.asLong(), dir));
+        return world.getBlockEntity(pos.offset(dir));
+    }
 
-            // TODO: dont run literally every tick, check if circuit actually reconstructed?
-            onUpdate();
-            // dirty = true;
+    /**
+     * Join a neighbour's circuit, wait for the circuit it was saved with, or start a new
+     * circuit if it's not in one. Called by the CircuitManager when the block is placed or
+     * loaded, when a neighbour changes and after its circuit was reset
+     * @return Is it waiting for a circuit to add it? Called again next tick if so
+     */
+    public boolean attach() {
+        ICircuitWorld circuitWorld = getCircuitWorld();
+        if (circuitWorld == null || circuit != null || isRemoved())
+            return false;
 
-            // cirucitmanager.floodFill(this pos, this, etc...) // also set circuit TODO
+        // Check neighbors for non-null components
+        boolean found = false;
+        for (Direction dir : Direction.values()) {
+            BlockEntity _otherEntity = getNeighbor(dir);
 
-            // flag calculation if necessary
-            if (recomputeEveryTick() && this.circuit != null)
-                circuit.markDirty();
+            if (_otherEntity instanceof AbstractElectricalBlockEntity) {
+                AbstractElectricalBlockEntity otherEntity = (AbstractElectricalBlockEntity)_otherEntity;
 
-            // voltage = ... todo get state somehow ibstead
+                if (canConnectTo(dir, otherEntity) && otherEntity.canConnectTo(dir.getOpposite(), this)) {
+                    Circuit c = otherEntity.getCircuit();
+                    if (c != null && !otherEntity.isRemoved() && !c.isDeleted()) {
+                        found = true;
+                        c.flagElementAdded(otherEntity.getPos(), pos);
+                        break;
+                    }
+                }
+            }
+        }
+
+        // Saved with a circuit, wait for it to be restored
+        if (!found && savedCircuitUUID != null) {
+            found = circuitWorld.getCircuitManager().restoreCircuit(circuitWorld, savedCircuitUUID, pos) != null;
+            if (!found)
+                savedCircuitUUID = null;
         }
 
-        if (dirty)
-            markDirty();
+        if (!found && canStartFloodfill())
+            circuit = circuitWorld.getCircuitManager().addCircuit(new Circuit(circuitWorld, pos, UUID.randomUUID()));
+        return found;
+    }
+
+    /**
+     * Run every tick for active block entities (see isActive) by the CircuitManager,
+     * before circuits are updated
+     */
+    public void tick() {
+        onUpdate();
+
+        // flag calculation if necessary, circuits sleeping at steady state stay asleep
+        // until a component change (ie, in onUpdate) wakes them
+        if (recomputeEveryTick() && this.circuit != null && !circuit.virtualCircuit().isSleeping())
+            circuit.markDirty();
     }
 
     public void markRemoved() {
         super.markRemoved();
         if (circuit != null)
             circuit.flagElementRemoved(pos);
+        ICircuitWorld circuitWorld = getCircuitWorld();
+        if (circuitWorld != null)
+            circuitWorld.getCircuitManager().removeBlockEntity(this);
     }
 
 
 
-    public void clearVoltages() {
-        nodalVoltages.clear();
+    // --- Terminal voltages --- \\
+
+    /**
+     * Cache node ids of terminals for reading voltages. Call after the internal
+     * circuit was added to the circuit, as that may re-order normalizedOutgoingNodes
+     */
+    public void updateTerminalNodes() {
+        terminalNodes = new int[normalizedOutgoingNodes.size()];
+        for (int i = 0; i < terminalNodes.length; i++)
+            terminalNodes[i] = normalizedOutgoingNodes.get(i);
     }
 
-    public void setVoltage(int node, double voltage) {
-        if (nodalVoltages.size() < normalizedOutgoingNodes.size())
-            for (int i = 0; i < normalizedOutgoingNodes.size(); i++)
-                nodalVoltages.add(0.0);
-        nodalVoltages.set(normalizedOutgoingNodes.indexOf(node), voltage);
+    /**
+     * Number of terminals with a solved voltage
+     * @return Terminal count, 0 if not part of a solved circuit
+     */
+    public int getTerminalCount() {
+        if (circuit == null || circuit.virtualCircuit().getNodalVoltages().length == 0)
+            return 0;
+        return terminalNodes.length;
+    }
+
+    /**
+     * Voltage at a terminal, read directly from the circuit's solution
+     * @param terminal Index of the terminal, same order as normalizedOutgoingNodes
+     * @return Voltage (relative to ground)
+     */
+    public double getTerminalVoltage(int terminal) {
+        return circuit.virtualCircuit().getNodalVoltage(terminalNodes[terminal]);
+    }
+
+    /**
+     * Voltages at all terminals, boxed for display. Use getTerminalVoltage
+     * for anything that runs often
+     * @return Voltages in terminal order, empty if not solved
+     */
+    public ArrayList<Double> getTerminalVoltages() {
+        ArrayList<Double> voltages = new ArrayList<>(getTerminalCount());
+        for (int i = 0; i < getTerminalCount(); i++)
+            voltages.add(getTerminalVoltage(i));
+        return voltages;
     }
 
 
@@ -246,7 +328,7 @@ public abstract class AbstractElectricalBlockEntity extends BlockEntity implemen
         normalizedOutgoingNodes.clear();
 
         for (Direction dir : Direction.values()) {
-            boolean canConnect = this.canConnectTo(dir, world.getBlockEntity(pos.offset(dir)));
+            boolean canConnect = this.canConnectTo(dir, getNeighbor(dir));
 
             connectedSides.add(canConnect);
 
@@ -277,6 +359,22 @@ public abstract class AbstractElectricalBlockEntity extends BlockEntity implemen
         outgoingNodes.set(Circuit.indexFromDirection(dir), nodeId);
     }
 
+    /**
+     * Shift all node ids by an offset, when the circuit is merged into another
+     * (see VirtualCircuit#merge, which moves the internal components)
+     * @param offset Offset to add
+     */
+    public void offsetNodes(int offset) {
+        outgoingNodes.replaceAll(node -> node + offset);
+        normalizedOutgoingNodes.replaceAll(node -> node + offset);
+        for (int i = 0; i < terminalNodes.length; i++)
+            terminalNodes[i] += offset;
+
+        HashMap<Integer, Direction> offsetNodeToDir = new HashMap<>();
+        normalizedNodeToDir.forEach((node, dir) -> offsetNodeToDir.put(node + offset, dir));
+        normalizedNodeToDir = offsetNodeToDir;
+    }
+
     public void setNormalizedOutgoingNode(int nodeId, Direction dir) {
         normalizedNodeToDir.put(nodeId, dir);
     }
@@ -293,7 +391,7 @@ public abstract class AbstractElectricalBlockEntity extends BlockEntity implemen
     public MultimeterReading getReading() {
         return new MultimeterReading()
                 .nodeIds(normalizedOutgoingNodes)
-                .nodalVoltages(nodalVoltages)
+                .nodalVoltages(getTerminalVoltages())
                 .blockType(this.getClass().toString().split(" ")[1])
                 .temperature(thermal.temperature);
     }
@@ -308,6 +406,15 @@ public abstract class AbstractElectricalBlockEntity extends BlockEntity implemen
     // Tag save / load
     // -------------------------------------
 
+    /**
+     * Set the id of the circuit the block entity was saved with, as loaded
+     * from its tag. See CircuitManager#restoreCircuit
+     * @param savedCircuitUUID Circuit id, null if none
+     */
+    public void setSavedCircuitUUID(UUID savedCircuitUUID) {
+        this.savedCircuitUUID = savedCircuitUUID;
+    }
+
     @Override
     public CompoundTag toTag(CompoundTag tag) {
         tag.put("Thermal", thermal.toTag(new CompoundTag()));
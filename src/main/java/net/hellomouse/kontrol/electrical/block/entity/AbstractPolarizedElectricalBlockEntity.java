@@ -30,7 +30,7 @@ public abstract class AbstractPolarizedElectricalBlockEntity extends AbstractEle
 
         // Doesn't use internal component because can have internal resistors
         try {
-            double voltage = nodalVoltages.get(0) - nodalVoltages.get(1);
+            double voltage = getTerminalVoltage(0) - getTerminalVoltage(1);
             double current = internalCircuit.getComponents().get(0).getCurrent();
             return super.getReading()
                     .voltage(voltage)
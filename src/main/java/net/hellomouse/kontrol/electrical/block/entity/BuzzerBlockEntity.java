@@ -23,6 +23,12 @@ public class BuzzerBlockEntity extends ResistorBlockEntity {
         return this;
     }
 
+    @Override
+    public boolean hasVisibleOutput() { return true; }
+
+    @Override
+    public boolean isActive() { return true; }
+
     @Override
     public void onUpdate() {
         if (internalCircuit.getComponents().size() > 0 && Math.abs(internalCircuit.getComponents().get(0).getVoltage()) > voltageThreshold && !world.isClient) {
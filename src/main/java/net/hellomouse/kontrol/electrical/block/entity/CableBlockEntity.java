@@ -48,12 +48,12 @@ public class CableBlockEntity extends AbstractElectricalBlockEntity {
             return super.getReading().error();
 
         double absoluteVoltage = 0.0;
-        for (double val : nodalVoltages)
-            absoluteVoltage += val;
-        absoluteVoltage /= nodalVoltages.size();
+        for (int i = 0; i < getTerminalCount(); i++)
+            absoluteVoltage += getTerminalVoltage(i);
+        absoluteVoltage /= getTerminalCount();
 
         if (normalizedOutgoingNodes.size() == 2) {
-            double voltage = nodalVoltages.get(0) - nodalVoltages.get(1);
+            double voltage = getTerminalVoltage(0) - getTerminalVoltage(1);
             double current = internalCircuit.getComponents().get(0).getCurrent();
 
             return super.getReading()
@@ -43,7 +43,7 @@ public class DiodeBlockEntity extends AbstractPolarizedElectricalBlockEntity {
         }
 
         if (dirty) {
-            if (nodalVoltages.size() == 2)
+            if (getTerminalCount() == 2)
                 ((VirtualDiode)internalCircuit.getComponents().get(1)).setVForward(forwardVoltage);
             markDirty();
         }
@@ -53,6 +53,9 @@ public class DiodeBlockEntity extends AbstractPolarizedElectricalBlockEntity {
 
     public double getForwardVoltage() { return forwardVoltage; }
 
+    @Override
+    public boolean isActive() { return true; }
+
     @Override
     public void onUpdate() {
         if (canSafelyMeasureCircuit()) {
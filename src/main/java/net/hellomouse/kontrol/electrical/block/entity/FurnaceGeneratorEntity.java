@@ -19,12 +19,11 @@ import net.minecraft.screen.NamedScreenHandlerFactory;
 import net.minecraft.screen.ScreenHandler;
 import net.minecraft.text.Text;
 import net.minecraft.text.TranslatableText;
-import net.minecraft.util.Tickable;
 import net.minecraft.util.collection.DefaultedList;
 import net.minecraft.util.math.Direction;
 
 
-public class FurnaceGeneratorEntity extends AbstractPolarizedElectricalBlockEntity implements ImplementedInventory, SidedInventory, NamedScreenHandlerFactory, Tickable {
+public class FurnaceGeneratorEntity extends AbstractPolarizedElectricalBlockEntity implements ImplementedInventory, SidedInventory, NamedScreenHandlerFactory {
     private final DefaultedList<ItemStack> items = DefaultedList.ofSize(1, ItemStack.EMPTY);
 
     private int fuelTime;
@@ -61,6 +60,9 @@ public class FurnaceGeneratorEntity extends AbstractPolarizedElectricalBlockEnti
         return super.toTag(tag);
     }
 
+    @Override
+    public boolean isActive() { return true; }
+
     @Override
     public void tick() {
         super.tick();
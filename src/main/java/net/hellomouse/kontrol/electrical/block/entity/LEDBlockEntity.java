@@ -28,6 +28,9 @@ public class LEDBlockEntity extends DiodeBlockEntity {
         super(ElectricalBlockRegistry.LED_BLOCK_ENTITY);
     }
 
+    @Override
+    public boolean hasVisibleOutput() { return true; }
+
     @Override
     public void onUpdate() {
         super.onUpdate();
@@ -36,10 +39,10 @@ public class LEDBlockEntity extends DiodeBlockEntity {
         Block block = blockState.getBlock();
         if (!(block instanceof AbstractLightBlock))
             throw new IllegalStateException("Block at " + pos + " has LEDBlockEntity, but doesn't extend AbstractLEDBlock");
-        if (nodalVoltages.size() != 2 || circuit == null)
+        if (getTerminalCount() != 2)
             return;
 
-        double voltage = Math.abs(nodalVoltages.get(0) - nodalVoltages.get(1));
+        double voltage = Math.abs(getTerminalVoltage(0) - getTerminalVoltage(1));
         double current = Math.abs(internalCircuit.getComponents().get(0).getCurrent());
         double power = Math.abs(voltage * current);
 
@@ -15,16 +15,22 @@ public class LightBlockEntity extends ResistorBlockEntity {
         super(ElectricalBlockRegistry.LIGHT_BLOCK_ENTITY);
     }
 
+    @Override
+    public boolean hasVisibleOutput() { return true; }
+
+    @Override
+    public boolean isActive() { return true; }
+
     @Override
     public void onUpdate() {
         BlockState blockState = world.getBlockState(pos);
         Block block = blockState.getBlock();
         if (!(block instanceof AbstractLightBlock))
             throw new IllegalStateException("Block at " + pos + " has LightBlockEntity, but doesn't extend AbstractLightBlock");
-        if (nodalVoltages.size() != 2 || circuit == null)
+        if (getTerminalCount() != 2)
             return;
 
-        double voltage = Math.abs(nodalVoltages.get(0) - nodalVoltages.get(1));
+        double voltage = Math.abs(getTerminalVoltage(0) - getTerminalVoltage(1));
         double current = Math.abs(internalCircuit.getComponents().get(0).getCurrent());
         double power = Math.abs(voltage * current);
 
@@ -25,6 +25,9 @@ public class PushButtonBlockEntity extends ResistorBlockEntity {
         return this;
     }
 
+    @Override
+    public boolean isActive() { return true; }
+
     @Override
     public void onUpdate() {
         if (tickCooldown > 0) {
@@ -41,7 +41,7 @@ public class ResistorBlockEntity extends AbstractPolarizedElectricalBlockEntity
         }
 
         if (dirty) {
-            if (nodalVoltages.size() == 2)
+            if (getTerminalCount() == 2)
                 ((VirtualResistor)internalCircuit.getComponents().get(0)).setResistance(resistance);
             markDirty();
         }
@@ -71,12 +71,18 @@ public class ScopeBlockEntity extends AbstractPolarizedElectricalBlockEntity imp
     @Override
     public boolean recomputeEveryTick() { return false; }
 
+    @Override
+    public boolean hasVisibleOutput() { return true; }
+
+    @Override
+    public boolean isActive() { return true; }
+
     @Override
     public void tick() {
         // TODO: delay based on time axis
         super.tick();
 
-        if (nodalVoltages.size() != 2)
+        if (getTerminalCount() != 2)
             return;
 
         if ((world.getTime() % (1 / state.getTimeScale())) != 0)
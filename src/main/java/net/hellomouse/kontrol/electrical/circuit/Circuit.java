@@ -1,25 +1,45 @@
 package net.hellomouse.kontrol.electrical.circuit;
 
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayFIFOQueue;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import net.hellomouse.kontrol.electrical.block.entity.AbstractElectricalBlockEntity;
+import net.hellomouse.kontrol.electrical.circuit.thermal.ThermalArray;
 import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.AbstractVirtualComponent;
-import net.minecraft.block.entity.BlockEntity;
-import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.Direction;
-import net.minecraft.world.World;
+import net.minecraft.util.profiler.Profiler;
+import org.apache.logging.log4j.LogManager;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 
 /**
  * A physical Minecraft circuit, internally solved with a VirtualCircuit.
  * Handles blocks being deleted and added to a network.
+ *
+ * The circuit is built with a floodfill once. Blocks added or removed afterwards only
+ * rebuild the blocks around them (see updateIncrementally), falling back to
+ * a full floodfill around superconductors.
+ *
+ * Circuits are saved with the world (see CircuitState) and restored from the save
+ * when loaded again instead of a floodfill, as long as their blocks didn't change.
  * @author Bowserinator
  */
 public class Circuit {
     // Unique identifier for the circuit, can be saved
     public final UUID id;
+    // Version of the format written by save()
+    private static final int SAVE_FORMAT_VERSION = 1;
+    // Direction.values() copies the array on every call
+    private static final Direction[] DIRECTIONS = Direction.values();
 
     // Circuit requires re-solve? (not reconstruction, overridden by invalid)
     private boolean dirty = true;
@@ -33,11 +53,41 @@ public class Circuit {
     // Location to start floodfill, must be a location within the circuit
     // (As in an AbstractElectricalBlockEntity occupies the location)
     private BlockPos floodfillPos;
-
-    private final ArrayList<AbstractElectricalBlockEntity> blockEntities = new ArrayList<>();
-    private final World world;
+    // Has the circuit been built by a floodfill? Added and removed blocks are then applied
+    // incrementally, until markInvalid forces a full floodfill
+    private boolean built = false;
+    // Blocks added or removed since the last postTick
+    private final LinkedHashSet<BlockPos> addedPositions = new LinkedHashSet<>();
+    private final LinkedHashSet<BlockPos> removedPositions = new LinkedHashSet<>();
+    // State from save() to restore instead of a floodfill on the first rebuild, null if none
+    private byte[] savedState = null;
+
+    // Block entities in the circuit by position
+    private final LinkedHashMap<BlockPos, AbstractElectricalBlockEntity> blockEntities = new LinkedHashMap<>();
+    private final ICircuitWorld world;
 
     private final VirtualCircuit circuit = new VirtualCircuit();
+    // Thermal sim of the block entities, in the same order as thermalBlocks. Reloaded after
+    // a rebuild, power re-read after a solve and ambient after markThermalDirty
+    private final ThermalArray thermals = new ThermalArray();
+    private AbstractElectricalBlockEntity[] thermalBlocks = new AbstractElectricalBlockEntity[0];
+    private boolean thermalsInvalid = true;
+    private boolean powerChanged = false;
+    private boolean ambientChanged = false;
+    // Step running on a worker thread since the end of the last tick, null if none
+    private Future<?> backgroundStep = null;
+    private long backgroundStepTime = 0;
+    // Exception thrown by the background step, and did a background step fail since the last
+    // rebuild? Failed circuits are stepped on the server thread until rebuilt
+    private Throwable backgroundFailure = null;
+    private boolean backgroundFailed = false;
+
+    // Scheduling (see CircuitManager): ticks the update has been deferred for, does any block
+    // entity have visible output (updated when built), and priority as of the last updatePriority
+    private int deferredTicks = 0;
+    private boolean visibleOutput = false;
+    private double priority = 0.0;
+    private final CircuitProfile profile = new CircuitProfile();
 
     /**
      * Construct a new circuit. Should be called from an AbstractElectricalBlockEntity.
@@ -45,40 +95,107 @@ public class Circuit {
      * not doing so may result in invalid circuit states!
      *
      * <pre>{@code
-     * circuit = ((IHasCircuitManager)world).getCircuitManager().addCircuit(circuit);
+     * circuit = world.getCircuitManager().addCircuit(circuit);
      * }</pre>
      *
      * @see CircuitManager
-     * @param world Server world the block entity belongs to
+     * @param world Server world the block entity belongs to (or a SimulatedWorld)
      * @param pos Position of the block entity (tentative location to begin floodfill)
      * @param id Unique UUID of the circuit
      */
-    public Circuit(ServerWorld world, BlockPos pos, UUID id) {
+    public Circuit(ICircuitWorld world, BlockPos pos, UUID id) {
         this.world = world;
         this.floodfillPos = pos;
         this.id = id;
     }
 
     /**
-     * Called by CircuitManager at the end of every tick.
+     * Called by CircuitManager at the end of a tick the circuit was marked dirty or invalid in.
      * Checks for any changes and solves / re-constructs if required
+     * @param solverPool Worker threads to step the circuit on, null to step on this thread
+     * @return Is the circuit being stepped in the background? See finishBackgroundStep
      */
-    public void postTick() {
-        if (world.isClient) return;
-
+    public boolean postTick(ExecutorService solverPool) {
         // Scheduled to be deleted, don't do any solving
-        if (deleted) return;
+        if (deleted) return false;
 
-        // Circuit structure has been invalidated, re-do floodfill and
-        // virtual circuit construction
+        Profiler profiler = world.getCircuitProfiler();
+        deferredTicks = 0;
+
+        // Circuit structure has been invalidated, rebuild the virtual circuit
         if (invalid) {
+            long startTime = System.nanoTime();
+            profiler.push("rebuild");
+            rebuild();
+            profiler.pop();
+            profile.recordRebuild(System.nanoTime() - startTime);
+            profile.updateSolverStats(circuit);
+            onSolutionChanged();
+        }
+
+        // Circuit only needs to be re-solved. Skipped while the virtual circuit sleeps at
+        // steady state, component changes (ie, switches) wake it
+        else if (dirty) {
+            dirty = false;
+            if (circuit.isSleeping())
+                return false;
+            if (solverPool != null && !backgroundFailed) {
+                stepInBackground(solverPool);
+                return true;
+            }
+            profiler.push("step");
+            step();
+            profiler.pop();
+            powerChanged = true;
+            profile.updateSolverStats(circuit);
+            onSolutionChanged();
+        }
+        return false;
+    }
+
+    /**
+     * After the circuit was rebuilt or stepped: run the thermal sim on the new
+     * solution (power dissipated may have changed) and save it with the world
+     */
+    private void onSolutionChanged() {
+        CircuitManager manager = world.getCircuitManager();
+        manager.scheduleThermal(this);
+        manager.markStateDirty();
+    }
+
+    /**
+     * Re-build the virtual circuit after blocks were added or removed,
+     * incrementally if it was built before, otherwise with a floodfill
+     */
+    private void rebuild() {
+        // Saved with the world, restore it and only apply blocks added since
+        if (savedState != null) {
+            byte[] state = savedState;
+            savedState = null;
+            if (restore(state)) {
+                built = true;
+                addedPositions.removeAll(blockEntities.keySet());
+                if (addedPositions.isEmpty() && removedPositions.isEmpty()) {
+                    finishRebuild();
+                    return;
+                }
+            }
+        }
+
+        // Only blocks were added / removed, stitch them into the existing circuit
+        if (built && updateIncrementally()) {
+            finishRebuild();
+        }
+
+        // Re-do floodfill and virtual circuit construction
+        else {
 
             // If an element was removed, select a start floodfill location
             // at any existing block entity (otherwise floodfill pos was set
             // when component was added)
             if (componentBeenRemoved) {
                 floodfillPos = null;
-                for (AbstractElectricalBlockEntity blockEntity : blockEntities) {
+                for (AbstractElectricalBlockEntity blockEntity : blockEntities.values()) {
                     blockEntity.setCircuit(null);
                     if (floodfillPos == null && !blockEntity.isRemoved())
                         floodfillPos = blockEntity.getPos();
@@ -86,79 +203,286 @@ public class Circuit {
 
                 // No more elements in circuit
                 if (floodfillPos == null) {
-                    ((IHasCircuitManager)world).getCircuitManager().deleteCircuit(this);
+                    world.getCircuitManager().deleteCircuit(this);
                     return;
                 }
             }
 
             floodFill(floodfillPos);
+            built = true;
+            finishRebuild();
+        }
+    }
 
-            floodfillPos = null;
-            invalid = false;
-            dirty = false;
-            componentBeenRemoved = false;
+    /**
+     * Clear the changes applied by rebuild
+     */
+    private void finishRebuild() {
+        addedPositions.clear();
+        removedPositions.clear();
+        floodfillPos = null;
+        invalid = false;
+        dirty = false;
+        componentBeenRemoved = false;
+        thermalsInvalid = true;
+        backgroundFailed = false;
+        updateVisibleOutput();
+    }
+
+    /**
+     * Called by CircuitManager instead of postTick when the circuit's update is deferred
+     * to a later tick, changes are kept until then
+     */
+    public void deferTick() {
+        if (deleted) return;
+        deferredTicks++;
+    }
+
+    /**
+     * Called by CircuitManager every tick while the circuit's temperatures are changing,
+     * runs the thermal sim of every block on the last published solution
+     * @return Did any block's temperature change? Otherwise it's not called again
+     *         until the circuit is updated or its ambient temperature changes
+     */
+    public boolean thermalTick() {
+        if (deleted) return false;
+
+        Profiler profiler = world.getCircuitProfiler();
+        profiler.push("thermal");
+        boolean changed = thermalSim();
+        profiler.pop();
+        return changed;
+    }
+
+    /**
+     * Does the circuit need to be rebuilt or re-solved by the next postTick?
+     * @return Needs update?
+     */
+    public boolean needsUpdate() {
+        return !deleted && (invalid || dirty);
+    }
+
+    /**
+     * Does the circuit need to be rebuilt by the next postTick?
+     * @return Needs rebuild?
+     */
+    public boolean needsRebuild() {
+        return !deleted && invalid;
+    }
+
+    /**
+     * Number of ticks the update has been deferred for
+     * @return Deferred ticks, 0 if updated last tick
+     */
+    public int getDeferredTicks() { return deferredTicks; }
+
+    /**
+     * Priority as of the last updatePriority
+     * @return Priority, higher is updated first
+     */
+    public double getPriority() { return priority; }
+
+    /**
+     * Re-compute the priority of the circuit's update: higher the longer it has been deferred,
+     * the closer the nearest player is and if it has visible output (see CircuitValues)
+     */
+    public void updatePriority() {
+        priority = deferredTicks * CircuitValues.PRIORITY_PER_DEFERRED_TICK;
+        if (visibleOutput)
+            priority += CircuitValues.PRIORITY_VISIBLE_OUTPUT;
+
+        // Distance to any block is close enough, circuits are usually compact
+        BlockPos pos = getPosition();
+        if (pos == null)
+            return;
+
+        double closest = world.getSquaredDistanceToPlayer(pos);
+        double range = CircuitValues.PLAYER_PRIORITY_RANGE;
+        if (closest < range * range)
+            priority += CircuitValues.PRIORITY_NEAR_PLAYER * (1.0 - Math.sqrt(closest) / range);
+    }
+
+    private void updateVisibleOutput() {
+        visibleOutput = false;
+        for (AbstractElectricalBlockEntity blockEntity : blockEntities.values()) {
+            if (blockEntity.hasVisibleOutput()) {
+                visibleOutput = true;
+                return;
+            }
         }
+    }
 
-        // Circuit only needs to be re-solved
-        else if (dirty) {
-            circuit.tick();
-            solve();
-            dirty = false;
+    private boolean thermalSim() {
+        long startTime = System.nanoTime();
+        long startBytes = CircuitProfile.getAllocatedBytes();
+
+        // Dissipated power is only read once per solution, on the last published one
+        if (thermalsInvalid)
+            loadThermals();
+        else {
+            if (powerChanged) {
+                for (int i = 0; i < thermals.size(); i++)
+                    thermals.setPower(i, thermalBlocks[i].getDissipatedPower());
+            }
+            if (ambientChanged)
+                thermals.updateAmbientTemperatures();
+        }
+        powerChanged = ambientChanged = false;
+
+        boolean changed = thermals.tick();
+        if (changed) {
+            for (int i = 0; i < thermals.size(); i++) {
+                if (thermals.hasChanged(i))
+                    thermalBlocks[i].markDirty(); // Save the new temperature
+            }
         }
 
-        // Thermal sim
-        for (AbstractElectricalBlockEntity blockEntity : blockEntities)
-            blockEntity.thermalSim();
+        profile.recordThermal(System.nanoTime() - startTime, CircuitProfile.getAllocatedBytes() - startBytes);
+        return changed;
+    }
+
+    /**
+     * Load the thermal state of every block entity after the circuit was rebuilt
+     */
+    private void loadThermals() {
+        thermals.clear();
+        thermalBlocks = blockEntities.values().toArray(thermalBlocks);
+        for (AbstractElectricalBlockEntity blockEntity : blockEntities.values())
+            thermals.add(blockEntity.getThermal(), blockEntity.getDissipatedPower());
+        thermalsInvalid = false;
+    }
+
+    /**
+     * Position of a block in the circuit (the first one added), to locate it
+     * @return Position, null if the circuit has no blocks
+     */
+    public BlockPos getPosition() {
+        if (floodfillPos != null)
+            return floodfillPos;
+        return blockEntities.isEmpty() ? null : blockEntities.keySet().iterator().next();
+    }
+
+    /**
+     * Timings and sizes of the circuit, see CircuitProfile
+     * @return Profile
+     */
+    public CircuitProfile getProfile() { return profile; }
+
+    /**
+     * Step the circuit on a worker thread until finishBackgroundStep. Block entities
+     * keep reading the last solution meanwhile, see VirtualCircuit#beginBackgroundStep
+     * @param solverPool Worker threads
+     */
+    private void stepInBackground(ExecutorService solverPool) {
+        circuit.beginBackgroundStep();
+        backgroundStep = solverPool.submit(() -> {
+            long startTime = System.nanoTime();
+            try {
+                circuit.stepInBackground();
+            }
+            catch (Exception e) {
+                // Logged by finishBackgroundStep on the server thread
+                backgroundFailure = e;
+            }
+            backgroundStepTime = System.nanoTime() - startTime;
+        });
+    }
+
+    /**
+     * Wait for a step started by postTick on a worker thread and publish its
+     * solution. Does nothing if there is none. If the step failed it is logged,
+     * nothing is published and the circuit is no longer stepped in the background
+     * until it is rebuilt
+     */
+    public void finishBackgroundStep() {
+        if (backgroundStep == null)
+            return;
+
+        // The worker must be done before the circuit is handed back, keep waiting if interrupted
+        Throwable failure = null;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                backgroundStep.get();
+                failure = backgroundFailure;
+                break;
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+            }
+            catch (ExecutionException e) {
+                failure = e.getCause();
+                break;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        backgroundStep = null;
+        backgroundFailure = null;
+        circuit.finishBackgroundStep();
+        if (failure != null) {
+            logSolveFailure(failure);
+            backgroundFailed = true;
+            return;
+        }
+        powerChanged = true;
+        profile.recordBackgroundStep(backgroundStepTime);
+        profile.updateSolverStats(circuit);
+        onSolutionChanged();
     }
 
     /**
      * Perform a floodfill starting at a location
      * Can behave differently depending on if componentBeenRemoved is true
+     *
+     * Positions are packed longs (BlockPos#asLong) and block entities are looked up
+     * in the world's ElectricalBlockIndex, so visiting a block doesn't allocate
      * @param pos Location to start floodfill
      */
     private void floodFill(BlockPos pos) {
         circuit.clear();
-
-        Queue<BlockPos> posToVisit = new LinkedList<>();
-        posToVisit.add(pos);
-
         resetBlockEntities();
 
-        int index = 0; // Used for generating offset of preliminary node ids
-        while (posToVisit.size() > 0) {
-            BlockPos p = posToVisit.remove();
-            BlockEntity entity = world.getBlockEntity(p);
-
-            if (!(entity instanceof AbstractElectricalBlockEntity))
-                break;
+        ElectricalBlockIndex index = world.getElectricalBlocks();
+        LongArrayFIFOQueue posToVisit = new LongArrayFIFOQueue();
+        LongOpenHashSet visited = new LongOpenHashSet();
+        posToVisit.enqueue(pos.asLong());
+        visited.add(pos.asLong());
 
-            AbstractElectricalBlockEntity electricalEntity = ((AbstractElectricalBlockEntity) entity);
+        int nodeIndex = 0; // Used for generating offset of preliminary node ids
+        while (!posToVisit.isEmpty()) {
+            long p = posToVisit.dequeueLong();
+            AbstractElectricalBlockEntity electricalEntity = index.get(p);
 
+            if (electricalEntity == null)
+                break;
             if (electricalEntity.isSuperconducting())
                 continue;
 
             electricalEntity.setCircuit(this);
-            blockEntities.add(electricalEntity);
+            blockEntities.put(electricalEntity.getPos(), electricalEntity);
 
             if (electricalEntity.getOutgoingNodes().size() == 0) {
-                electricalEntity.generatePreliminaryOutgoingNodes(index);
-                index++;
+                electricalEntity.generatePreliminaryOutgoingNodes(nodeIndex);
+                nodeIndex++;
             }
 
-            for (Direction dir : Direction.values()) {
-                BlockEntity newEntity = world.getBlockEntity(p.offset(dir));
-                if (!(newEntity instanceof AbstractElectricalBlockEntity))
+            ArrayList<Boolean> connectedSides = electricalEntity.getConnectedSides();
+            for (Direction dir : DIRECTIONS) {
+                if (!connectedSides.get(indexFromDirection(dir))) // No valid connection, checked in the entity
                     continue;
 
-                AbstractElectricalBlockEntity eEntity = ((AbstractElectricalBlockEntity) newEntity);
-                if (!(electricalEntity.getConnectedSides().get(indexFromDirection(dir)))) // No valid connection, checked in the entity
+                long next = BlockPos.offset(p, dir);
+                AbstractElectricalBlockEntity eEntity = index.get(next);
+                if (eEntity == null)
                     continue;
 
-                boolean alreadyVisited = eEntity.getCircuit() == this;
+                boolean alreadyVisited = visited.contains(next);
 
                 if (eEntity.isSuperconducting()) {
-                   if (!alreadyVisited)
-                       index = superconductorFloodfill(p.offset(dir), posToVisit, electricalEntity.getOutgoingNodes().get(indexFromDirection(dir)), index);
+                    if (!alreadyVisited)
+                        nodeIndex = superconductorFloodfill(next, posToVisit, visited, electricalEntity.getOutgoingNodes().get(indexFromDirection(dir)), nodeIndex);
                     continue;
                 }
 
@@ -169,87 +493,95 @@ public class Circuit {
                 // New entity
                 if (!alreadyVisited) {
                     if (eEntity.getCircuit() != null && !eEntity.getCircuit().id.equals(id))
-                        ((IHasCircuitManager)world).getCircuitManager().deleteCircuit(eEntity.getCircuit());
+                        world.getCircuitManager().deleteCircuit(eEntity.getCircuit());
 
-                    posToVisit.add(p.offset(dir));
+                    posToVisit.enqueue(next);
+                    visited.add(next);
                     eEntity.setCircuit(this);
                 }
             }
         }
 
-        Direction[] directions = Direction.values();
-        Map<Integer, Integer> nodeReductionMap = new HashMap<>();
+        Int2IntOpenHashMap nodeReductionMap = new Int2IntOpenHashMap();
+        nodeReductionMap.defaultReturnValue(-1);
         int currentNodeID = 0;
 
         // Perform node ID normalization
-        for (AbstractElectricalBlockEntity blockEntity : blockEntities) {
+        for (AbstractElectricalBlockEntity blockEntity : blockEntities.values()) {
             if (blockEntity.isSuperconducting())
                 continue;
 
             // getConnectedSides() may compute on the fly, so we cache result here
             ArrayList<Boolean> connectedSides = blockEntity.getConnectedSides();
+            ArrayList<Integer> outgoingNodes = blockEntity.getOutgoingNodes();
 
-            for (int i = 0; i < blockEntity.getOutgoingNodes().size(); i++) {
+            for (int i = 0; i < outgoingNodes.size(); i++) {
                 if (!connectedSides.get(i)) continue;
 
-                int outgoingNode = blockEntity.getOutgoingNodes().get(i);
-
-                if (!nodeReductionMap.containsKey(outgoingNode)) {
-                    nodeReductionMap.put(outgoingNode, currentNodeID);
-                    currentNodeID++;
+                int outgoingNode = outgoingNodes.get(i);
+                int normalizedNodeId = nodeReductionMap.get(outgoingNode);
+                if (normalizedNodeId < 0) {
+                    normalizedNodeId = currentNodeID++;
+                    nodeReductionMap.put(outgoingNode, normalizedNodeId);
                 }
 
-                int normalizedNodeId = nodeReductionMap.get(outgoingNode);
-                blockEntity.getOutgoingNodes().set(i, normalizedNodeId);  // Replace preliminary node ID with permanent one for future reference
-                blockEntity.setNormalizedOutgoingNode(normalizedNodeId, directions[i]); // Assign normalized node ID
+                outgoingNodes.set(i, normalizedNodeId);  // Replace preliminary node ID with permanent one for future reference
+                blockEntity.setNormalizedOutgoingNode(normalizedNodeId, DIRECTIONS[i]); // Assign normalized node ID
             }
 
             blockEntity.computeConnectedSides();
             currentNodeID = addInternalCircuit(blockEntity.getInternalCircuit(), currentNodeID);
+            blockEntity.updateTerminalNodes();
         }
 
-        // Solve the circuit
+        // Solve the circuit (timed by postTick, see CircuitProfile)
         solve();
-
-//        final long endTime = System.nanoTime();
-//        double d = (endTime - startTime) * 1.0 / 1e6;
-//        double d2 = (endTime - solveTime) * 1.0 / 1e6;
-//        System.out.println("Total execution time: " + d + " ms, counts " + count + "  circuit size: " + circuit.getComponents().size());
-//        System.out.println("Time solving:: " + d + " ms");
     }
 
-    private int superconductorFloodfill(BlockPos start, Queue<BlockPos> posToVisit, int outgoingNode, int index) {
-        Queue<BlockPos> superconductingPos = new LinkedList<>();
-        superconductingPos.add(start);
-
-        while (superconductingPos.size() > 0) {
-            BlockPos p = superconductingPos.remove();
-            BlockEntity entity = world.getBlockEntity(p);
+    /**
+     * Floodfill the superconductors connected to a block, see floodFill. They all share one node,
+     * non-superconducting blocks they touch are connected to it and queued in the main floodfill
+     * @param start Packed position of the first superconductor
+     * @param posToVisit Main floodfill queue
+     * @param visited Positions visited or queued by the main floodfill
+     * @param outgoingNode Node of the superconductors
+     * @param nodeIndex Offset of the next preliminary node ids
+     * @return New offset of the next preliminary node ids
+     */
+    private int superconductorFloodfill(long start, LongArrayFIFOQueue posToVisit, LongOpenHashSet visited, int outgoingNode, int nodeIndex) {
+        ElectricalBlockIndex index = world.getElectricalBlocks();
+        LongArrayFIFOQueue superconductingPos = new LongArrayFIFOQueue();
+        superconductingPos.enqueue(start);
+        visited.add(start);
 
-            if (!(entity instanceof AbstractElectricalBlockEntity)) break;
+        while (!superconductingPos.isEmpty()) {
+            long p = superconductingPos.dequeueLong();
+            AbstractElectricalBlockEntity electricalEntity = index.get(p);
 
-            AbstractElectricalBlockEntity electricalEntity = ((AbstractElectricalBlockEntity)entity);
+            if (electricalEntity == null) break;
             if (!electricalEntity.isSuperconducting())
                 continue;
 
-            blockEntities.add(electricalEntity);
+            blockEntities.put(electricalEntity.getPos(), electricalEntity);
             electricalEntity.setCircuit(this);
 
-            for (Direction dir : Direction.values()) {
-                BlockEntity newEntity = world.getBlockEntity(p.offset(dir));
-                if (!(newEntity instanceof AbstractElectricalBlockEntity))
+            ArrayList<Boolean> connectedSides = electricalEntity.getConnectedSides();
+            for (Direction dir : DIRECTIONS) {
+                if (!connectedSides.get(indexFromDirection(dir))) // No valid connection, checked in the entity
                     continue;
 
-                AbstractElectricalBlockEntity eEntity = ((AbstractElectricalBlockEntity) newEntity);
-                if (!(electricalEntity.getConnectedSides().get(indexFromDirection(dir)))) // No valid connection, checked in the entity
+                long next = BlockPos.offset(p, dir);
+                AbstractElectricalBlockEntity eEntity = index.get(next);
+                if (eEntity == null)
                     continue;
 
-                boolean alreadyVisited = eEntity.getCircuit() == this;
+                boolean alreadyVisited = visited.contains(next);
 
                 if (eEntity.isSuperconducting() && !alreadyVisited) {
                     if (eEntity.getCircuit() != null && !eEntity.getCircuit().id.equals(id))
-                        ((IHasCircuitManager)world).getCircuitManager().deleteCircuit(eEntity.getCircuit());
-                    superconductingPos.add(p.offset(dir));
+                        world.getCircuitManager().deleteCircuit(eEntity.getCircuit());
+                    superconductingPos.enqueue(next);
+                    visited.add(next);
                     continue;
                 }
 
@@ -260,44 +592,543 @@ public class Circuit {
                 // New entity
                 if (!alreadyVisited) {
                     if (eEntity.getCircuit() != null && !eEntity.getCircuit().id.equals(id))
-                        ((IHasCircuitManager)world).getCircuitManager().deleteCircuit(eEntity.getCircuit());
+                        world.getCircuitManager().deleteCircuit(eEntity.getCircuit());
 
-                    posToVisit.add(p.offset(dir));
+                    posToVisit.enqueue(next);
+                    visited.add(next);
 
                     // Block may not be added to circuit yet but already had it's preliminary nodes assigned
                     // Don't overwrite if it did
                     if (eEntity.getOutgoingNodes().size() == 0) {
-                        eEntity.generatePreliminaryOutgoingNodes(index);
-                        index++;
+                        eEntity.generatePreliminaryOutgoingNodes(nodeIndex);
+                        nodeIndex++;
                     }
                     eEntity.setCircuit(this);
                     eEntity.setOutgoingNode(dir.getOpposite(), outgoingNode);
                 }
             }
         }
-        return index;
+        return nodeIndex;
+    }
+
+    /**
+     * Apply blocks added and removed since the last postTick without a floodfill. Components
+     * of removed blocks are removed, then added blocks and every block touching an added or
+     * removed block are rebuilt: faces shared with unchanged blocks keep their node ids, new
+     * connections get free node ids (see VirtualCircuit#allocateNode), and internal circuits
+     * are re-generated. Circuits the added blocks connect to are merged in.
+     *
+     * Blocks that touched a removed block are checked for a split with a local search (see
+     * findSplitPart), parts that split off are detached and form their own circuits.
+     *
+     * @return False if a full floodfill is needed instead (superconductors next to a change,
+     *         or connecting to a circuit that isn't built)
+     */
+    private boolean updateIncrementally() {
+        CircuitManager manager = world.getCircuitManager();
+
+        // Added blocks, and blocks without a circuit connected to them
+        LinkedHashSet<AbstractElectricalBlockEntity> added = new LinkedHashSet<>();
+        ArrayList<Circuit> merged = new ArrayList<>();
+        ElectricalBlockIndex index = world.getElectricalBlocks();
+        LongOpenHashSet visited = new LongOpenHashSet();
+        LongArrayFIFOQueue posToVisit = new LongArrayFIFOQueue();
+        for (BlockPos p : addedPositions)
+            posToVisit.enqueue(p.asLong());
+        while (!posToVisit.isEmpty()) {
+            long p = posToVisit.dequeueLong();
+            AbstractElectricalBlockEntity entity = index.get(p);
+            if (entity == null || entity.isRemoved() || blockEntities.get(entity.getPos()) == entity || !visited.add(p))
+                continue;
+            if (entity.isSuperconducting())
+                return false;
+
+            Circuit other = entity.getCircuit();
+            if (other != null && other != this && !other.isDeleted()) {
+                if (!other.built || other.invalid)
+                    return false;
+                if (!merged.contains(other))
+                    merged.add(other);
+                continue;
+            }
+
+            added.add(entity);
+            for (Direction dir : DIRECTIONS) {
+                long next = BlockPos.offset(p, dir);
+                if (entity.canConnectTo(dir, index.get(next)))
+                    posToVisit.enqueue(next);
+            }
+        }
+
+        ArrayList<AbstractElectricalBlockEntity> removed = new ArrayList<>();
+        for (BlockPos p : removedPositions) {
+            AbstractElectricalBlockEntity entity = blockEntities.get(p);
+            if (entity == null || !entity.isRemoved())
+                continue;
+            if (entity.isSuperconducting())
+                return false;
+            removed.add(entity);
+        }
+
+        // Blocks (of this or merged circuits) touching a change are rebuilt
+        LinkedHashSet<AbstractElectricalBlockEntity> rebuild = new LinkedHashSet<>(added);
+        LongArrayList changed = new LongArrayList();
+        for (AbstractElectricalBlockEntity entity : added) changed.add(entity.getPos().asLong());
+        for (AbstractElectricalBlockEntity entity : removed) changed.add(entity.getPos().asLong());
+        for (int i = 0; i < changed.size(); i++) {
+            long p = changed.getLong(i);
+            for (Direction dir : DIRECTIONS) {
+                AbstractElectricalBlockEntity neighbour = index.get(BlockPos.offset(p, dir));
+                if (neighbour == null || neighbour.isRemoved() || rebuild.contains(neighbour) ||
+                        (blockEntities.get(neighbour.getPos()) != neighbour && !merged.contains(neighbour.getCircuit())))
+                    continue;
+                if (neighbour.isSuperconducting())
+                    return false;
+                rebuild.add(neighbour);
+            }
+        }
+
+        // Nothing can fail from here, apply changes
+        for (Circuit other : merged)
+            absorb(other, manager);
+        for (AbstractElectricalBlockEntity entity : removed) {
+            blockEntities.remove(entity.getPos());
+            removeInternalComponents(entity);
+        }
+        for (AbstractElectricalBlockEntity entity : added) {
+            blockEntities.put(entity.getPos(), entity);
+            entity.setCircuit(this);
+        }
+
+        if (blockEntities.size() == 0) {
+            manager.deleteCircuit(this);
+            return true;
+        }
+
+        // Did a removal split the circuit? Only blocks touching 2+ others can
+        BlockPos.Mutable neighbourPos = new BlockPos.Mutable();
+        for (AbstractElectricalBlockEntity entity : removed) {
+            ArrayList<AbstractElectricalBlockEntity> neighbours = new ArrayList<>();
+            for (Direction dir : DIRECTIONS) {
+                AbstractElectricalBlockEntity neighbour = blockEntities.get(neighbourPos.set(entity.getPos(), dir));
+                if (neighbour != null)
+                    neighbours.add(neighbour);
+            }
+            detachSplitParts(neighbours);
+        }
+        rebuild.removeIf(entity -> blockEntities.get(entity.getPos()) != entity);
+
+        // Assign face nodes: shared with unchanged neighbours, or a new node for new connections
+        HashSet<AbstractElectricalBlockEntity> assigned = new HashSet<>();
+        for (AbstractElectricalBlockEntity entity : rebuild) {
+            ArrayList<Integer> outgoingNodes = entity.getOutgoingNodes();
+            if (outgoingNodes.size() != DIRECTIONS.length) {
+                outgoingNodes.clear();
+                outgoingNodes.addAll(Collections.nCopies(DIRECTIONS.length, -1));
+            }
+
+            for (Direction dir : DIRECTIONS) {
+                AbstractElectricalBlockEntity neighbour = blockEntities.get(neighbourPos.set(entity.getPos(), dir));
+                if (neighbour == null || !entity.canConnectTo(dir, neighbour))
+                    continue;
+
+                int neighbourNode = neighbour.getOutgoingNodes().size() == DIRECTIONS.length ?
+                        neighbour.getOutgoingNodes().get(indexFromDirection(dir.getOpposite())) : -1;
+                boolean existing = !added.contains(entity) && !added.contains(neighbour) &&
+                        outgoingNodes.get(indexFromDirection(dir)) == neighbourNode;
+
+                if (assigned.contains(neighbour) || !rebuild.contains(neighbour) || (existing && neighbourNode >= 0)) {
+                    entity.setOutgoingNode(dir, neighbourNode);
+                } else {
+                    int node = circuit.allocateNode();
+                    entity.setOutgoingNode(dir, node);
+                    neighbour.setOutgoingNode(dir.getOpposite(), node);
+                }
+            }
+            assigned.add(entity);
+        }
+
+        // Re-generate internal circuits, after every old component is removed and
+        // face nodes are reserved so internal nodes don't take them
+        for (AbstractElectricalBlockEntity entity : rebuild)
+            removeInternalComponents(entity);
+        for (AbstractElectricalBlockEntity entity : rebuild) {
+            entity.computeConnectedSides();
+            ArrayList<Boolean> connectedSides = entity.getConnectedSides();
+            for (int i = 0; i < DIRECTIONS.length; i++) {
+                if (!connectedSides.get(i)) continue;
+                int node = entity.getOutgoingNodes().get(i);
+                circuit.reserveNode(node);
+                entity.setNormalizedOutgoingNode(node, DIRECTIONS[i]);
+            }
+        }
+        for (AbstractElectricalBlockEntity entity : rebuild) {
+            stitchInternalCircuit(entity.getInternalCircuit());
+            entity.updateTerminalNodes();
+        }
+
+        solve();
+        return true;
+    }
+
+    /**
+     * Move every block of another circuit into this one, and delete it
+     * @param other Built circuit to merge
+     * @param manager Circuit manager
+     */
+    private void absorb(Circuit other, CircuitManager manager) {
+        other.finishBackgroundStep();
+        int offset = circuit.merge(other.circuit);
+        for (AbstractElectricalBlockEntity entity : other.blockEntities.values()) {
+            entity.offsetNodes(offset);
+            entity.setCircuit(this);
+            blockEntities.put(entity.getPos(), entity);
+        }
+        other.blockEntities.clear();
+        manager.deleteCircuit(other);
+    }
+
+    /**
+     * Check if blocks that touched a removed block are still connected, and detach parts
+     * that are not. See findSplitPart
+     * @param candidates Blocks in the circuit that touched the removed block
+     */
+    private void detachSplitParts(ArrayList<AbstractElectricalBlockEntity> candidates) {
+        AbstractElectricalBlockEntity main = null;
+        for (AbstractElectricalBlockEntity candidate : candidates) {
+            if (blockEntities.get(candidate.getPos()) != candidate)
+                continue; // Detached with an earlier part
+            if (main == null) {
+                main = candidate;
+                continue;
+            }
+
+            LongOpenHashSet part = findSplitPart(main, candidate);
+            if (part == null)
+                continue;
+            if (part.contains(main.getPos().asLong()))
+                main = candidate;
+
+            for (LongIterator it = part.iterator(); it.hasNext(); ) {
+                AbstractElectricalBlockEntity entity = blockEntities.remove(BlockPos.fromLong(it.nextLong()));
+                removeInternalComponents(entity);
+                resetBlockEntity(entity);
+            }
+        }
     }
 
     /**
-     * Solves the internal circuit and assigns solved nodal voltages
-     * to every block entity in the circuit
+     * Search outwards from 2 blocks, one block from each in turn, until the searches meet.
+     * A search that runs out of blocks first has found a part that is no longer connected
+     * to the other block, and never searched more blocks than the other search, so only
+     * the smaller part is searched in full.
+     * @param start1 Block in the circuit
+     * @param start2 Block in the circuit
+     * @return Positions of the part that split off, null if both blocks are still connected
+     */
+    private LongOpenHashSet findSplitPart(AbstractElectricalBlockEntity start1, AbstractElectricalBlockEntity start2) {
+        LongOpenHashSet visited1 = new LongOpenHashSet();
+        LongOpenHashSet visited2 = new LongOpenHashSet();
+        LongArrayFIFOQueue posToVisit1 = new LongArrayFIFOQueue();
+        LongArrayFIFOQueue posToVisit2 = new LongArrayFIFOQueue();
+        visited1.add(start1.getPos().asLong());
+        visited2.add(start2.getPos().asLong());
+        posToVisit1.enqueue(start1.getPos().asLong());
+        posToVisit2.enqueue(start2.getPos().asLong());
+        BlockPos.Mutable lookupPos = new BlockPos.Mutable();
+
+        while (true) {
+            if (posToVisit1.isEmpty()) return visited1;
+            if (visitNext(posToVisit1, visited1, visited2, lookupPos)) return null;
+            if (posToVisit2.isEmpty()) return visited2;
+            if (visitNext(posToVisit2, visited2, visited1, lookupPos)) return null;
+        }
+    }
+
+    /**
+     * Visit the next block of a search in findSplitPart
+     * @param posToVisit Search queue
+     * @param visited Positions found by this search
+     * @param otherVisited Positions found by the other search
+     * @param lookupPos Reused for block entity lookups
+     * @return Did the searches meet?
+     */
+    private boolean visitNext(LongArrayFIFOQueue posToVisit, LongOpenHashSet visited, LongOpenHashSet otherVisited,
+                              BlockPos.Mutable lookupPos) {
+        long p = posToVisit.dequeueLong();
+        AbstractElectricalBlockEntity entity = blockEntities.get(lookupPos.set(p));
+        for (Direction dir : DIRECTIONS) {
+            long next = BlockPos.offset(p, dir);
+            if (visited.contains(next))
+                continue;
+            AbstractElectricalBlockEntity neighbour = blockEntities.get(lookupPos.set(next));
+            if (neighbour == null || !entity.canConnectTo(dir, neighbour))
+                continue;
+            if (otherVisited.contains(next))
+                return true;
+            visited.add(next);
+            posToVisit.enqueue(next);
+        }
+        return false;
+    }
+
+    /**
+     * Restore the circuit from a state returned by save() on its first update,
+     * instead of a floodfill. See CircuitManager#restoreCircuit
+     * @param state Saved state
+     * @return this
+     */
+    public Circuit restoreFrom(byte[] state) {
+        savedState = state;
+        return this;
+    }
+
+    /**
+     * Is the circuit waiting to be restored from a saved state? Its blocks don't have
+     * a circuit until then, and shouldn't start their own
+     * @return Is restoring?
+     */
+    public boolean isRestoring() { return savedState != null; }
+
+    /**
+     * Save the circuit in a compact binary form: position, connected sides and face node ids
+     * of each block, node ids and state of the components their internal circuits added
+     * (see AbstractVirtualComponent#saveState), and the last solution
+     * @return Saved state, null if the circuit isn't built (it will be floodfilled instead)
+     */
+    public byte[] save() {
+        if (savedState != null)
+            return savedState;
+        if (deleted || invalid || !built)
+            return null;
+        finishBackgroundStep();
+
+        Set<AbstractVirtualComponent> added = Collections.newSetFromMap(new IdentityHashMap<>());
+        added.addAll(circuit.getComponents());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(SAVE_FORMAT_VERSION);
+            out.writeInt(circuit.getHighestNodeID() + 1);
+            out.writeBoolean(circuit.isSleeping());
+
+            out.writeInt(blockEntities.size());
+            for (AbstractElectricalBlockEntity entity : blockEntities.values()) {
+                out.writeLong(entity.getPos().asLong());
+                out.writeInt(entity.getClass().getName().hashCode());
+                out.writeByte(connectedSidesMask(entity));
+                out.writeByte(entity.getOutgoingNodes().size());
+                for (int node : entity.getOutgoingNodes())
+                    out.writeInt(node);
+
+                // Superconductors don't add internal circuits (see floodFill)
+                List<AbstractVirtualComponent> components = entity.isSuperconducting() ?
+                        Collections.emptyList() : entity.getInternalComponents();
+                out.writeShort(components.size());
+                for (AbstractVirtualComponent comp : components) {
+                    // Skipped components (see addInternalCircuit) are skipped again
+                    out.writeBoolean(added.contains(comp));
+                    if (!added.contains(comp))
+                        continue;
+
+                    out.writeInt(comp.getNode1());
+                    out.writeInt(comp.getNode2());
+                    out.writeByte(comp.getExtraNodes().length);
+                    for (int node : comp.getExtraNodes())
+                        out.writeInt(node);
+                    out.writeDouble(circuit.hasBranchCurrent(comp.getBranchIndex()) ?
+                            circuit.getBranchCurrent(comp.getBranchIndex()) : 0.0);
+
+                    double[] state = comp.saveState();
+                    out.writeByte(state.length);
+                    for (double value : state)
+                        out.writeDouble(value);
+                }
+            }
+
+            double[] nodalVoltages = circuit.getNodalVoltages();
+            out.writeInt(nodalVoltages.length);
+            for (double voltage : nodalVoltages)
+                out.writeDouble(voltage);
+        }
+        catch (IOException e) {
+            return null; // Not thrown when writing to memory
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Re-build the circuit from a state returned by save() without a floodfill. Cheaply verified
+     * on the way: every saved block must still be there (same class, not in another circuit)
+     * with the same connected sides, and re-generate the same internal components
+     * @param state Saved state
+     * @return False if anything changed, the circuit is left empty to floodfill instead
+     */
+    private boolean restore(byte[] state) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(state))) {
+            if (in.readByte() == SAVE_FORMAT_VERSION && restore(in))
+                return true;
+        }
+        catch (IOException e) {
+            // Truncated, floodfill instead
+        }
+        resetBlockEntities();
+        circuit.clear();
+        return false;
+    }
+
+    /**
+     * See restore(byte[])
+     * @param in Saved state, after the version
+     * @return False if anything changed
+     * @throws IOException If the state is truncated
+     */
+    private boolean restore(DataInputStream in) throws IOException {
+        int nodeCount = in.readInt();
+        boolean sleeping = in.readBoolean();
+        ArrayList<Double> branchCurrents = new ArrayList<>();
+
+        int blockCount = in.readInt();
+        for (int i = 0; i < blockCount; i++) {
+            BlockPos pos = BlockPos.fromLong(in.readLong());
+            AbstractElectricalBlockEntity entity = electricalEntityAt(pos);
+            if (entity == null || entity.isRemoved() || entity.getClass().getName().hashCode() != in.readInt() ||
+                    (entity.getCircuit() != null && entity.getCircuit() != this) || blockEntities.containsKey(pos))
+                return false;
+
+            int connectedSides = in.readByte();
+            ArrayList<Integer> outgoingNodes = entity.getOutgoingNodes();
+            outgoingNodes.clear();
+            int outgoingNodeCount = in.readByte();
+            for (int j = 0; j < outgoingNodeCount; j++)
+                outgoingNodes.add(in.readInt());
+            if (!entity.isSuperconducting() && outgoingNodeCount != DIRECTIONS.length)
+                return false;
+
+            blockEntities.put(pos, entity);
+            entity.setCircuit(this);
+            entity.computeConnectedSides();
+            if (connectedSidesMask(entity) != connectedSides)
+                return false;
+
+            if (entity.isSuperconducting()) {
+                if (in.readShort() != 0)
+                    return false;
+                continue;
+            }
+
+            for (int side = 0; side < DIRECTIONS.length; side++)
+                if ((connectedSides & (1 << side)) != 0)
+                    entity.setNormalizedOutgoingNode(outgoingNodes.get(side), DIRECTIONS[side]);
+
+            ArrayList<AbstractVirtualComponent> components = entity.getInternalCircuit().getComponents();
+            if (components.size() != in.readShort())
+                return false;
+
+            for (AbstractVirtualComponent comp : components) {
+                if (!in.readBoolean())
+                    continue;
+
+                int node1 = in.readInt();
+                int node2 = in.readInt();
+                int[] extraNodes = new int[in.readByte()];
+                for (int j = 0; j < extraNodes.length; j++)
+                    extraNodes[j] = in.readInt();
+                double branchCurrent = in.readDouble();
+                double[] componentState = new double[in.readByte()];
+                for (int j = 0; j < componentState.length; j++)
+                    componentState[j] = in.readDouble();
+
+                // Face nodes are the saved outgoing nodes so must match, internal nodes (< 0) get the saved ids
+                if ((comp.getNode1() >= 0 && comp.getNode1() != node1) || (comp.getNode2() >= 0 && comp.getNode2() != node2) ||
+                        componentState.length != comp.saveState().length)
+                    return false;
+
+                circuit.addComponent(comp, node1, node2, extraNodes);
+                comp.loadState(componentState);
+                if (comp.getBranchIndex() >= 0) {
+                    if (comp.getBranchIndex() != branchCurrents.size())
+                        return false;
+                    branchCurrents.add(branchCurrent);
+                }
+            }
+            entity.updateTerminalNodes();
+        }
+
+        double[] nodalVoltages = new double[in.readInt()];
+        for (int i = 0; i < nodalVoltages.length; i++)
+            nodalVoltages[i] = in.readDouble();
+        double[] currents = new double[branchCurrents.size()];
+        for (int i = 0; i < currents.length; i++)
+            currents[i] = branchCurrents.get(i);
+        return circuit.restoreSolution(nodeCount, nodalVoltages, currents, sleeping);
+    }
+
+    /**
+     * Connected sides of a block as bits, in the order of indexFromDirection
+     * @param entity Block entity
+     * @return Bit mask
+     */
+    private static int connectedSidesMask(AbstractElectricalBlockEntity entity) {
+        ArrayList<Boolean> connectedSides = entity.getConnectedSides();
+        int mask = 0;
+        for (int i = 0; i < connectedSides.size(); i++)
+            if (connectedSides.get(i))
+                mask |= 1 << i;
+        return mask;
+    }
+
+    /**
+     * Electrical block entity at a position
+     * @param pos Position
+     * @return Block entity, null if not electrical
+     */
+    private AbstractElectricalBlockEntity electricalEntityAt(BlockPos pos) {
+        return world.getElectricalBlocks().get(pos);
+    }
+
+    /**
+     * Remove the components a block entity last added to the circuit
+     * @param entity Block entity
+     */
+    private void removeInternalComponents(AbstractElectricalBlockEntity entity) {
+        for (AbstractVirtualComponent comp : entity.getInternalComponents())
+            circuit.removeComponent(comp);
+    }
+
+    /**
+     * Solves the internal circuit. Block entities read their terminal
+     * voltages directly from the solution
      */
     public void solve() {
         try {
             circuit.solve();
+        }
+        catch (Exception e) {
+            logSolveFailure(e);
+        }
+    }
 
-            for (AbstractElectricalBlockEntity ent : blockEntities) {
-                ent.clearVoltages();
-                for (int nodeId : ent.getNormalizedOutgoingNodes())
-                    ent.setVoltage(nodeId, circuit.getNodalVoltage(nodeId));
-            }
+    /**
+     * Ticks and solves the internal circuit for one game tick, see VirtualCircuit#step
+     */
+    public void step() {
+        try {
+            circuit.step();
         }
         catch (Exception e) {
-            System.out.println("failed to solve");
-            System.out.println(e.toString());
+            logSolveFailure(e);
         }
     }
 
+    /**
+     * Log an exception thrown while solving the internal circuit, call on the server thread
+     * @param e Exception
+     */
+    private void logSolveFailure(Throwable e) {
+        LogManager.getLogger().error("Failed to solve circuit " + id + " at " + getPosition(), e);
+    }
+
     /**
      * Adds an internal circuit to the main circuit. The internal circuit should have
      * all outer nodes reassigned (nodes that can connect to other internal circuits)
@@ -311,7 +1142,7 @@ public class Circuit {
      */
     private int addInternalCircuit(VirtualCircuit internalCircuit, int currentNodeID) {
         ArrayList<AbstractVirtualComponent> components = internalCircuit.getComponents();
-        HashMap<Integer, Integer> seenNodes = new HashMap<>();
+        Int2IntOpenHashMap seenNodes = new Int2IntOpenHashMap();
 
         for (AbstractVirtualComponent comp : components) {
             int node1 = comp.getNode1();
@@ -343,25 +1174,68 @@ public class Circuit {
         return currentNodeID;
     }
 
+    /**
+     * Adds an internal circuit to the built circuit, see addInternalCircuit. Internal nodes
+     * are assigned free node ids of the circuit
+     * @param internalCircuit Internal circuit to add, outer nodes already assigned
+     */
+    private void stitchInternalCircuit(VirtualCircuit internalCircuit) {
+        Int2IntOpenHashMap seenNodes = new Int2IntOpenHashMap();
+        seenNodes.defaultReturnValue(-1);
+
+        for (AbstractVirtualComponent comp : internalCircuit.getComponents()) {
+            int node1 = comp.getNode1() < 0 ? allocateInternalNode(seenNodes, comp.getNode1()) : comp.getNode1();
+            int node2 = comp.getNode2() < 0 ? allocateInternalNode(seenNodes, comp.getNode2()) : comp.getNode2();
+
+            if (node1 != node2 || comp.isMonoNode())
+                circuit.addComponent(comp, node1, node2);
+        }
+    }
+
+    /**
+     * Free node id of the circuit for an internal node, see stitchInternalCircuit
+     * @param seenNodes Internal nodes assigned so far
+     * @param internalNode Internal node (< 0)
+     * @return Node id
+     */
+    private int allocateInternalNode(Int2IntOpenHashMap seenNodes, int internalNode) {
+        int node = seenNodes.get(internalNode);
+        if (node < 0) {
+            node = circuit.allocateNode();
+            seenNodes.put(internalNode, node);
+        }
+        return node;
+    }
+
     /**
      * Resets all data connected to this circuit for block entities in this circuit.
      * Run this when circuit is about to be deleted or when re-floodfilling
      */
     public void resetBlockEntities() {
-        for (AbstractElectricalBlockEntity e : blockEntities) {
-            e.clearConnectedSides();
-            e.setCircuit(null);
-            e.flagRecomputeConnectedSides();
-        }
+        for (AbstractElectricalBlockEntity e : blockEntities.values())
+            resetBlockEntity(e);
         blockEntities.clear();
     }
 
+    /**
+     * Reset a block entity's circuit data, it will join or start a circuit again
+     * next tick (unless a floodfill adds it to this one first)
+     * @param e Block entity
+     */
+    private void resetBlockEntity(AbstractElectricalBlockEntity e) {
+        e.clearConnectedSides();
+        e.setCircuit(null);
+        e.flagRecomputeConnectedSides();
+        world.getCircuitManager().scheduleAttach(e);
+    }
+
     /**
      * Mark the circuit as dirty. It will be ticked and re-solved
      * next time CircuitManager reaches it.
      */
     public void markDirty() {
         dirty = true;
+        world.getCircuitManager().scheduleSolve(this);
     }
 
     /**
@@ -370,6 +1244,16 @@ public class Circuit {
      */
     public void markInvalid() {
         invalid = true;
+        built = false;
+        world.getCircuitManager().scheduleRebuild(this);
+    }
+
+    /**
+     * Run the thermal sim again after the ambient temperature of a block changed
+     */
+    public void markThermalDirty() {
+        ambientChanged = true;
+        world.getCircuitManager().scheduleThermal(this);
     }
 
     /**
@@ -377,10 +1261,14 @@ public class Circuit {
      * @param pos An EXISTING circuit element that touches the element
      *            that is added. Note this is NOT the location of the
      *            element that was added!
+     * @param addedPos Location of the element that was added
      */
-    public void flagElementAdded(BlockPos pos) {
-        floodfillPos = pos;
-        markInvalid();
+    public void flagElementAdded(BlockPos pos, BlockPos addedPos) {
+        if (floodfillPos == null)
+            floodfillPos = pos;
+        addedPositions.add(addedPos);
+        invalid = true;
+        world.getCircuitManager().scheduleRebuild(this);
     }
 
     /**
@@ -389,7 +1277,9 @@ public class Circuit {
      */
     public void flagElementRemoved(BlockPos pos) {
         componentBeenRemoved = true;
-        markInvalid();
+        removedPositions.add(pos);
+        invalid = true;
+        world.getCircuitManager().scheduleRebuild(this);
     }
 
     /**
@@ -0,0 +1,107 @@
+package net.hellomouse.kontrol.electrical.circuit;
+
+import net.minecraft.util.math.BlockPos;
+import org.apache.logging.log4j.LogManager;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Emits a "kontrol.CircuitUpdate" Java Flight Recorder event for every circuit update,
+ * with the circuit's profile (see CircuitProfile). Enabled with -Dkontrol.jfr=true.
+ *
+ * The mod targets Java 8, which has no JFR API, so the event type is created at runtime
+ * with jdk.jfr.EventFactory through reflection. Does nothing if that isn't available.
+ * @author Bowserinator
+ */
+public final class CircuitFlightRecorder {
+    private static final String[] LONG_FIELDS = { "updateTime", "rebuildTime", "assemblyTime",
+            "factorizationTime", "solveTime", "thermalTime", "thermalAllocatedBytes" };
+    private static final String[] INT_FIELDS = { "x", "y", "z", "nodeCount", "componentCount", "newtonIterations" };
+
+    private static final Object factory;
+    private static final Method newEvent, set, commit;
+    // Was a failure to emit logged? Only the first one is
+    private static boolean emitFailureLogged = false;
+
+    static {
+        Object eventFactory = null;
+        Method newEventMethod = null, setMethod = null, commitMethod = null;
+
+        if (CircuitValues.JFR_EVENTS) {
+            try {
+                Class<?> annotationClass = Class.forName("jdk.jfr.AnnotationElement");
+                Class<?> valueClass = Class.forName("jdk.jfr.ValueDescriptor");
+                Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+                Class<?> eventClass = Class.forName("jdk.jfr.Event");
+                Constructor<?> annotation = annotationClass.getConstructor(Class.class, Object.class);
+                Constructor<?> value = valueClass.getConstructor(Class.class, String.class);
+
+                List<Object> annotations = Arrays.asList(
+                        annotation.newInstance(Class.forName("jdk.jfr.Name"), "kontrol.CircuitUpdate"),
+                        annotation.newInstance(Class.forName("jdk.jfr.Label"), "Circuit Update"),
+                        annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[] { "Kontrol" }));
+                List<Object> fields = new ArrayList<>();
+                for (String field : LONG_FIELDS)
+                    fields.add(value.newInstance(long.class, field));
+                for (String field : INT_FIELDS)
+                    fields.add(value.newInstance(int.class, field));
+
+                eventFactory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+                newEventMethod = factoryClass.getMethod("newEvent");
+                setMethod = eventClass.getMethod("set", int.class, Object.class);
+                commitMethod = eventClass.getMethod("commit");
+            }
+            catch (ReflectiveOperationException | RuntimeException e) {
+                LogManager.getLogger().warn("JFR events are not available", e);
+                eventFactory = null;
+            }
+        }
+        factory = eventFactory;
+        newEvent = newEventMethod;
+        set = setMethod;
+        commit = commitMethod;
+    }
+
+    /**
+     * Are events emitted?
+     * @return Enabled and available?
+     */
+    public static boolean isEnabled() { return factory != null; }
+
+    /**
+     * Emit an event for a circuit update
+     * @param pos Position of the circuit (see Circuit#getPosition), can be null
+     * @param profile Profile after the update
+     */
+    public static void emit(BlockPos pos, CircuitProfile profile) {
+        if (factory == null)
+            return;
+
+        Object[] values = {
+            profile.getUpdateTime(), profile.getRebuildTime(), profile.getAssemblyTime(),
+            profile.getFactorizationTime(), profile.getSolveTime(), profile.getThermalTime(),
+            profile.getThermalAllocatedBytes(),
+            pos == null ? 0 : pos.getX(), pos == null ? 0 : pos.getY(), pos == null ? 0 : pos.getZ(),
+            profile.getNodeCount(), profile.getComponentCount(), profile.getNewtonIterations()
+        };
+        try {
+            Object event = newEvent.invoke(factory);
+            for (int i = 0; i < values.length; i++)
+                set.invoke(event, i, values[i]);
+            commit.invoke(event);
+        }
+        catch (ReflectiveOperationException e) {
+            if (!emitFailureLogged) {
+                emitFailureLogged = true;
+                LogManager.getLogger().warn("Failed to emit JFR event, further failures are not logged", e);
+            }
+        }
+    }
+
+    private CircuitFlightRecorder() {}
+}
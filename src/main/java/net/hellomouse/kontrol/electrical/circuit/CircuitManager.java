@@ -1,33 +1,280 @@
 package net.hellomouse.kontrol.electrical.circuit;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.UUID;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerBlockEntityEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerChunkEvents;
+import net.hellomouse.kontrol.electrical.block.entity.AbstractElectricalBlockEntity;
+import net.hellomouse.kontrol.electrical.circuit.thermal.AmbientTemperatureCache;
+import net.minecraft.util.math.BlockPos;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
  * A per-world circuit manager. Ticks all circuits, adds and removes them.
+ *
+ * Electrical block entities don't tick. They are attached to a circuit when placed or
+ * loaded and when a neighbour changes (see AbstractElectricalBlockEntity#attach), and
+ * only active ones (see AbstractElectricalBlockEntity#isActive) are ticked, by postTick.
+ *
+ * Circuits aren't visited every tick either. They queue themselves when they need to
+ * be rebuilt (blocks added / removed) or re-solved (marked dirty), and stay queued for
+ * the thermal sim until their temperatures stop changing. Idle circuits cost nothing.
+ * Queues are only written from the server thread.
+ *
+ * Circuits that need to be rebuilt or re-solved are updated in order of priority
+ * (see Circuit#updatePriority) until the tick's solve budget is used up, the rest
+ * are deferred to the next tick. A circuit deferred for MAX_DEFERRED_TICKS is
+ * always updated, so none are starved.
+ *
+ * Circuits that only need to be stepped (not rebuilt) are stepped on worker threads
+ * between the end of one tick and the start of the next, independent circuits in
+ * parallel. Their solutions are published at the start of the next tick (preTick), block
+ * entities read the last published solution until then. Everything that touches the
+ * world stays on the server thread.
+ *
+ * Circuits are saved with the world (see CircuitState). Saved circuits are restored
+ * when one of their blocks is first attached after loading, see restoreCircuit.
+ *
  * @see net.hellomouse.kontrol.electrical.mixin.CircuitTickMixin
  * @author Bowserinator
  */
 public class CircuitManager {
+    // Worker threads shared by all worlds, created when first needed
+    private static ExecutorService solverPool = null;
+
     private final Map<UUID, Circuit> circuitMap = new HashMap<>();
     private final HashSet<UUID> idsToDelete = new HashSet<>();
+    // Circuits being stepped on worker threads since the last postTick
+    private final ArrayList<Circuit> steppingCircuits = new ArrayList<>();
+    // Circuits to rebuild, re-solve and run the thermal sim of next postTick
+    private final LinkedHashSet<Circuit> rebuildQueue = new LinkedHashSet<>();
+    private final LinkedHashSet<Circuit> solveQueue = new LinkedHashSet<>();
+    private final LinkedHashSet<Circuit> thermalQueue = new LinkedHashSet<>();
+    // Circuits to update this tick, sorted by priority
+    private final ArrayList<Circuit> scheduledCircuits = new ArrayList<>();
+    // Block entities to attach to a circuit next postTick
+    private final LinkedHashSet<AbstractElectricalBlockEntity> attachQueue = new LinkedHashSet<>();
+    // Block entities ticked every postTick, and a copy to tick in case ticking adds or removes any
+    private final LinkedHashSet<AbstractElectricalBlockEntity> activeBlockEntities = new LinkedHashSet<>();
+    private final ArrayList<AbstractElectricalBlockEntity> tickingBlockEntities = new ArrayList<>();
+    // Circuits saved with the world that weren't restored yet, see Circuit#save
+    private final HashMap<UUID, byte[]> savedCircuits = new HashMap<>();
+    // Ambient temperatures of block entities, recomputed when their neighbours change
+    private final AmbientTemperatureCache ambientTemperatures = new AmbientTemperatureCache();
+    // Saves the circuits with the world, marked dirty when circuits change. Null if not saved (ie, SimulatedWorld)
+    private CircuitState state = null;
+
+    private double solveBudget = CircuitValues.SOLVE_BUDGET_MS;
+    private boolean solveInBackground = CircuitValues.SOLVER_THREADS > 0;
+    // Metrics: circuits deferred last tick and in total, highest deferred ticks of
+    // any circuit last tick and time spent updating circuits last tick (ns)
+    private int deferredCount = 0;
+    private long totalDeferredCount = 0;
+    private int maxDeferredTicks = 0;
+    private long lastUpdateTime = 0;
+
+    /**
+     * Run before ticking block entities. Waits for circuits stepped in
+     * the background since the last tick and publishes their solutions
+     */
+    public void preTick() {
+        for (Circuit circuit : steppingCircuits)
+            circuit.finishBackgroundStep();
+        steppingCircuits.clear();
+    }
 
     /**
-     * Run after ticking block entities. Deletes circuits scheduled for
-     * deletion and postTicks() all circuits
+     * Run after ticking block entities. Attaches block entities to circuits, ticks active
+     * block entities, deletes circuits scheduled for deletion and postTicks() all circuits
      */
     public void postTick() {
-        // TODO: profiler
+        preTick(); // In case the start of the tick was skipped
+        attachBlockEntities();
+        tickBlockEntities();
+        ambientTemperatures.update();
 
-        for (UUID id : idsToDelete)
-            circuitMap.remove(id);
+        for (UUID id : idsToDelete) {
+            Circuit circuit = circuitMap.remove(id);
+            rebuildQueue.remove(circuit);
+            solveQueue.remove(circuit);
+            thermalQueue.remove(circuit);
+        }
+        if (!idsToDelete.isEmpty())
+            markStateDirty();
         idsToDelete.clear();
 
-        for (Circuit circuit : circuitMap.values())
-            circuit.postTick();
+        ExecutorService pool = solveInBackground ? getSolverPool() : null;
+        long start = System.nanoTime();
+        long budget = (long)(solveBudget * 1e6);
+
+        // Thermal sim on the last published solution, until temperatures stop changing
+        scheduledCircuits.addAll(thermalQueue);
+        for (Circuit circuit : scheduledCircuits)
+            if (!circuit.thermalTick())
+                thermalQueue.remove(circuit);
+        scheduledCircuits.clear();
+
+        for (Circuit circuit : rebuildQueue)
+            scheduleUpdate(circuit);
+        for (Circuit circuit : solveQueue)
+            if (!rebuildQueue.contains(circuit))
+                scheduleUpdate(circuit);
+        rebuildQueue.clear();
+        solveQueue.clear();
+        scheduledCircuits.sort((a, b) -> Double.compare(b.getPriority(), a.getPriority()));
+
+        deferredCount = 0;
+        maxDeferredTicks = 0;
+        for (Circuit circuit : scheduledCircuits) {
+            if (System.nanoTime() - start < budget || circuit.getDeferredTicks() >= CircuitValues.MAX_DEFERRED_TICKS) {
+                updateCircuit(circuit, pool);
+            }
+            else {
+                circuit.deferTick();
+                deferredCount++;
+                maxDeferredTicks = Math.max(maxDeferredTicks, circuit.getDeferredTicks());
+            }
+
+            // Deferred, or changed again while updating
+            if (circuit.needsRebuild())
+                rebuildQueue.add(circuit);
+            else if (circuit.needsUpdate())
+                solveQueue.add(circuit);
+        }
+        scheduledCircuits.clear();
+        totalDeferredCount += deferredCount;
+        lastUpdateTime = System.nanoTime() - start;
+    }
+
+    /**
+     * Attach block entities scheduled to a circuit, ones that are waiting
+     * for a circuit to add them are attached again next tick
+     */
+    private void attachBlockEntities() {
+        if (attachQueue.isEmpty())
+            return;
+        tickingBlockEntities.clear();
+        tickingBlockEntities.addAll(attachQueue);
+        attachQueue.clear();
+        for (AbstractElectricalBlockEntity blockEntity : tickingBlockEntities)
+            if (blockEntity.attach())
+                attachQueue.add(blockEntity);
+        tickingBlockEntities.clear();
+    }
+
+    /**
+     * Tick active block entities
+     */
+    private void tickBlockEntities() {
+        tickingBlockEntities.addAll(activeBlockEntities);
+        for (AbstractElectricalBlockEntity blockEntity : tickingBlockEntities)
+            if (!blockEntity.isRemoved())
+                blockEntity.tick();
+        tickingBlockEntities.clear();
+    }
+
+    /**
+     * Add a queued circuit to the circuits to update this tick, if it still needs an update
+     * @param circuit Circuit
+     */
+    private void scheduleUpdate(Circuit circuit) {
+        // Circuits queue themselves before they are added, ie, from their constructor
+        if (circuit.needsUpdate() && circuitMap.get(circuit.id) == circuit) {
+            circuit.updatePriority();
+            scheduledCircuits.add(circuit);
+        }
+    }
+
+    /**
+     * postTick() a circuit and record how long it took, see CircuitProfile
+     * @param circuit Circuit
+     * @param pool Worker threads, null to step on this thread
+     */
+    private void updateCircuit(Circuit circuit, ExecutorService pool) {
+        long start = System.nanoTime();
+        if (circuit.postTick(pool))
+            steppingCircuits.add(circuit);
+        circuit.getProfile().recordUpdate(System.nanoTime() - start);
+        CircuitFlightRecorder.emit(circuit.getPosition(), circuit.getProfile());
+    }
+
+    /**
+     * All circuits, including ones scheduled for deletion
+     * @return Circuits, do not modify
+     */
+    public Collection<Circuit> getCircuits() {
+        return Collections.unmodifiableCollection(circuitMap.values());
+    }
+
+    /**
+     * Set the time circuits may spend being updated per tick, see CircuitValues.SOLVE_BUDGET_MS.
+     * Server worlds use KontrolConfig#getSolveBudget
+     * @param solveBudget Budget (ms)
+     * @return this
+     */
+    public CircuitManager solveBudget(double solveBudget) {
+        this.solveBudget = solveBudget;
+        return this;
+    }
+
+    /**
+     * Step circuits on worker threads between ticks? Otherwise they are stepped in postTick
+     * and their solution can be read right after it
+     * @param solveInBackground Step in the background?
+     * @return this
+     */
+    public CircuitManager solveInBackground(boolean solveInBackground) {
+        this.solveInBackground = solveInBackground;
+        return this;
+    }
+
+    /**
+     * Time circuits may spend being updated per tick
+     * @return Budget (ms)
+     */
+    public double getSolveBudget() { return solveBudget; }
+
+    /**
+     * Number of circuits whose update was deferred last tick
+     * @return Deferred circuits
+     */
+    public int getDeferredCount() { return deferredCount; }
+
+    /**
+     * Number of circuit updates deferred since the manager was created
+     * @return Deferred updates
+     */
+    public long getTotalDeferredCount() { return totalDeferredCount; }
+
+    /**
+     * Most ticks any circuit deferred last tick has been waiting for
+     * @return Ticks, at most CircuitValues.MAX_DEFERRED_TICKS
+     */
+    public int getMaxDeferredTicks() { return maxDeferredTicks; }
+
+    /**
+     * Time spent updating circuits last tick, excluding background steps
+     * @return Time (ns)
+     */
+    public long getLastUpdateTime() { return lastUpdateTime; }
+
+    /**
+     * Worker threads to step circuits on, see CircuitValues.SOLVER_THREADS
+     * @return Thread pool, null if circuits are stepped on the server thread
+     */
+    private static synchronized ExecutorService getSolverPool() {
+        if (solverPool == null && CircuitValues.SOLVER_THREADS > 0) {
+            AtomicInteger count = new AtomicInteger();
+            solverPool = Executors.newFixedThreadPool(CircuitValues.SOLVER_THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "Kontrol Circuit Solver #" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return solverPool;
     }
 
     /**
@@ -40,9 +287,182 @@ public class CircuitManager {
         if (circuitMap.containsKey(circuit.id))
             return null;
         circuitMap.put(circuit.id, circuit);
+        if (circuit.needsRebuild())
+            scheduleRebuild(circuit);
+        markStateDirty();
         return circuit;
     }
 
+    /**
+     * Rebuild a circuit next postTick, see Circuit#flagElementAdded
+     * @param circuit Circuit
+     */
+    public void scheduleRebuild(Circuit circuit) {
+        if (!circuit.isDeleted())
+            rebuildQueue.add(circuit);
+    }
+
+    /**
+     * Re-solve a circuit next postTick, see Circuit#markDirty
+     * @param circuit Circuit
+     */
+    public void scheduleSolve(Circuit circuit) {
+        if (!circuit.isDeleted())
+            solveQueue.add(circuit);
+    }
+
+    /**
+     * Run the thermal sim of a circuit every postTick until its temperatures stop changing
+     * @param circuit Circuit
+     */
+    public void scheduleThermal(Circuit circuit) {
+        if (!circuit.isDeleted())
+            thermalQueue.add(circuit);
+    }
+
+    /**
+     * Number of circuits to rebuild, re-solve or run the thermal sim of next tick
+     * @return Queued circuits, idle circuits aren't counted
+     */
+    public int getQueuedCount() {
+        int count = thermalQueue.size();
+        for (Circuit circuit : rebuildQueue)
+            if (!thermalQueue.contains(circuit))
+                count++;
+        for (Circuit circuit : solveQueue)
+            if (!thermalQueue.contains(circuit) && !rebuildQueue.contains(circuit))
+                count++;
+        return count;
+    }
+
+    /**
+     * Track electrical block entities of each server world, call once on init. Block entities
+     * are added to the world's ElectricalBlockIndex and this when placed or loaded, and removed
+     * when broken or unloaded
+     */
+    public static void registerEvents() {
+        ServerBlockEntityEvents.BLOCK_ENTITY_LOAD.register((blockEntity, world) -> {
+            if (blockEntity instanceof AbstractElectricalBlockEntity) {
+                ICircuitWorld circuitWorld = (ICircuitWorld)world;
+                circuitWorld.getElectricalBlocks().add((AbstractElectricalBlockEntity)blockEntity);
+                circuitWorld.getCircuitManager().addBlockEntity((AbstractElectricalBlockEntity)blockEntity);
+            }
+        });
+        ServerBlockEntityEvents.BLOCK_ENTITY_UNLOAD.register((blockEntity, world) -> {
+            if (blockEntity instanceof AbstractElectricalBlockEntity) {
+                ICircuitWorld circuitWorld = (ICircuitWorld)world;
+                circuitWorld.getElectricalBlocks().remove((AbstractElectricalBlockEntity)blockEntity);
+                circuitWorld.getCircuitManager().removeBlockEntity((AbstractElectricalBlockEntity)blockEntity);
+            }
+        });
+        ServerChunkEvents.CHUNK_UNLOAD.register((world, chunk) ->
+            ((ICircuitWorld)world).getCircuitManager().getAmbientTemperatures().unloadChunk(chunk.getPos()));
+    }
+
+    /**
+     * Track a block entity placed or loaded into the world. It's attached to
+     * a circuit next postTick, and ticked every tick if active
+     * @param blockEntity Block entity
+     */
+    public void addBlockEntity(AbstractElectricalBlockEntity blockEntity) {
+        scheduleAttach(blockEntity);
+        if (blockEntity.isActive())
+            activeBlockEntities.add(blockEntity);
+    }
+
+    /**
+     * Stop tracking a block entity that was broken or unloaded
+     * @param blockEntity Block entity
+     */
+    public void removeBlockEntity(AbstractElectricalBlockEntity blockEntity) {
+        attachQueue.remove(blockEntity);
+        activeBlockEntities.remove(blockEntity);
+        ambientTemperatures.remove(blockEntity);
+    }
+
+    /**
+     * Attach a block entity to a circuit next postTick, if it's not in one.
+     * Call when a neighbour changed or its circuit was reset
+     * @param blockEntity Block entity
+     */
+    public void scheduleAttach(AbstractElectricalBlockEntity blockEntity) {
+        attachQueue.add(blockEntity);
+    }
+
+    /**
+     * Number of block entities ticked every tick
+     * @return Active block entities
+     */
+    public int getActiveCount() { return activeBlockEntities.size(); }
+
+    /**
+     * Cached ambient temperatures of the world's block entities
+     * @return Ambient temperature cache
+     */
+    public AmbientTemperatureCache getAmbientTemperatures() { return ambientTemperatures; }
+
+    /**
+     * Set the state the circuits are saved with, see CircuitState
+     * @param state State
+     */
+    public void setState(CircuitState state) {
+        this.state = state;
+    }
+
+    /**
+     * Flag that the circuits changed and must be saved with the world, ie, after a
+     * circuit was rebuilt or stepped (see Circuit#postTick)
+     */
+    void markStateDirty() {
+        if (state != null)
+            state.markDirty();
+    }
+
+    /**
+     * Add a circuit saved with the world, restored when one of its blocks is attached
+     * @param id Circuit id, saved by its block entities
+     * @param state Saved state, see Circuit#save
+     */
+    public void addSavedCircuit(UUID id, byte[] state) {
+        savedCircuits.put(id, state);
+    }
+
+    /**
+     * Get the circuit a block entity was saved with, restoring it if it's not loaded yet.
+     * The circuit is restored on its first update (see Circuit#restoreFrom), its blocks
+     * should wait for it until then instead of starting a new circuit
+     * @param world World
+     * @param id Circuit id saved by the block entity
+     * @param pos Block entity position, floodfilled from if the circuit can't be restored
+     * @return Circuit waiting to be restored, null if none (block entity should find or start a circuit)
+     */
+    public Circuit restoreCircuit(ICircuitWorld world, UUID id, BlockPos pos) {
+        Circuit existing = circuitMap.get(id);
+        if (existing != null)
+            return existing.isRestoring() && !existing.isDeleted() ? existing : null;
+
+        byte[] state = savedCircuits.remove(id);
+        if (state == null)
+            return null;
+        return addCircuit(new Circuit(world, pos, id).restoreFrom(state));
+    }
+
+    /**
+     * Save all circuits, including ones saved with the world that weren't restored yet
+     * @return Saved states by circuit id, see Circuit#save
+     */
+    public Map<UUID, byte[]> saveCircuits() {
+        preTick(); // Wait for background steps
+
+        HashMap<UUID, byte[]> saved = new HashMap<>(savedCircuits);
+        for (Circuit circuit : circuitMap.values()) {
+            byte[] state = circuit.save();
+            if (state != null)
+                saved.put(circuit.id, state);
+        }
+        return saved;
+    }
+
     /**
      * Schedule a circuit for deletion
      * @param circuit Circuit to delete
@@ -50,5 +470,6 @@ public class CircuitManager {
     public void deleteCircuit(Circuit circuit) {
         idsToDelete.add(circuit.id);
         circuit.flagForDeletion();
+        markStateDirty();
     }
 }
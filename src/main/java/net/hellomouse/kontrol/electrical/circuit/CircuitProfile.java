@@ -0,0 +1,147 @@
+package net.hellomouse.kontrol.electrical.circuit;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+
+/**
+ * Timings and sizes of a circuit, for finding the circuits that take up the tick
+ * (see the /kontrol stats command). Times are in ns and of the last tick the circuit was
+ * updated in. Solver times break down the last rebuild or step, which may have run on a
+ * worker thread (see Circuit#postTick).
+ * @author Bowserinator
+ */
+public class CircuitProfile {
+    // Weight of the newest tick in the average update time
+    private static final double AVERAGE_WEIGHT = 0.05;
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private long updateTime = 0;
+    private long backgroundTime = 0;
+    private long totalTime = 0;
+    private double averageTime = 0.0;
+    // Background step time not counted by recordUpdate yet
+    private long pendingBackgroundTime = 0;
+    private long rebuildTime = 0;
+    private long thermalTime = 0;
+    private long thermalAllocatedBytes = 0;
+
+    private long assemblyTime = 0;
+    private long factorizationTime = 0;
+    private long solveTime = 0;
+    private int newtonIterations = 0;
+    private int nodeCount = 0;
+    private int componentCount = 0;
+
+    // Totals of the virtual circuit at the last updateSolverStats
+    private long totalAssemblyTime = 0;
+    private long totalFactorizationTime = 0;
+    private long totalSolveTime = 0;
+    private int totalNewtonIterations = 0;
+
+    /**
+     * Bytes allocated by the current thread so far, on JVMs that can measure it (HotSpot)
+     * @return Allocated bytes, 0 if not supported
+     */
+    static long getAllocatedBytes() {
+        if (!(THREADS instanceof com.sun.management.ThreadMXBean))
+            return 0;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)THREADS;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+            return 0;
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Take the solver times and sizes since the last call from a virtual circuit,
+     * after it was rebuilt or stepped
+     * @param circuit Virtual circuit, not being stepped in the background
+     */
+    void updateSolverStats(VirtualCircuit circuit) {
+        assemblyTime = circuit.getAssemblyTime() - totalAssemblyTime;
+        factorizationTime = circuit.getFactorizationTime() - totalFactorizationTime;
+        solveTime = circuit.getMatrixSolveTime() - totalSolveTime;
+        newtonIterations = circuit.getNewtonIterationCount() - totalNewtonIterations;
+        totalAssemblyTime = circuit.getAssemblyTime();
+        totalFactorizationTime = circuit.getFactorizationTime();
+        totalSolveTime = circuit.getMatrixSolveTime();
+        totalNewtonIterations = circuit.getNewtonIterationCount();
+
+        nodeCount = circuit.getHighestNodeID() + 1;
+        componentCount = circuit.getComponents().size();
+    }
+
+    /**
+     * Record the time the circuit took to update on the server thread (see Circuit#postTick)
+     * @param updateTime Time (ns)
+     */
+    void recordUpdate(long updateTime) {
+        this.updateTime = updateTime;
+        totalTime = updateTime + pendingBackgroundTime;
+        pendingBackgroundTime = 0;
+        averageTime += AVERAGE_WEIGHT * (totalTime - averageTime);
+    }
+
+    /**
+     * Record the time a step on a worker thread took, counted by the next recordUpdate
+     * @param backgroundTime Time (ns)
+     */
+    void recordBackgroundStep(long backgroundTime) {
+        this.backgroundTime = backgroundTime;
+        pendingBackgroundTime += backgroundTime;
+    }
+
+    void recordRebuild(long rebuildTime) { this.rebuildTime = rebuildTime; }
+
+    void recordThermal(long thermalTime, long thermalAllocatedBytes) {
+        this.thermalTime = thermalTime;
+        this.thermalAllocatedBytes = thermalAllocatedBytes;
+    }
+
+    /**
+     * Time the last update took, including the step on a worker thread before it
+     * @return Time (ns)
+     */
+    public long getTotalTime() { return totalTime; }
+
+    /**
+     * Moving average of getTotalTime over recent updates, used to rank circuits
+     * @return Time (ns)
+     */
+    public double getAverageTime() { return averageTime; }
+
+    /** @return Time spent in postTick on the server thread (ns), includes rebuilding */
+    public long getUpdateTime() { return updateTime; }
+
+    /** @return Time of the last step on a worker thread (ns) */
+    public long getBackgroundTime() { return backgroundTime; }
+
+    /** @return Time of the last floodfill or incremental rebuild (ns), including its solve */
+    public long getRebuildTime() { return rebuildTime; }
+
+    /** @return Time of the last thermal sim (ns) */
+    public long getThermalTime() { return thermalTime; }
+
+    /** @return Bytes allocated by the last thermal sim, 0 if the JVM can't measure it */
+    public long getThermalAllocatedBytes() { return thermalAllocatedBytes; }
+
+    /** @return Time spent assembling matrices in the last rebuild or step (ns) */
+    public long getAssemblyTime() { return assemblyTime; }
+
+    /** @return Time spent factoring matrices in the last rebuild or step (ns) */
+    public long getFactorizationTime() { return factorizationTime; }
+
+    /** @return Time spent solving matrices in the last rebuild or step (ns) */
+    public long getSolveTime() { return solveTime; }
+
+    /** @return Newton-Raphson iterations in the last rebuild or step */
+    public int getNewtonIterations() { return newtonIterations; }
+
+    /** @return Number of nodes in the virtual circuit */
+    public int getNodeCount() { return nodeCount; }
+
+    /** @return Number of components in the virtual circuit */
+    public int getComponentCount() { return componentCount; }
+}
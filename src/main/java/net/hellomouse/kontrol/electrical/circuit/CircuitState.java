@@ -0,0 +1,64 @@
+package net.hellomouse.kontrol.electrical.circuit;
+
+import net.fabricmc.fabric.api.util.NbtType;
+import net.hellomouse.kontrol.Kontrol;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.world.PersistentState;
+
+import java.util.Map;
+import java.util.UUID;
+
+
+/**
+ * Saves a world's circuits with the world (data/kontrol_circuits.dat), see Circuit#save.
+ * Loaded circuits are restored by the CircuitManager when their blocks are ticked.
+ * Only saved after the CircuitManager marked it dirty, ie, when circuits were
+ * rebuilt, stepped, added or removed
+ * @author Bowserinator
+ */
+public class CircuitState extends PersistentState {
+    public static final String ID = Kontrol.MOD_ID + "_circuits";
+    private final CircuitManager circuitManager;
+
+    /**
+     * Construct a CircuitState, which the circuit manager marks dirty from then on
+     * @param circuitManager Circuit manager of the world
+     */
+    public CircuitState(CircuitManager circuitManager) {
+        super(ID);
+        this.circuitManager = circuitManager;
+        circuitManager.setState(this);
+    }
+
+    /**
+     * Load saved circuits into the circuit manager
+     * @param tag Compound tag
+     */
+    @Override
+    public void fromTag(CompoundTag tag) {
+        ListTag circuits = tag.getList("Circuits", NbtType.COMPOUND);
+        for (int i = 0; i < circuits.size(); i++) {
+            CompoundTag circuit = circuits.getCompound(i);
+            circuitManager.addSavedCircuit(circuit.getUuid("Id"), circuit.getByteArray("Data"));
+        }
+    }
+
+    /**
+     * Save the circuit manager's circuits
+     * @param tag Tag
+     * @return Tag with new data
+     */
+    @Override
+    public CompoundTag toTag(CompoundTag tag) {
+        ListTag circuits = new ListTag();
+        for (Map.Entry<UUID, byte[]> saved : circuitManager.saveCircuits().entrySet()) {
+            CompoundTag circuit = new CompoundTag();
+            circuit.putUuid("Id", saved.getKey());
+            circuit.putByteArray("Data", saved.getValue());
+            circuits.add(circuit);
+        }
+        tag.put("Circuits", circuits);
+        return tag;
+    }
+}
@@ -10,5 +10,21 @@ public class CircuitValues {
     // Push buttons
     public static final int DEFAULT_PUSH_BUTTON_PUSH_TIME = 15;
 
+    // Worker threads circuits are stepped on between ticks, shared by all worlds. 0 = step on the server thread
+    public static final int SOLVER_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+    // Per-tick solve scheduling (see CircuitManager). Circuits are updated in order of priority until
+    // the budget is used up, the rest are deferred to the next tick (but never more than MAX_DEFERRED_TICKS).
+    // The budget is the default of KontrolConfig#getSolveBudget
+    public static final double SOLVE_BUDGET_MS = 20.0;
+    public static final int MAX_DEFERRED_TICKS = 10;
+    public static final double PRIORITY_PER_DEFERRED_TICK = 1.0;
+    public static final double PRIORITY_VISIBLE_OUTPUT = 5.0;
+    public static final double PRIORITY_NEAR_PLAYER = 10.0;  // Falls off linearly to 0 at PLAYER_PRIORITY_RANGE
+    public static final double PLAYER_PRIORITY_RANGE = 64.0;
+
+    // Emit Java Flight Recorder events for circuit updates (see CircuitFlightRecorder)
+    public static final boolean JFR_EVENTS = Boolean.getBoolean("kontrol.jfr");
+
     private CircuitValues() {}
 }
@@ -0,0 +1,54 @@
+package net.hellomouse.kontrol.electrical.circuit;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.hellomouse.kontrol.electrical.block.entity.AbstractElectricalBlockEntity;
+import net.minecraft.util.math.BlockPos;
+
+
+/**
+ * Loaded electrical block entities of a world by packed position (BlockPos#asLong), so
+ * floodfills and neighbour lookups don't go through the world's chunk lookup.
+ * Block entities are added when they're placed or their chunk is loaded, and removed
+ * when they're broken or their chunk is unloaded (see CircuitManager#registerEvents).
+ * @author Bowserinator
+ */
+public class ElectricalBlockIndex {
+    private final Long2ObjectOpenHashMap<AbstractElectricalBlockEntity> blockEntities = new Long2ObjectOpenHashMap<>();
+
+    /**
+     * Add a block entity, replacing any other at its position
+     * @param blockEntity Block entity, position set
+     */
+    public void add(AbstractElectricalBlockEntity blockEntity) {
+        blockEntities.put(blockEntity.getPos().asLong(), blockEntity);
+    }
+
+    /**
+     * Remove a block entity, if it wasn't replaced by another already
+     * @param blockEntity Block entity
+     */
+    public void remove(AbstractElectricalBlockEntity blockEntity) {
+        blockEntities.remove(blockEntity.getPos().asLong(), blockEntity);
+    }
+
+    /**
+     * Electrical block entity at a position
+     * @param pos Packed position, see BlockPos#asLong
+     * @return Block entity, null if there is none (or it's not loaded)
+     */
+    public AbstractElectricalBlockEntity get(long pos) {
+        return blockEntities.get(pos);
+    }
+
+    /**
+     * Electrical block entity at a position
+     * @param pos Position
+     * @return Block entity, null if there is none (or it's not loaded)
+     */
+    public AbstractElectricalBlockEntity get(BlockPos pos) {
+        return blockEntities.get(pos.asLong());
+    }
+
+    /** @return Number of loaded electrical block entities */
+    public int size() { return blockEntities.size(); }
+}
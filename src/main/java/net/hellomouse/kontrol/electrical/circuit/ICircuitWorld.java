@@ -0,0 +1,29 @@
+package net.hellomouse.kontrol.electrical.circuit;
+
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.profiler.Profiler;
+
+
+/**
+ * The parts of a server world circuits use: electrical block entity lookup, the circuit manager,
+ * the profiler and player positions. Implemented by ServerWorld (see CircuitTickMixin),
+ * and by SimulatedWorld to run circuits without Minecraft.
+ *
+ * Methods don't share names with World methods, as those are renamed outside
+ * of the development environment.
+ * @author Bowserinator
+ */
+public interface ICircuitWorld extends IHasCircuitManager {
+    /** @return Loaded electrical block entities by position */
+    ElectricalBlockIndex getElectricalBlocks();
+
+    /** @return Profiler to record circuit updates in */
+    Profiler getCircuitProfiler();
+
+    /**
+     * Squared distance from a position to the closest player
+     * @param pos Position
+     * @return Squared distance, Double.MAX_VALUE if there are no players
+     */
+    double getSquaredDistanceToPlayer(BlockPos pos);
+}
@@ -0,0 +1,132 @@
+package net.hellomouse.kontrol.electrical.circuit.simulation;
+
+import net.hellomouse.kontrol.electrical.block.entity.AbstractElectricalBlockEntity;
+import net.hellomouse.kontrol.electrical.circuit.CircuitValues;
+import net.hellomouse.kontrol.electrical.circuit.ICircuitWorld;
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.VirtualCapacitor;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.VirtualGround;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.VirtualResistor;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.VirtualVoltageSource;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+
+/**
+ * Electrical block for a SimulatedWorld, with the same internal circuit as the
+ * block entity of its Type. Attaches on every side and has no block state.
+ * @author Bowserinator
+ */
+public class SimulatedBlockEntity extends AbstractElectricalBlockEntity {
+    public enum Type {
+        /** CableBlockEntity */
+        CABLE,
+        /** SuperconductingCableBlockEntity */
+        SUPERCONDUCTOR,
+        /** ElectricalGroundEntity */
+        GROUND,
+        /** ResistorBlockEntity, value = resistance */
+        RESISTOR,
+        /** BatteryBlockEntity with low internal resistance, value = voltage */
+        BATTERY,
+        /** CapacitorBlockEntity, value = capacitance */
+        CAPACITOR
+    }
+
+    private final Type type;
+    private final double value;
+    private SimulatedWorld simulatedWorld;
+
+    /**
+     * Construct a SimulatedBlockEntity
+     * @param type Block to simulate
+     * @param value Resistance, voltage or capacitance (see Type), ignored for other types
+     */
+    public SimulatedBlockEntity(Type type, double value) {
+        super(null);
+        this.type = type;
+        this.value = value;
+    }
+
+    public static SimulatedBlockEntity cable() { return new SimulatedBlockEntity(Type.CABLE, 0.0); }
+    public static SimulatedBlockEntity superconductor() { return new SimulatedBlockEntity(Type.SUPERCONDUCTOR, 0.0); }
+    public static SimulatedBlockEntity ground() { return new SimulatedBlockEntity(Type.GROUND, 0.0); }
+    public static SimulatedBlockEntity resistor(double resistance) { return new SimulatedBlockEntity(Type.RESISTOR, resistance); }
+    public static SimulatedBlockEntity battery(double voltage) { return new SimulatedBlockEntity(Type.BATTERY, voltage); }
+    public static SimulatedBlockEntity capacitor(double capacitance) { return new SimulatedBlockEntity(Type.CAPACITOR, capacitance); }
+
+    /**
+     * New block of the same type and value, to place again after this was removed
+     * @return Copy, not placed
+     */
+    public SimulatedBlockEntity copy() { return new SimulatedBlockEntity(type, value); }
+
+    /**
+     * Called by SimulatedWorld when placed
+     * @param world World
+     * @param pos Position
+     */
+    void place(SimulatedWorld world, BlockPos pos) {
+        simulatedWorld = world;
+        this.pos = pos;
+    }
+
+    public Type getType() { return type; }
+
+    /** @return Temperature (C) of the block's thermal sim */
+    public double getTemperature() { return thermal.temperature; }
+
+    @Override
+    public ICircuitWorld getCircuitWorld() { return simulatedWorld; }
+
+    @Override
+    public VirtualCircuit getInternalCircuit() {
+        internalCircuit.clear();
+
+        switch (type) {
+            case CABLE:
+            case SUPERCONDUCTOR:
+            case GROUND: {
+                for (int outNode : normalizedOutgoingNodes)
+                    internalCircuit.addComponent(new VirtualResistor(CircuitValues.LOW_VOLTAGE_RESISTANCE), -1, outNode);
+                if (type == Type.GROUND)
+                    internalCircuit.addComponent(new VirtualGround(), -1, -1);
+                break;
+            }
+            case RESISTOR: {
+                if (normalizedOutgoingNodes.size() == 2)
+                    internalCircuit.addComponent(new VirtualResistor(value), normalizedOutgoingNodes.get(0), normalizedOutgoingNodes.get(1));
+                break;
+            }
+            case BATTERY: {
+                if (normalizedOutgoingNodes.size() == 2) {
+                    internalCircuit.addComponent(new VirtualResistor(CircuitValues.LOW_RESISTANCE / 2), normalizedOutgoingNodes.get(0), -1);
+                    internalCircuit.addComponent(new VirtualVoltageSource(value), -1, -2);
+                    internalCircuit.addComponent(new VirtualResistor(CircuitValues.LOW_RESISTANCE / 2), -2, normalizedOutgoingNodes.get(1));
+                }
+                break;
+            }
+            case CAPACITOR: {
+                if (normalizedOutgoingNodes.size() == 2)
+                    internalCircuit.addComponent(new VirtualCapacitor(value), normalizedOutgoingNodes.get(0), normalizedOutgoingNodes.get(1));
+                break;
+            }
+        }
+        return internalCircuit;
+    }
+
+    @Override
+    public boolean canAttach(Direction dir, BlockEntity otherEntity) { return true; }
+
+    @Override
+    public boolean canStartFloodfill() {
+        return type == Type.GROUND || type == Type.BATTERY || type == Type.CAPACITOR;
+    }
+
+    @Override
+    public boolean isSuperconducting() { return type == Type.SUPERCONDUCTOR; }
+
+    @Override
+    public boolean recomputeEveryTick() { return type == Type.CAPACITOR; }
+}
@@ -0,0 +1,128 @@
+package net.hellomouse.kontrol.electrical.circuit.simulation;
+
+import net.minecraft.util.math.BlockPos;
+
+
+/**
+ * Block layouts for a SimulatedWorld, each about the given size in blocks.
+ * Every circuit is a 10 V battery loaded by 100 ohm resistors, grounded at both ends.
+ * @author Bowserinator
+ */
+public enum SimulatedLayout {
+    /** Ground, battery, a straight run of cables, resistor and ground along +x */
+    CABLE_RUN {
+        @Override
+        void build(SimulatedWorld world, BlockPos origin, int size) {
+            world.place(origin, SimulatedBlockEntity.ground());
+            world.place(origin.add(1, 0, 0), SimulatedBlockEntity.battery(VOLTAGE));
+            for (int x = 2; x < size + 2; x++)
+                world.place(origin.add(x, 0, 0), SimulatedBlockEntity.cable());
+            world.place(origin.add(size + 2, 0, 0), SimulatedBlockEntity.resistor(LOAD));
+            world.place(origin.add(size + 3, 0, 0), SimulatedBlockEntity.ground());
+        }
+
+        @Override
+        BlockPos probe(BlockPos origin, int size) { return origin.add(2 + size / 2, 0, 0); }
+    },
+
+    /**
+     * Square sheet of cables in the xz plane, battery at one corner and
+     * the load at the opposite corner
+     */
+    GRID {
+        @Override
+        void build(SimulatedWorld world, BlockPos origin, int size) {
+            int side = Math.max(2, (int)Math.round(Math.sqrt(size)));
+            world.place(origin.add(-2, 0, 0), SimulatedBlockEntity.ground());
+            world.place(origin.add(-1, 0, 0), SimulatedBlockEntity.battery(VOLTAGE));
+            for (int x = 0; x < side; x++)
+                for (int z = 0; z < side; z++)
+                    world.place(origin.add(x, 0, z), SimulatedBlockEntity.cable());
+            world.place(origin.add(side, 0, side - 1), SimulatedBlockEntity.resistor(LOAD));
+            world.place(origin.add(side + 1, 0, side - 1), SimulatedBlockEntity.ground());
+        }
+
+        @Override
+        BlockPos probe(BlockPos origin, int size) {
+            int side = Math.max(2, (int)Math.round(Math.sqrt(size)));
+            return origin.add(side / 2, 0, side / 2);
+        }
+    },
+
+    /** Superconducting bar along +x, with a resistor to ground below every other block */
+    BUSBAR {
+        @Override
+        void build(SimulatedWorld world, BlockPos origin, int size) {
+            int length = Math.max(2, size / 2);
+            world.place(origin.add(-1, 0, 0), SimulatedBlockEntity.ground());
+            world.place(origin, SimulatedBlockEntity.battery(VOLTAGE));
+            for (int x = 1; x <= length; x++) {
+                world.place(origin.add(x, 0, 0), SimulatedBlockEntity.superconductor());
+                if (x % 2 == 1) {
+                    world.place(origin.add(x, -1, 0), SimulatedBlockEntity.resistor(LOAD));
+                    world.place(origin.add(x, -2, 0), SimulatedBlockEntity.ground());
+                }
+            }
+        }
+
+        @Override
+        BlockPos probe(BlockPos origin, int size) {
+            int length = Math.max(2, size / 2);
+            return origin.add(1 + 2 * ((length - 1) / 4), -1, 0);
+        }
+    },
+
+    /** Separate circuits of 4 blocks (ground, battery, resistor, ground up along +y), side by side along +x */
+    TINY_CIRCUITS {
+        @Override
+        void build(SimulatedWorld world, BlockPos origin, int size) {
+            for (int i = 0; i < Math.max(1, size / 4); i++) {
+                BlockPos base = origin.add(3 * i, 0, 0);
+                world.place(base, SimulatedBlockEntity.ground());
+                world.place(base.up(1), SimulatedBlockEntity.battery(VOLTAGE));
+                world.place(base.up(2), SimulatedBlockEntity.resistor(LOAD));
+                world.place(base.up(3), SimulatedBlockEntity.ground());
+            }
+        }
+
+        @Override
+        BlockPos probe(BlockPos origin, int size) {
+            return origin.add(3 * (Math.max(1, size / 4) / 2), 2, 0);
+        }
+    };
+
+    /** Battery voltage (V) */
+    public static final double VOLTAGE = 10.0;
+    /** Load resistance (ohms) */
+    public static final double LOAD = 100.0;
+
+    /**
+     * Place the layout's blocks
+     * @param world World
+     * @param origin Position of the first block
+     * @param size Number of blocks (approximate)
+     */
+    abstract void build(SimulatedWorld world, BlockPos origin, int size);
+
+    abstract BlockPos probe(BlockPos origin, int size);
+
+    /**
+     * Place the layout's blocks, they form circuits on the next tick
+     * @param world World
+     * @param origin Position of the first block
+     * @param size Number of blocks (approximate, at least 4)
+     */
+    public void place(SimulatedWorld world, BlockPos origin, int size) {
+        build(world, origin, Math.max(4, size));
+    }
+
+    /**
+     * A block in the middle of the layout to remove and place again, for incremental updates
+     * @param origin Position the layout was placed at
+     * @param size Size the layout was placed with
+     * @return Position
+     */
+    public BlockPos getProbe(BlockPos origin, int size) {
+        return probe(origin, Math.max(4, size));
+    }
+}
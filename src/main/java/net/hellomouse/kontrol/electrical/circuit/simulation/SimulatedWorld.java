@@ -0,0 +1,180 @@
+package net.hellomouse.kontrol.electrical.circuit.simulation;
+
+import net.hellomouse.kontrol.electrical.circuit.Circuit;
+import net.hellomouse.kontrol.electrical.circuit.CircuitManager;
+import net.hellomouse.kontrol.electrical.circuit.ElectricalBlockIndex;
+import net.hellomouse.kontrol.electrical.circuit.ICircuitWorld;
+import net.minecraft.Bootstrap;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.profiler.DummyProfiler;
+import net.minecraft.util.profiler.Profiler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+
+
+/**
+ * Stand-in for a server world with only electrical blocks, to run circuits
+ * (floodfill, incremental updates, solving and thermal sim) in tests and benchmarks
+ * without starting Minecraft. Blocks are SimulatedBlockEntity, see SimulatedLayout
+ * for generating them.
+ *
+ * tick() does what a server tick does for circuits: publish background steps, then
+ * attach placed blocks (in the order they were placed), tick active blocks and update
+ * the circuits.
+ *
+ * <pre>{@code
+ * SimulatedWorld world = new SimulatedWorld();
+ * SimulatedLayout.CABLE_RUN.place(world, BlockPos.ORIGIN, 100);
+ * world.tick();
+ * }</pre>
+ *
+ * @author Bowserinator
+ */
+public class SimulatedWorld implements ICircuitWorld {
+    static {
+        // Block entities use vanilla blocks (see ThermalComponent)
+        Bootstrap.initialize();
+    }
+
+    private final CircuitManager circuitManager;
+    private final boolean solveInBackground;
+    private final LinkedHashMap<BlockPos, SimulatedBlockEntity> blockEntities = new LinkedHashMap<>();
+    private final ElectricalBlockIndex electricalBlocks = new ElectricalBlockIndex();
+    private BlockPos player = null;
+    private int ticks = 0;
+
+    /**
+     * Construct a world that steps circuits on the server thread without a
+     * time budget, so solutions can be read right after tick()
+     */
+    public SimulatedWorld() {
+        this(false);
+    }
+
+    /**
+     * Construct a world without a solve time budget
+     * @param solveInBackground Step circuits on worker threads, see CircuitManager
+     */
+    public SimulatedWorld(boolean solveInBackground) {
+        this.solveInBackground = solveInBackground;
+        circuitManager = new CircuitManager()
+                .solveInBackground(solveInBackground)
+                .solveBudget(Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Place a block, replacing any block already there. It joins a circuit on the next tick
+     * @param pos Position
+     * @param blockEntity Block entity, not placed anywhere else
+     * @return blockEntity
+     */
+    public SimulatedBlockEntity place(BlockPos pos, SimulatedBlockEntity blockEntity) {
+        pos = pos.toImmutable();
+        remove(pos);
+        blockEntity.place(this, pos);
+        blockEntities.put(pos, blockEntity);
+        electricalBlocks.add(blockEntity);
+        circuitManager.addBlockEntity(blockEntity);
+        return blockEntity;
+    }
+
+    /**
+     * Remove a block, its circuit is updated on the next tick
+     * @param pos Position
+     * @return Removed block entity, null if there was none
+     */
+    public SimulatedBlockEntity remove(BlockPos pos) {
+        SimulatedBlockEntity blockEntity = blockEntities.remove(pos);
+        if (blockEntity != null) {
+            electricalBlocks.remove(blockEntity);
+            blockEntity.markRemoved();
+        }
+        return blockEntity;
+    }
+
+    /**
+     * Run a server tick
+     */
+    public void tick() {
+        circuitManager.preTick();
+        circuitManager.postTick();
+        ticks++;
+    }
+
+    /**
+     * Run server ticks
+     * @param count Number of ticks
+     */
+    public void tick(int count) {
+        for (int i = 0; i < count; i++)
+            tick();
+    }
+
+    /**
+     * Save the world and load it again, like a server restart. Circuits are saved (see
+     * CircuitState) and blocks are copied with the id of the circuit they were in
+     * @return New world, its circuits are restored when ticked
+     */
+    public SimulatedWorld reload() {
+        SimulatedWorld loaded = new SimulatedWorld(solveInBackground);
+        circuitManager.saveCircuits().forEach(loaded.circuitManager::addSavedCircuit);
+        for (SimulatedBlockEntity blockEntity : blockEntities.values()) {
+            SimulatedBlockEntity copy = loaded.place(blockEntity.getPos(), blockEntity.copy());
+            if (blockEntity.getCircuit() != null)
+                copy.setSavedCircuitUUID(blockEntity.getCircuit().id);
+        }
+        return loaded;
+    }
+
+    /**
+     * Circuits that aren't deleted
+     * @return Circuits
+     */
+    public ArrayList<Circuit> getCircuits() {
+        ArrayList<Circuit> circuits = new ArrayList<>();
+        for (Circuit circuit : circuitManager.getCircuits())
+            if (!circuit.isDeleted())
+                circuits.add(circuit);
+        return circuits;
+    }
+
+    /**
+     * Block at a position
+     * @param pos Position
+     * @return Block entity, null if there is none
+     */
+    public SimulatedBlockEntity getBlockEntity(BlockPos pos) {
+        return blockEntities.get(pos);
+    }
+
+    /** @return All blocks, do not modify */
+    public Collection<SimulatedBlockEntity> getBlockEntities() {
+        return Collections.unmodifiableCollection(blockEntities.values());
+    }
+
+    /**
+     * Put the (only) player at a position, for circuit priorities
+     * @param player Position, null for no player
+     */
+    public void setPlayer(BlockPos player) { this.player = player; }
+
+    /** @return Number of ticks run */
+    public int getTicks() { return ticks; }
+
+    @Override
+    public CircuitManager getCircuitManager() { return circuitManager; }
+
+    @Override
+    public ElectricalBlockIndex getElectricalBlocks() { return electricalBlocks; }
+
+    @Override
+    public Profiler getCircuitProfiler() { return DummyProfiler.INSTANCE; }
+
+    @Override
+    public double getSquaredDistanceToPlayer(BlockPos pos) {
+        return player == null ? Double.MAX_VALUE : player.getSquaredDistance(pos);
+    }
+}
@@ -0,0 +1,276 @@
+package net.hellomouse.kontrol.electrical.circuit.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.CircuitValues;
+import net.hellomouse.kontrol.electrical.circuit.thermal.ThermalArray;
+import net.hellomouse.kontrol.electrical.circuit.simulation.SimulatedBlockEntity;
+import net.hellomouse.kontrol.electrical.circuit.simulation.SimulatedLayout;
+import net.hellomouse.kontrol.electrical.circuit.simulation.SimulatedWorld;
+import net.minecraft.util.math.BlockPos;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static net.hellomouse.kontrol.electrical.circuit.simulation.SimulatedLayout.LOAD;
+import static net.hellomouse.kontrol.electrical.circuit.simulation.SimulatedLayout.VOLTAGE;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests for circuits built from blocks (floodfill, incremental add / remove, superconductors,
+ * restoring saved circuits),
+ * run in a SimulatedWorld. Needs Minecraft on the classpath, but not a running game.
+ * @author Bowserinator
+ */
+class CircuitLifecycleTests {
+    private static final double EPSILON = 1e-6;
+    // Series resistance of a ground, cable or superconductor with 2 connected sides
+    private static final double GROUND_RESISTANCE = CircuitValues.LOW_VOLTAGE_RESISTANCE;
+    private static final double CABLE_RESISTANCE = 2 * CircuitValues.LOW_VOLTAGE_RESISTANCE;
+    private static final double BATTERY_RESISTANCE = CircuitValues.LOW_RESISTANCE;
+
+    /**
+     * Voltage across a 2 terminal block
+     * @param blockEntity Block entity
+     * @return Voltage (V), 0 if not solved
+     */
+    private static double voltageAcross(SimulatedBlockEntity blockEntity) {
+        if (blockEntity.getTerminalCount() != 2)
+            return 0.0;
+        return Math.abs(blockEntity.getTerminalVoltage(0) - blockEntity.getTerminalVoltage(1));
+    }
+
+    /**
+     * Load voltage of a cable run (ground, battery, cables, resistor, ground in series)
+     * @param cables Number of cables
+     * @return Voltage (V)
+     */
+    private static double cableRunVoltage(int cables) {
+        double total = 2 * GROUND_RESISTANCE + BATTERY_RESISTANCE + cables * CABLE_RESISTANCE + LOAD;
+        return VOLTAGE * LOAD / total;
+    }
+
+    /**
+     * Battery with 20 cables to a 100 ohm load, should form 1 circuit
+     * (the circuit started by the far ground is merged) on the first tick
+     */
+    @Test
+    @DisplayName("Cable run floodfill")
+    void test1() {
+        SimulatedWorld world = new SimulatedWorld();
+        SimulatedLayout.CABLE_RUN.place(world, BlockPos.ORIGIN, 20);
+        world.tick(2);
+
+        assertEquals(1, world.getCircuits().size());
+        SimulatedBlockEntity load = world.getBlockEntity(new BlockPos(22, 0, 0));
+        assertEquals(cableRunVoltage(20), voltageAcross(load), EPSILON);
+        for (SimulatedBlockEntity blockEntity : world.getBlockEntities())
+            assertEquals(world.getCircuits().get(0), blockEntity.getCircuit());
+    }
+
+    /**
+     * Cable run with the middle cable removed, then placed again. The load should
+     * have no voltage while the run is broken, and the original voltage once it's fixed
+     */
+    @Test
+    @DisplayName("Cable removed and placed again")
+    void test2() {
+        SimulatedWorld world = new SimulatedWorld();
+        SimulatedLayout.CABLE_RUN.place(world, BlockPos.ORIGIN, 20);
+        world.tick(2);
+        SimulatedBlockEntity load = world.getBlockEntity(new BlockPos(22, 0, 0));
+        BlockPos probe = SimulatedLayout.CABLE_RUN.getProbe(BlockPos.ORIGIN, 20);
+
+        SimulatedBlockEntity removed = world.remove(probe);
+        world.tick(2);
+        assertEquals(0.0, voltageAcross(load), EPSILON);
+
+        world.place(probe, removed.copy());
+        world.tick(2);
+        assertEquals(1, world.getCircuits().size());
+        assertEquals(cableRunVoltage(20), voltageAcross(load), EPSILON);
+    }
+
+    /**
+     * 50 separate ground, battery, resistor, ground circuits, should
+     * be 50 circuits that each solve to the same voltage
+     */
+    @Test
+    @DisplayName("Many small circuits")
+    void test3() {
+        SimulatedWorld world = new SimulatedWorld();
+        SimulatedLayout.TINY_CIRCUITS.place(world, BlockPos.ORIGIN, 200);
+        world.tick(2);
+
+        assertEquals(50, world.getCircuits().size());
+        for (int i = 0; i < 50; i++) {
+            SimulatedBlockEntity load = world.getBlockEntity(new BlockPos(3 * i, 2, 0));
+            assertEquals(cableRunVoltage(0), voltageAcross(load), EPSILON);
+        }
+    }
+
+    /**
+     * Superconducting busbar with 100 ohm taps to ground, all taps should see the same
+     * voltage, and removing one tap should raise the voltage of the others slightly
+     */
+    @Test
+    @DisplayName("Superconducting busbar")
+    void test4() {
+        SimulatedWorld world = new SimulatedWorld();
+        SimulatedLayout.BUSBAR.place(world, BlockPos.ORIGIN, 40);
+        world.tick(2);
+
+        double tap = voltageAcross(world.getBlockEntity(new BlockPos(1, -1, 0)));
+        assertTrue(tap > 0.9 * VOLTAGE && tap < VOLTAGE);
+        for (int x = 3; x <= 20; x += 2)
+            assertEquals(tap, voltageAcross(world.getBlockEntity(new BlockPos(x, -1, 0))), EPSILON);
+
+        world.remove(SimulatedLayout.BUSBAR.getProbe(BlockPos.ORIGIN, 40));
+        world.tick(2);
+        assertTrue(voltageAcross(world.getBlockEntity(new BlockPos(1, -1, 0))) > tap);
+    }
+
+    /**
+     * Cable run saved and loaded again, should be restored as 1 circuit with the same
+     * load voltage without being solved again
+     */
+    @Test
+    @DisplayName("Saved cable run restored")
+    void test5() {
+        SimulatedWorld saved = new SimulatedWorld();
+        SimulatedLayout.CABLE_RUN.place(saved, BlockPos.ORIGIN, 20);
+        saved.tick(2);
+
+        SimulatedWorld world = saved.reload();
+        world.tick();
+        assertEquals(1, world.getCircuits().size());
+        assertEquals(saved.getCircuits().get(0).id, world.getCircuits().get(0).id);
+        assertEquals(0, world.getCircuits().get(0).virtualCircuit().getFactorizationCount());
+
+        SimulatedBlockEntity load = world.getBlockEntity(new BlockPos(22, 0, 0));
+        assertEquals(cableRunVoltage(20), voltageAcross(load), EPSILON);
+        for (SimulatedBlockEntity blockEntity : world.getBlockEntities())
+            assertEquals(world.getCircuits().get(0), blockEntity.getCircuit());
+    }
+
+    /**
+     * Cable run saved, then loaded with the middle cable missing. The saved circuit
+     * doesn't match so should be floodfilled instead, and work once the cable is placed again
+     */
+    @Test
+    @DisplayName("Changed saved cable run floodfilled")
+    void test6() {
+        SimulatedWorld saved = new SimulatedWorld();
+        SimulatedLayout.CABLE_RUN.place(saved, BlockPos.ORIGIN, 20);
+        saved.tick(2);
+
+        SimulatedWorld world = saved.reload();
+        BlockPos probe = SimulatedLayout.CABLE_RUN.getProbe(BlockPos.ORIGIN, 20);
+        SimulatedBlockEntity removed = world.remove(probe);
+        world.tick(2);
+
+        SimulatedBlockEntity load = world.getBlockEntity(new BlockPos(22, 0, 0));
+        assertNotNull(load.getCircuit());
+        assertEquals(0.0, voltageAcross(load), EPSILON);
+
+        world.place(probe, removed.copy());
+        world.tick(2);
+        assertEquals(1, world.getCircuits().size());
+        assertEquals(cableRunVoltage(20), voltageAcross(load), EPSILON);
+    }
+
+    /**
+     * Cable run, should have no active (ticked) blocks. A capacitor placed on a cable
+     * is active, joins the circuit and stops being ticked once removed
+     */
+    @Test
+    @DisplayName("Only active blocks are ticked")
+    void test7() {
+        SimulatedWorld world = new SimulatedWorld();
+        SimulatedLayout.CABLE_RUN.place(world, BlockPos.ORIGIN, 20);
+        world.tick(2);
+        assertEquals(0, world.getCircuitManager().getActiveCount());
+
+        BlockPos capacitorPos = SimulatedLayout.CABLE_RUN.getProbe(BlockPos.ORIGIN, 20).up();
+        SimulatedBlockEntity capacitor = world.place(capacitorPos, SimulatedBlockEntity.capacitor(0.01));
+        world.tick(2);
+        assertEquals(1, world.getCircuitManager().getActiveCount());
+        assertEquals(world.getCircuits().get(0), capacitor.getCircuit());
+
+        world.remove(capacitorPos);
+        world.tick();
+        assertEquals(0, world.getCircuitManager().getActiveCount());
+    }
+
+    /**
+     * 50 small circuits, should stop being queued once they're solved and their
+     * temperatures settle. Marking a circuit dirty (ie, flipping a switch) queues only that circuit
+     */
+    @Test
+    @DisplayName("Idle circuits aren't queued")
+    void test8() {
+        SimulatedWorld world = new SimulatedWorld();
+        SimulatedLayout.TINY_CIRCUITS.place(world, BlockPos.ORIGIN, 200);
+        world.tick(2);
+        assertEquals(50, world.getCircuitManager().getQueuedCount());
+
+        for (int i = 0; i < 10000 && world.getCircuitManager().getQueuedCount() > 0; i++)
+            world.tick();
+        assertEquals(0, world.getCircuitManager().getQueuedCount());
+
+        world.getCircuits().get(0).markDirty();
+        assertEquals(1, world.getCircuitManager().getQueuedCount());
+        world.tick();
+        assertEquals(cableRunVoltage(0), voltageAcross(world.getBlockEntity(new BlockPos(0, 2, 0))), EPSILON);
+    }
+
+    /**
+     * Battery charging a capacitor through a resistor, stepped on the server thread and in the
+     * background. Capacitors re-solve their circuit every tick, but once it sleeps at steady
+     * state (capacitor charged) it should stop being queued
+     */
+    @Test
+    @DisplayName("Idle circuits with a capacitor aren't queued")
+    void test10() {
+        for (boolean solveInBackground : new boolean[] { false, true }) {
+            SimulatedWorld world = new SimulatedWorld(solveInBackground);
+            world.place(new BlockPos(0, 0, 0), SimulatedBlockEntity.ground());
+            world.place(new BlockPos(0, 1, 0), SimulatedBlockEntity.battery(VOLTAGE));
+            world.place(new BlockPos(0, 2, 0), SimulatedBlockEntity.resistor(LOAD));
+            SimulatedBlockEntity capacitor = world.place(new BlockPos(0, 3, 0), SimulatedBlockEntity.capacitor(0.001));
+            world.place(new BlockPos(0, 4, 0), SimulatedBlockEntity.ground());
+            world.tick(2);
+            assertEquals(1, world.getCircuitManager().getActiveCount());
+
+            for (int i = 0; i < 10000 && world.getCircuitManager().getQueuedCount() > 0; i++)
+                world.tick();
+            assertEquals(0, world.getCircuitManager().getQueuedCount());
+            assertTrue(capacitor.getCircuit().virtualCircuit().isSleeping());
+
+            world.tick(10);
+            assertEquals(0, world.getCircuitManager().getQueuedCount());
+            assertEquals(VOLTAGE, voltageAcross(capacitor), 1e-3);
+        }
+    }
+
+    /**
+     * Resistor of a small circuit should heat up to its final temperature
+     * (dissipated power * thermal resistance above ambient) and stay there
+     */
+    @Test
+    @DisplayName("Resistor settles at final temperature")
+    void test9() {
+        SimulatedWorld world = new SimulatedWorld();
+        SimulatedLayout.TINY_CIRCUITS.place(world, BlockPos.ORIGIN, 4);
+        world.tick(2);
+
+        SimulatedBlockEntity load = world.getBlockEntity(new BlockPos(0, 2, 0));
+        for (int i = 0; i < 10000 && world.getCircuitManager().getQueuedCount() > 0; i++)
+            world.tick();
+        double temperature = load.getTemperature();
+        assertEquals(load.getDissipatedPower() * load.getThermal().thermalR, temperature, ThermalArray.EPSILON);
+
+        world.tick(10);
+        assertEquals(temperature, load.getTemperature());
+    }
+}
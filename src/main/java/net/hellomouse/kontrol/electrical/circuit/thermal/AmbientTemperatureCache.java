@@ -0,0 +1,84 @@
+package net.hellomouse.kontrol.electrical.circuit.thermal;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import net.hellomouse.kontrol.electrical.block.entity.AbstractElectricalBlockEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.ChunkSectionPos;
+import net.minecraft.world.World;
+
+import java.util.LinkedHashSet;
+
+
+/**
+ * Ambient temperatures of a world's electrical blocks. Each block's ambient temperature and
+ * environmental thermal resistance are kept in its ThermalComponent, and only recomputed
+ * after a neighbour changed (see AbstractElectricalBlock#getStateForNeighborUpdate), at most
+ * once per tick. Biome temperatures are cached per chunk section, until the chunk is unloaded.
+ *
+ * Owned by the world's CircuitManager, only used from the server thread.
+ * @author Bowserinator
+ */
+public class AmbientTemperatureCache {
+    // Biome temperature (C) by ChunkSectionPos#asLong, at the center of the section
+    private final Long2DoubleOpenHashMap biomeTemperatures = new Long2DoubleOpenHashMap();
+    // Block entities whose neighbours changed since the last update
+    private final LinkedHashSet<AbstractElectricalBlockEntity> pending = new LinkedHashSet<>();
+
+    /**
+     * Base temperature of the biome at a position, see ThermalComponent#getBiomeTemperature
+     * @param world World
+     * @param pos Position
+     * @return Temperature (C)
+     */
+    public double getBiomeTemperature(World world, BlockPos pos) {
+        int x = pos.getX() >> 4, y = pos.getY() >> 4, z = pos.getZ() >> 4;
+        long section = ChunkSectionPos.asLong(x, y, z);
+        if (biomeTemperatures.containsKey(section))
+            return biomeTemperatures.get(section);
+
+        double temperature = ThermalComponent.getBiomeTemperature(world, new BlockPos((x << 4) + 8, (y << 4) + 8, (z << 4) + 8));
+        biomeTemperatures.put(section, temperature);
+        return temperature;
+    }
+
+    /**
+     * Recompute the ambient temperature of a block entity next update, ie, after a neighbour changed
+     * @param blockEntity Block entity
+     */
+    public void invalidate(AbstractElectricalBlockEntity blockEntity) {
+        pending.add(blockEntity);
+    }
+
+    /**
+     * Stop tracking a block entity, ie, after it was removed or unloaded
+     * @param blockEntity Block entity
+     */
+    public void remove(AbstractElectricalBlockEntity blockEntity) {
+        pending.remove(blockEntity);
+    }
+
+    /**
+     * Forget the biome temperatures of an unloaded chunk
+     * @param chunkPos Chunk position
+     */
+    public void unloadChunk(ChunkPos chunkPos) {
+        for (int y = 0; y < 16; y++)
+            biomeTemperatures.remove(ChunkSectionPos.asLong(chunkPos.x, y, chunkPos.z));
+    }
+
+    /**
+     * Recompute the ambient temperature of every invalidated block entity, called by the
+     * CircuitManager before the thermal sim. Circuits of changed blocks are woken
+     */
+    public void update() {
+        for (AbstractElectricalBlockEntity blockEntity : pending) {
+            if (!blockEntity.isRemoved())
+                blockEntity.updateAmbientTemperature();
+        }
+        pending.clear();
+    }
+
+    /** @return Number of block entities waiting for an update */
+    public int getPendingCount() { return pending.size(); }
+}
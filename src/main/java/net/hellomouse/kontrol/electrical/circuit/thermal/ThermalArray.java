@@ -0,0 +1,172 @@
+package net.hellomouse.kontrol.electrical.circuit.thermal;
+
+import java.util.Arrays;
+
+
+/**
+ * Thermal simulation of all blocks in a circuit, see ThermalComponent for the model.
+ * State is kept in parallel arrays and stepped in one loop, then written back to
+ * each block's ThermalComponent (which is what's saved and read by blocks).
+ *
+ * Blocks within EPSILON of their final temperature settle and are skipped until
+ * their dissipated power or ambient temperature changes.
+ * @author Bowserinator
+ */
+public class ThermalArray {
+    // Settle when within this many degrees of the final temperature
+    public static final double EPSILON = 1e-3;
+
+    private int size = 0;
+    private ThermalComponent[] components = new ThermalComponent[0];
+    private double[] temperature = new double[0];
+    private double[] heatDissipationRate = new double[0];
+    private double[] thermalR = new double[0];
+    private double[] thermalC = new double[0];
+    private double[] tAmbient = new double[0];
+    private double[] envThermalR = new double[0];
+    private double[] power = new double[0];
+    private boolean[] settled = new boolean[0];
+    private boolean[] changed = new boolean[0];
+
+    /**
+     * Remove all blocks, keeping the arrays for the next load
+     */
+    public void clear() {
+        Arrays.fill(components, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Add a block's thermal state, call after clear() when the circuit's blocks change
+     * @param component Thermal component of the block, ambient temperature set
+     * @param dissipatedPower Power dissipated by the block (W)
+     */
+    public void add(ThermalComponent component, double dissipatedPower) {
+        if (size == components.length)
+            grow(Math.max(16, size * 2));
+
+        components[size] = component;
+        temperature[size] = component.temperature;
+        heatDissipationRate[size] = component.heatDissipationRate;
+        thermalR[size] = component.thermalR;
+        thermalC[size] = component.thermalC;
+        tAmbient[size] = component.tAmbient;
+        envThermalR[size] = component.envThermalR;
+        power[size] = dissipatedPower;
+        settled[size] = false;
+        changed[size] = false;
+        size++;
+    }
+
+    private void grow(int capacity) {
+        components = Arrays.copyOf(components, capacity);
+        temperature = Arrays.copyOf(temperature, capacity);
+        heatDissipationRate = Arrays.copyOf(heatDissipationRate, capacity);
+        thermalR = Arrays.copyOf(thermalR, capacity);
+        thermalC = Arrays.copyOf(thermalC, capacity);
+        tAmbient = Arrays.copyOf(tAmbient, capacity);
+        envThermalR = Arrays.copyOf(envThermalR, capacity);
+        power = Arrays.copyOf(power, capacity);
+        settled = Arrays.copyOf(settled, capacity);
+        changed = Arrays.copyOf(changed, capacity);
+    }
+
+    /**
+     * Set the power dissipated by a block, wakes it if changed
+     * @param i Index, in order added
+     * @param dissipatedPower Power (W)
+     */
+    public void setPower(int i, double dissipatedPower) {
+        if (power[i] != dissipatedPower) {
+            power[i] = dissipatedPower;
+            settled[i] = false;
+        }
+    }
+
+    /**
+     * Re-read the ambient temperature and environmental thermal resistance of every block
+     * from its ThermalComponent (see ThermalComponent#updateAmbientTemperature), waking changed blocks
+     */
+    public void updateAmbientTemperatures() {
+        for (int i = 0; i < size; i++) {
+            ThermalComponent component = components[i];
+            if (tAmbient[i] != component.tAmbient || envThermalR[i] != component.envThermalR) {
+                tAmbient[i] = component.tAmbient;
+                envThermalR[i] = component.envThermalR;
+                settled[i] = false;
+            }
+        }
+    }
+
+    /**
+     * Step every block that hasn't settled by a tick, then write changed
+     * temperatures back to their ThermalComponent
+     * @return Did any temperature change? If not, all blocks have settled
+     */
+    public boolean tick() {
+        boolean anyChanged = false;
+
+        for (int i = 0; i < size; i++) {
+            changed[i] = false;
+            if (settled[i])
+                continue;
+
+            double oldTemp = temperature[i];
+
+            // thermalC = 0: Division by 0, heat transfers at max rate instantly
+            // thermalR < 0: Special case component with no resistance
+            // Either case snaps directly to ambient temperature
+            if (thermalC[i] == 0.0 || thermalR[i] < 0.0) {
+                temperature[i] = tAmbient[i];
+                heatDissipationRate[i] = 0.0;
+                settled[i] = true;
+            }
+            else {
+                // Power dissipation drives the final temp to [W] * [thermalR + envThermalR] + tAmbient
+                // Thermal capacitance prevents instantaneous change of power dissipation rate
+                // If you consider RC circuit analogy:
+                //  - V = delta K, final temp
+                //  - C = thermal capacitance, J / K
+                //  - R = thermal resistance, K / W
+                //  - I = heat dissipation rate, W
+                double totalR = thermalR[i] + envThermalR[i];
+                double thermalSource = power[i] * totalR + tAmbient[i];
+                double temp = oldTemp + heatDissipationRate[i] / thermalC[i];
+
+                // Divergence check, or close enough to the final temperature
+                if ((oldTemp < temp && temp > thermalSource) || (oldTemp > temp && temp < thermalSource) ||
+                        Math.abs(thermalSource - temp) < EPSILON) {
+                    temp = thermalSource;
+                    heatDissipationRate[i] = 0.0;
+                    settled[i] = true;
+                }
+                else
+                    heatDissipationRate[i] = (thermalSource - temp) / totalR;
+                temperature[i] = temp;
+            }
+
+            changed[i] = temperature[i] != oldTemp;
+            anyChanged |= changed[i];
+        }
+
+        if (anyChanged) {
+            for (int i = 0; i < size; i++) {
+                if (changed[i]) {
+                    components[i].temperature = temperature[i];
+                    components[i].heatDissipationRate = heatDissipationRate[i];
+                }
+            }
+        }
+        return anyChanged;
+    }
+
+    /**
+     * Did a block's temperature change in the last tick()?
+     * @param i Index, in order added
+     * @return Changed?
+     */
+    public boolean hasChanged(int i) { return changed[i]; }
+
+    /** @return Number of blocks */
+    public int size() { return size; }
+}
@@ -1,5 +1,6 @@
 package net.hellomouse.kontrol.electrical.circuit.thermal;
 
+import net.hellomouse.kontrol.electrical.circuit.IHasCircuitManager;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
 import net.minecraft.block.Blocks;
@@ -21,11 +22,15 @@ public class ThermalComponent {
     public double thermalR;
     public double thermalC;
 
-    private double tAmbient = 0.0;
-    private double envThermalR = 0.0;
-    private double heatDissipationRate = 0.0;
+    // Read and written by ThermalArray
+    double tAmbient = 0.0;
+    double envThermalR = 0.0;
+    double heatDissipationRate = 0.0;
     private boolean temperatureSetYet = false;
 
+    // Direction.values() copies the array on every call
+    private static final Direction[] DIRECTIONS = Direction.values();
+
     // Block => temperature in degrees C
     public static final HashMap<Block, Double> temperatureBlocks = new HashMap<>();
     public static final HashMap<Block, Double> temperatureResistanceBlocks = new HashMap<>();
@@ -62,76 +67,75 @@ public class ThermalComponent {
         this.thermalC = thermalC;
     }
 
+    /**
+     * Base temperature of the biome at a position, the ambient temperature
+     * of blocks surrounded by blocks without a defined temperature
+     * @param world World
+     * @param pos Position
+     * @return Temperature (C)
+     */
+    public static double getBiomeTemperature(World world, BlockPos pos) {
+        // This equation from https://www.reddit.com/r/Minecraft/comments/3eh7yu/the_rl_temperature_of_minecraft_biomes_revealed/
+        // by u/brinjal66, just a fun average-based approximation of code temperature => temp in degrees C
+        return 13.6484805403 * world.getBiome(pos).getTemperature(pos) + 7.0879687222;
+    }
+
     /**
      * Update the local ambient temperature by checking the current biome
      * and surround blocks. tAmbient = average temperature of surrounding 6
-     * block faces, non-temperature blocks default to baseBiomeTemperature
+     * block faces, non-temperature blocks default to baseBiomeTemperature.
+     * The biome temperature is cached by the world's circuit manager if it has one
+     * (see AmbientTemperatureCache)
      *
      * @param world World block entity belongs to
      * @param pos Position of block entity this belongs to
+     * @return Did the ambient temperature or environmental thermal resistance change?
      */
-    public void updateAmbientTemperature(World world, BlockPos pos) {
+    public boolean updateAmbientTemperature(World world, BlockPos pos) {
         if (world == null || world.isClient)
-            return;
+            return false;
 
-        // This equation from https://www.reddit.com/r/Minecraft/comments/3eh7yu/the_rl_temperature_of_minecraft_biomes_revealed/
-        // by u/brinjal66, just a fun average-based approximation of code temperature => temp in degrees C
-        double baseBiomeTemperature = 13.6484805403 * world.getBiome(pos).getTemperature(pos) + 7.0879687222;
+        double baseBiomeTemperature = world instanceof IHasCircuitManager ?
+                ((IHasCircuitManager)world).getCircuitManager().getAmbientTemperatures().getBiomeTemperature(world, pos) :
+                getBiomeTemperature(world, pos);
+        double oldTAmbient = tAmbient;
+        double oldEnvThermalR = envThermalR;
         tAmbient = envThermalR = 0.0;
 
         BlockState blockState = world.getBlockState(pos);
         boolean waterlogged = blockState.contains(Properties.WATERLOGGED) ?
                 blockState.get(Properties.WATERLOGGED) : false;
 
-        for (Direction dir : Direction.values()) {
-            Block block = world.getBlockState(pos.offset(dir)).getBlock();
+        BlockPos.Mutable neighbourPos = new BlockPos.Mutable();
+        for (Direction dir : DIRECTIONS) {
+            BlockState neighbour = world.getBlockState(neighbourPos.set(pos, dir));
+            // Most neighbours are air, skip the lookups
+            if (neighbour.isAir()) {
+                tAmbient += baseBiomeTemperature;
+                envThermalR += waterlogged ? WATER_THERMAL_R : AIR_THERMAL_R;
+                continue;
+            }
+
+            Block block = neighbour.getBlock();
             tAmbient += temperatureBlocks.getOrDefault(block, baseBiomeTemperature);
             envThermalR += waterlogged ? WATER_THERMAL_R : temperatureResistanceBlocks.getOrDefault(block, AIR_THERMAL_R);
         }
         envThermalR /= 6;
         tAmbient /= 6;
+        return tAmbient != oldTAmbient || envThermalR != oldEnvThermalR;
     }
 
     /**
-     * Tick, updating temperature simulation
+     * Update the local ambient temperature if it wasn't yet, before the
+     * component is first simulated (see ThermalArray)
      * @param world World block entity belongs to
      * @param pos Position of block entity this belongs to
      */
-    public void tick(World world, BlockPos pos, double dissipatedPower) {
-        // First time update
+    public void initAmbientTemperature(World world, BlockPos pos) {
         if (!temperatureSetYet) {
             temperatureSetYet = true;
             updateAmbientTemperature(world, pos);
         }
-
-        // thermalC = 0: Division by 0, heat transfers at max rate instantly
-        // thermalR < 0: Special case component with no resistance
-        // Either case snaps directly to ambient temperature
-        if (thermalC == 0.0 || thermalR < 0.0) {
-            temperature = tAmbient;
-            return;
-        }
-
-        // Power dissipation drives the final temp to [W] * [thermalR + envThermalR] + tAmbient
-        // Thermal capacitance prevents instantaneous change of power dissipation rate
-        // If you consider RC circuit analogy:
-        //  - V = delta K, final temp
-        //  - C = thermal capacitance, J / K
-        //  - R = thermal resistance, K / W
-        //  - I = heat dissipation rate, W
-
-        double thermalSource = dissipatedPower * (thermalR + envThermalR) + tAmbient;
-        double oldTemp = temperature;
-
-        temperature += 1 / thermalC * heatDissipationRate;
-        heatDissipationRate = (thermalSource - temperature) / (thermalR + envThermalR);
-
-        // Divergence check
-        if ((oldTemp < temperature && temperature > thermalSource) ||
-                (oldTemp > temperature && temperature < thermalSource)) {
-            heatDissipationRate = 0.0;
-            temperature = thermalSource;
-        }
     }
 
     /**
@@ -0,0 +1,17 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual;
+
+/**
+ * Numeric integration method used by capacitors and inductors each step.
+ * The first step (and BDF2 steps after the step size changes) always use
+ * backward Euler, as the other methods need history
+ *
+ * - BACKWARD_EULER: first order, very stable but loses energy (LC circuits decay)
+ * - TRAPEZOIDAL: second order, keeps energy but can ring on sudden changes
+ * - BDF2: second order and stable, slightly loses energy
+ *
+ * @see VirtualCircuit.VirtualCircuitSettings#integrationMethod(IntegrationMethod)
+ * @author Bowserinator
+ */
+public enum IntegrationMethod {
+    BACKWARD_EULER, TRAPEZOIDAL, BDF2
+}
@@ -1,17 +1,19 @@
 package net.hellomouse.kontrol.electrical.circuit.virtual;
 
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.AbstractVirtualComponent;
-import net.hellomouse.kontrol.electrical.circuit.virtual.components.VirtualDiode;
-import net.hellomouse.kontrol.electrical.circuit.virtual.components.VirtualGround;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IBranchCurrentCondition;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.ICurrentCondition;
-import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IFixedVoltageCondition;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.INonLinearCondition;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IResistanceCondition;
-import org.apache.logging.log4j.LogManager;
+import net.hellomouse.kontrol.electrical.circuit.virtual.solver.AbstractCircuitMatrix;
+import net.hellomouse.kontrol.electrical.circuit.virtual.solver.ConjugateGradientSolver;
+import net.hellomouse.kontrol.electrical.circuit.virtual.solver.LowRankUpdateSolver;
 import org.ejml.data.SingularMatrixException;
-import org.ejml.simple.SimpleMatrix;
 
 import java.util.*;
 
+import static net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuitConstants.*;
+
 
 /**
  * A virtual circuit that can add virtual components,
@@ -22,8 +24,6 @@ import java.util.*;
 public class VirtualCircuit {
     // All components
     private final ArrayList<AbstractVirtualComponent> components = new ArrayList<>();
-    // Condition to component map
-    private final Map<VirtualCondition.Condition, ArrayList<AbstractVirtualComponent>> conditionComponentMap = new HashMap<>();
     // NodeID: All components that connect to that node
     private final Map<Integer, ArrayList<AbstractVirtualComponent>> nodeMap = new HashMap<>();
     // Components that are non-linear, such as diodes
@@ -32,22 +32,77 @@ public class VirtualCircuit {
     private final ArrayList<AbstractVirtualComponent> requireTickComponents = new ArrayList<>();
 
     // Set of unique nodeIDs
-    private final Set<Integer> uniqueNodes = new TreeSet<>();
-    // Solutions for voltages at every node
-    private ArrayList<Double> nodalVoltages = new ArrayList<>();
-    // Solutions for voltages at every node at steady state
-    private ArrayList<Double> steadyStateNodalVoltages = new ArrayList<>();
-    // Does circuit contain a ground (or any fixed voltage point)
-    private boolean containsFixedVoltagePoint = false;
+    private final TreeSet<Integer> uniqueNodes = new TreeSet<>();
+    // Nodes left without components by removeComponent, re-used by allocateNode
+    private final TreeSet<Integer> freeNodes = new TreeSet<>();
+    // Solutions for voltages at every node, index = node id
+    private double[] nodalVoltages = new double[0];
+    // Solutions for voltages at every node at steady state, null if not computed
+    private double[] steadyStateNodalVoltages = null;
+    // Solutions for currents of every branch component (IBranchCurrentCondition), index = branch index
+    private double[] branchCurrents = new double[0];
+    // Number of branch components, branch indices are 0 ... branchCount - 1
+    private int branchCount = 0;
     // How many ways can the circuit be supplied with energy?
     private int energySourceCount = 0;
     // Has circuit been solved at least once?
     private boolean solved = false;
 
+    // Groups of connected nodes, solved separately. Each keeps its last factored left hand
+    // side (+ low rank updates), reused while only the right hand side changes
+    private ArrayList<VirtualCircuitIsland> islands = new ArrayList<>();
+    // Node id: index of its island, -1 if removed by reduction
+    private int[] islandOfNode = new int[0];
+    // Nodes that only connect resistors are removed before solving. Nodes kept once stay
+    // kept until components are added, so switches don't change the island matrices
+    private VirtualCircuitReduction reduction = null;
+    private boolean[] keptNodes = null;
+    // Has anything that affects the left hand side (or islands) changed since the last solve?
+    private boolean matrixDirty = true;
+    // Has a component changed which entries it writes (ie, hiZ) since islands were last built? Islands
+    // then check their stamp plans again (see VirtualStampPlan)
+    private boolean stampPatternDirty = false;
+    // Number of times a matrix has been factored / low rank updated, for statistics
+    private int factorizationCount = 0;
+    private int lowRankUpdateCount = 0;
+    // Number of island solves done iteratively, and iterative solves that failed and were solved directly
+    private int iterativeSolveCount = 0;
+    private int iterativeFallbackCount = 0;
+    // Newton-Raphson re-solves for non-linear components: total, in the last solve, and
+    // number of solves that ran out of iterations, for statistics
+    private int newtonIterationCount = 0;
+    private int lastNewtonIterations = 0;
+    private int nonConvergedCount = 0;
+    // Time spent (ns) assembling, factoring and solving island matrices, for statistics
+    private long assemblyTime = 0;
+    private long factorizationTime = 0;
+    private long matrixSolveTime = 0;
+
     // Optimization settings
     private VirtualCircuitSettings settings = new VirtualCircuitSettings();
     // Number of times circuit has been ticked
     private int ticks = 0;
+    // Step size (s) of the next tick(), and sub-step level (steps are DT / 2^level) for adaptive stepping
+    private double timeStep = DT;
+    private int subStepLevel = 0;
+    // Number of sub-steps taken by step(), for statistics
+    private int subStepCount = 0;
+    // The circuit sleeps (step() does nothing) once the solution and reactive currents stop changing
+    // for settings.sleepSteps steps, until woken by a change. Last step's values to compare with,
+    // and the buffer for this step's values (swapped each step)
+    private boolean sleeping = false;
+    private int steadySteps = 0;
+    private double[] previousStepValues = new double[0];
+    private double[] stepValues = new double[0];
+    // Stepped in the background (see beginBackgroundStep)? Other threads then read the published
+    // solution, and their changes to the circuit are deferred until the step is finished
+    private volatile boolean background = false;
+    private volatile Thread backgroundThread = null;
+    private double[] publishedNodalVoltages = new double[0];
+    private double[] publishedBranchCurrents = new double[0];
+    private volatile boolean deferredMatrixDirty = false;
+    private volatile boolean deferredStampPatternDirty = false;
+    private volatile boolean deferredWake = false;
 
     /**
      * Add a component from node1 to node2. See Polarity tests
@@ -55,142 +110,758 @@ public class VirtualCircuit {
      * @param component Component.
      * @param node1 Positive node
      * @param node2 Negative node
+     * @param extraNodes Other nodes, for multi-terminal components (see ICustomCondition)
      */
-    public void addComponent(AbstractVirtualComponent component, int node1, int node2) {
+    public void addComponent(AbstractVirtualComponent component, int node1, int node2, int... extraNodes) {
+        matrixDirty = true;
+        stampPatternDirty = true;
+        keptNodes = null;
+        subStepLevel = Integer.MAX_VALUE; // Start with the smallest sub-steps until the error is known
+        wake();
         uniqueNodes.add(node1);
         component.setNodes(node1, node2);
+        if (extraNodes.length > 0)
+            component.setExtraNodes(extraNodes);
         component.setCircuit(this);
         components.add(component);
+        if (!freeNodes.isEmpty()) {
+            freeNodes.remove(node1);
+            freeNodes.remove(node2);
+            for (int node : component.getExtraNodes())
+                freeNodes.remove(node);
+        }
+
+        if (component instanceof IBranchCurrentCondition)
+            component.setBranchIndex(branchCount++);
 
         nodeMap.computeIfAbsent(node1, k -> new ArrayList<>());
         nodeMap.get(node1).add(component);
 
-        for (VirtualCondition.Condition key : VirtualCondition.Condition.values()) {
-            if (VirtualCondition.fitsKey(component, key)) {
-                conditionComponentMap.computeIfAbsent(key, k -> new ArrayList<>());
-                conditionComponentMap.get(key).add(component);
-            }
-        }
-
         if (node1 != node2) {
             uniqueNodes.add(node2);
             nodeMap.computeIfAbsent(node2, k -> new ArrayList<>());
             nodeMap.get(node2).add(component);
         }
+        for (int node : component.getExtraNodes()) {
+            uniqueNodes.add(node);
+            nodeMap.computeIfAbsent(node, k -> new ArrayList<>());
+            nodeMap.get(node).add(component);
+        }
 
         // Checks for circuit
-        if (component instanceof IFixedVoltageCondition)
-            containsFixedVoltagePoint = true;
         if (component.requireTicking())
             requireTickComponents.add(component);
 
         component.initialUpdateEnergySourceCount();
 
         // Add special components
-        if (component.isNonLinear())
+        if (component.isNonLinear() && component instanceof INonLinearCondition)
             nonLinearComponents.add(component);
     }
 
+    /**
+     * Remove a component, ie when its block is removed or rebuilt. Node ids don't change,
+     * nodes left without components stay in the circuit (as lone nodes) until re-used by
+     * allocateNode. Branch indices after the component's are shifted down
+     * @param component Component to remove
+     * @return False if the component is not part of the circuit
+     */
+    public boolean removeComponent(AbstractVirtualComponent component) {
+        if (!components.remove(component))
+            return false;
+
+        matrixDirty = true;
+        stampPatternDirty = true;
+        keptNodes = null;
+        steadyStateNodalVoltages = null;
+        subStepLevel = Integer.MAX_VALUE;
+        wake();
+        component.finalUpdateEnergySourceCount();
+        requireTickComponents.remove(component);
+        nonLinearComponents.remove(component);
+
+        removeFromNode(component, component.getNode1());
+        if (component.getNode2() != component.getNode1())
+            removeFromNode(component, component.getNode2());
+        for (int node : component.getExtraNodes())
+            removeFromNode(component, node);
+
+        int branchIndex = component.getBranchIndex();
+        if (component instanceof IBranchCurrentCondition && branchIndex >= 0) {
+            for (AbstractVirtualComponent comp : components)
+                if (comp instanceof IBranchCurrentCondition && comp.getBranchIndex() > branchIndex)
+                    comp.setBranchIndex(comp.getBranchIndex() - 1);
+            if (branchIndex < branchCurrents.length) {
+                double[] newCurrents = new double[branchCurrents.length - 1];
+                System.arraycopy(branchCurrents, 0, newCurrents, 0, branchIndex);
+                System.arraycopy(branchCurrents, branchIndex + 1, newCurrents, branchIndex, newCurrents.length - branchIndex);
+                branchCurrents = newCurrents;
+            }
+            component.setBranchIndex(-1);
+            branchCount--;
+        }
+        return true;
+    }
+
+    /**
+     * Remove a component from a node's list, freeing the node if it was the last one
+     * @param component Component
+     * @param node Node id
+     */
+    private void removeFromNode(AbstractVirtualComponent component, int node) {
+        ArrayList<AbstractVirtualComponent> connected = nodeMap.get(node);
+        if (connected == null || !connected.remove(component) || connected.size() > 0)
+            return;
+        nodeMap.remove(node);
+        freeNodes.add(node);
+    }
+
+    /**
+     * Reserve a node id for new components: the lowest node left without components
+     * by removeComponent, or else the node after the highest node id. Keeps node ids
+     * sequential when components are added to a circuit that has already been built
+     * @return Node id
+     */
+    public int allocateNode() {
+        Integer node = freeNodes.pollFirst();
+        if (node != null)
+            return node;
+        node = uniqueNodes.size();
+        uniqueNodes.add(node);
+        return node;
+    }
+
+    /**
+     * Mark a node as used before components are added to it, so allocateNode
+     * doesn't return it (ie, a node shared with components that are re-added)
+     * @param node Node id
+     */
+    public void reserveNode(int node) {
+        freeNodes.remove(node);
+    }
+
+    /**
+     * Move every component of another circuit into this one, keeping their state (ie, capacitor
+     * charge). Node ids of the other circuit are offset by this circuit's node count, and the
+     * other circuit is cleared
+     * @param other Circuit to merge
+     * @return Offset added to node ids of the other circuit
+     */
+    public int merge(VirtualCircuit other) {
+        int offset = uniqueNodes.size();
+        int otherNodeCount = other.uniqueNodes.size();
+        for (int node = 0; node < otherNodeCount; node++) {
+            uniqueNodes.add(offset + node);
+            if (!other.nodeMap.containsKey(node))
+                freeNodes.add(offset + node);
+        }
+
+        ArrayList<AbstractVirtualComponent> moved = new ArrayList<>(other.components);
+        other.clear();
+        for (AbstractVirtualComponent comp : moved) {
+            int[] extraNodes = comp.getExtraNodes().clone();
+            for (int i = 0; i < extraNodes.length; i++)
+                extraNodes[i] += offset;
+            addComponent(comp, comp.getNode1() + offset, comp.getNode2() + offset, extraNodes);
+        }
+        return offset;
+    }
+
+    /**
+     * Restore a saved solution once the circuit's components were added again (with their
+     * saved state, see AbstractVirtualComponent#loadState), so it can be read without solving.
+     * Nodes without components are added back as free nodes. A circuit that was sleeping
+     * keeps sleeping until woken, otherwise the next step continues from the solution
+     * @param nodeCount Number of node ids used when saved, see getHighestNodeID
+     * @param nodalVoltages Nodal voltages, index = node id
+     * @param branchCurrents Branch currents, index = branch index of the component now
+     * @param sleeping Was the circuit sleeping?
+     * @return False if the solution doesn't fit the circuit (nothing is restored)
+     */
+    public boolean restoreSolution(int nodeCount, double[] nodalVoltages, double[] branchCurrents, boolean sleeping) {
+        if (nodalVoltages.length != nodeCount || branchCurrents.length != branchCount ||
+                (!uniqueNodes.isEmpty() && uniqueNodes.last() >= nodeCount))
+            return false;
+
+        for (int node = 0; node < nodeCount; node++)
+            if (uniqueNodes.add(node) && !nodeMap.containsKey(node))
+                freeNodes.add(node);
+
+        this.nodalVoltages = nodalVoltages.clone();
+        this.branchCurrents = branchCurrents.clone();
+        solved = true;
+        previousStepValues = new double[0];
+        steadySteps = 0;
+        this.sleeping = sleeping;
+        return true;
+    }
+
     /**
      * Solves the circuit given the components.
      *
      * Caveats:
      * - All nodes ID must be used up to the max. ie, if the highest nodeId is 3, then
      *   nodes 0, 1, 2, and 3 must all exist
+     * - Parts of the circuit without a ground use a node as 0 V reference, see VirtualCircuitIsland
      */
     public void solve() {
-        if (!containsFixedVoltagePoint && energySourceCount > 0) { // No ground, randomly assign a voltage source's node to ground
-            // Randomly select a valid voltage or current source
-            ArrayList<AbstractVirtualComponent> comps = conditionComponentMap.get(VirtualCondition.Condition.VOLTAGE_DIFFERENCE);
-            if (comps == null || comps.size() == 0)
-                comps = conditionComponentMap.get(VirtualCondition.Condition.CURRENT);
-            if (comps != null && comps.size() > 0)
-                addComponent(new VirtualGround(), comps.get(0).getNode2(), comps.get(0).getNode2());
-        }
-
-        nodalVoltages = solveHelper(false);
+        setSolution(solveHelper(false));
         recomputeSpecialCases();
     }
 
     /**
-     * Solves non-linear components (ie, diodes), and resolves circuit
-     * if necessary. Only re-solves circuit once, any errors will be corrected
-     * in future resolves, which for most (hopefully) circuits is a short amount of time.
+     * Split a matrix solution into nodal voltages and branch currents
+     * @param solution Solution from solveHelper
+     */
+    private void setSolution(double[] solution) {
+        int nodeCount = uniqueNodes.size();
+        nodalVoltages = Arrays.copyOf(solution, nodeCount);
+        branchCurrents = Arrays.copyOfRange(solution, nodeCount, nodeCount + branchCount);
+    }
+
+    /**
+     * Solves non-linear components (ie, diodes) with Newton-Raphson iteration: components
+     * that don't match the solution are linearized again and the circuit re-solved, up to
+     * settings.maxIterations times. After half the iterations, only the component furthest
+     * off is linearized per iteration (damping), so piecewise linear components that keep
+     * switching each other back and forth (ie, LED walls) still settle. If the limit is
+     * reached, the remaining error is corrected in future solves.
      */
     private void recomputeSpecialCases() {
         if (nonLinearComponents.size() == 0)
             return;
-        for (int i = 0; i < settings.maxIterations; i++) {
-            boolean recompute = false;
 
-            // Diode computations
+        int dampedIteration = settings.maxIterations / 2;
+        int i = 0;
+        for (; i <= settings.maxIterations; i++) {
+            INonLinearCondition worst = null;
+            double worstError = 0.0;
+            int unconverged = 0;
+
             for (AbstractVirtualComponent comp : nonLinearComponents) {
-                if (comp instanceof VirtualDiode) {
-                    boolean oldState = comp.isHiZ();
-                    boolean newState = ((VirtualDiode) comp).shouldBeHiZ();
-
-                    if (oldState != newState) {
-                        recompute = true; // Always recompute diodes
-                        steadyStateNodalVoltages.clear(); // Diodes may alter steady state voltages, clear cache
-                        comp.setHiZ(newState);
-                    }
+                INonLinearCondition nonLinear = (INonLinearCondition) comp;
+                double error = nonLinear.getLinearizationError(settings.newtonTolerance);
+                if (error <= 0.0)
+                    continue;
+
+                unconverged++;
+                if (error > worstError) {
+                    worst = nonLinear;
+                    worstError = error;
                 }
+                if (i < dampedIteration && i < settings.maxIterations)
+                    nonLinear.linearize();
+            }
+
+            if (unconverged == 0) break; // Reached operating point
+            if (i == settings.maxIterations) { // Out of iterations
+                nonConvergedCount++;
+                break;
             }
+            if (i >= dampedIteration)
+                worst.linearize();
 
-            if (!recompute) break; // No need to further iterate, reached steady state
-            nodalVoltages = solveHelper(false);
+            steadyStateNodalVoltages = null; // Non-linear components may alter steady state voltages, clear cache
+            setSolution(solveHelper(false));
         }
+        lastNewtonIterations = Math.min(i, settings.maxIterations);
+        newtonIterationCount += lastNewtonIterations;
     }
 
     /**
-     * Matrix solver for current circuit state
+     * Matrix solver for current circuit state. Islands with a fixed voltage are solved
+     * first (large ones in parallel), then islands without one are solved using the voltage
+     * of a node they connect to through an open component as reference.
      * @param steadyState Should it solve for steady state condition?
-     * @return Nodal voltage ArrayList
+     * @return Nodal voltages (index = node id), followed by branch currents (index = node count + branch index)
      */
-    private ArrayList<Double> solveHelper(boolean steadyState) {
+    private double[] solveHelper(boolean steadyState) {
         int nodeCount = uniqueNodes.size();
+        double[] solution = new double[nodeCount + branchCount];
         solved = true;
 
         // 1 node circuit, or no energy source circuits have all nodes = 0 V
         if (nodeCount < 2 || energySourceCount == 0)
-            return getEmptyRow(nodeCount);
+            return solution;
+
+        if (matrixDirty || islandOfNode.length != nodeCount)
+            buildIslands();
+
+        // Islands with a fixed voltage don't depend on each other
+        boolean[] solvedIslands = new boolean[islands.size()];
+        ArrayList<VirtualCircuitIsland> largeIslands = new ArrayList<>();
+        ArrayDeque<VirtualCircuitIsland> queue = new ArrayDeque<>();
+        for (VirtualCircuitIsland island : islands) {
+            if (!island.hasFixedVoltage())
+                continue;
+            island.referenceNode = -1;
+            if (island.size() >= settings.parallelIslandThreshold)
+                largeIslands.add(island);
+            else
+                solveIsland(island, steadyState, solution);
+            solvedIslands[island.getIndex()] = true;
+            queue.add(island);
+        }
+        if (largeIslands.size() > 1)
+            largeIslands.parallelStream().forEach(island -> solveIsland(island, steadyState, solution));
+        else
+            for (VirtualCircuitIsland island : largeIslands)
+                solveIsland(island, steadyState, solution);
 
-        SimpleMatrix matrix    = new SimpleMatrix(nodeCount, nodeCount);
-        SimpleMatrix solutions = new SimpleMatrix(nodeCount, 1);
+        // Islands without a fixed voltage take the voltage of a solved node they connect to through
+        // an open component (as if it was a very high resistance). Otherwise, one is picked as 0 V
+        int unsolved = islands.size() - queue.size();
+        while (unsolved > 0) {
+            while (!queue.isEmpty()) {
+                VirtualCircuitIsland island = queue.poll();
+                for (AbstractVirtualComponent comp : island.openComponents) {
+                    boolean outwards = islandOfNode[comp.getNode1()] == island.getIndex();
+                    int inside = outwards ? comp.getNode1() : comp.getNode2();
+                    int outside = outwards ? comp.getNode2() : comp.getNode1();
+                    VirtualCircuitIsland next = islands.get(islandOfNode[outside]);
+                    if (solvedIslands[next.getIndex()])
+                        continue;
+
+                    next.referenceNode = outside;
+                    next.referenceVoltage = solution[inside];
+                    solveIsland(next, steadyState, solution);
+                    solvedIslands[next.getIndex()] = true;
+                    queue.add(next);
+                    unsolved--;
+                }
+            }
+            if (unsolved == 0)
+                break;
+
+            // Nothing else connects, prefer islands with a source as they were
+            // previously the ones a ground was added to
+            VirtualCircuitIsland next = null;
+            for (VirtualCircuitIsland island : islands) {
+                if (solvedIslands[island.getIndex()])
+                    continue;
+                if (next == null || (island.containsSource && !next.containsSource))
+                    next = island;
+            }
+            next.referenceNode = next.getDefaultReferenceNode();
+            next.referenceVoltage = 0.0;
+            solveIsland(next, steadyState, solution);
+            solvedIslands[next.getIndex()] = true;
+            queue.add(next);
+            unsolved--;
+        }
+        reduction.reconstruct(solution);
+
+        for (VirtualCircuitIsland island : islands) {
+            factorizationCount += island.factorizations;
+            lowRankUpdateCount += island.lowRankUpdates;
+            iterativeSolveCount += island.iterativeSolves;
+            iterativeFallbackCount += island.iterativeFallbacks;
+            island.factorizations = 0;
+            island.lowRankUpdates = 0;
+            island.iterativeSolves = 0;
+            island.iterativeFallbacks = 0;
+            assemblyTime += island.assemblyTime;
+            factorizationTime += island.factorizationTime;
+            matrixSolveTime += island.solveTime;
+            island.assemblyTime = 0;
+            island.factorizationTime = 0;
+            island.solveTime = 0;
+        }
+        if (!steadyState && settings.cacheFactorization)
+            matrixDirty = false;
+        return solution;
+    }
+
+    /**
+     * Split the circuit into islands: groups of nodes connected (union find) by
+     * components that aren't open. Nodes removed by the reduction (see VirtualCircuitReduction)
+     * are not in any island. If the islands are the same as before, their cached factorizations are kept.
+     */
+    private void buildIslands() {
+        int nodeCount = uniqueNodes.size();
+        int[] parent = new int[nodeCount];
+        for (int node = 0; node < nodeCount; node++)
+            parent[node] = node;
+        for (AbstractVirtualComponent comp : components) {
+            if (!VirtualCircuitIsland.isOpen(comp))
+                parent[findRoot(parent, comp.getNode1())] = findRoot(parent, comp.getNode2());
+            for (int node : comp.getExtraNodes())
+                parent[findRoot(parent, comp.getNode1())] = findRoot(parent, node);
+        }
+
+        reduction = VirtualCircuitReduction.reduce(components, nodeCount, settings.maxReductionDegree, keptNodes);
+        keptNodes = new boolean[nodeCount];
+        for (int node = 0; node < nodeCount; node++)
+            keptNodes[node] = !reduction.isRemoved(node);
+
+        // Number islands in order of their lowest node
+        int[] newIslandOfNode = new int[nodeCount];
+        int[] rootIsland = new int[nodeCount];
+        Arrays.fill(rootIsland, -1);
+        int islandCount = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            if (reduction.isRemoved(node)) {
+                newIslandOfNode[node] = -1;
+                continue;
+            }
+            int root = findRoot(parent, node);
+            if (rootIsland[root] < 0)
+                rootIsland[root] = islandCount++;
+            newIslandOfNode[node] = rootIsland[root];
+        }
 
-        // Compute all conditions. Due to order of matrix operations, they must be performed in this order.
-        // See VirtualCondition for explanations of what each solver does
-        VirtualCondition.KCLCondition(components, matrix, solutions, steadyState);
-        VirtualCondition.currentSourceCondition(conditionComponentMap.get(VirtualCondition.Condition.CURRENT), solutions, steadyState);
-        VirtualCondition.voltageDifferenceCondition(conditionComponentMap.get(VirtualCondition.Condition.VOLTAGE_DIFFERENCE), matrix, solutions, steadyState);
-        VirtualCondition.fixedNodeCondition(conditionComponentMap.get(VirtualCondition.Condition.FIXED_VOLTAGE), matrix, solutions);
-        // VirtualCondition.customCondition(conditionComponentMap.get(VirtualCondition.Condition.CUSTOM), matrix, solutions);
+        int[][] islandNodes = new int[islandCount][];
+        int[] islandSizes = new int[islandCount];
+        for (int node = 0; node < nodeCount; node++)
+            if (newIslandOfNode[node] >= 0) islandSizes[newIslandOfNode[node]]++;
+        for (int i = 0; i < islandCount; i++)
+            islandNodes[i] = new int[islandSizes[i]];
+        Arrays.fill(islandSizes, 0);
+        for (int node = 0; node < nodeCount; node++)
+            if (newIslandOfNode[node] >= 0) islandNodes[newIslandOfNode[node]][islandSizes[newIslandOfNode[node]]++] = node;
+
+        int[] nodeRows = new int[nodeCount];
+        int[] branchRows = new int[branchCount];
+        ArrayList<VirtualCircuitIsland> newIslands = new ArrayList<>(islandCount);
+        for (int i = 0; i < islandCount; i++)
+            newIslands.add(new VirtualCircuitIsland(i, islandNodes[i], nodeRows, branchRows));
+
+        for (AbstractVirtualComponent comp : reduction.getComponents()) {
+            int island1 = newIslandOfNode[comp.getNode1()];
+            int island2 = newIslandOfNode[comp.getNode2()];
+            newIslands.get(island1).addComponent(comp, island1 == island2);
+            if (island1 != island2)
+                newIslands.get(island2).openComponents.add(comp);
+        }
+        for (VirtualCircuitIsland island : newIslands)
+            island.groupComponents();
+
+        if (Arrays.equals(islandOfNode, newIslandOfNode)) {
+            for (int i = 0; i < islandCount; i++) {
+                newIslands.get(i).cachedSolver = islands.get(i).cachedSolver;
+                newIslands.get(i).cachedReferenceNode = islands.get(i).cachedReferenceNode;
+                newIslands.get(i).stampPlan = islands.get(i).stampPlan;
+                if (stampPatternDirty && newIslands.get(i).stampPlan != null)
+                    newIslands.get(i).stampPlan.setValidated(false);
+            }
+        }
+        stampPatternDirty = false;
+        islands = newIslands;
+        islandOfNode = newIslandOfNode;
+    }
+
+    /**
+     * Find the root of a node in union find
+     * @param parent Parent of each node, paths are halved while searching
+     * @param node Node id
+     * @return Root node id
+     */
+    private static int findRoot(int[] parent, int node) {
+        while (parent[node] != node) {
+            parent[node] = parent[parent[node]];
+            node = parent[node];
+        }
+        return node;
+    }
+
+    /**
+     * Solve a single island, writing its nodal voltages and branch currents into solution.
+     * Can be called for multiple islands at once, as each only writes its own nodes
+     * @param island Island, referenceNode must be set if it has no fixed voltage
+     * @param steadyState Should it solve for steady state condition?
+     * @param solution Output, in the same format as solveHelper
+     */
+    private void solveIsland(VirtualCircuitIsland island, boolean steadyState, double[] solution) {
+        int size = island.size();
+        int[] nodes = island.getNodes();
+
+        // Lone node (ie, between open switches), nothing to solve
+        if (size == 1) {
+            solution[nodes[0]] = island.hasFixedVoltage() ?
+                    island.fixedNodes.get(island.fixedNodes.size() - 1).getVoltage() :
+                    island.referenceVoltage;
+            return;
+        }
+
+        // Large islands can be solved iteratively, starting from the last solution. Islands
+        // that can't (ie, voltage sources between free nodes) are solved directly until rebuilt
+        boolean iterative = !steadyState && settings.preconditioner != null && size >= settings.iterativeThreshold &&
+                (island.iterativeSolver == null || island.iterativeSolver.isUsable());
+
+        // Only the right hand side changed (ie, capacitor and inductor currents), skip
+        // re-building and factoring the left hand side. Steady state is never cached
+        boolean useCache = !steadyState && settings.cacheFactorization && (iterative ?
+                island.iterativeSolver != null && island.cachedReferenceNode == island.referenceNode :
+                island.cachedSolver != null && island.cachedSolver.size() == size &&
+                island.cachedReferenceNode == island.referenceNode);
+
+        // Every component stamps itself in one pass, see VirtualStampContext
+        long startTime = System.nanoTime();
+        double[] solutions = new double[size];
+        AbstractCircuitMatrix matrix = new VirtualStampContext(island, solutions, steadyState)
+                .assemble(!useCache || matrixDirty, size >= settings.sparseThreshold);
+        long assemblyTime = System.nanoTime() - startTime;
+        long factorizationTime = 0;
 
         // Solve matrix equation Ax = b
-        ArrayList<Double> nodalVoltages = new ArrayList<>(nodeCount);
+        double[] x = new double[size];
+        boolean solvedIteratively = false;
+        if (iterative) {
+            if (matrix != null) {
+                island.iterativeSolver = new ConjugateGradientSolver(matrix, nodes.length, settings.preconditioner);
+                island.cachedReferenceNode = island.referenceNode;
+            }
+            for (int row = 0; row < nodes.length; row++)
+                x[row] = nodes[row] < nodalVoltages.length ? nodalVoltages[nodes[row]] : 0.0;
+
+            solvedIteratively = island.iterativeSolver.solve(solutions, x, settings.iterativeTolerance, settings.maxIterativeIterations);
+            if (solvedIteratively) {
+                island.iterativeSolves++;
+            } else {
+                // Not converged or can't be solved iteratively, solve directly this time
+                if (island.iterativeSolver.isUsable())
+                    island.iterativeFallbacks++;
+                matrix = island.iterativeSolver.getMatrix();
+                useCache = false;
+            }
+        }
+
+        if (!solvedIteratively && (!useCache || !solveCached(island, matrix, solutions, x))) {
+            if (matrix == null) // Cached solve was inaccurate, re-factor the same matrix
+                matrix = island.cachedSolver.getMatrix();
 
-        try {
-            SimpleMatrix solution = matrix.solve(solutions);
-            for (int i = 0; i < solution.getNumElements(); i++)
-                nodalVoltages.add(solution.get(i));
+            long factorStartTime = System.nanoTime();
+            boolean factored = matrix.factor();
+            factorizationTime = System.nanoTime() - factorStartTime;
+            island.factorizations++;
+            if (factored && !steadyState && settings.cacheFactorization) {
+                island.cachedSolver = new LowRankUpdateSolver(matrix);
+                island.cachedReferenceNode = island.referenceNode;
+            }
+
+            if (!factored || !matrix.solve(solutions, x)) {
+                throw new SingularMatrixException(
+                    "Circuit solving failure: Matrix cannot be solved\n" +
+                    "Singular matrix attempting to solve Ax = b\n\n" +
+                    "Value of A: \n\n" + matrix.toString() + "\n" +
+                    "Value of b: \n\n" + Arrays.toString(solutions) + "\n" +
+                    "Island nodes: " + Arrays.toString(nodes) + "\n" +
+                    (island.referenceNode >= 0 ? "Note: Island does not have a ground, node " + island.referenceNode + " was used as reference\n" : "") +
+                    "Note: steadyState: " + (steadyState ? "true" : "false")
+                );
+            }
         }
-        catch(SingularMatrixException e) {
-            throw new SingularMatrixException(
-                "Circuit solving failure: Matrix cannot be solved\n" +
-                "Singular matrix attempting to solve Ax = b\n\n" +
-                "Value of A: \n\n" + matrix.toString() + "\n" +
-                "Value of b: \n\n" + solutions.toString() + "\n" +
-                (!containsFixedVoltagePoint ? "Note: Circuit does not have a ground, one was auto-added\n" : "") +
-                "Note: steadyState: " + (steadyState ? "true" : "false")
-            );
+
+        int nodeCount = solution.length - branchCount;
+        for (int row = 0; row < nodes.length; row++)
+            solution[nodes[row]] = x[row];
+        for (AbstractVirtualComponent comp : island.branches)
+            solution[nodeCount + comp.getBranchIndex()] = x[island.branchRow(comp.getBranchIndex())];
+
+        island.assemblyTime += assemblyTime;
+        island.factorizationTime += factorizationTime;
+        island.solveTime += System.nanoTime() - startTime - assemblyTime - factorizationTime;
+    }
+
+    /**
+     * Try to solve with an island's cached factorization. If the left hand side changed in
+     * at most settings.maxLowRankUpdates rows (ie, a switch was toggled) a low rank
+     * update is applied instead of factoring again. Updated solves are checked for
+     * accuracy (settings.lowRankTolerance) as errors grow with each update.
+     * @param island Island with a cached factorization
+     * @param matrix New left hand side, or null if it has not changed
+     * @param solutions Right hand side
+     * @param solution Output
+     * @return False if the matrix must be factored instead
+     */
+    private boolean solveCached(VirtualCircuitIsland island, AbstractCircuitMatrix matrix, double[] solutions, double[] solution) {
+        LowRankUpdateSolver cachedSolver = island.cachedSolver;
+        if (matrix != null) {
+            if (!cachedSolver.update(matrix, settings.maxLowRankUpdates))
+                return false;
+            island.lowRankUpdates++;
         }
+        if (!cachedSolver.solve(solutions, solution))
+            return false;
+        return cachedSolver.getRank() == 0 ||
+                cachedSolver.getMatrix().backwardError(solution, solutions) <= settings.lowRankTolerance;
+    }
+
+    /**
+     * Flag that the left hand side of the circuit matrix has changed (ie, a resistance
+     * or hiZ state), so it must be re-built and factored on the next solve. Components
+     * call this from their setters, changes that only affect the right hand side
+     * (source voltages and currents) don't need to call this.
+     */
+    public void markMatrixDirty() {
+        if (isBackgroundReader()) {
+            deferredMatrixDirty = true;
+            return;
+        }
+        matrixDirty = true;
+        wake();
+    }
+
+    /**
+     * Flag that a component changed which left hand side entries it writes (ie, its hiZ
+     * or disabled state), so stamp plans are checked again on the next solve. Also marks
+     * the matrix dirty. Components with custom stamps (see ICustomCondition) must call
+     * this when their pattern changes
+     */
+    public void markStampPatternDirty() {
+        if (isBackgroundReader()) {
+            deferredStampPatternDirty = true;
+            deferredMatrixDirty = true;
+            return;
+        }
+        stampPatternDirty = true;
+        markMatrixDirty();
+    }
+
+    /**
+     * Wake the circuit if it is sleeping, so the next step() solves it again. Called when
+     * components change (see AbstractVirtualComponent#wakeCircuit) or the circuit is modified
+     */
+    public void wake() {
+        if (isBackgroundReader()) {
+            deferredWake = true;
+            return;
+        }
+        sleeping = false;
+        steadySteps = 0;
+    }
+
+    /**
+     * Hand the circuit to another thread for one step (see stepInBackground). Until
+     * finishBackgroundStep, other threads read the solution as it is now (double buffered),
+     * and markMatrixDirty / wake from them are deferred. Component values changed meanwhile
+     * may or may not be used by the step, but always are by the next one.
+     * Call from the thread that owns the circuit
+     */
+    public void beginBackgroundStep() {
+        publishedNodalVoltages = nodalVoltages;
+        publishedBranchCurrents = branchCurrents;
+        background = true;
+    }
+
+    /**
+     * step() on the current thread, after beginBackgroundStep
+     */
+    public void stepInBackground() {
+        backgroundThread = Thread.currentThread();
+        step();
+    }
+
+    /**
+     * Publish the background step's solution and apply changes that were deferred.
+     * Call from the thread that owns the circuit once stepInBackground returned
+     */
+    public void finishBackgroundStep() {
+        background = false;
+        backgroundThread = null;
+        publishedNodalVoltages = new double[0];
+        publishedBranchCurrents = new double[0];
+        if (deferredStampPatternDirty)
+            stampPatternDirty = true;
+        if (deferredMatrixDirty)
+            markMatrixDirty();
+        if (deferredWake)
+            wake();
+        deferredStampPatternDirty = false;
+        deferredMatrixDirty = false;
+        deferredWake = false;
+    }
+
+    /**
+     * Is the circuit being stepped in the background by another thread?
+     * @return Should the current thread read published values?
+     */
+    private boolean isBackgroundReader() {
+        return background && Thread.currentThread() != backgroundThread;
+    }
+
+    /**
+     * Advance the circuit by one game tick (DT) and solve it. With adaptive stepping
+     * the tick is split into sub-steps of DT / 2^level, the level is raised when the truncation
+     * error of capacitors and inductors is too large and lowered when it is very small.
+     * Sub-steps of the same size re-use the factored matrix. Without adaptive stepping
+     * this is tick() then solve()
+     *
+     * Does nothing while the circuit is sleeping: once nodal voltages, branch currents and
+     * capacitor / inductor currents change by at most settings.sleepTolerance for settings.sleepSteps
+     * steps in a row, the circuit is at steady state and sleeps until woken
+     */
+    public void step() {
+        if (sleeping)
+            return;
+
+        if (settings.adaptiveStepping)
+            stepAdaptive();
+        else {
+            timeStep = DT;
+            tick();
+            solve();
+            subStepCount++;
+        }
+        checkSteadyState();
+    }
 
-        return nodalVoltages;
+    /**
+     * Compare the solution and reactive currents to the last step, and sleep
+     * once they haven't changed for long enough
+     */
+    private void checkSteadyState() {
+        if (settings.sleepSteps <= 0)
+            return;
+
+        int solutionLength = nodalVoltages.length + branchCurrents.length;
+        int length = solutionLength + requireTickComponents.size();
+        double[] values = stepValues.length == length ? stepValues : new double[length];
+        System.arraycopy(nodalVoltages, 0, values, 0, nodalVoltages.length);
+        System.arraycopy(branchCurrents, 0, values, nodalVoltages.length, branchCurrents.length);
+        for (int i = 0; i < requireTickComponents.size(); i++)
+            values[solutionLength + i] = requireTickComponents.get(i).getCurrent();
+
+        boolean steady = values.length == previousStepValues.length;
+        for (int i = 0; steady && i < values.length; i++)
+            steady = Math.abs(values[i] - previousStepValues[i]) <= settings.sleepTolerance;
+
+        steadySteps = steady ? steadySteps + 1 : 0;
+        sleeping = steadySteps >= settings.sleepSteps;
+        stepValues = previousStepValues;
+        previousStepValues = values;
+    }
+
+    /**
+     * Tick and solve in sub-steps with adaptive step sizes, see step()
+     */
+    private void stepAdaptive() {
+        // Positions are in units of the smallest step
+        int total = 1 << settings.maxSubStepLevel;
+        subStepLevel = Math.min(subStepLevel, settings.maxSubStepLevel);
+        for (int done = 0; done < total;) {
+            int size = 1 << (settings.maxSubStepLevel - subStepLevel);
+            timeStep = DT * size / total;
+            tick();
+            solve();
+            subStepCount++;
+            done += size;
+
+            double error = 0.0;
+            for (AbstractVirtualComponent comp : requireTickComponents)
+                if (comp.doesNumericIntegration())
+                    error = Math.max(error, comp.getTruncationError(settings.truncationTolerance, ABSOLUTE_TRUNCATION_TOLERANCE));
+
+            if (error > 1.0 && subStepLevel < settings.maxSubStepLevel)
+                subStepLevel++;
+            else if (error < SUB_STEP_GROW_ERROR && subStepLevel > 0 && done % (2 * size) == 0)
+                subStepLevel--;
+        }
     }
 
     /**
      * Does numeric integration and other stuff components need to do
-     * every tick (component.tick() for every component)
+     * every step (component.tick() for every component), see step()
      */
     public void tick() {
         ticks++;
@@ -200,98 +871,64 @@ public class VirtualCircuit {
 
     /**
      * Returns current from node1 to node2, current from node1 to node2
-     * is considered positive, node2 to node1 is negative. Current is computed
-     * from series resistors, so this will fail if there is no resistor(s) in series
-     * for a component from node1 to node2.
+     * is considered positive, node2 to node1 is negative. This is the sum of the
+     * currents of all components directly connecting node1 and node2, which each
+     * component knows (resistors from V / R, sources and branch currents from the solution).
      *
-     * In other words, there must be only 1 component from node1 to node2, or an incorrect
-     * result may be returned.
+     * If a resistor is in parallel with a source or other component between the same
+     * nodes, only the non-resistor components are counted (the resistor is treated as a load
+     * across them). 0 is returned if no component connects the two nodes.
      *
      * @param node1 Node id
      * @param node2 Node id
      * @return Current
      */
     public double getCurrentThrough(int node1, int node2) {
-        ArrayList<AbstractVirtualComponent> seriesComponents = null;
-        int resistorCount;
-        double totalCurrent = 0.0;
-        int[] nodes = { node1, node2 };
+        ArrayList<AbstractVirtualComponent> connected = nodeMap.get(node1);
+        if (connected == null || node1 == node2)
+            return 0.0;
 
-        for (int nodeId : nodes) {
-            resistorCount = 0;
-            totalCurrent = 0.0;
-            seriesComponents = nodeMap.get(nodeId);
+        double resistorCurrent = 0.0;
+        double otherCurrent = 0.0;
+        boolean hasOther = false;
 
-            if (seriesComponents == null)
+        for (AbstractVirtualComponent comp : connected) {
+            double sign;
+            if (comp.getNode1() == node1 && comp.getNode2() == node2)
+                sign = 1.0;
+            else if (comp.getNode2() == node1 && comp.getNode1() == node2)
+                sign = -1.0;
+            else
                 continue;
 
-            // Components that are not resistors but are ignored for current
-            // calculation purposes
-            int specialComponentCount = 0;
-
-            for (AbstractVirtualComponent comp : seriesComponents) {
-                boolean isResistor = comp instanceof IResistanceCondition;
-                boolean isCurrentSource = comp instanceof ICurrentCondition;
-
-                if (comp instanceof IFixedVoltageCondition)
-                    specialComponentCount++;
-                if (isResistor)
-                    resistorCount++;
-                if (isCurrentSource) {
-                    specialComponentCount++;
-                    totalCurrent += comp.getCurrent();
-                }
-
-                // Component found exactly matching nodes and it has a pre-determined
-                // current (Resistors and current sources know their currents)
-                // So we don't need to sum series resistors, juts return the component directly
-
-                // The uniqueNodes.size() > 2 check is because for a 2 node circuit anything
-                // in series will have the same nodes
-
-                if (uniqueNodes.size() > 2 && (isResistor || isCurrentSource)) {
-                    if (comp.getNode1() == node1 && comp.getNode2() == node2)
-                        return comp.getCurrent();
-                    if (comp.getNode2() == node1 && comp.getNode1() == node2)
-                        return -comp.getCurrent();
-                }
+            if (comp instanceof IBranchCurrentCondition || comp instanceof ICurrentCondition) {
+                otherCurrent += sign * comp.getCurrent();
+                hasOther = true;
             }
-
-            // Verify all components, except the component we're measuring across (assumed = 1) and the
-            // exempt components (specialComponentCount) are resistors
-            if ((resistorCount != seriesComponents.size() - 1 - specialComponentCount) || resistorCount == 0)
-                continue;
-            break;
+            else if (comp instanceof IResistanceCondition)
+                resistorCurrent += sign * comp.getCurrent();
         }
+        return hasOther ? otherCurrent : resistorCurrent;
+    }
 
-        // No series resistors were found
-        if (seriesComponents == null) {
-            LogManager.getLogger().warn("No resistors were found in series for nodes " + node1 + " to " + node2);
-            return 0.0;
-        }
-
-        for (AbstractVirtualComponent comp : seriesComponents) {
-            // Skip the component we're measuring across
-            // See the if (uniqueNodes.size() > 2) above
-            if (uniqueNodes.size() > 2) {
-                if (
-                        (comp.getNode1() == node1 && comp.getNode2() == node2) ||
-                        (comp.getNode2() == node1 && comp.getNode1() == node2))
-                    continue;
-            }
-
-            // If resistor starts at node1 or ends at node2, then current is going wrong way
-            // [R1_node2] <---- [R1_node1 = node1] ----> [node2 = R2_node2] <----- [R2_node1]
-            // Note the middle arrow (direction we're measuring) is opposite of the resistors
+    /**
+     * Get the solved current of a branch component (IBranchCurrentCondition),
+     * from node1 to node2 of the component
+     * @param branchIndex Branch index of the component
+     * @return Current
+     */
+    public double getBranchCurrent(int branchIndex) {
+        return isBackgroundReader() ? publishedBranchCurrents[branchIndex] : branchCurrents[branchIndex];
+    }
 
-            if (comp instanceof IResistanceCondition) {
-                if (comp.getNode1() == node1 || comp.getNode2() == node2)
-                    totalCurrent += -comp.getCurrent();
-                else
-                    totalCurrent += comp.getCurrent();
-            }
-        }
-        return totalCurrent;
+    /**
+     * Was a branch part of the last solve? Components added after
+     * solving don't have a current yet
+     * @param branchIndex Branch index of the component
+     * @return Has a solved current?
+     */
+    public boolean hasBranchCurrent(int branchIndex) {
+        return branchIndex >= 0 && branchIndex < (isBackgroundReader() ? publishedBranchCurrents : branchCurrents).length;
     }
 
     /**
@@ -301,25 +938,24 @@ public class VirtualCircuit {
     public void clear() {
         components.clear();
         nodeMap.clear();
-        conditionComponentMap.clear();
         nonLinearComponents.clear();
         requireTickComponents.clear();
         uniqueNodes.clear();
-        nodalVoltages.clear();
-        steadyStateNodalVoltages.clear();
-        containsFixedVoltagePoint = false;
+        freeNodes.clear();
+        nodalVoltages = new double[0];
+        steadyStateNodalVoltages = null;
+        branchCurrents = new double[0];
+        branchCount = 0;
         energySourceCount = 0;
-    }
-
-    /**
-     * Returns an arraylist of size filled with all 0s
-     * @param size Size of arraylist
-     * @return Arraylist
-     */
-    public static ArrayList<Double> getEmptyRow(int size) {
-        ArrayList<Double> row = new ArrayList<>(Arrays.asList(new Double[size]));
-        Collections.fill(row, 0.0);
-        return row;
+        islands = new ArrayList<>();
+        islandOfNode = new int[0];
+        reduction = null;
+        keptNodes = null;
+        subStepLevel = Integer.MAX_VALUE;
+        previousStepValues = new double[0];
+        wake();
+        matrixDirty = true;
+        stampPatternDirty = true;
     }
 
     /**
@@ -342,11 +978,11 @@ public class VirtualCircuit {
     /**
      * Return nodal voltages at steady state -- computes steady state
      * if it's not cached, which requires a resolve.
-     * @return Steady state
+     * @return Steady state voltages, index = node id. Do not modify
      */
-    public ArrayList<Double> getSteadyStateNodalVoltages() {
-        if (steadyStateNodalVoltages.size() == 0)
-            steadyStateNodalVoltages = solveHelper(true);
+    public double[] getSteadyStateNodalVoltages() {
+        if (steadyStateNodalVoltages == null)
+            steadyStateNodalVoltages = Arrays.copyOf(solveHelper(true), uniqueNodes.size());
         return steadyStateNodalVoltages;
     }
 
@@ -356,7 +992,16 @@ public class VirtualCircuit {
      * @return Voltage
      */
     public double getNodalVoltage(int nodeId) {
-        return nodalVoltages.get(nodeId);
+        return isBackgroundReader() ? publishedNodalVoltages[nodeId] : nodalVoltages[nodeId];
+    }
+
+    /**
+     * Return the solved voltages of all nodes. The array is owned by the circuit
+     * and replaced (not modified) on every solve, so it can be read without copying
+     * @return Nodal voltages, index = node id. Do not modify
+     */
+    public double[] getNodalVoltages() {
+        return isBackgroundReader() ? publishedNodalVoltages : nodalVoltages;
     }
 
     /** Add or subtract energy source count */
@@ -370,12 +1015,114 @@ public class VirtualCircuit {
      */
     public boolean isSolved() { return solved; }
 
+    /**
+     * Islands (groups of connected nodes) from the last solve
+     * @return Islands, do not modify
+     */
+    public List<VirtualCircuitIsland> getIslands() { return Collections.unmodifiableList(islands); }
+
+    /**
+     * Number of nodes removed by the reduction in the last solve, see VirtualCircuitReduction
+     * @return Removed node count
+     */
+    public int getRemovedNodeCount() { return reduction == null ? 0 : reduction.getRemovedNodeCount(); }
+
+    /**
+     * Number of times a matrix was factored, solves that re-use
+     * the previous factorization are not counted
+     * @return Factorization count
+     */
+    public int getFactorizationCount() { return factorizationCount; }
+
+    /**
+     * Number of times a low rank update was applied to the cached
+     * factorization instead of factoring again
+     * @return Low rank update count
+     */
+    public int getLowRankUpdateCount() { return lowRankUpdateCount; }
+
+    /**
+     * Number of island solves done iteratively (see ConjugateGradientSolver), for statistics
+     * @return Iterative solve count
+     */
+    public int getIterativeSolveCount() { return iterativeSolveCount; }
+
+    /**
+     * Number of iterative solves that did not converge and were solved directly instead.
+     * Islands that can't be solved iteratively at all are not counted
+     * @return Fallback count
+     */
+    public int getIterativeFallbackCount() { return iterativeFallbackCount; }
+
+    /**
+     * Number of (sub-)steps taken by step(), for statistics
+     * @return Sub-step count
+     */
+    public int getSubStepCount() { return subStepCount; }
+
+    /**
+     * Is the circuit at steady state and sleeping? step() does nothing until woken
+     * @return Is sleeping?
+     */
+    public boolean isSleeping() { return sleeping; }
+
+    /**
+     * Step size of the current step, DT unless adaptive stepping is on
+     * @return Step size (s)
+     */
+    public double getTimeStep() { return timeStep; }
+
+    /** @return Integration method for capacitors and inductors */
+    public IntegrationMethod getIntegrationMethod() { return settings.integrationMethod; }
+
+    /**
+     * Total number of Newton-Raphson re-solves for non-linear components, for statistics
+     * @return Iteration count
+     */
+    public int getNewtonIterationCount() { return newtonIterationCount; }
+
+    /**
+     * Number of Newton-Raphson re-solves in the last solve()
+     * @return Iteration count
+     */
+    public int getLastNewtonIterations() { return lastNewtonIterations; }
+
+    /**
+     * Number of solves where non-linear components did not converge within
+     * settings.maxIterations, for statistics
+     * @return Non converged solve count
+     */
+    public int getNonConvergedCount() { return nonConvergedCount; }
+
+    /**
+     * Total time spent assembling island matrices (see VirtualStampContext), for statistics
+     * @return Time (ns)
+     */
+    public long getAssemblyTime() { return assemblyTime; }
+
+    /**
+     * Total time spent factoring island matrices, for statistics
+     * @return Time (ns)
+     */
+    public long getFactorizationTime() { return factorizationTime; }
+
+    /**
+     * Total time spent solving island matrices (directly, with a cached
+     * factorization or iteratively), for statistics
+     * @return Time (ns)
+     */
+    public long getMatrixSolveTime() { return matrixSolveTime; }
+
     /**
      * Set the circuit settings to settings
      * @param settings New settings
      */
     public void changeSettings(VirtualCircuitSettings settings) {
         this.settings = settings;
+        matrixDirty = true;
+        stampPatternDirty = true;
+        keptNodes = null;
+        wake();
     }
 
 
@@ -384,11 +1131,53 @@ public class VirtualCircuit {
      * @author Bowserinator
      */
     public static class VirtualCircuitSettings {
-        private final int maxIterations; // Default only solve() twice
+        // Integration method, and max level of sub-steps per tick (DT / 2^level) with adaptive stepping
+        public static final IntegrationMethod DEFAULT_INTEGRATION_METHOD = IntegrationMethod.BACKWARD_EULER;
+        public static final int DEFAULT_MAX_SUB_STEP_LEVEL = 6;
+        public static final double DEFAULT_TRUNCATION_TOLERANCE = 1e-3;
+        // Steps without change before sleeping, and max change (V or A) that counts as no change
+        public static final int DEFAULT_SLEEP_STEPS = 20;
+        public static final double DEFAULT_SLEEP_TOLERANCE = 1e-6;
+        // Matrix size (nodes + branches) at which the sparse solver is used instead of the dense one
+        public static final int DEFAULT_SPARSE_THRESHOLD = 64;
+        // Island size (nodes + branches) at which islands are solved in parallel, if there are multiple
+        public static final int DEFAULT_PARALLEL_ISLAND_THRESHOLD = 128;
+        // Max neighbours of a node that only connects resistors to remove it before solving
+        public static final int DEFAULT_MAX_REDUCTION_DEGREE = 3;
+        // Max matrix rows that can change before re-factoring, and max error allowed from low rank updates
+        public static final int DEFAULT_MAX_LOW_RANK_UPDATES = 8;
+        public static final double DEFAULT_LOW_RANK_TOLERANCE = 1e-10;
+        // Max Newton-Raphson re-solves per solve(), and voltage change (V) of non-linear components that counts as converged
+        public static final int DEFAULT_MAX_ITERATIONS = 20;
+        public static final double DEFAULT_NEWTON_TOLERANCE = 1e-6;
+        // Island size (nodes + branches) at which the iterative solver is used if enabled, relative residual
+        // it stops at, and max iterations before falling back to a direct solve
+        public static final int DEFAULT_ITERATIVE_THRESHOLD = 1024;
+        public static final double DEFAULT_ITERATIVE_TOLERANCE = 1e-10;
+        public static final int DEFAULT_MAX_ITERATIVE_ITERATIONS = 1000;
+
+        private final int maxIterations;
+        private int sparseThreshold = DEFAULT_SPARSE_THRESHOLD;
+        private int parallelIslandThreshold = DEFAULT_PARALLEL_ISLAND_THRESHOLD;
+        private int maxReductionDegree = DEFAULT_MAX_REDUCTION_DEGREE;
+        private boolean cacheFactorization = true;
+        private int maxLowRankUpdates = DEFAULT_MAX_LOW_RANK_UPDATES;
+        private double lowRankTolerance = DEFAULT_LOW_RANK_TOLERANCE;
+        private double newtonTolerance = DEFAULT_NEWTON_TOLERANCE;
+        private IntegrationMethod integrationMethod = DEFAULT_INTEGRATION_METHOD;
+        private boolean adaptiveStepping = false;
+        private int maxSubStepLevel = DEFAULT_MAX_SUB_STEP_LEVEL;
+        private double truncationTolerance = DEFAULT_TRUNCATION_TOLERANCE;
+        private int sleepSteps = DEFAULT_SLEEP_STEPS;
+        private double sleepTolerance = DEFAULT_SLEEP_TOLERANCE;
+        private ConjugateGradientSolver.Preconditioner preconditioner = null;
+        private int iterativeThreshold = DEFAULT_ITERATIVE_THRESHOLD;
+        private double iterativeTolerance = DEFAULT_ITERATIVE_TOLERANCE;
+        private int maxIterativeIterations = DEFAULT_MAX_ITERATIVE_ITERATIONS;
 
         /** Construct settings with default values */
         public VirtualCircuitSettings() {
-            this(2);
+            this(DEFAULT_MAX_ITERATIONS);
         }
 
         /**
@@ -400,5 +1189,200 @@ public class VirtualCircuit {
         public VirtualCircuitSettings(int maxIterations) {
             this.maxIterations = maxIterations;
         }
+
+        /**
+         * Sets sparse threshold and returns this
+         * @param sparseThreshold Circuits with at least this many nodes + branches are solved with a sparse matrix.
+         *                        Sparse solving has more overhead, but scales much better for large circuits
+         *                        as each node only connects to a few other nodes. 0 = always sparse
+         * @return this
+         */
+        public VirtualCircuitSettings sparseThreshold(int sparseThreshold) {
+            this.sparseThreshold = sparseThreshold;
+            return this;
+        }
+
+        /**
+         * Sets parallel island threshold and returns this
+         * @param parallelIslandThreshold Islands (separate parts of the circuit) with at least this size are
+         *                                solved in parallel on the fork join common pool, if there is more
+         *                                than 1 of them. Smaller islands aren't worth the overhead
+         * @return this
+         */
+        public VirtualCircuitSettings parallelIslandThreshold(int parallelIslandThreshold) {
+            this.parallelIslandThreshold = parallelIslandThreshold;
+            return this;
+        }
+
+        /**
+         * Sets max reduction degree and returns this
+         * @param maxReductionDegree Nodes that only connect resistors (ie, inside cables) with at most this
+         *                           many neighbours are removed before solving and their voltages computed after.
+         *                           Higher values remove more nodes but add more resistors. 0 = don't reduce
+         * @return this
+         */
+        public VirtualCircuitSettings maxReductionDegree(int maxReductionDegree) {
+            this.maxReductionDegree = maxReductionDegree;
+            return this;
+        }
+
+        /**
+         * Sets factorization caching and returns this
+         * @param cacheFactorization Keep the factored matrix between solves and only re-compute the
+         *                           right hand side if no resistances / states changed. Turning this off
+         *                           re-factors every solve, only useful for debugging
+         * @return this
+         */
+        public VirtualCircuitSettings cacheFactorization(boolean cacheFactorization) {
+            this.cacheFactorization = cacheFactorization;
+            return this;
+        }
+
+        /**
+         * Sets max low rank updates and returns this
+         * @param maxLowRankUpdates Max number of matrix rows that can differ from the cached factorization
+         *                          before the matrix is factored again. Each switch, button or diode
+         *                          change usually changes 1 or 2 rows. 0 = always re-factor
+         * @return this
+         */
+        public VirtualCircuitSettings maxLowRankUpdates(int maxLowRankUpdates) {
+            this.maxLowRankUpdates = maxLowRankUpdates;
+            return this;
+        }
+
+        /**
+         * Sets low rank tolerance and returns this
+         * @param lowRankTolerance Max backward error of a solve using low rank updates, if
+         *                         exceeded the matrix is factored again
+         * @return this
+         */
+        public VirtualCircuitSettings lowRankTolerance(double lowRankTolerance) {
+            this.lowRankTolerance = lowRankTolerance;
+            return this;
+        }
+
+        /**
+         * Sets Newton-Raphson tolerance and returns this
+         * @param newtonTolerance Non-linear components (ie, Shockley diodes) whose voltage changes by at most
+         *                        this much (V) between iterations are converged. Piecewise linear diodes only
+         *                        converge once they're in the right state
+         * @return this
+         */
+        public VirtualCircuitSettings newtonTolerance(double newtonTolerance) {
+            this.newtonTolerance = newtonTolerance;
+            return this;
+        }
+
+        /**
+         * Sets integration method and returns this
+         * @param integrationMethod Method capacitors and inductors use each step, see IntegrationMethod
+         * @return this
+         */
+        public VirtualCircuitSettings integrationMethod(IntegrationMethod integrationMethod) {
+            this.integrationMethod = integrationMethod;
+            return this;
+        }
+
+        /**
+         * Sets adaptive stepping and returns this
+         * @param adaptiveStepping Split each step() into as many sub-steps as needed to keep the
+         *                         truncation error of capacitors and inductors under truncationTolerance.
+         *                         Allows small capacitances and stiff LC circuits at the cost of more solves
+         * @return this
+         */
+        public VirtualCircuitSettings adaptiveStepping(boolean adaptiveStepping) {
+            this.adaptiveStepping = adaptiveStepping;
+            return this;
+        }
+
+        /**
+         * Sets max sub-step level and returns this
+         * @param maxSubStepLevel Smallest sub-step is DT / 2^maxSubStepLevel, so at most
+         *                        2^maxSubStepLevel solves per step()
+         * @return this
+         */
+        public VirtualCircuitSettings maxSubStepLevel(int maxSubStepLevel) {
+            this.maxSubStepLevel = maxSubStepLevel;
+            return this;
+        }
+
+        /**
+         * Sets truncation tolerance and returns this
+         * @param truncationTolerance Max relative local truncation error per sub-step with adaptive stepping
+         * @return this
+         */
+        public VirtualCircuitSettings truncationTolerance(double truncationTolerance) {
+            this.truncationTolerance = truncationTolerance;
+            return this;
+        }
+
+        /**
+         * Sets sleep steps and returns this
+         * @param sleepSteps Number of step() calls in a row without change (steady state) before the
+         *                   circuit sleeps and stops solving until something changes. 0 = never sleep
+         * @return this
+         */
+        public VirtualCircuitSettings sleepSteps(int sleepSteps) {
+            this.sleepSteps = sleepSteps;
+            return this;
+        }
+
+        /**
+         * Sets sleep tolerance and returns this
+         * @param sleepTolerance Max change in any nodal voltage (V) or current (A) between steps that
+         *                       counts as no change. Slowly charging capacitors below this are put to sleep
+         * @return this
+         */
+        public VirtualCircuitSettings sleepTolerance(double sleepTolerance) {
+            this.sleepTolerance = sleepTolerance;
+            return this;
+        }
+
+        /**
+         * Sets the iterative solver and returns this
+         * @param preconditioner Solve islands of at least iterativeThreshold size with preconditioned conjugate
+         *                       gradient (see ConjugateGradientSolver), starting from the last solution. Much faster
+         *                       than factoring for large resistor grids whose voltages barely change between ticks.
+         *                       Islands with voltage sources between free nodes are still solved directly.
+         *                       null = always solve directly
+         * @return this
+         */
+        public VirtualCircuitSettings iterativeSolver(ConjugateGradientSolver.Preconditioner preconditioner) {
+            this.preconditioner = preconditioner;
+            return this;
+        }
+
+        /**
+         * Sets iterative threshold and returns this
+         * @param iterativeThreshold Islands with at least this many nodes + branches are solved iteratively,
+         *                           if the iterative solver is on. Direct solves are faster for small islands
+         * @return this
+         */
+        public VirtualCircuitSettings iterativeThreshold(int iterativeThreshold) {
+            this.iterativeThreshold = iterativeThreshold;
+            return this;
+        }
+
+        /**
+         * Sets iterative tolerance and returns this
+         * @param iterativeTolerance Iterative solves stop once the residual is at most this
+         *                           fraction of the right hand side
+         * @return this
+         */
+        public VirtualCircuitSettings iterativeTolerance(double iterativeTolerance) {
+            this.iterativeTolerance = iterativeTolerance;
+            return this;
+        }
+
+        /**
+         * Sets max iterative iterations and returns this
+         * @param maxIterativeIterations Max conjugate gradient iterations per solve, if not converged
+         *                               by then (stalled) the island is solved directly instead
+         * @return this
+         */
+        public VirtualCircuitSettings maxIterativeIterations(int maxIterativeIterations) {
+            this.maxIterativeIterations = maxIterativeIterations;
+            return this;
+        }
     }
 }
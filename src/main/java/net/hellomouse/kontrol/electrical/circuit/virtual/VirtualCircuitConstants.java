@@ -18,4 +18,9 @@ public class VirtualCircuitConstants {
     // Used mainly in modelling steady state and disabled components
     public static final double OPEN_CIRCUIT_R = 1e9;
     public static final double SHORT_CIRCUIT_R = 1e-9;
+
+    // Adaptive stepping: truncation error (V or A) that is always accurate enough, and
+    // error ratio under which sub-steps are made larger
+    public static final double ABSOLUTE_TRUNCATION_TOLERANCE = 1e-6;
+    public static final double SUB_STEP_GROW_ERROR = 0.1;
 }
@@ -0,0 +1,193 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.AbstractVirtualComponent;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IBranchCurrentCondition;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.ICurrentCondition;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.ICustomCondition;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IFixedVoltageCondition;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IResistanceCondition;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IVoltageDifferenceCondition;
+import net.hellomouse.kontrol.electrical.circuit.virtual.solver.AbstractCircuitMatrix;
+import net.hellomouse.kontrol.electrical.circuit.virtual.solver.ConjugateGradientSolver;
+import net.hellomouse.kontrol.electrical.circuit.virtual.solver.LowRankUpdateSolver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuitConstants.OPEN_CIRCUIT_R;
+
+
+/**
+ * A group of nodes connected by components that conduct. Open components
+ * (hi-Z components and resistors of at least OPEN_CIRCUIT_R, ie open switches)
+ * don't connect islands, and are left out if their nodes end up in different islands.
+ * Islands then don't affect each other and each is solved as its own smaller matrix.
+ * Rows of the matrix are the island's nodes, followed by its branches.
+ *
+ * An island without a fixed voltage uses one of its nodes as reference
+ * instead of a ground being added to the circuit.
+ *
+ * @see VirtualCircuit
+ * @author Bowserinator
+ */
+public class VirtualCircuitIsland {
+    // Index in the circuit's island list
+    private final int index;
+    // Node ids in the island, index = row
+    private final int[] nodes;
+    // Node id: row in its island, and branch index: row in its island. Shared by all islands
+    private final int[] nodeRows;
+    private final int[] branchRows;
+    private int branchCount = 0;
+
+    // Components by condition, components connecting to other islands are not included
+    final ArrayList<AbstractVirtualComponent> components = new ArrayList<>();
+    final ArrayList<AbstractVirtualComponent> currentSources = new ArrayList<>();
+    final ArrayList<AbstractVirtualComponent> branches = new ArrayList<>();
+    final ArrayList<AbstractVirtualComponent> fixedNodes = new ArrayList<>();
+    // Branches connecting to other islands, still given a row (I = 0) so
+    // the matrix size only depends on the components in the island
+    final ArrayList<AbstractVirtualComponent> openBranches = new ArrayList<>();
+    // Components connecting to other islands (always open)
+    final ArrayList<AbstractVirtualComponent> openComponents = new ArrayList<>();
+    // Does the island contain a source (branch or current source)?
+    boolean containsSource = false;
+
+    // Node that is set to referenceVoltage, -1 if the island has a fixed voltage
+    int referenceNode = -1;
+    double referenceVoltage = 0.0;
+
+    // Factorization of the last matrix, and the reference node it was built with
+    LowRankUpdateSolver cachedSolver = null;
+    int cachedReferenceNode = -1;
+    // Where the left hand side is written, kept while the topology doesn't change
+    VirtualStampPlan stampPlan = null;
+    // Iterative solver for the last matrix, null if not solved iteratively
+    ConjugateGradientSolver iterativeSolver = null;
+    // Statistics since last read by the circuit
+    int factorizations = 0;
+    int lowRankUpdates = 0;
+    int iterativeSolves = 0;
+    int iterativeFallbacks = 0;
+    long assemblyTime = 0;
+    long factorizationTime = 0;
+    long solveTime = 0;
+
+    /**
+     * Construct an island
+     * @param index Index in the circuit's island list
+     * @param nodes Node ids in the island, in row order
+     * @param nodeRows Shared array of node id to row, filled for nodes
+     * @param branchRows Shared array of branch index to row, filled by addComponent
+     */
+    VirtualCircuitIsland(int index, int[] nodes, int[] nodeRows, int[] branchRows) {
+        this.index = index;
+        this.nodes = nodes;
+        this.nodeRows = nodeRows;
+        this.branchRows = branchRows;
+        for (int i = 0; i < nodes.length; i++)
+            nodeRows[nodes[i]] = i;
+    }
+
+    /**
+     * Add a component with node1 in this island
+     * @param comp Component
+     * @param connected Is node2 in this island too? If not the component is open
+     */
+    void addComponent(AbstractVirtualComponent comp, boolean connected) {
+        if (comp instanceof IBranchCurrentCondition) {
+            branchRows[comp.getBranchIndex()] = nodes.length + branchCount++;
+            (connected ? branches : openBranches).add(comp);
+        }
+        if (!connected) {
+            openComponents.add(comp);
+            return;
+        }
+
+        components.add(comp);
+        if (comp instanceof ICurrentCondition && !(comp instanceof IBranchCurrentCondition))
+            currentSources.add(comp);
+        if (comp instanceof IFixedVoltageCondition && !comp.isDisabled())
+            fixedNodes.add(comp);
+        if (comp instanceof IBranchCurrentCondition || comp instanceof ICurrentCondition)
+            containsSource = true;
+    }
+
+    /**
+     * Sort components by type (stable), so stamping the island calls the same
+     * stamp method many times in a row. Call once every component is added
+     */
+    void groupComponents() {
+        components.sort(Comparator.comparing(comp -> comp.getClass().getName()));
+    }
+
+    /**
+     * Is a component open, ie doesn't connect its nodes? These components
+     * separate islands, but are still solved if both nodes are in the same island
+     * @param comp Component
+     * @return Is open?
+     */
+    public static boolean isOpen(AbstractVirtualComponent comp) {
+        if (comp.isMonoNode() || comp instanceof ICustomCondition)
+            return false;
+        if (comp.isHiZ())
+            return true;
+        return comp instanceof IResistanceCondition &&
+                !(comp instanceof ICurrentCondition) &&
+                !(comp instanceof IBranchCurrentCondition) &&
+                ((IResistanceCondition) comp).getResistance() >= OPEN_CIRCUIT_R;
+    }
+
+    /**
+     * Reference node used when nothing else decides the island's voltage: the negative
+     * node of the first voltage source, else of the first current source, else the first node
+     * @return Node id
+     */
+    int getDefaultReferenceNode() {
+        for (AbstractVirtualComponent comp : branches)
+            if (comp instanceof IVoltageDifferenceCondition && !comp.isHiZ())
+                return comp.getNode2();
+        if (currentSources.size() > 0)
+            return currentSources.get(0).getNode2();
+        return nodes[0];
+    }
+
+    /**
+     * Is a matrix still used by the island's cached solvers? Its values must not change
+     * @param matrix Matrix
+     * @return In use?
+     */
+    boolean usesMatrix(AbstractCircuitMatrix matrix) {
+        return (cachedSolver != null && (cachedSolver.getBase() == matrix || cachedSolver.getMatrix() == matrix)) ||
+                (iterativeSolver != null && iterativeSolver.getMatrix() == matrix);
+    }
+
+    /**
+     * Row of a node in the island's matrix
+     * @param nodeId Node id, must be in the island
+     * @return Row
+     */
+    public int nodeRow(int nodeId) { return nodeRows[nodeId]; }
+
+    /**
+     * Row of a branch current in the island's matrix
+     * @param branchIndex Branch index, must be in the island
+     * @return Row
+     */
+    public int branchRow(int branchIndex) { return branchRows[branchIndex]; }
+
+    /** @return Index in the circuit's island list */
+    public int getIndex() { return index; }
+
+    /** @return Node ids in the island, index = row. Do not modify */
+    public int[] getNodes() { return nodes; }
+
+    /** @return Number of nodes */
+    public int getNodeCount() { return nodes.length; }
+
+    /** @return Matrix size, nodes + branches */
+    public int size() { return nodes.length + branchCount; }
+
+    /** @return Does the island contain a fixed voltage (ie, ground)? */
+    public boolean hasFixedVoltage() { return fixedNodes.size() > 0; }
+}
@@ -0,0 +1,214 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.AbstractVirtualComponent;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.VirtualResistor;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IBranchCurrentCondition;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.ICurrentCondition;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IResistanceCondition;
+
+import java.util.*;
+
+
+/**
+ * Removes nodes that only connect resistors before the circuit is solved (Kron reduction).
+ * A node with d resistors to its neighbours is replaced by a resistor between every
+ * pair of its neighbours (star-mesh transform), series chains (d = 2) become a single
+ * resistor. Only nodes with at most maxDegree neighbours are removed, so the number of
+ * resistors never grows for the default of 3. Removed nodes carry no current into the circuit,
+ * so the solution for the other nodes is exact, and removed voltages are reconstructed after
+ * solving as the conductance weighted average of their neighbours.
+ *
+ * Cables (1 center node + 1 resistor per connected side) reduce to a single resistor
+ * per straight run.
+ *
+ * Nodes kept by a previous reduction of the same components can be kept again, so
+ * closing a switch doesn't change which nodes are solved and the cached factorization
+ * can still be updated (see LowRankUpdateSolver).
+ *
+ * @see VirtualCircuit
+ * @author Bowserinator
+ */
+public class VirtualCircuitReduction {
+    // Removed nodes in order of removal, and the neighbours + conductances they had when removed
+    private final int[] removedNodes;
+    private final int[][] removedNeighbours;
+    private final double[][] removedConductances;
+    private final boolean[] isRemoved;
+    // Components to solve instead of the circuit's components
+    private final ArrayList<AbstractVirtualComponent> components;
+
+    private VirtualCircuitReduction(int[] removedNodes, int[][] removedNeighbours, double[][] removedConductances,
+                                    boolean[] isRemoved, ArrayList<AbstractVirtualComponent> components) {
+        this.removedNodes = removedNodes;
+        this.removedNeighbours = removedNeighbours;
+        this.removedConductances = removedConductances;
+        this.isRemoved = isRemoved;
+        this.components = components;
+    }
+
+    /**
+     * Reduce a circuit
+     * @param components All components of the circuit
+     * @param nodeCount Number of nodes, node ids are 0 ... nodeCount - 1
+     * @param maxDegree Max number of neighbours of a removed node, 0 = don't reduce
+     * @param keptNodes Nodes that must be kept (ie, kept by the last reduction), null if none
+     * @return Reduction, its components are the original components if nothing was removed
+     */
+    public static VirtualCircuitReduction reduce(List<AbstractVirtualComponent> components, int nodeCount, int maxDegree, boolean[] keptNodes) {
+        boolean[] isRemoved = new boolean[nodeCount];
+        if (maxDegree <= 0)
+            return new VirtualCircuitReduction(new int[0], new int[0][], new double[0][], isRemoved, new ArrayList<>(components));
+
+        // Conductance between every pair of nodes connected by resistors that can be reduced,
+        // nodes touching anything else must be kept
+        ArrayList<HashMap<Integer, Double>> graph = new ArrayList<>(nodeCount);
+        for (int node = 0; node < nodeCount; node++)
+            graph.add(new HashMap<>());
+        boolean[] keep = keptNodes != null && keptNodes.length == nodeCount ?
+                Arrays.copyOf(keptNodes, nodeCount) : new boolean[nodeCount];
+        for (AbstractVirtualComponent comp : components) {
+            if (isReducible(comp)) {
+                double G = 1 / ((IResistanceCondition) comp).getResistance();
+                graph.get(comp.getNode1()).merge(comp.getNode2(), G, Double::sum);
+                graph.get(comp.getNode2()).merge(comp.getNode1(), G, Double::sum);
+            } else {
+                keep[comp.getNode1()] = true;
+                keep[comp.getNode2()] = true;
+                for (int node : comp.getExtraNodes())
+                    keep[node] = true;
+            }
+        }
+
+        // Remove nodes until none with few enough neighbours are left. A node
+        // without neighbours is never removed, so every island keeps a node
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int node = 0; node < nodeCount; node++)
+            if (!keep[node]) queue.add(node);
+
+        ArrayList<Integer> removedNodes = new ArrayList<>();
+        ArrayList<int[]> removedNeighbours = new ArrayList<>();
+        ArrayList<double[]> removedConductances = new ArrayList<>();
+        HashSet<Long> changedEdges = new HashSet<>();
+
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            HashMap<Integer, Double> edges = graph.get(node);
+            if (isRemoved[node] || edges.size() == 0 || edges.size() > maxDegree)
+                continue;
+
+            int[] neighbours = new int[edges.size()];
+            double[] conductances = new double[edges.size()];
+            double totalG = 0.0;
+            int i = 0;
+            for (Map.Entry<Integer, Double> edge : edges.entrySet()) {
+                neighbours[i] = edge.getKey();
+                conductances[i] = edge.getValue();
+                totalG += conductances[i++];
+            }
+
+            // Star-mesh: G_ab = G_a * G_b / sum(G)
+            for (int a = 0; a < neighbours.length; a++) {
+                graph.get(neighbours[a]).remove(node);
+                for (int b = a + 1; b < neighbours.length; b++) {
+                    double G = conductances[a] * conductances[b] / totalG;
+                    graph.get(neighbours[a]).merge(neighbours[b], G, Double::sum);
+                    graph.get(neighbours[b]).merge(neighbours[a], G, Double::sum);
+                    changedEdges.add(edgeKey(neighbours[a], neighbours[b]));
+                }
+                if (!keep[neighbours[a]])
+                    queue.add(neighbours[a]);
+            }
+            edges.clear();
+
+            isRemoved[node] = true;
+            removedNodes.add(node);
+            removedNeighbours.add(neighbours);
+            removedConductances.add(conductances);
+        }
+
+        if (removedNodes.size() == 0)
+            return new VirtualCircuitReduction(new int[0], new int[0][], new double[0][], isRemoved, new ArrayList<>(components));
+
+        // Resistors between kept nodes stay, unless they were combined with new resistors
+        ArrayList<AbstractVirtualComponent> reducedComponents = new ArrayList<>();
+        for (AbstractVirtualComponent comp : components) {
+            if (!isReducible(comp) || (!isRemoved[comp.getNode1()] && !isRemoved[comp.getNode2()] &&
+                    !changedEdges.contains(edgeKey(comp.getNode1(), comp.getNode2()))))
+                reducedComponents.add(comp);
+        }
+        for (long key : changedEdges) {
+            int node1 = (int)(key >>> 32);
+            int node2 = (int)key;
+            Double G = graph.get(node1).get(node2);
+            if (G == null) // Edge was created, then one of its nodes removed
+                continue;
+
+            VirtualResistor resistor = new VirtualResistor(1 / G);
+            resistor.setNodes(node1, node2);
+            reducedComponents.add(resistor);
+        }
+
+        return new VirtualCircuitReduction(
+                removedNodes.stream().mapToInt(Integer::intValue).toArray(),
+                removedNeighbours.toArray(new int[0][]),
+                removedConductances.toArray(new double[0][]),
+                isRemoved, reducedComponents);
+    }
+
+    /**
+     * Can a component be removed with its nodes? Only resistors that always conduct
+     * (ie, not open switches, capacitors or sources)
+     * @param comp Component
+     * @return Is reducible?
+     */
+    public static boolean isReducible(AbstractVirtualComponent comp) {
+        return comp instanceof IResistanceCondition &&
+                !(comp instanceof ICurrentCondition) &&
+                !(comp instanceof IBranchCurrentCondition) &&
+                !comp.isMonoNode() &&
+                !comp.isHiZ() &&
+                !comp.doesNumericIntegration() &&
+                comp.getNode1() != comp.getNode2() &&
+                !VirtualCircuitIsland.isOpen(comp);
+    }
+
+    /**
+     * Key for an edge between 2 nodes, same for both directions
+     * @param node1 Node id
+     * @param node2 Node id
+     * @return Key
+     */
+    private static long edgeKey(int node1, int node2) {
+        return ((long)Math.min(node1, node2) << 32) | Math.max(node1, node2);
+    }
+
+    /**
+     * Compute the voltages of removed nodes, in reverse order of removal
+     * so every neighbour is known
+     * @param solution Nodal voltages (index = node id) of kept nodes, removed nodes are filled in
+     */
+    public void reconstruct(double[] solution) {
+        for (int i = removedNodes.length - 1; i >= 0; i--) {
+            double weighted = 0.0;
+            double totalG = 0.0;
+            for (int j = 0; j < removedNeighbours[i].length; j++) {
+                weighted += removedConductances[i][j] * solution[removedNeighbours[i][j]];
+                totalG += removedConductances[i][j];
+            }
+            solution[removedNodes[i]] = weighted / totalG;
+        }
+    }
+
+    /**
+     * Is a node removed?
+     * @param nodeId Node id
+     * @return Is removed?
+     */
+    public boolean isRemoved(int nodeId) { return isRemoved[nodeId]; }
+
+    /** @return Number of removed nodes */
+    public int getRemovedNodeCount() { return removedNodes.length; }
+
+    /** @return Components to solve, with removed resistors replaced. Do not modify */
+    public ArrayList<AbstractVirtualComponent> getComponents() { return components; }
+}
@@ -0,0 +1,325 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.AbstractVirtualComponent;
+import net.hellomouse.kontrol.electrical.circuit.virtual.solver.AbstractCircuitMatrix;
+
+import java.util.Arrays;
+
+
+/**
+ * Where components write their part of an island's circuit equation Ax = b
+ * (see AbstractVirtualComponent#stamp). The island is assembled in a single pass
+ * over its components, each stamping itself with the methods below in node ids,
+ * which are mapped to the island's rows here.
+ *
+ * Rows are KCL lines (current into the node = b) for nodes, followed by branch lines
+ * (modified nodal analysis). Fixed voltages replace a node's KCL line, so they are
+ * applied after every component is stamped, in the order they were stamped.
+ *
+ * The left hand side is not written to a matrix entry by entry. The first assembly of
+ * an island records where each write goes and builds a VirtualStampPlan from it, later
+ * assemblies add each write's value at its planned offset of a flat array. Writes are
+ * checked against the plan until one assembly matched it, after that they are written by
+ * index (and components skip their row lookups) until a component's stamp pattern changes.
+ * If the writes no longer match the plan (ie, a current source became hi-Z) the assembly
+ * is recorded again.
+ *
+ * Final so stamping calls are bound statically and can be inlined into each component's stamp.
+ *
+ * @see VirtualCircuitIsland
+ * @author Bowserinator
+ */
+public final class VirtualStampContext {
+    private final VirtualCircuitIsland island;
+    private final double[] solutions;
+    private final boolean steadyState;
+    private boolean buildMatrix = false;
+
+    // Plan being replayed (null while recording), its values, and whether every write so far matched
+    private VirtualStampPlan plan;
+    private double[] values;
+    private boolean planMatches;
+    // Is the plan validated? Writes are then only counted, not checked
+    private boolean validated = false;
+    private int plannedWrites;
+    // Left hand side writes (row, col, value), only values are kept while replaying
+    private int[] writeRows;
+    private int[] writeCols;
+    private double[] writeValues;
+    private int writeCount = 0;
+
+    // Fixed voltages (row, voltage), applied in finish()
+    private int[] fixedRows = new int[4];
+    private double[] fixedVoltages = new double[4];
+    private int fixedCount = 0;
+
+    /**
+     * Construct a context
+     * @param island Island being assembled
+     * @param solutions Right hand side, cleared when assembled
+     * @param steadyState Solving for steady state? Steady state assemblies are not planned
+     */
+    VirtualStampContext(VirtualCircuitIsland island, double[] solutions, boolean steadyState) {
+        this.island = island;
+        this.solutions = solutions;
+        this.steadyState = steadyState;
+    }
+
+    /**
+     * Assemble the island: stamp every component, its open branches and reference node.
+     * The island's stamp plan is replayed if it still matches, else a new one is recorded
+     * (and kept by the island, unless solving for steady state)
+     * @param buildMatrix Build the left hand side? If not only the right hand side is computed
+     * @param sparse Build a sparse matrix?
+     * @return Left hand side, null if not built
+     */
+    AbstractCircuitMatrix assemble(boolean buildMatrix, boolean sparse) {
+        this.buildMatrix = buildMatrix;
+        if (!buildMatrix) {
+            stampAll();
+            finish();
+            return null;
+        }
+
+        int size = island.size();
+        VirtualStampPlan islandPlan = island.stampPlan;
+        if (!steadyState && islandPlan != null && islandPlan.fits(size, sparse)) {
+            plan = islandPlan;
+            values = plan.nextValues(island);
+            planMatches = true;
+            validated = plan.isValidated();
+            plannedWrites = plan.writeCount();
+            stampAll();
+            validated = false;
+            if (planMatches && plan.matches(writeCount, fixedRows, fixedCount)) {
+                plan.setValidated(true);
+                finish();
+                return plan.matrix();
+            }
+        }
+
+        // No plan or it no longer matches, record a new one
+        plan = null;
+        writeRows = new int[Math.max(16, size * 8)];
+        writeCols = new int[writeRows.length];
+        writeValues = new double[writeRows.length];
+        stampAll();
+
+        plan = VirtualStampPlan.build(size, sparse, writeRows, writeCols, writeCount, fixedRows, fixedCount);
+        if (!steadyState)
+            island.stampPlan = plan;
+        values = plan.nextValues(island);
+        for (int i = 0; i < writeCount; i++)
+            values[plan.slot(i)] += writeValues[i];
+        finish();
+        return plan.matrix();
+    }
+
+    /**
+     * Clear the right hand side and stamp everything, fixed voltages are only collected
+     */
+    private void stampAll() {
+        Arrays.fill(solutions, 0.0);
+        writeCount = 0;
+        fixedCount = 0;
+        for (AbstractVirtualComponent comp : island.components)
+            comp.stamp(this);
+        for (AbstractVirtualComponent comp : island.openBranches)
+            openBranch(comp.getBranchIndex());
+        if (island.referenceNode >= 0)
+            fixVoltage(island.referenceNode, island.referenceVoltage);
+    }
+
+    /**
+     * Apply fixed voltages: replace each node's KCL line with node = voltage. Writes
+     * to fixed rows were already dropped by the plan, only the diagonal is set
+     */
+    private void finish() {
+        for (int i = 0; i < fixedCount; i++) {
+            solutions[fixedRows[i]] = fixedVoltages[i];
+            if (buildMatrix)
+                values[plan.fixedSlot(i)] = 1.0;
+        }
+    }
+
+    /**
+     * A branch that connects to another island carries no current, its line is I = 0.
+     * Nothing else writes to its row
+     * @param branchIndex Branch index
+     */
+    private void openBranch(int branchIndex) {
+        int row = island.branchRow(branchIndex);
+        solutions[row] = 0.0;
+        addEntry(row, row, 1.0);
+    }
+
+    /**
+     * Add to an entry of the left hand side, at its planned offset or recorded
+     * @param row Row
+     * @param col Column
+     * @param value Value to add
+     */
+    private void addEntry(int row, int col, double value) {
+        if (!buildMatrix) return;
+
+        if (validated) {
+            addValue(value);
+            return;
+        }
+        if (plan != null) {
+            if (planMatches && plan.matches(writeCount, row, col)) {
+                values[plan.slot(writeCount)] += value;
+            } else {
+                planMatches = false;
+            }
+            writeCount++;
+            return;
+        }
+
+        if (writeCount == writeRows.length) {
+            writeRows = Arrays.copyOf(writeRows, writeCount * 2);
+            writeCols = Arrays.copyOf(writeCols, writeCount * 2);
+            writeValues = Arrays.copyOf(writeValues, writeCount * 2);
+        }
+        writeRows[writeCount] = row;
+        writeCols[writeCount] = col;
+        writeValues[writeCount++] = value;
+    }
+
+    /**
+     * Add the next write of a validated plan at its planned offset. Writes past the
+     * end of the plan mean it no longer matches, they are dropped and recorded again
+     * @param value Value to add
+     */
+    private void addValue(double value) {
+        if (writeCount < plannedWrites)
+            values[plan.slot(writeCount)] += value;
+        else
+            planMatches = false;
+        writeCount++;
+    }
+
+    /**
+     * Conductance between 2 nodes (a resistor of 1 / G ohms)
+     * @param node1 Node id
+     * @param node2 Node id
+     * @param G Conductance (S)
+     */
+    public void conductance(int node1, int node2, double G) {
+        if (!buildMatrix) return;
+        if (validated) {
+            addValue(-G);
+            addValue(G);
+            addValue(-G);
+            addValue(G);
+            return;
+        }
+
+        // (N2 - N1) * G = current into N1, (N1 - N2) * G = current into N2
+        int row1 = island.nodeRow(node1);
+        int row2 = island.nodeRow(node2);
+        addEntry(row1, row1, -G);
+        addEntry(row1, row2, G);
+        addEntry(row2, row2, -G);
+        addEntry(row2, row1, G);
+    }
+
+    /**
+     * Current source from node1 to node2. Ignoring the current source, KCL of node1 is
+     * now off by the source current, and node2 by minus the source current
+     * @param node1 Node id
+     * @param node2 Node id
+     * @param current Current (A)
+     */
+    public void current(int node1, int node2, double current) {
+        solutions[island.nodeRow(node1)] += current;
+        solutions[island.nodeRow(node2)] -= current;
+    }
+
+    /**
+     * Branch with its current I (node1 to node2) as an unknown, which flows out of node1 and
+     * into node2 in the KCL lines, and its own line node1 - node2 - R * I = V.
+     * See IBranchCurrentCondition
+     * @param branchIndex Branch index of the component
+     * @param node1 Node id
+     * @param node2 Node id
+     * @param R Resistance (ohms), 0 for a voltage source
+     * @param V Voltage (V)
+     */
+    public void branch(int branchIndex, int node1, int node2, double R, double V) {
+        int row = island.branchRow(branchIndex);
+        solutions[row] += V;
+        if (!buildMatrix) return;
+        if (validated) {
+            addValue(-1.0);
+            addValue(1.0);
+            addValue(1.0);
+            addValue(-1.0);
+            addValue(-R);
+            return;
+        }
+
+        int row1 = island.nodeRow(node1);
+        int row2 = island.nodeRow(node2);
+        addEntry(row1, row, -1.0);
+        addEntry(row2, row, 1.0);
+        addEntry(row, row1, 1.0);
+        addEntry(row, row2, -1.0);
+        addEntry(row, row, -R);
+    }
+
+    /**
+     * Fix the voltage of a node, applied after every component is stamped.
+     * If a node is fixed more than once, the last one is used
+     * @param node Node id
+     * @param voltage Voltage (V)
+     */
+    public void fixVoltage(int node, double voltage) {
+        if (fixedCount == fixedRows.length) {
+            fixedRows = Arrays.copyOf(fixedRows, fixedCount * 2);
+            fixedVoltages = Arrays.copyOf(fixedVoltages, fixedCount * 2);
+        }
+        fixedRows[fixedCount] = island.nodeRow(node);
+        fixedVoltages[fixedCount++] = voltage;
+    }
+
+    /**
+     * Add to an entry of the left hand side directly, for custom stamps (ie, controlled sources).
+     * Does nothing when only the right hand side is computed
+     * @param row Row, see nodeRow and branchRow
+     * @param col Column, see nodeRow and branchRow
+     * @param value Value to add
+     */
+    public void addMatrix(int row, int col, double value) {
+        addEntry(row, col, value);
+    }
+
+    /**
+     * Add to an entry of the right hand side directly, for custom stamps
+     * @param row Row, see nodeRow and branchRow
+     * @param value Value to add
+     */
+    public void addSolution(int row, double value) {
+        solutions[row] += value;
+    }
+
+    /**
+     * Row (and column) of a node
+     * @param node Node id
+     * @return Row
+     */
+    public int nodeRow(int node) { return island.nodeRow(node); }
+
+    /**
+     * Row (and column) of a branch current
+     * @param branchIndex Branch index
+     * @return Row
+     */
+    public int branchRow(int branchIndex) { return island.branchRow(branchIndex); }
+
+    /** @return Is the left hand side being built? If not only the right hand side is used */
+    public boolean hasMatrix() { return buildMatrix; }
+
+    /** @return Solving for steady state? (capacitors open, inductors short) */
+    public boolean isSteadyState() { return steadyState; }
+}
@@ -0,0 +1,225 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.solver.AbstractCircuitMatrix;
+import net.hellomouse.kontrol.electrical.circuit.virtual.solver.DenseCircuitMatrix;
+import net.hellomouse.kontrol.electrical.circuit.virtual.solver.SparseCircuitMatrix;
+
+import java.util.Arrays;
+
+
+/**
+ * Where each left hand side write of an island's assembly goes, recorded once per
+ * topology (see VirtualStampContext). Components stamp in the same order every tick,
+ * so write i of a later assembly adds to values[slots[i]] directly, without
+ * searching a sparse row or growing it.
+ *
+ * Dense matrices use row-major offsets, sparse matrices compressed rows with every
+ * entry that was ever written (including ones that are 0 this tick) so the pattern
+ * never changes. The column array is shared by every matrix built from the plan.
+ * Writes to fixed rows are dropped into a spare entry after the matrix's values.
+ *
+ * A plan is validated once an assembly replayed it with every write checked. Later
+ * assemblies write by index without checking, until a component's stamp pattern
+ * changes (see VirtualCircuit#markStampPatternDirty).
+ *
+ * @see VirtualStampContext
+ * @author Bowserinator
+ */
+final class VirtualStampPlan {
+    private final int size;
+    private final boolean sparse;
+    // Recorded writes (row, col) in order, and their offset into values (length if the row is fixed)
+    private final int[] rows;
+    private final int[] cols;
+    private final int[] slots;
+    // Fixed rows in order, and the offset of their diagonal
+    private final int[] fixedRows;
+    private final int[] fixedSlots;
+    // Compressed row pattern, sparse only
+    private final int[] rowPointers;
+    private final int[] patternCols;
+    // Number of matrix entries, values have one more for dropped writes
+    private final int length;
+    // Did a checked replay match every write?
+    private boolean validated = false;
+    // Values arrays and the matrices backed by them, reused once a matrix is no longer in use
+    private double[][] buffers = new double[0][];
+    private AbstractCircuitMatrix[] matrices = new AbstractCircuitMatrix[0];
+    private int current = -1;
+
+    private VirtualStampPlan(int size, boolean sparse, int[] rows, int[] cols, int[] slots,
+                             int[] fixedRows, int[] fixedSlots, int[] rowPointers, int[] patternCols) {
+        this.size = size;
+        this.sparse = sparse;
+        this.rows = rows;
+        this.cols = cols;
+        this.slots = slots;
+        this.fixedRows = fixedRows;
+        this.fixedSlots = fixedSlots;
+        this.rowPointers = rowPointers;
+        this.patternCols = patternCols;
+        this.length = sparse ? patternCols.length : size * size;
+    }
+
+    /**
+     * Build a plan from a recorded assembly
+     * @param size Matrix size
+     * @param sparse Build sparse matrices?
+     * @param rows Row of each write
+     * @param cols Column of each write
+     * @param count Number of writes
+     * @param fixedRows Fixed rows in the order they were applied
+     * @param fixedCount Number of fixed rows
+     * @return Plan
+     */
+    static VirtualStampPlan build(int size, boolean sparse, int[] rows, int[] cols, int count, int[] fixedRows, int fixedCount) {
+        rows = Arrays.copyOf(rows, count);
+        cols = Arrays.copyOf(cols, count);
+        fixedRows = Arrays.copyOf(fixedRows, fixedCount);
+        boolean[] isFixed = new boolean[size];
+        for (int row : fixedRows)
+            isFixed[row] = true;
+
+        int[] slots = new int[count];
+        int[] fixedSlots = new int[fixedCount];
+        if (!sparse) {
+            for (int i = 0; i < count; i++)
+                slots[i] = isFixed[rows[i]] ? size * size : rows[i] * size + cols[i];
+            for (int i = 0; i < fixedCount; i++)
+                fixedSlots[i] = fixedRows[i] * size + fixedRows[i];
+            return new VirtualStampPlan(size, false, rows, cols, slots, fixedRows, fixedSlots, null, null);
+        }
+
+        // Bucket columns by row (fixed rows only have their diagonal), then sort and remove duplicates
+        int[] rowPointers = new int[size + 1];
+        for (int i = 0; i < count; i++)
+            if (!isFixed[rows[i]]) rowPointers[rows[i] + 1]++;
+        for (int row = 0; row < size; row++)
+            if (isFixed[row]) rowPointers[row + 1]++;
+        for (int row = 0; row < size; row++)
+            rowPointers[row + 1] += rowPointers[row];
+
+        int[] bucketCols = new int[rowPointers[size]];
+        int[] fill = Arrays.copyOf(rowPointers, size);
+        for (int i = 0; i < count; i++)
+            if (!isFixed[rows[i]]) bucketCols[fill[rows[i]]++] = cols[i];
+        for (int row = 0; row < size; row++)
+            if (isFixed[row]) bucketCols[fill[row]++] = row;
+
+        int[] patternPointers = new int[size + 1];
+        int length = 0;
+        for (int row = 0; row < size; row++) {
+            int start = rowPointers[row], end = rowPointers[row + 1];
+            Arrays.sort(bucketCols, start, end);
+            for (int i = start; i < end; i++)
+                if (i == start || bucketCols[i] != bucketCols[i - 1])
+                    bucketCols[length++] = bucketCols[i];
+            patternPointers[row + 1] = length;
+        }
+        int[] patternCols = Arrays.copyOf(bucketCols, length);
+
+        for (int i = 0; i < count; i++)
+            slots[i] = isFixed[rows[i]] ? length : find(patternPointers, patternCols, rows[i], cols[i]);
+        for (int i = 0; i < fixedCount; i++)
+            fixedSlots[i] = find(patternPointers, patternCols, fixedRows[i], fixedRows[i]);
+        return new VirtualStampPlan(size, true, rows, cols, slots, fixedRows, fixedSlots, patternPointers, patternCols);
+    }
+
+    private static int find(int[] rowPointers, int[] cols, int row, int col) {
+        return Arrays.binarySearch(cols, rowPointers[row], rowPointers[row + 1], col);
+    }
+
+    /**
+     * Can the plan be replayed for a matrix?
+     * @param size Matrix size
+     * @param sparse Sparse matrix?
+     * @return Same size and storage?
+     */
+    boolean fits(int size, boolean sparse) {
+        return this.size == size && this.sparse == sparse;
+    }
+
+    /**
+     * Does write index of an assembly go to the same entry as recorded?
+     * @param index Write index
+     * @param row Row
+     * @param col Column
+     * @return Matches?
+     */
+    boolean matches(int index, int row, int col) {
+        return index < rows.length && rows[index] == row && cols[index] == col;
+    }
+
+    /**
+     * Do the writes and fixed rows of a finished assembly match the recorded ones?
+     * Every write has been checked with matches()
+     * @param count Number of writes
+     * @param fixedRows Fixed rows
+     * @param fixedCount Number of fixed rows
+     * @return Matches?
+     */
+    boolean matches(int count, int[] fixedRows, int fixedCount) {
+        if (count != rows.length || fixedCount != this.fixedRows.length)
+            return false;
+        for (int i = 0; i < fixedCount; i++)
+            if (fixedRows[i] != this.fixedRows[i])
+                return false;
+        return true;
+    }
+
+    /** @return Has a replay with every write checked matched the plan? */
+    boolean isValidated() { return validated; }
+
+    /**
+     * Set whether writes can be replayed without checking them
+     * @param validated Validated?
+     */
+    void setValidated(boolean validated) { this.validated = validated; }
+
+    /** @return Number of recorded writes */
+    int writeCount() { return slots.length; }
+
+    /**
+     * Offset of a write into values
+     * @param index Write index
+     * @return Offset, the spare entry after the matrix's values if the write is to a fixed row and dropped
+     */
+    int slot(int index) { return slots[index]; }
+
+    /**
+     * Offset of a fixed row's diagonal into values
+     * @param index Index in fixed rows
+     * @return Offset
+     */
+    int fixedSlot(int index) { return fixedSlots[index]; }
+
+    /**
+     * Zeroed values for the next matrix. Matrices the island still uses keep their values
+     * (cached factorizations compare against the previous matrix), the array of any
+     * other matrix built from this plan is cleared and reused
+     * @param island Island the plan belongs to
+     * @return Values, see matrix()
+     */
+    double[] nextValues(VirtualCircuitIsland island) {
+        for (int i = 0; i < matrices.length; i++) {
+            if (!island.usesMatrix(matrices[i])) {
+                current = i;
+                Arrays.fill(buffers[i], 0.0);
+                return buffers[i];
+            }
+        }
+
+        current = matrices.length;
+        double[] values = new double[length + 1];
+        buffers = Arrays.copyOf(buffers, current + 1);
+        matrices = Arrays.copyOf(matrices, current + 1);
+        buffers[current] = values;
+        matrices[current] = sparse ?
+                new SparseCircuitMatrix(size, rowPointers, patternCols, values) :
+                new DenseCircuitMatrix(size, values);
+        return values;
+    }
+
+    /** @return Matrix backed by the values last returned by nextValues() */
+    AbstractCircuitMatrix matrix() { return matrices[current]; }
+}
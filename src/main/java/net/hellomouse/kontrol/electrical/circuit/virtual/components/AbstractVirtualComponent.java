@@ -2,6 +2,7 @@ package net.hellomouse.kontrol.electrical.circuit.virtual.components;
 
 import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
 import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuitConstants;
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualStampContext;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IBaseCondition;
 
 
@@ -13,6 +14,8 @@ import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.I
  * is the negative. This varies, see tests/PolarityTests
  * for more polarity info
  *
+ * Each component writes its own part of the circuit matrix, see stamp()
+ *
  * JavaDoc for methods can be found in IBaseCondition
  * @see IBaseCondition
  * @author Bowserinator
@@ -23,6 +26,8 @@ public abstract class AbstractVirtualComponent implements IBaseCondition {
 
     protected boolean disabled = false; // Disabled behavior depends in component
     protected boolean hiZ = false;      // High impedance, replaced with high value resistor in solving
+    protected int branchIndex = -1;     // Index of the current in the circuit's branch currents, -1 if none
+    protected int[] extraNodes = new int[0]; // Nodes other than node1 and node2, for multi-terminal components
 
     public void setNodes(int node1, int node2) {
         this.node1 = node1;
@@ -42,9 +47,27 @@ public abstract class AbstractVirtualComponent implements IBaseCondition {
     public double getEnergy() { return VirtualCircuitConstants.UNKNOWN_ENERGY; }
 
 
+    // --- Solving --- \\
+
+    /**
+     * Write the component's contributions to its island's circuit matrix. Called once
+     * per component per solve, in a single pass over the island. By default a hi-Z
+     * component is a high value resistor, and components doing numeric integration
+     * are open at steady state, otherwise nothing is stamped
+     * @param context Context to stamp into
+     */
+    public void stamp(VirtualStampContext context) {
+        if (context.isSteadyState() && doesNumericIntegration())
+            context.conductance(node1, node2, 1 / VirtualCircuitConstants.OPEN_CIRCUIT_R);
+        else if (hiZ)
+            context.conductance(node1, node2, 1 / getHiZR());
+    }
+
+
     // --- Component properties --- \\
     public boolean requireTicking() {return false; }
     public boolean doesNumericIntegration() { return false; }
+    public double getTruncationError(double relTol, double absTol) { return 0.0; }
     public boolean isNonLinear() { return false; }
 
     public double getHiZR() { return VirtualCircuitConstants.OPEN_CIRCUIT_R; }
@@ -56,6 +79,9 @@ public abstract class AbstractVirtualComponent implements IBaseCondition {
     /** Apply any updates to energy source count when added, usually uses updateCircuitEnergySourceCount with prevValue = 0.0 */
     public void initialUpdateEnergySourceCount() {}
 
+    /** Undo initialUpdateEnergySourceCount when removed, usually uses updateCircuitEnergySourceCount with newValue = 0.0 */
+    public void finalUpdateEnergySourceCount() {}
+
     /**
      * General helper method to update energy source count
      * @param prevValue Old energy source value (ie, voltage source voltage or current source current)
@@ -93,23 +119,74 @@ public abstract class AbstractVirtualComponent implements IBaseCondition {
 
 
     // --- States --- \\
-    public void setDisabled(boolean disabled) { this.disabled = disabled; }
+    public void setDisabled(boolean disabled) {
+        if (this.disabled != disabled)
+            markStampPatternDirty();
+        this.disabled = disabled;
+    }
     public boolean isDisabled() { return disabled; }
 
-    public void setHiZ(boolean hiZ) { this.hiZ = hiZ; }
+    public void setHiZ(boolean hiZ) {
+        if (this.hiZ != hiZ)
+            markStampPatternDirty();
+        this.hiZ = hiZ;
+    }
     public boolean isHiZ() { return hiZ; }
 
+    /** Call when something that affects the circuit's left hand matrix changes (ie, resistance) */
+    protected void markMatrixDirty() {
+        if (circuit != null)
+            circuit.markMatrixDirty();
+    }
+
+    /** Call when the entries the component writes in stamp change (ie, hiZ), see VirtualCircuit#markStampPatternDirty */
+    protected void markStampPatternDirty() {
+        if (circuit != null)
+            circuit.markStampPatternDirty();
+    }
+
+    /** Call when a value is changed from outside the circuit (ie, source voltage), so a sleeping circuit is solved again */
+    protected void wakeCircuit() {
+        if (circuit != null)
+            circuit.wake();
+    }
+
 
     // --- Misc setters / getters --- \\
     public void setCircuit(VirtualCircuit c) { this.circuit = c; }
 
+    public void setBranchIndex(int branchIndex) { this.branchIndex = branchIndex; }
+    public int getBranchIndex() { return branchIndex; }
+
     public int getNode1() { return node1; }
     public int getNode2() { return node2; }
 
+    /**
+     * Set nodes other than node1 and node2, for multi-terminal components that stamp
+     * themselves (see ICustomCondition). Extra nodes are always connected to node1
+     * @param nodes Node ids
+     */
+    public void setExtraNodes(int... nodes) { this.extraNodes = nodes; }
+    /** @return Nodes other than node1 and node2, do not modify */
+    public int[] getExtraNodes() { return extraNodes; }
+
 
     // --- Simulation --- \\
     public void tick() {}
 
+    /**
+     * State carried from one step to the next that isn't part of the solution (ie, the companion
+     * model of a capacitor), to save the circuit. See loadState
+     * @return State values, empty if the component has none
+     */
+    public double[] saveState() { return new double[0]; }
+
+    /**
+     * Restore state returned by saveState, before the circuit is solved or stepped again
+     * @param state State values
+     */
+    public void loadState(double[] state) {}
+
 
     // --- Information --- \\
     public String toString() {
@@ -0,0 +1,97 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.components;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.IntegrationMethod;
+
+
+/**
+ * Previous values and step sizes of a component that does numeric integration
+ * (capacitor voltage, inductor current), for multistep methods and truncation
+ * error estimates
+ * @author Bowserinator
+ */
+class IntegrationHistory {
+    // Number of values written by save
+    static final int SIZE = 5;
+
+    // Value at the start of the current step and the step before, and their step sizes
+    private double previousValue, previousValue2;
+    private double step, previousStep;
+    // Number of steps taken
+    private int count = 0;
+
+    /**
+     * Method that can be used for the next step, falls back to backward
+     * Euler if there isn't enough history
+     * @param method Method of the circuit
+     * @param h Next step size
+     * @return Method
+     */
+    IntegrationMethod getMethod(IntegrationMethod method, double h) {
+        if (count < 1 || (method == IntegrationMethod.BDF2 && (count < 2 || h != step)))
+            return IntegrationMethod.BACKWARD_EULER;
+        return method;
+    }
+
+    /**
+     * Value at the start of the last step, ie v_(n-1) for BDF2
+     * @return Value
+     */
+    double getPreviousValue() { return previousValue; }
+
+    /**
+     * Start a new step
+     * @param value Value at the start of the step
+     * @param h Step size
+     */
+    void push(double value, double h) {
+        previousValue2 = previousValue;
+        previousValue = value;
+        previousStep = step;
+        step = h;
+        count++;
+    }
+
+    /**
+     * Estimate the local truncation error from the difference between the value and a
+     * linear extrapolation of the last 2 values
+     * @param value Value at the end of the step
+     * @param relTol Relative tolerance
+     * @param absTol Absolute tolerance
+     * @return Error ratio, see IBaseCondition#getTruncationError
+     */
+    double getTruncationError(double value, double relTol, double absTol) {
+        if (count < 2)
+            return 0.0;
+        double predicted = previousValue + (previousValue - previousValue2) * step / previousStep;
+        return 0.5 * Math.abs(value - predicted) / (absTol + relTol * Math.abs(value));
+    }
+
+    /** Forget all history, ie when the value is set directly */
+    void reset() { count = 0; }
+
+    /**
+     * Write the history to a component's state, see AbstractVirtualComponent#saveState
+     * @param state State
+     * @param offset Index to write SIZE values at
+     */
+    void save(double[] state, int offset) {
+        state[offset] = previousValue;
+        state[offset + 1] = previousValue2;
+        state[offset + 2] = step;
+        state[offset + 3] = previousStep;
+        state[offset + 4] = count;
+    }
+
+    /**
+     * Read history written by save
+     * @param state State
+     * @param offset Index save wrote at
+     */
+    void load(double[] state, int offset) {
+        previousValue = state[offset];
+        previousValue2 = state[offset + 1];
+        step = state[offset + 2];
+        previousStep = state[offset + 3];
+        count = (int)state[offset + 4];
+    }
+}
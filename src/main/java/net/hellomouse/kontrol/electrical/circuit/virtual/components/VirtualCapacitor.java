@@ -1,13 +1,14 @@
 package net.hellomouse.kontrol.electrical.circuit.virtual.components;
 
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualStampContext;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.*;
 
 import static net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuitConstants.CAPACITOR_INITIAL_R;
-import static net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuitConstants.DT;
 
 
 /**
- * Capacitor component.
+ * Capacitor component, modelled as a resistor in parallel with a current source
+ * (companion model) that depends on the circuit's integration method and step size.
  * See IBaseCondition for specific javadoc on common component methods
  *
  * @see IBaseCondition
@@ -17,6 +18,7 @@ public class VirtualCapacitor extends VirtualCurrentSource implements IResistanc
     private double capacitance;
     private double resistance = CAPACITOR_INITIAL_R;
     private double initialValue = 0.0;
+    private final IntegrationHistory history = new IntegrationHistory();
 
     public VirtualCapacitor(double capacitance) {
         super(0.0); // Uncharged capacitor is short (0 V voltage source)
@@ -26,18 +28,44 @@ public class VirtualCapacitor extends VirtualCurrentSource implements IResistanc
     public void setVoltage(double voltage) {
         setCurrent(voltage / resistance);
         initialValue = voltage;
+        history.reset();
     }
 
     public double getCapacitance() {
         return capacitance;
     }
-    public void setCapacitance(double C) { capacitance = C; }
+    public void setCapacitance(double C) {
+        if (capacitance != C)
+            wakeCircuit();
+        capacitance = C;
+    }
 
     @Override
     public double getResistance() { return resistance; }
 
     @Override
-    public void setResistance(double resistance) { this.resistance = resistance; }
+    public void setResistance(double resistance) {
+        if (this.resistance != resistance)
+            markMatrixDirty();
+        this.resistance = resistance;
+    }
+
+    @Override
+    public void stamp(VirtualStampContext context) {
+        // Current source in parallel with the resistance
+        if (!hiZ && !context.isSteadyState())
+            context.conductance(node1, node2, 1 / resistance);
+        super.stamp(context);
+    }
+
+    @Override
+    public double getCurrent() {
+        // Current source in parallel with the resistance, current from
+        // node1 to node2 is the sum of both (see VirtualResistor)
+        if (isHiZ())
+            return -getVoltage() / getHiZR();
+        return getSourceCurrent() - getVoltage() / resistance;
+    }
 
     @Override
     public boolean requireTicking() { return true; }
@@ -50,10 +78,54 @@ public class VirtualCapacitor extends VirtualCurrentSource implements IResistanc
         circuit.incEnergySources();
     }
 
+    @Override
+    public void finalUpdateEnergySourceCount() {
+        circuit.decEnergySources();
+    }
+
+    @Override
+    public double getTruncationError(double relTol, double absTol) {
+        return history.getTruncationError(-getVoltage(), relTol, absTol);
+    }
+
     @Override
     public void tick() {
-        resistance = DT / capacitance;
-        setCurrent(getVoltage() / getResistance());
+        // i = C dv/dt, v = node1 - node2
+        double h = circuit.getTimeStep();
+        double V = -getVoltage();
+        double I = getCurrent();
+
+        switch (history.getMethod(circuit.getIntegrationMethod(), h)) {
+            case TRAPEZOIDAL: // i = 2C / h (v - v_n) - i_n
+                setResistance(h / (2 * capacitance));
+                setCompanionCurrent(-V / resistance - I);
+                break;
+            case BDF2: // i = C / h (1.5 v - 2 v_n + 0.5 v_(n-1))
+                setResistance(h / (1.5 * capacitance));
+                setCompanionCurrent(-capacitance / h * (2 * V - 0.5 * history.getPreviousValue()));
+                break;
+            default: // i = C / h (v - v_n)
+                setResistance(h / capacitance);
+                setCompanionCurrent(-V / resistance);
+        }
+        history.push(V, h);
+    }
+
+    @Override
+    public double[] saveState() {
+        // Companion model for the next solve, and history
+        double[] state = new double[2 + IntegrationHistory.SIZE];
+        state[0] = resistance;
+        state[1] = getCompanionCurrent();
+        history.save(state, 2);
+        return state;
+    }
+
+    @Override
+    public void loadState(double[] state) {
+        setResistance(state[0]);
+        setCompanionCurrent(state[1]);
+        history.load(state, 2);
     }
 
     @Override
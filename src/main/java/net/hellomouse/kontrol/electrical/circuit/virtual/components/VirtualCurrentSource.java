@@ -1,5 +1,6 @@
 package net.hellomouse.kontrol.electrical.circuit.virtual.components;
 
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualStampContext;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IBaseCondition;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.ICurrentCondition;
 
@@ -25,12 +26,42 @@ public class VirtualCurrentSource extends AbstractVirtualComponent implements IC
 
     @Override
     public void setCurrent(double current) {
+        if (this.current != current)
+            wakeCircuit();
+        setCompanionCurrent(current);
+    }
+
+    /**
+     * Set the current without waking the circuit, for components that
+     * update it every tick (ie, capacitors)
+     * @param current Current (A)
+     */
+    protected void setCompanionCurrent(double current) {
         updateCircuitEnergySourceCount(this.current, current);
         this.current = current;
     }
 
+    /**
+     * Current set by setCurrent or setCompanionCurrent, even if disabled
+     * @return Current (A)
+     */
+    protected double getCompanionCurrent() { return current; }
+
+    @Override
+    public void stamp(VirtualStampContext context) {
+        if (hiZ || (context.isSteadyState() && doesNumericIntegration()))
+            super.stamp(context);
+        else
+            context.current(node1, node2, getSourceCurrent());
+    }
+
     @Override
     public double getCurrent() {
+        return getSourceCurrent();
+    }
+
+    @Override
+    public double getSourceCurrent() {
         if (isDisabled() || isHiZ())
             return 0.0;
         return current;
@@ -47,6 +78,11 @@ public class VirtualCurrentSource extends AbstractVirtualComponent implements IC
         updateCircuitEnergySourceCount(0.0, current);
     }
 
+    @Override
+    public void finalUpdateEnergySourceCount() {
+        updateCircuitEnergySourceCount(disabled || hiZ ? 0.0 : current, 0.0);
+    }
+
     @Override
     public void setDisabled(boolean disabled) {
         updateEnergySourcesOnStateChange(this.disabled, disabled, hiZ, hiZ, current);
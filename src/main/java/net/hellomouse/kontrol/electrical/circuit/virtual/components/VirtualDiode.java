@@ -1,26 +1,90 @@
 package net.hellomouse.kontrol.electrical.circuit.virtual.components;
 
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IBaseCondition;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.INonLinearCondition;
 
 
 /**
  * Diode component, modelled as voltage source
  * See IBaseCondition for specific javadoc on common component methods
  *
+ * Two models are available:
+ * - PIECEWISE_LINEAR (default): ideal diode, a V_forward voltage source when conducting
+ *   and a high value resistor (hi-Z) when not
+ * - SHOCKLEY: I = I_s (e^(V / nV_t) - 1), where I_s is chosen so V = V_forward at
+ *   the reference current. Linearized as a resistor + voltage source (companion model)
+ *   around the operating point, with SPICE style junction voltage limiting (pnjlim)
+ *
  * @see IBaseCondition
  * @author Bowserinator
  */
-public class VirtualDiode extends VirtualVoltageSource {
+public class VirtualDiode extends VirtualVoltageSource implements INonLinearCondition {
+    public enum Model { PIECEWISE_LINEAR, SHOCKLEY }
+
+    // Thermal voltage at 300 K
+    public static final double THERMAL_VOLTAGE = 0.025852;
+    // Current at V_forward for the Shockley model
+    public static final double DEFAULT_REFERENCE_CURRENT = 0.01;
+    // Conductance in parallel with the junction, keeps the matrix solvable when reverse biased
+    public static final double GMIN = 1e-12;
+
     private double V_forward;
+    private Model model = Model.PIECEWISE_LINEAR;
+    private double emissionCoefficient = 1.0;
+    private double referenceCurrent = DEFAULT_REFERENCE_CURRENT;
+
+    // Shockley: voltage the diode is linearized around, and the resulting branch resistance / voltage
+    private double operatingVoltage;
+    private double companionR = 1 / GMIN;
+    private double companionV = 0.0;
 
     public VirtualDiode(double V_forward) {
         super(V_forward);
         this.V_forward = V_forward;
+        this.operatingVoltage = V_forward;
     }
 
-    public void setVForward(double V) { V_forward = V; }
+    public void setVForward(double V) {
+        if (V_forward != V)
+            wakeCircuit();
+        V_forward = V;
+        if (model == Model.SHOCKLEY)
+            updateCompanion();
+    }
     public double getVForward() { return V_forward; }
 
+    /**
+     * Sets the diode model and returns this
+     * @param model Model
+     * @return this
+     */
+    public VirtualDiode model(Model model) {
+        this.model = model;
+        if (model == Model.SHOCKLEY) {
+            setHiZ(false);
+            operatingVoltage = V_forward;
+            updateCompanion();
+        }
+        markMatrixDirty();
+        return this;
+    }
+
+    /**
+     * Sets Shockley parameters and returns this
+     * @param emissionCoefficient Ideality factor n, 1 to 2 for most diodes (LEDs are higher)
+     * @param referenceCurrent Current (A) at V_forward, used to compute the saturation current
+     * @return this
+     */
+    public VirtualDiode shockleyParameters(double emissionCoefficient, double referenceCurrent) {
+        this.emissionCoefficient = emissionCoefficient;
+        this.referenceCurrent = referenceCurrent;
+        if (model == Model.SHOCKLEY)
+            updateCompanion();
+        return this;
+    }
+
+    public Model getModel() { return model; }
+
     public boolean shouldBeHiZ() {
         // Voltage drops when HiZ, and rises when voltage source, so getVoltage() is not consistent
         double V = circuit.getNodalVoltage(node1) - circuit.getNodalVoltage(node2);
@@ -31,13 +95,118 @@ public class VirtualDiode extends VirtualVoltageSource {
         return V * 1.00001 < getVForward() || I < 0;
     }
 
+    @Override
+    public double getLinearizationError(double tolerance) {
+        double V = circuit.getNodalVoltage(node1) - circuit.getNodalVoltage(node2);
+
+        if (model == Model.SHOCKLEY) {
+            double error = Math.abs(limitVoltage(V, operatingVoltage) - operatingVoltage);
+            return error > tolerance ? error : 0.0;
+        }
+
+        // Piecewise linear: wrong segment, error is how far past the segment's end the diode is
+        if (shouldBeHiZ() == isHiZ())
+            return 0.0;
+        return isHiZ() ?
+                Math.max(V - getVForward(), Double.MIN_VALUE) :
+                Math.max(-getCurrent() * getHiZR(), Double.MIN_VALUE);
+    }
+
+    @Override
+    public void linearize() {
+        if (model == Model.SHOCKLEY) {
+            double V = circuit.getNodalVoltage(node1) - circuit.getNodalVoltage(node2);
+            operatingVoltage = limitVoltage(V, operatingVoltage);
+            updateCompanion();
+            markMatrixDirty();
+            return;
+        }
+        setHiZ(shouldBeHiZ());
+    }
+
+    @Override
+    public double[] saveState() {
+        // Segment (piecewise linear) or operating voltage (Shockley) it is linearized at
+        return new double[] { isHiZ() ? 1.0 : 0.0, operatingVoltage };
+    }
+
+    @Override
+    public void loadState(double[] state) {
+        if (model == Model.SHOCKLEY) {
+            operatingVoltage = state[1];
+            updateCompanion();
+            markMatrixDirty();
+        }
+        else
+            setHiZ(state[0] != 0.0);
+    }
+
+    /** @return nV_t (V) */
+    private double getNVt() { return emissionCoefficient * THERMAL_VOLTAGE; }
+
+    /** @return Saturation current I_s (A), so I(V_forward) = referenceCurrent */
+    private double getSaturationCurrent() {
+        return referenceCurrent / Math.expm1(V_forward / getNVt());
+    }
+
+    /** Compute the companion model (I = G (V - companionV), R = 1 / G) at the operating voltage */
+    private void updateCompanion() {
+        double nVt = getNVt();
+        double Is = getSaturationCurrent();
+        double exp = Math.exp(operatingVoltage / nVt);
+        double G = Is / nVt * exp + GMIN;
+        double I = Is * (exp - 1) + GMIN * operatingVoltage;
+
+        companionR = 1 / G;
+        companionV = operatingVoltage - I / G;
+    }
+
+    /**
+     * Limit the change in junction voltage between iterations (pnjlim), large steps
+     * past the critical voltage are made logarithmic so e^(V / nV_t) doesn't overflow
+     * @param newV Voltage from the solution
+     * @param oldV Last operating voltage
+     * @return Limited voltage
+     */
+    private double limitVoltage(double newV, double oldV) {
+        double nVt = getNVt();
+        double Vcrit = nVt * Math.log(nVt / (Math.sqrt(2) * getSaturationCurrent()));
+
+        if (newV > Vcrit && Math.abs(newV - oldV) > 2 * nVt) {
+            if (oldV > 0) {
+                double arg = 1 + (newV - oldV) / nVt;
+                return arg > 0 ? oldV + nVt * Math.log(arg) : Vcrit;
+            }
+            return nVt * Math.log(newV / nVt);
+        }
+        return newV;
+    }
+
+    @Override
+    public double getBranchResistance(boolean steadyState) {
+        return model == Model.SHOCKLEY ? companionR : super.getBranchResistance(steadyState);
+    }
+
+    @Override
+    public double getBranchVoltage(boolean steadyState) {
+        if (model == Model.SHOCKLEY)
+            return isDisabled() ? 0.0 : companionV;
+        return super.getBranchVoltage(steadyState);
+    }
+
+    @Override
+    public double getVoltage() {
+        return model == Model.SHOCKLEY ? circuit.getNodalVoltage(node1) - circuit.getNodalVoltage(node2) : super.getVoltage();
+    }
+
     // Solving logic is in VirtualCircuit
     @Override
     public boolean isNonLinear() { return true; }
 
     @Override
     public String toString() {
-        return super.toString() + "\nV_fwd = " + V_forward + " V";
+        return super.toString() + "\nV_fwd = " + V_forward + " V" +
+                (model == Model.SHOCKLEY ? "\nShockley: n = " + emissionCoefficient + ", V_op = " + operatingVoltage + " V" : "");
     }
 
     // Smaller than open circuit impedance of switches and such
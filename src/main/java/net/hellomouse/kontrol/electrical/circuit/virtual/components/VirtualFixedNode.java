@@ -1,5 +1,6 @@
 package net.hellomouse.kontrol.electrical.circuit.virtual.components;
 
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualStampContext;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IBaseCondition;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IFixedVoltageCondition;
 
@@ -46,6 +47,11 @@ public class VirtualFixedNode extends AbstractVirtualComponent implements IFixed
         updateCircuitEnergySourceCount(0.0, voltage);
     }
 
+    @Override
+    public void finalUpdateEnergySourceCount() {
+        updateCircuitEnergySourceCount(disabled || hiZ ? 0.0 : voltage, 0.0);
+    }
+
     @Override
     public void setDisabled(boolean disabled) {
         updateEnergySourcesOnStateChange(this.disabled, disabled, hiZ, hiZ, voltage);
@@ -58,6 +64,13 @@ public class VirtualFixedNode extends AbstractVirtualComponent implements IFixed
         super.setHiZ(hiZ);
     }
 
+    @Override
+    public void stamp(VirtualStampContext context) {
+        // Fixed voltage: just use [node] = [voltage], only node1 is used
+        if (!disabled)
+            context.fixVoltage(node1, getVoltage());
+    }
+
     @Override
     public boolean isMonoNode() { return true; }
 }
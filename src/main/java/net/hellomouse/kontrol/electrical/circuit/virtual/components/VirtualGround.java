@@ -1,5 +1,6 @@
 package net.hellomouse.kontrol.electrical.circuit.virtual.components;
 
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualStampContext;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IBaseCondition;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IFixedVoltageCondition;
 
@@ -35,6 +36,13 @@ public class VirtualGround extends AbstractVirtualComponent implements IFixedVol
     @Override
     public double getEnergy() { return 0.0; }
 
+    @Override
+    public void stamp(VirtualStampContext context) {
+        // Fixed voltage: just use [node] = [voltage], only node1 is used
+        if (!disabled)
+            context.fixVoltage(node1, getVoltage());
+    }
+
     @Override
     public boolean isMonoNode() { return true; }
 }
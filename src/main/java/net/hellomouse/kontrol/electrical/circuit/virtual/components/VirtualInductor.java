@@ -1,22 +1,30 @@
 package net.hellomouse.kontrol.electrical.circuit.virtual.components;
 
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualStampContext;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IBaseCondition;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IBranchCurrentCondition;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IResistanceCondition;
 
 import static net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuitConstants.*;
 
 
 /**
- * Inductor component.
+ * Inductor component, modelled as a branch (see IBranchCurrentCondition)
+ * with a resistance and voltage (companion model) that depend on the circuit's
+ * integration method and step size, ie L / h and the previous current for backward Euler.
+ * Before the first tick the resistance is very high, so the current is held at its initial value.
  * See IBaseCondition for specific javadoc on common component methods
  *
  * @see IBaseCondition
  * @author Bowserinator
  */
-public class VirtualInductor extends VirtualCurrentSource implements IResistanceCondition {
+public class VirtualInductor extends VirtualCurrentSource implements IResistanceCondition, IBranchCurrentCondition {
     private double inductance;
     private double initialValue = 0.0;
     private double resistance = INDUCTOR_INITIAL_R;
+    // Branch voltage on top of -R * previous current, from the integration method
+    private double historyVoltage = 0.0;
+    private final IntegrationHistory history = new IntegrationHistory();
 
     public VirtualInductor(double inductance) {
         super(0.0); // Uncharged capacitor is short (0 V voltage source)
@@ -24,10 +32,18 @@ public class VirtualInductor extends VirtualCurrentSource implements IResistance
     }
 
     public double getInductance() { return inductance; }
-    public void setCapacitance(double L) { inductance = L; }
+    public void setCapacitance(double L) {
+        if (inductance != L)
+            wakeCircuit();
+        inductance = L;
+    }
 
     public double getResistance() { return resistance; }
-    public void setResistance(double resistance) { this.resistance = resistance; }
+    public void setResistance(double resistance) {
+        if (this.resistance != resistance)
+            markMatrixDirty();
+        this.resistance = resistance;
+    }
 
     @Override
     public boolean requireTicking() { return true; }
@@ -37,21 +53,98 @@ public class VirtualInductor extends VirtualCurrentSource implements IResistance
 
     @Override
     public void setCurrent(double current) {
-        if (circuit.isSolved())
-            current -= getVoltage() / getResistance();
         initialValue = current;
+        historyVoltage = 0.0;
+        history.reset();
         super.setCurrent(current);
     }
 
+    @Override
+    public double getCurrent() {
+        // Previous current until the circuit is solved with the inductor
+        if (!circuit.hasBranchCurrent(branchIndex))
+            return getSourceCurrent();
+        return circuit.getBranchCurrent(branchIndex);
+    }
+
+    @Override
+    public void stamp(VirtualStampContext context) {
+        // Branch, not a current source. Hi-Z: only a high value resistor
+        if (hiZ)
+            context.branch(branchIndex, node1, node2, getHiZR(), 0.0);
+        else
+            context.branch(branchIndex, node1, node2,
+                    getBranchResistance(context.isSteadyState()), getBranchVoltage(context.isSteadyState()));
+    }
+
+    @Override
+    public double getBranchResistance(boolean steadyState) {
+        // Steady state: inductors are a short
+        return steadyState ? 0.0 : resistance;
+    }
+
+    @Override
+    public double getBranchVoltage(boolean steadyState) {
+        // node1 - node2 = R * (I - I_previous) + history
+        return steadyState ? 0.0 : -resistance * getSourceCurrent() + historyVoltage;
+    }
+
     @Override
     public void initialUpdateEnergySourceCount() {
         circuit.incEnergySources();
     }
 
+    @Override
+    public void finalUpdateEnergySourceCount() {
+        circuit.decEnergySources();
+    }
+
+    @Override
+    public double getTruncationError(double relTol, double absTol) {
+        return history.getTruncationError(getCurrent(), relTol, absTol);
+    }
+
     @Override
     public void tick() {
-        resistance = inductance / DT;
-        super.setCurrent(getCurrent() - getVoltage() / getResistance());
+        // v = L di/dt, v = node1 - node2
+        double h = circuit.getTimeStep();
+        double I = getCurrent();
+        double V = -getVoltage();
+
+        switch (history.getMethod(circuit.getIntegrationMethod(), h)) {
+            case TRAPEZOIDAL: // v = 2L / h (i - i_n) - v_n
+                setResistance(2 * inductance / h);
+                historyVoltage = -V;
+                break;
+            case BDF2: // v = L / h (1.5 i - 2 i_n + 0.5 i_(n-1))
+                setResistance(1.5 * inductance / h);
+                historyVoltage = 0.5 * inductance / h * (history.getPreviousValue() - I);
+                break;
+            default: // v = L / h (i - i_n)
+                setResistance(inductance / h);
+                historyVoltage = 0.0;
+        }
+        setCompanionCurrent(I);
+        history.push(I, h);
+    }
+
+    @Override
+    public double[] saveState() {
+        // Companion model for the next solve, and history
+        double[] state = new double[3 + IntegrationHistory.SIZE];
+        state[0] = resistance;
+        state[1] = getCompanionCurrent();
+        state[2] = historyVoltage;
+        history.save(state, 3);
+        return state;
+    }
+
+    @Override
+    public void loadState(double[] state) {
+        setResistance(state[0]);
+        setCompanionCurrent(state[1]);
+        historyVoltage = state[2];
+        history.load(state, 3);
     }
 
     @Override
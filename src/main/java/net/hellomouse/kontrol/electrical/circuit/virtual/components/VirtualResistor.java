@@ -1,5 +1,6 @@
 package net.hellomouse.kontrol.electrical.circuit.virtual.components;
 
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualStampContext;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IBaseCondition;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IResistanceCondition;
 import static net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuitConstants.UNKNOWN_ENERGY;
@@ -26,9 +27,19 @@ public class VirtualResistor extends AbstractVirtualComponent implements IResist
         return resistance;
     }
     public void setResistance(double resistance) {
+        if (this.resistance != resistance)
+            markMatrixDirty();
         this.resistance = resistance;
     }
 
+    @Override
+    public void stamp(VirtualStampContext context) {
+        if (hiZ)
+            super.stamp(context);
+        else
+            context.conductance(node1, node2, 1 / resistance);
+    }
+
     @Override
     public double getCurrent() {
         // In direction of node1 to node2
@@ -1,5 +1,6 @@
 package net.hellomouse.kontrol.electrical.circuit.virtual.components;
 
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualStampContext;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IBaseCondition;
 import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.IVoltageDifferenceCondition;
 import static net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuitConstants.UNKNOWN_ENERGY;
@@ -31,6 +32,33 @@ public class VirtualVoltageSource extends AbstractVirtualComponent implements IV
         return voltage;
     }
 
+    @Override
+    public double getCurrent() {
+        // In direction of node1 to node2, negative when supplying power.
+        // No current until the circuit is solved with the source
+        if (!circuit.hasBranchCurrent(branchIndex))
+            return 0.0;
+        return circuit.getBranchCurrent(branchIndex);
+    }
+
+    @Override
+    public void stamp(VirtualStampContext context) {
+        // Hi-Z: only a high value resistor
+        if (hiZ)
+            context.branch(branchIndex, node1, node2, getHiZR(), 0.0);
+        else
+            context.branch(branchIndex, node1, node2,
+                    getBranchResistance(context.isSteadyState()), getBranchVoltage(context.isSteadyState()));
+    }
+
+    @Override
+    public double getBranchResistance(boolean steadyState) { return 0.0; }
+
+    @Override
+    public double getBranchVoltage(boolean steadyState) {
+        return isDisabled() ? 0.0 : voltage;
+    }
+
     @Override
     public double getEnergy() {
         // Voltage sources don't store energy
@@ -42,8 +70,15 @@ public class VirtualVoltageSource extends AbstractVirtualComponent implements IV
         updateCircuitEnergySourceCount(0.0, voltage);
     }
 
+    @Override
+    public void finalUpdateEnergySourceCount() {
+        updateCircuitEnergySourceCount(disabled || hiZ ? 0.0 : voltage, 0.0);
+    }
+
     @Override
     public void setVoltage(double voltage) {
+        if (this.voltage != voltage)
+            wakeCircuit();
         updateCircuitEnergySourceCount(this.voltage, voltage);
         this.voltage = voltage;
     }
@@ -18,10 +18,9 @@ import net.hellomouse.kontrol.electrical.circuit.virtual.components.AbstractVirt
  */
 public interface IBaseCondition {
     /**
-     * Assigns nodes to the object. An object can have at most
-     * two nodes; more complex multi-terminal devices should be modelled
-     * using simple two-node components. Said modelling of multi-component
-     * objects will have to be done in the block entity, not the virtual circuit.
+     * Assigns nodes to the object. Most objects have at most two nodes; more
+     * complex multi-terminal devices should be modelled using simple two-node
+     * components where possible, or stamp themselves with extra nodes (see ICustomCondition).
      *
      * See PolarityTests for nodal polarities of various objects.
      *
@@ -30,7 +29,7 @@ public interface IBaseCondition {
      *
      * @param node1 Node ID 1 (generally positive terminal)
      * @param node2 Node ID 2 (generally negative terminal)
-     * @see VirtualCircuit#addComponent(AbstractVirtualComponent, int, int)
+     * @see VirtualCircuit#addComponent(AbstractVirtualComponent, int, int, int...)
      */
     void setNodes(int node1, int node2);
 
@@ -63,9 +62,9 @@ public interface IBaseCondition {
      * Defined as positive if current goes from V_node1 to V_node2, otherwise
      * negative. Swapping node order will swap sign on the current
      *
-     * Note getCurrentThrough uses a series resistor
-     * to calculate current for most components, so getCurrent() must have an
-     * override in VirtualResistor or any component that implements VirtualResistor
+     * Components with a condition interface should override this so the current
+     * can be read without a search; getCurrentThrough only sums the currents of
+     * components directly connecting two nodes, and is the default here
      *
      * @return Current through component (A)
      */
@@ -91,6 +90,15 @@ public interface IBaseCondition {
      */
     boolean doesNumericIntegration();
 
+    /**
+     * Estimated local truncation error of the last step, for components that do numeric
+     * integration. Used to pick sub-step sizes (see VirtualCircuit#step)
+     * @param relTol Relative tolerance
+     * @param absTol Absolute tolerance
+     * @return error / (absTol + relTol * |value|), at most 1 is accurate enough. 0 if unknown
+     */
+    double getTruncationError(double relTol, double absTol);
+
     /**
      * Is the component nonlinear? Used for certain circuit optimizations and hardcoded
      * solving methods in VirtualCircuit
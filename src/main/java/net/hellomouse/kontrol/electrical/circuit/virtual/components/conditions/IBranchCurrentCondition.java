@@ -0,0 +1,35 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions;
+
+/**
+ * VirtualComponents with this interface have their current as an extra
+ * unknown in the matrix (modified nodal analysis). The current is added to the
+ * KCL lines of both nodes, and a branch line is added for the component:
+ *
+ * node1 - node2 - R * I = V
+ *
+ * I is the current from node1 to node2 through the component, which
+ * can be read from the solution directly (see VirtualCircuit#getBranchCurrent).
+ * When the component is hi-Z, R = getHiZR() and V = 0 are used instead.
+ *
+ * Conflicts with all other conditions except for IVoltageDifferenceCondition
+ * (Ie, should not be implemented with any other condition interface). Components
+ * that implement ICurrentCondition or IResistanceCondition through inheritance
+ * (ie, inductors) are not treated as current sources or resistors
+ *
+ * @author Bowserinator
+ */
+public interface IBranchCurrentCondition extends IBaseCondition {
+    /**
+     * Resistance in series with the branch, 0 for an ideal voltage source
+     * @param steadyState Solving for steady state?
+     * @return Resistance (ohms)
+     */
+    double getBranchResistance(boolean steadyState);
+
+    /**
+     * Voltage of the branch, node1 - node2 when no current flows
+     * @param steadyState Solving for steady state?
+     * @return Voltage (V)
+     */
+    double getBranchVoltage(boolean steadyState);
+}
@@ -4,6 +4,10 @@ package net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions;
  * VirtualComponents with this interface will have a line in the matrix
  * for KCL modified so total current out += current source
  *
+ * getSourceCurrent() is the value used in the matrix, getCurrent() is the
+ * total current through the component (these differ for components that
+ * also implement IResistanceCondition, ie capacitors)
+ *
  * Conflicts with all other conditions except for IResistanceCondition
  * (Ie, should not be implemented with any other condition interface)
  *
@@ -12,4 +16,5 @@ package net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions;
 public interface ICurrentCondition {
     void setCurrent(double current);
     double getCurrent();
+    double getSourceCurrent();
 }
@@ -1,19 +1,24 @@
 package net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions;
 
-import org.ejml.simple.SimpleMatrix;
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualStampContext;
 
 /**
- * VirtualComponents with this interface will be processed depending
- * on a custom function defined by the user
+ * VirtualComponents with this interface write their own entries into the matrix by
+ * overriding AbstractVirtualComponent#stamp, ie for controlled sources or multi-terminal
+ * components (see AbstractVirtualComponent#setExtraNodes). They are never removed
+ * by the reduction and always connect all of their nodes.
  *
  * Conflicts with all other conditions
  * (Ie, should not be implemented with any other condition interface)
  *
- * To use a custom condition, you should uncomment the custom condition
- * solver method in VirtualCondition and uncomment the solve line in VirtualCircuit
- *
  * @author Bowserinator
  */
-public interface ICustomCondition {
-    void modifyMatrix(SimpleMatrix matrix, SimpleMatrix solutions);
+public interface ICustomCondition extends IBaseCondition {
+    /**
+     * Write the component's entries, see VirtualStampContext. The same left hand side
+     * entries must be written in the same order every assembly, unless the component
+     * calls AbstractVirtualComponent#markStampPatternDirty when they change
+     * @param context Context to stamp into
+     */
+    void stamp(VirtualStampContext context);
 }
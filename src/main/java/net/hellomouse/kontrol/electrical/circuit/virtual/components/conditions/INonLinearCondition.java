@@ -0,0 +1,29 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions;
+
+/**
+ * VirtualComponents with this interface are linearized around an operating point
+ * (ie, diodes as a voltage source or resistor) and solved with Newton-Raphson iteration:
+ * after each solve the circuit checks every non-linear component against the solution
+ * and re-linearizes those that don't match, until all match or the iteration limit is reached.
+ *
+ * Should be implemented together with the condition the linearization is
+ * stamped with (ie, IBranchCurrentCondition). isNonLinear() must return true
+ *
+ * @author Bowserinator
+ */
+public interface INonLinearCondition extends IBaseCondition {
+    /**
+     * How far is the current solution from the operating point the component was
+     * linearized around? Only compares, does not modify the component
+     * @param tolerance Voltage difference (V) that is close enough to converged
+     * @return 0 if converged, otherwise a positive error (larger = further off)
+     */
+    double getLinearizationError(double tolerance);
+
+    /**
+     * Linearize the component around the current solution. Should limit the step
+     * taken (ie, pnjlim for diodes) so iteration does not overshoot, and mark
+     * the matrix dirty if the left hand side changed
+     */
+    void linearize();
+}
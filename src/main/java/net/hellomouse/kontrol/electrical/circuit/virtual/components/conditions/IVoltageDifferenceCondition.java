@@ -2,14 +2,15 @@ package net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions;
 
 /**
  * VirtualComponents with this interface will have a line in the matrix
- * for a voltage different (Node A - Node B = V)
+ * for a voltage different (Node A - Node B = V). This is a branch with no
+ * resistance, see IBranchCurrentCondition
  *
  * Conflicts with all other conditions
  * (Ie, should not be implemented with any other condition interface)
  *
  * @author Bowserinator
  */
-public interface IVoltageDifferenceCondition {
+public interface IVoltageDifferenceCondition extends IBranchCurrentCondition {
     double getVoltage();
     void setVoltage(double voltage);
 }
@@ -0,0 +1,131 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.solver;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualStampContext;
+
+
+/**
+ * Left hand side of the circuit equation Ax = b. Components write into
+ * this entry by entry, then the matrix is factored and solved.
+ *
+ * Implementations decide how entries are stored, see DenseCircuitMatrix
+ * and SparseCircuitMatrix. VirtualCircuit picks one based on node count.
+ *
+ * @see VirtualStampContext
+ * @author Bowserinator
+ */
+public abstract class AbstractCircuitMatrix {
+    protected final int size;
+
+    /**
+     * Construct a square matrix filled with 0s
+     * @param size Number of rows (and columns)
+     */
+    public AbstractCircuitMatrix(int size) {
+        this.size = size;
+    }
+
+    /** @return Number of rows (and columns) */
+    public int size() { return size; }
+
+    public abstract double get(int row, int col);
+    public abstract void set(int row, int col, double value);
+
+    /**
+     * Increment matrix[row][col] by value
+     * @param row Row
+     * @param col Col
+     * @param value How much to increment, negative to decrement
+     */
+    public void add(int row, int col, double value) {
+        set(row, col, get(row, col) + value);
+    }
+
+    /**
+     * Dot product of a row with a vector
+     * @param row Row
+     * @param x Vector of length size()
+     * @return sum of matrix[row][i] * x[i]
+     */
+    public abstract double dotRow(int row, double[] x);
+
+    /**
+     * Dot product of the absolute values of a row and a vector
+     * @param row Row
+     * @param x Vector of length size()
+     * @return sum of |matrix[row][i] * x[i]|
+     */
+    public abstract double absDotRow(int row, double[] x);
+
+    /**
+     * Copy the non-zero entries of a row
+     * @param row Row
+     * @param cols Output column of each entry, length at least size()
+     * @param vals Output value of each entry, length at least size()
+     * @return Number of entries copied
+     */
+    public int getRow(int row, int[] cols, double[] vals) {
+        int length = 0;
+        for (int col = 0; col < size; col++) {
+            double value = get(row, col);
+            if (value != 0.0) {
+                cols[length] = col;
+                vals[length++] = value;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Are all entries in a row the same as in another matrix?
+     * @param other Matrix of the same size, usually of the same type
+     * @param row Row to compare
+     * @return True if every entry is equal
+     */
+    public abstract boolean rowEquals(AbstractCircuitMatrix other, int row);
+
+    /**
+     * Normwise backward error of a solution, max|Ax - b| / (max(|A||x|) + max|b|).
+     * Independent of how large the entries are, so a value close to machine
+     * epsilon means x is as good as a direct solve would give.
+     * @param x Solution
+     * @param b Right hand side
+     * @return Backward error
+     */
+    public double backwardError(double[] x, double[] b) {
+        double residual = 0.0, scaleAx = 0.0, scaleB = 0.0;
+        for (int row = 0; row < size; row++) {
+            residual = Math.max(residual, Math.abs(dotRow(row, x) - b[row]));
+            scaleAx = Math.max(scaleAx, absDotRow(row, x));
+            scaleB = Math.max(scaleB, Math.abs(b[row]));
+        }
+        double scale = scaleAx + scaleB;
+        return scale > 0.0 ? residual / scale : residual;
+    }
+
+    /**
+     * Factor the matrix so solve() can be called. Entries should
+     * not be modified after this is called.
+     * @return False if the matrix is singular
+     */
+    public abstract boolean factor();
+
+    /**
+     * Solve Ax = b using the last factorization
+     * @param b Right hand side, not modified
+     * @param x Output, must be of length size()
+     * @return False if the solution contains uncountable numbers (NaN, infinity)
+     */
+    public abstract boolean solve(double[] b, double[] x);
+
+    /**
+     * Returns true if array contains no NaN or infinite values
+     * @param x Array to check
+     * @return Are all values finite?
+     */
+    protected static boolean isCountable(double[] x) {
+        for (double v : x)
+            if (Double.isNaN(v) || Double.isInfinite(v))
+                return false;
+        return true;
+    }
+}
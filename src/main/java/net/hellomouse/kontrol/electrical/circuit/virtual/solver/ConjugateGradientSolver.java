@@ -0,0 +1,553 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.solver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+/**
+ * Iterative solver for large, mostly resistive circuits: preconditioned conjugate gradient
+ * on the conductance matrix of the nodes that aren't fixed.
+ *
+ * A circuit matrix as a whole isn't symmetric, so it is split up first:
+ * <ul>
+ *     <li>Rows with a single entry (fixed nodes, open branches) and ideal voltage sources with one
+ *     known node give the voltage of the other node, in order</li>
+ *     <li>Branches with a resistance (inductors, diodes) are eliminated, leaving a conductance
+ *     between their nodes</li>
+ *     <li>The remaining (free) nodes form a symmetric system, negated to be positive definite,
+ *     which is solved with conjugate gradient starting from a guess (ie, last solve's voltages)</li>
+ *     <li>Eliminated branch currents, then voltage source currents, are computed from the nodes</li>
+ * </ul>
+ *
+ * Circuits that don't fit (voltage sources between 2 free nodes, asymmetric entries) aren't usable,
+ * and solve() fails when conjugate gradient doesn't converge in time, so the caller should use the
+ * matrix's direct factorization instead. Split up once per matrix, only the right hand side
+ * and guess change between solves.
+ *
+ * @author Bowserinator
+ */
+public class ConjugateGradientSolver {
+    // Max relative difference between M[i][j] and M[j][i] for the free system to count as symmetric
+    private static final double SYMMETRY_TOLERANCE = 1e-9;
+
+    /**
+     * Preconditioner applied every iteration, better ones take more work per iteration but need
+     * far fewer iterations for large grids
+     * @author Bowserinator
+     */
+    public enum Preconditioner {
+        /** Divide by the diagonal, almost free */
+        JACOBI,
+        /** Incomplete Cholesky factorization without fill-in, IC(0). Falls back to Jacobi if it breaks down */
+        INCOMPLETE_CHOLESKY
+    }
+
+    private final AbstractCircuitMatrix matrix;
+    private final int size;
+    // Entries of every row of the matrix
+    private final int[][] rowCols;
+    private final double[][] rowVals;
+
+    // Steps (row, column): column = (b[row] - rest of row) / matrix[row][column], before and after
+    // the free system is solved. Eliminated branches are a step after with row = column
+    private int[] preRows, preCols, postRows, postCols;
+    private int[] eliminated;
+    // Columns known before the free system is solved
+    private boolean[] preKnown;
+    // Free index: column, column: free index or -1
+    private int[] free;
+    private int[] freeIndex;
+    // Free system (compressed rows, sorted columns), negated if needed to have a positive diagonal
+    private int[] mStart, mCols;
+    private double[] mVals;
+    private double sign = 1.0;
+    // Preconditioner: inverse diagonal (Jacobi), or lower triangle L of IC(0) with the diagonal last in each row
+    private double[] inverseDiagonal;
+    private int[] lStart, lCols;
+    private double[] lVals;
+
+    private boolean usable;
+    private int lastIterations = 0;
+
+    /**
+     * Split up a matrix for iterative solving
+     * @param matrix Assembled circuit matrix, must not be modified after
+     * @param nodeCount Number of node rows, the rest are branch rows
+     * @param preconditioner Preconditioner to use
+     */
+    public ConjugateGradientSolver(AbstractCircuitMatrix matrix, int nodeCount, Preconditioner preconditioner) {
+        this.matrix = matrix;
+        this.size = matrix.size();
+        rowCols = new int[size][];
+        rowVals = new double[size][];
+
+        int[] cols = new int[size];
+        double[] vals = new double[size];
+        for (int row = 0; row < size; row++) {
+            int length = matrix.getRow(row, cols, vals);
+            rowCols[row] = Arrays.copyOf(cols, length);
+            rowVals[row] = Arrays.copyOf(vals, length);
+        }
+
+        usable = split(nodeCount) && buildFreeSystem();
+        if (usable && (preconditioner != Preconditioner.INCOMPLETE_CHOLESKY || !incompleteCholesky()))
+            jacobi();
+    }
+
+    /**
+     * Find the order unknowns are computed in, and which nodes are free
+     * @param nodeCount Number of node rows
+     * @return False if the matrix can't be split up
+     */
+    private boolean split(int nodeCount) {
+        boolean[] known = new boolean[size];
+        boolean[] rowUsed = new boolean[size];
+        ArrayList<int[]> pre = new ArrayList<>();
+        ArrayList<int[]> post = new ArrayList<>();
+
+        // Single entry rows and ideal voltage sources (branch rows without their own column)
+        // with one unknown node, until no more nodes become known
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int row = 0; row < size; row++) {
+                if (rowUsed[row] || (rowCols[row].length != 1 && (row < nodeCount || indexOf(row, row) >= 0)))
+                    continue;
+                int unknown = singleUnknown(row, known);
+                if (unknown < 0)
+                    continue;
+                pre.add(new int[]{ row, unknown });
+                known[unknown] = rowUsed[row] = true;
+                changed = true;
+            }
+        }
+        preKnown = Arrays.copyOf(known, size);
+
+        // Branches with a resistance, eliminated from the free system
+        ArrayList<Integer> eliminatedList = new ArrayList<>();
+        for (int row = nodeCount; row < size; row++) {
+            if (rowUsed[row] || indexOf(row, row) < 0)
+                continue;
+            for (int col : rowCols[row])
+                if (col != row && col >= nodeCount)
+                    return false;
+            eliminatedList.add(row);
+            post.add(new int[]{ row, row });
+            known[row] = rowUsed[row] = true;
+        }
+
+        // Remaining nodes are free, solved with their own (KCL) row
+        freeIndex = new int[size];
+        Arrays.fill(freeIndex, -1);
+        ArrayList<Integer> freeList = new ArrayList<>();
+        for (int node = 0; node < nodeCount; node++) {
+            if (known[node])
+                continue;
+            if (rowUsed[node])
+                return false;
+            freeIndex[node] = freeList.size();
+            freeList.add(node);
+            known[node] = rowUsed[node] = true;
+        }
+
+        // Voltage source currents from the rows of their (known) nodes
+        changed = true;
+        while (changed) {
+            changed = false;
+            for (int row = 0; row < size; row++) {
+                if (rowUsed[row])
+                    continue;
+                int unknown = singleUnknown(row, known);
+                if (unknown < 0)
+                    continue;
+                post.add(new int[]{ row, unknown });
+                known[unknown] = rowUsed[row] = true;
+                changed = true;
+            }
+        }
+        for (int i = 0; i < size; i++)
+            if (!known[i] || !rowUsed[i])
+                return false;
+
+        preRows = pre.stream().mapToInt(step -> step[0]).toArray();
+        preCols = pre.stream().mapToInt(step -> step[1]).toArray();
+        postRows = post.stream().mapToInt(step -> step[0]).toArray();
+        postCols = post.stream().mapToInt(step -> step[1]).toArray();
+        eliminated = eliminatedList.stream().mapToInt(Integer::intValue).toArray();
+        free = freeList.stream().mapToInt(Integer::intValue).toArray();
+        return true;
+    }
+
+    /**
+     * Build the free system, M = A_ff - A_fe A_ee^-1 A_ef for free nodes f and eliminated branches e
+     * @return False if it isn't symmetric or free rows depend on voltage source currents
+     */
+    private boolean buildFreeSystem() {
+        int n = free.length;
+        double[] accumulated = new double[n];
+        boolean[] touched = new boolean[n];
+        int[] touchedList = new int[n];
+        ArrayList<int[]> colList = new ArrayList<>(n);
+        ArrayList<double[]> valList = new ArrayList<>(n);
+        int nonZeros = 0;
+
+        for (int f = 0; f < n; f++) {
+            int row = free[f];
+            int touchedCount = 0;
+            for (int i = 0; i < rowCols[row].length; i++) {
+                int col = rowCols[row][i];
+                double value = rowVals[row][i];
+                if (freeIndex[col] >= 0) {
+                    touchedCount = accumulate(freeIndex[col], value, accumulated, touched, touchedList, touchedCount);
+                } else if (isEliminated(col)) {
+                    double factor = value / rowVals[col][indexOf(col, col)];
+                    for (int j = 0; j < rowCols[col].length; j++)
+                        if (freeIndex[rowCols[col][j]] >= 0)
+                            touchedCount = accumulate(freeIndex[rowCols[col][j]], -factor * rowVals[col][j],
+                                    accumulated, touched, touchedList, touchedCount);
+                } else if (!preKnown[col]) {
+                    return false; // Voltage source current in a free row
+                }
+            }
+
+            int[] cols = Arrays.copyOf(touchedList, touchedCount);
+            Arrays.sort(cols);
+            double[] vals = new double[touchedCount];
+            for (int i = 0; i < touchedCount; i++) {
+                vals[i] = accumulated[cols[i]];
+                accumulated[cols[i]] = 0.0;
+                touched[cols[i]] = false;
+            }
+            colList.add(cols);
+            valList.add(vals);
+            nonZeros += touchedCount;
+        }
+
+        mStart = new int[n + 1];
+        mCols = new int[nonZeros];
+        mVals = new double[nonZeros];
+        for (int f = 0; f < n; f++) {
+            mStart[f + 1] = mStart[f] + colList.get(f).length;
+            System.arraycopy(colList.get(f), 0, mCols, mStart[f], colList.get(f).length);
+            System.arraycopy(valList.get(f), 0, mVals, mStart[f], valList.get(f).length);
+        }
+
+        // Positive definite needs a positive diagonal (KCL rows have a negative one)
+        for (int f = 0; f < n; f++) {
+            double diagonal = getM(f, f);
+            if (f == 0)
+                sign = diagonal < 0.0 ? -1.0 : 1.0;
+            if (diagonal * sign <= 0.0)
+                return false;
+        }
+        for (int i = 0; i < nonZeros; i++)
+            mVals[i] *= sign;
+
+        for (int f = 0; f < n; f++) {
+            for (int i = mStart[f]; i < mStart[f + 1]; i++) {
+                double other = getM(mCols[i], f);
+                if (Math.abs(mVals[i] - other) > SYMMETRY_TOLERANCE * Math.max(Math.abs(mVals[i]), Math.abs(other)))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /** Jacobi preconditioner: inverse of the diagonal */
+    private void jacobi() {
+        inverseDiagonal = new double[free.length];
+        for (int f = 0; f < free.length; f++)
+            inverseDiagonal[f] = 1.0 / getM(f, f);
+        lVals = null;
+    }
+
+    /**
+     * Incomplete Cholesky preconditioner, M ~ L L^T where L only has entries where M does
+     * @return False if it broke down (non-positive pivot)
+     */
+    private boolean incompleteCholesky() {
+        int n = free.length;
+        lStart = new int[n + 1];
+        for (int f = 0; f < n; f++) {
+            int count = 0;
+            for (int i = mStart[f]; i < mStart[f + 1]; i++)
+                if (mCols[i] <= f) count++;
+            lStart[f + 1] = lStart[f] + count;
+        }
+        lCols = new int[lStart[n]];
+        lVals = new double[lStart[n]];
+        for (int f = 0, p = 0; f < n; f++) {
+            for (int i = mStart[f]; i < mStart[f + 1]; i++) {
+                if (mCols[i] <= f) {
+                    lCols[p] = mCols[i];
+                    lVals[p++] = mVals[i];
+                }
+            }
+        }
+
+        for (int f = 0; f < n; f++) {
+            for (int p = lStart[f]; p < lStart[f + 1]; p++) {
+                int k = lCols[p];
+                // Sum of L[f][j] * L[k][j] for j < k, both rows are sorted
+                double sum = 0.0;
+                int a = lStart[f], b = lStart[k], endB = lStart[k + 1] - 1;
+                while (a < p && b < endB) {
+                    if (lCols[a] == lCols[b])
+                        sum += lVals[a++] * lVals[b++];
+                    else if (lCols[a] < lCols[b])
+                        a++;
+                    else
+                        b++;
+                }
+
+                if (k < f) {
+                    lVals[p] = (lVals[p] - sum) / lVals[lStart[k + 1] - 1];
+                } else {
+                    double pivot = lVals[p] - sum;
+                    if (pivot <= 0.0 || lCols[p] != f) {
+                        lVals = null;
+                        return false;
+                    }
+                    lVals[p] = Math.sqrt(pivot);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Solve Ax = b
+     * @param b Right hand side, not modified
+     * @param x Initial guess for the node voltages (ie, last solution), output
+     * @param tolerance Converged once |residual| <= tolerance * |right hand side| for the free system
+     * @param maxIterations Max conjugate gradient iterations before giving up
+     * @return False if not usable, not converged or the solution contains uncountable numbers
+     */
+    public boolean solve(double[] b, double[] x, double tolerance, int maxIterations) {
+        lastIterations = 0;
+        if (!usable)
+            return false;
+
+        int n = free.length;
+        double[] guess = new double[n];
+        for (int f = 0; f < n; f++) {
+            guess[f] = x[free[f]];
+            x[free[f]] = 0.0;
+        }
+
+        // Known nodes, then the right hand side of the free system with free nodes at 0
+        for (int i = 0; i < preRows.length; i++)
+            x[preCols[i]] = computeStep(preRows[i], preCols[i], b, x);
+        for (int branch : eliminated)
+            x[branch] = computeStep(branch, branch, b, x);
+        double[] rhs = new double[n];
+        for (int f = 0; f < n; f++)
+            rhs[f] = sign * (b[free[f]] - dotRow(free[f], x));
+
+        if (!conjugateGradient(rhs, guess, tolerance, maxIterations))
+            return false;
+
+        for (int f = 0; f < n; f++)
+            x[free[f]] = guess[f];
+        for (int i = 0; i < postRows.length; i++)
+            x[postCols[i]] = computeStep(postRows[i], postCols[i], b, x);
+        return AbstractCircuitMatrix.isCountable(x);
+    }
+
+    /**
+     * Preconditioned conjugate gradient on the free system
+     * @param rhs Right hand side
+     * @param x Initial guess, output
+     * @param tolerance Relative residual to stop at
+     * @param maxIterations Max iterations
+     * @return Converged?
+     */
+    private boolean conjugateGradient(double[] rhs, double[] x, double tolerance, int maxIterations) {
+        int n = rhs.length;
+        double[] r = new double[n];
+        double[] z = new double[n];
+        double[] p = new double[n];
+        double[] q = new double[n];
+
+        multiply(x, q);
+        for (int i = 0; i < n; i++)
+            r[i] = rhs[i] - q[i];
+        double target = tolerance * norm(rhs);
+        if (norm(r) <= target)
+            return true;
+
+        precondition(r, z);
+        System.arraycopy(z, 0, p, 0, n);
+        double rz = dot(r, z);
+
+        for (int iteration = 1; iteration <= maxIterations; iteration++) {
+            lastIterations = iteration;
+            multiply(p, q);
+            double pq = dot(p, q);
+            if (!(pq > 0.0)) // Not positive definite (or NaN)
+                return false;
+
+            double alpha = rz / pq;
+            for (int i = 0; i < n; i++) {
+                x[i] += alpha * p[i];
+                r[i] -= alpha * q[i];
+            }
+            if (norm(r) <= target)
+                return true;
+
+            precondition(r, z);
+            double rzNext = dot(r, z);
+            double beta = rzNext / rz;
+            for (int i = 0; i < n; i++)
+                p[i] = z[i] + beta * p[i];
+            rz = rzNext;
+        }
+        return false;
+    }
+
+    /**
+     * z = P^-1 r
+     * @param r Residual
+     * @param z Output
+     */
+    private void precondition(double[] r, double[] z) {
+        int n = r.length;
+        if (lVals == null) {
+            for (int i = 0; i < n; i++)
+                z[i] = r[i] * inverseDiagonal[i];
+            return;
+        }
+
+        // Solve L y = r, then L^T z = y
+        for (int i = 0; i < n; i++) {
+            double sum = r[i];
+            int diagonal = lStart[i + 1] - 1;
+            for (int p = lStart[i]; p < diagonal; p++)
+                sum -= lVals[p] * z[lCols[p]];
+            z[i] = sum / lVals[diagonal];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            int diagonal = lStart[i + 1] - 1;
+            z[i] /= lVals[diagonal];
+            for (int p = lStart[i]; p < diagonal; p++)
+                z[lCols[p]] -= lVals[p] * z[i];
+        }
+    }
+
+    /**
+     * y = M x for the free system
+     * @param x Vector
+     * @param y Output
+     */
+    private void multiply(double[] x, double[] y) {
+        for (int f = 0; f < y.length; f++) {
+            double sum = 0.0;
+            for (int i = mStart[f]; i < mStart[f + 1]; i++)
+                sum += mVals[i] * x[mCols[i]];
+            y[f] = sum;
+        }
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++)
+            sum += a[i] * b[i];
+        return sum;
+    }
+
+    private static double norm(double[] a) {
+        return Math.sqrt(dot(a, a));
+    }
+
+    /**
+     * Add a value to an entry of the free row being built
+     * @return New number of touched entries
+     */
+    private static int accumulate(int col, double value, double[] accumulated, boolean[] touched, int[] touchedList, int touchedCount) {
+        accumulated[col] += value;
+        if (!touched[col]) {
+            touched[col] = true;
+            touchedList[touchedCount++] = col;
+        }
+        return touchedCount;
+    }
+
+    /**
+     * Compute the unknown of a step, every other column in the row must be known
+     * @param row Row
+     * @param col Unknown column
+     * @param b Right hand side
+     * @param x Solution so far
+     * @return Value of the unknown
+     */
+    private double computeStep(int row, int col, double[] b, double[] x) {
+        double sum = b[row];
+        double pivot = 0.0;
+        for (int i = 0; i < rowCols[row].length; i++) {
+            if (rowCols[row][i] == col)
+                pivot = rowVals[row][i];
+            else
+                sum -= rowVals[row][i] * x[rowCols[row][i]];
+        }
+        return sum / pivot;
+    }
+
+    /**
+     * The only unknown column of a row
+     * @param row Row
+     * @param known Known columns
+     * @return Column, or -1 if the row doesn't have exactly 1 unknown
+     */
+    private int singleUnknown(int row, boolean[] known) {
+        int unknown = -1;
+        for (int col : rowCols[row]) {
+            if (known[col])
+                continue;
+            if (unknown >= 0)
+                return -1;
+            unknown = col;
+        }
+        return unknown;
+    }
+
+    private double dotRow(int row, double[] x) {
+        double sum = 0.0;
+        for (int i = 0; i < rowCols[row].length; i++)
+            sum += rowVals[row][i] * x[rowCols[row][i]];
+        return sum;
+    }
+
+    private int indexOf(int row, int col) {
+        for (int i = 0; i < rowCols[row].length; i++)
+            if (rowCols[row][i] == col)
+                return i;
+        return -1;
+    }
+
+    private boolean isEliminated(int col) {
+        return Arrays.binarySearch(eliminated, col) >= 0;
+    }
+
+    /**
+     * Entry of the free system, before sign is applied if called while building
+     * @param row Free index
+     * @param col Free index
+     * @return Value
+     */
+    private double getM(int row, int col) {
+        int index = Arrays.binarySearch(mCols, mStart[row], mStart[row + 1], col);
+        return index < 0 ? 0.0 : mVals[index];
+    }
+
+    /** @return Can this matrix be solved iteratively? If not, solve() always fails */
+    public boolean isUsable() { return usable; }
+
+    /** @return Conjugate gradient iterations of the last solve() */
+    public int getLastIterations() { return lastIterations; }
+
+    /** @return Number of free nodes, the size of the system solved iteratively */
+    public int getFreeCount() { return free == null ? 0 : free.length; }
+
+    /** @return The matrix, to factor directly when iterative solving fails */
+    public AbstractCircuitMatrix getMatrix() { return matrix; }
+}
@@ -0,0 +1,95 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.solver;
+
+import org.ejml.LinearSolverSafe;
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.dense.row.factory.LinearSolverFactory_DDRM;
+import org.ejml.interfaces.linsol.LinearSolverDense;
+
+
+/**
+ * Dense row-major matrix, solved with a general EJML LU solver.
+ * Best for small circuits, memory usage is O(n^2) and factoring O(n^3)
+ * @author Bowserinator
+ */
+public class DenseCircuitMatrix extends AbstractCircuitMatrix {
+    private final DMatrixRMaj matrix;
+    private LinearSolverDense<DMatrixRMaj> solver;
+
+    /**
+     * Construct a dense matrix filled with 0s
+     * @param size Number of rows (and columns)
+     */
+    public DenseCircuitMatrix(int size) {
+        super(size);
+        matrix = new DMatrixRMaj(size, size);
+    }
+
+    /**
+     * Construct a dense matrix backed by an array, without copying
+     * @param size Number of rows (and columns)
+     * @param data Entries in row-major order (entry (row, col) is data[row * size + col]), length at least size^2
+     */
+    public DenseCircuitMatrix(int size, double[] data) {
+        super(size);
+        matrix = DMatrixRMaj.wrap(size, size, data);
+    }
+
+    @Override
+    public double get(int row, int col) {
+        return matrix.data[row * size + col];
+    }
+
+    @Override
+    public void set(int row, int col, double value) {
+        matrix.data[row * size + col] = value;
+    }
+
+    @Override
+    public void add(int row, int col, double value) {
+        matrix.data[row * size + col] += value;
+    }
+
+    @Override
+    public double dotRow(int row, double[] x) {
+        int offset = row * size;
+        double sum = 0.0;
+        for (int i = 0; i < size; i++)
+            sum += matrix.data[offset + i] * x[i];
+        return sum;
+    }
+
+    @Override
+    public double absDotRow(int row, double[] x) {
+        int offset = row * size;
+        double sum = 0.0;
+        for (int i = 0; i < size; i++)
+            sum += Math.abs(matrix.data[offset + i] * x[i]);
+        return sum;
+    }
+
+    @Override
+    public boolean rowEquals(AbstractCircuitMatrix other, int row) {
+        for (int col = 0; col < size; col++)
+            if (matrix.data[row * size + col] != other.get(row, col))
+                return false;
+        return true;
+    }
+
+    @Override
+    public boolean factor() {
+        // Same solver SimpleMatrix.solve() uses, A is copied so entries can still be read after
+        solver = new LinearSolverSafe<>(LinearSolverFactory_DDRM.general(size, size));
+        return solver.setA(matrix);
+    }
+
+    @Override
+    public boolean solve(double[] b, double[] x) {
+        solver.solve(DMatrixRMaj.wrap(size, 1, b), DMatrixRMaj.wrap(size, 1, x));
+        return isCountable(x);
+    }
+
+    @Override
+    public String toString() {
+        return matrix.toString();
+    }
+}
@@ -0,0 +1,202 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.solver;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Solves a matrix that differs from an already factored base matrix
+ * in only a few rows, without factoring it again.
+ *
+ * Switching a switch or a diode changes only the rows of the nodes it touches.
+ * If the updated matrix A' differs from the base A in rows r_1 ... r_k, then
+ * A' = A + U D where U = [e_r1 ... e_rk] and row i of D is (A' - A) row r_i.
+ * By the Sherman-Morrison-Woodbury identity:
+ *
+ * <pre>
+ * A'^-1 b = x - Z (I + D Z)^-1 D x,   x = A^-1 b,   Z = A^-1 U
+ * </pre>
+ *
+ * Columns of Z only depend on the base matrix, so they are computed once per row
+ * and kept while the base lives. Solving then costs one base solve plus O(k) extra
+ * work per row, with a small k x k (capacitance matrix) solve.
+ *
+ * @author Bowserinator
+ */
+public class LowRankUpdateSolver {
+    private final AbstractCircuitMatrix base;
+    // Row: A^-1 e_row, computed on first use
+    private final Map<Integer, double[]> baseInverseColumns = new HashMap<>();
+
+    // Current update, rank 0 = solve with base directly
+    private AbstractCircuitMatrix updated;
+    private int[] changedRows = new int[0];
+    private double[][] z = new double[0][];
+    // LU factorization of the k x k capacitance matrix I + D Z, with row pivots
+    private double[][] capacitanceLU = new double[0][];
+    private int[] capacitancePivots = new int[0];
+
+    /**
+     * Construct a solver for an already factored matrix
+     * @param base Factored matrix, must not be modified after
+     */
+    public LowRankUpdateSolver(AbstractCircuitMatrix base) {
+        this.base = base;
+        this.updated = base;
+    }
+
+    /**
+     * Replace the current update with a new matrix. Rows that differ from
+     * the base are found and the capacitance matrix is factored.
+     * @param matrix New matrix, same size as the base. Should not be factored
+     * @param maxRank Max number of rows that can differ
+     * @return False if more than maxRank rows differ or the update is singular,
+     *         in which case the matrix should be factored directly
+     */
+    public boolean update(AbstractCircuitMatrix matrix, int maxRank) {
+        if (matrix.size() != base.size() || matrix.getClass() != base.getClass())
+            return false;
+
+        int size = base.size();
+        int[] rows = new int[Math.min(maxRank, size)];
+        int rank = 0;
+        for (int row = 0; row < size; row++) {
+            if (!matrix.rowEquals(base, row)) {
+                if (rank == rows.length)
+                    return false;
+                rows[rank++] = row;
+            }
+        }
+
+        double[][] newZ = new double[rank][];
+        for (int i = 0; i < rank; i++) {
+            newZ[i] = getBaseInverseColumn(rows[i]);
+            if (newZ[i] == null)
+                return false;
+        }
+
+        // Capacitance matrix (I + D Z)[i][j] = (A' - A)[r_i] . z_j + delta_ij
+        // Since A z_j = e_rj, A[r_i] . z_j = delta_ij, so this is just A'[r_i] . z_j
+        double[][] lu = new double[rank][rank];
+        for (int i = 0; i < rank; i++)
+            for (int j = 0; j < rank; j++)
+                lu[i][j] = matrix.dotRow(rows[i], newZ[j]);
+        int[] pivots = new int[rank];
+        if (!factorDense(lu, pivots))
+            return false;
+
+        updated = matrix;
+        changedRows = Arrays.copyOf(rows, rank);
+        z = newZ;
+        capacitanceLU = lu;
+        capacitancePivots = pivots;
+        return true;
+    }
+
+    /**
+     * Solve A'x = b, where A' is the matrix given in the last update() (or the base)
+     * @param b Right hand side, not modified
+     * @param x Output, must be of length size()
+     * @return False if the solution contains uncountable numbers (NaN, infinity)
+     */
+    public boolean solve(double[] b, double[] x) {
+        if (!base.solve(b, x))
+            return false;
+        int rank = changedRows.length;
+        if (rank == 0)
+            return true;
+
+        // y = D x, where (D x)_i = A'[r_i] . x - A[r_i] . x and A x = b
+        double[] y = new double[rank];
+        for (int i = 0; i < rank; i++)
+            y[i] = updated.dotRow(changedRows[i], x) - b[changedRows[i]];
+
+        // x -= Z (I + D Z)^-1 y
+        solveDense(capacitanceLU, capacitancePivots, y);
+        for (int i = 0; i < rank; i++) {
+            double[] column = z[i];
+            for (int row = 0; row < x.length; row++)
+                x[row] -= column[row] * y[i];
+        }
+        return AbstractCircuitMatrix.isCountable(x);
+    }
+
+    /** @return Number of rows that differ from the base matrix */
+    public int getRank() { return changedRows.length; }
+
+    /** @return Matrix that solve() solves, the base if there is no update */
+    public AbstractCircuitMatrix getMatrix() { return updated; }
+
+    /** @return Factored matrix updates are applied to */
+    public AbstractCircuitMatrix getBase() { return base; }
+
+    /** @return Size of the matrices */
+    public int size() { return base.size(); }
+
+    /**
+     * Returns A^-1 e_row for the base matrix, cached
+     * @param row Row
+     * @return Column, or null if it could not be solved
+     */
+    private double[] getBaseInverseColumn(int row) {
+        double[] column = baseInverseColumns.get(row);
+        if (column == null) {
+            double[] e = new double[base.size()];
+            e[row] = 1.0;
+            column = new double[base.size()];
+            if (!base.solve(e, column))
+                return null;
+            baseInverseColumns.put(row, column);
+        }
+        return column;
+    }
+
+    /**
+     * In-place LU with partial pivoting for the small capacitance matrix
+     * @param a Matrix, replaced with L and U
+     * @param pivots Output row swaps
+     * @return False if singular
+     */
+    private static boolean factorDense(double[][] a, int[] pivots) {
+        int n = a.length;
+        for (int k = 0; k < n; k++) {
+            int pivot = k;
+            for (int i = k + 1; i < n; i++)
+                if (Math.abs(a[i][k]) > Math.abs(a[pivot][k]))
+                    pivot = i;
+            pivots[k] = pivot;
+            if (Math.abs(a[pivot][k]) < 1e-14)
+                return false;
+
+            double[] temp = a[k]; a[k] = a[pivot]; a[pivot] = temp;
+            for (int i = k + 1; i < n; i++) {
+                a[i][k] /= a[k][k];
+                for (int j = k + 1; j < n; j++)
+                    a[i][j] -= a[i][k] * a[k][j];
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Solve with a matrix factored by factorDense, in place
+     * @param lu Factored matrix
+     * @param pivots Row swaps
+     * @param b Right hand side, replaced with the solution
+     */
+    private static void solveDense(double[][] lu, int[] pivots, double[] b) {
+        int n = lu.length;
+        for (int k = 0; k < n; k++) {
+            double temp = b[k]; b[k] = b[pivots[k]]; b[pivots[k]] = temp;
+        }
+        for (int i = 1; i < n; i++)
+            for (int j = 0; j < i; j++)
+                b[i] -= lu[i][j] * b[j];
+        for (int i = n - 1; i >= 0; i--) {
+            for (int j = i + 1; j < n; j++)
+                b[i] -= lu[i][j] * b[j];
+            b[i] /= lu[i][i];
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.solver;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.DMatrixSparseCSC;
+import org.ejml.interfaces.linsol.LinearSolverSparse;
+import org.ejml.sparse.FillReducing;
+import org.ejml.sparse.csc.factory.LinearSolverFactory_DSCC;
+
+import java.util.Arrays;
+
+
+/**
+ * Sparse matrix for large circuits. Each node only connects to a handful
+ * of other nodes, so most of a circuit matrix is 0.
+ *
+ * Entries are assembled row by row, each row a range of flat arrays that is moved to
+ * the end (with double the capacity) when full. A matrix can also be built directly from
+ * compressed rows (see VirtualStampPlan). It is then converted to compressed column
+ * storage and factored with EJML's sparse LU. EJML does not
+ * provide a fill reducing ordering for LU, so rows and columns are first reordered
+ * by minimum degree to keep the fill-in small. A bandwidth reducing ordering (ie,
+ * reverse Cuthill-McKee) is not enough, a node shared by many branches fills in everything.
+ *
+ * @author Bowserinator
+ */
+public class SparseCircuitMatrix extends AbstractCircuitMatrix {
+    private static final int INITIAL_ROW_CAPACITY = 8;
+
+    // Entries of row i are cols / vals[rowStart[i] ... rowStart[i] + rowLength[i] - 1],
+    // with room for rowCapacity[i]. used = end of the last row's range
+    private final int[] rowStart;
+    private final int[] rowLength;
+    private final int[] rowCapacity;
+    private int[] cols;
+    private double[] vals;
+    private int used;
+    // Is cols shared with other matrices (built from compressed rows)? Copied before it is changed
+    private boolean sharedCols = false;
+
+    // Factorization, solving is done in permuted order
+    // perm[new index] = old index
+    private int[] perm;
+    private LinearSolverSparse<DMatrixSparseCSC, DMatrixRMaj> solver;
+    private DMatrixRMaj permutedB, permutedX;
+
+    /**
+     * Construct a sparse matrix filled with 0s
+     * @param size Number of rows (and columns)
+     */
+    public SparseCircuitMatrix(int size) {
+        super(size);
+        rowStart = new int[size];
+        rowLength = new int[size];
+        rowCapacity = new int[size];
+        for (int row = 0; row < size; row++) {
+            rowStart[row] = row * INITIAL_ROW_CAPACITY;
+            rowCapacity[row] = INITIAL_ROW_CAPACITY;
+        }
+        used = size * INITIAL_ROW_CAPACITY;
+        cols = new int[used];
+        vals = new double[used];
+    }
+
+    /**
+     * Construct a sparse matrix from compressed rows, without copying
+     * @param size Number of rows (and columns)
+     * @param rowPointers Row i is entries rowPointers[i] ... rowPointers[i + 1] - 1, length size + 1
+     * @param cols Column of each entry, can be shared with other matrices as it is never modified
+     * @param vals Value of each entry, owned by this matrix
+     */
+    public SparseCircuitMatrix(int size, int[] rowPointers, int[] cols, double[] vals) {
+        super(size);
+        rowStart = Arrays.copyOf(rowPointers, size);
+        rowLength = new int[size];
+        for (int row = 0; row < size; row++)
+            rowLength[row] = rowPointers[row + 1] - rowPointers[row];
+        rowCapacity = Arrays.copyOf(rowLength, size);
+        used = rowPointers[size];
+        this.cols = cols;
+        this.vals = vals;
+        sharedCols = true;
+    }
+
+    @Override
+    public double get(int row, int col) {
+        int index = indexOf(row, col);
+        return index < 0 ? 0.0 : vals[index];
+    }
+
+    @Override
+    public void set(int row, int col, double value) {
+        int index = indexOf(row, col);
+        if (index >= 0)
+            vals[index] = value;
+        else if (value != 0.0)
+            append(row, col, value);
+    }
+
+    @Override
+    public void add(int row, int col, double value) {
+        int index = indexOf(row, col);
+        if (index >= 0)
+            vals[index] += value;
+        else if (value != 0.0)
+            append(row, col, value);
+    }
+
+    @Override
+    public double dotRow(int row, double[] x) {
+        double sum = 0.0;
+        for (int i = rowStart[row], end = i + rowLength[row]; i < end; i++)
+            sum += vals[i] * x[cols[i]];
+        return sum;
+    }
+
+    @Override
+    public double absDotRow(int row, double[] x) {
+        double sum = 0.0;
+        for (int i = rowStart[row], end = i + rowLength[row]; i < end; i++)
+            sum += Math.abs(vals[i] * x[cols[i]]);
+        return sum;
+    }
+
+    @Override
+    public int getRow(int row, int[] cols, double[] vals) {
+        int length = 0;
+        for (int i = rowStart[row], end = i + rowLength[row]; i < end; i++) {
+            if (this.vals[i] != 0.0) {
+                cols[length] = this.cols[i];
+                vals[length++] = this.vals[i];
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public boolean rowEquals(AbstractCircuitMatrix other, int row) {
+        // Entries may be stored in a different order (or as explicit 0s),
+        // so check both ways
+        for (int i = rowStart[row], end = i + rowLength[row]; i < end; i++)
+            if (other.get(row, cols[i]) != vals[i])
+                return false;
+        if (other instanceof SparseCircuitMatrix) {
+            SparseCircuitMatrix o = (SparseCircuitMatrix) other;
+            for (int i = o.rowStart[row], end = i + o.rowLength[row]; i < end; i++)
+                if (get(row, o.cols[i]) != o.vals[i])
+                    return false;
+            return true;
+        }
+        for (int col = 0; col < size; col++)
+            if (get(row, col) != other.get(row, col))
+                return false;
+        return true;
+    }
+
+    /** @return Number of stored entries */
+    public int getNonZeroCount() {
+        int count = 0;
+        for (int length : rowLength)
+            count += length;
+        return count;
+    }
+
+    @Override
+    public boolean factor() {
+        perm = minimumDegree();
+        int[] inversePerm = new int[size];
+        for (int i = 0; i < size; i++)
+            inversePerm[perm[i]] = i;
+
+        // Count entries in every (permuted) column
+        int[] colStart = new int[size + 1];
+        for (int row = 0; row < size; row++)
+            for (int i = rowStart[row], end = i + rowLength[row]; i < end; i++)
+                colStart[inversePerm[cols[i]] + 1]++;
+        for (int col = 0; col < size; col++)
+            colStart[col + 1] += colStart[col];
+
+        DMatrixSparseCSC csc = new DMatrixSparseCSC(size, size, colStart[size]);
+        System.arraycopy(colStart, 0, csc.col_idx, 0, size + 1);
+        csc.nz_length = colStart[size];
+
+        // Visit rows in permuted order so row indices in each column come out sorted
+        int[] fill = Arrays.copyOf(colStart, size);
+        for (int newRow = 0; newRow < size; newRow++) {
+            int row = perm[newRow];
+            for (int i = rowStart[row], end = i + rowLength[row]; i < end; i++) {
+                int index = fill[inversePerm[cols[i]]]++;
+                csc.nz_rows[index] = newRow;
+                csc.nz_values[index] = vals[i];
+            }
+        }
+        csc.indicesSorted = true;
+
+        solver = LinearSolverFactory_DSCC.lu(FillReducing.NONE);
+        permutedB = new DMatrixRMaj(size, 1);
+        permutedX = new DMatrixRMaj(size, 1);
+        return solver.setA(csc);
+    }
+
+    @Override
+    public boolean solve(double[] b, double[] x) {
+        for (int i = 0; i < size; i++)
+            permutedB.data[i] = b[perm[i]];
+        solver.solve(permutedB, permutedX);
+        for (int i = 0; i < size; i++)
+            x[perm[i]] = permutedX.data[i];
+        return isCountable(x);
+    }
+
+    /**
+     * Minimum degree ordering of the symmetric structure of the matrix (A + A^T).
+     * Repeatedly eliminates the node with the fewest neighbours, connecting its
+     * neighbours to each other (the fill its elimination causes). Hub nodes, ie a supply
+     * rail feeding many loads, are eliminated last so they don't fill in every row.
+     * @return perm, where perm[new index] = old index
+     */
+    private int[] minimumDegree() {
+        // Adjacency lists without self loops or duplicates. Eliminated nodes are
+        // left in lists, they are skipped when read
+        int[][] adj = new int[size][];
+        int[] adjLength = new int[size];
+        int[] degree = new int[size];
+        int[] mark = new int[size];
+        int stamp = 0;
+        for (int row = 0; row < size; row++)
+            adj[row] = new int[Math.max(4, rowLength[row])];
+        for (int row = 0; row < size; row++) {
+            for (int i = rowStart[row], end = i + rowLength[row]; i < end; i++) {
+                int col = cols[i];
+                if (col != row && !isAdjacent(adj, adjLength, row, col)) {
+                    adj = addEdge(adj, adjLength, row, col);
+                    degree[row]++;
+                    degree[col]++;
+                }
+            }
+        }
+
+        // Nodes in doubly linked lists by degree
+        int[] head = new int[size + 1];
+        int[] next = new int[size];
+        int[] prev = new int[size];
+        Arrays.fill(head, -1);
+        for (int node = 0; node < size; node++)
+            link(head, next, prev, node, degree[node]);
+
+        int[] perm = new int[size];
+        boolean[] eliminated = new boolean[size];
+        int[] neighbours = new int[size];
+        int minDegree = 0;
+
+        for (int k = 0; k < size; k++) {
+            while (head[minDegree] < 0)
+                minDegree++;
+            int node = head[minDegree];
+            unlink(head, next, prev, node, minDegree);
+            perm[k] = node;
+            eliminated[node] = true;
+
+            // Remaining neighbours, which lose node and gain each other
+            int count = 0;
+            long totalLength = 0;
+            for (int i = 0; i < adjLength[node]; i++) {
+                int n = adj[node][i];
+                if (!eliminated[n]) {
+                    neighbours[count++] = n;
+                    totalLength += adjLength[n];
+                }
+            }
+            adj[node] = null;
+
+            for (int i = 0; i < count; i++) {
+                int u = neighbours[i];
+                unlink(head, next, prev, u, degree[u]);
+                degree[u]--;
+            }
+
+            for (int i = 0; i < count; i++) {
+                int u = neighbours[i];
+                // Check adjacency against whichever side is shorter to read: u's
+                // list once (marked), or the other neighbours' lists. A hub's list is long
+                boolean marked = adjLength[u] < totalLength - adjLength[u];
+                if (marked) {
+                    stamp++;
+                    for (int j = 0; j < adjLength[u]; j++)
+                        mark[adj[u][j]] = stamp;
+                }
+                for (int j = i + 1; j < count; j++) {
+                    int w = neighbours[j];
+                    boolean adjacent = marked ? mark[w] == stamp : isAdjacent(adj, adjLength, w, u);
+                    if (!adjacent) {
+                        adj = addEdge(adj, adjLength, u, w);
+                        degree[u]++;
+                        degree[w]++;
+                    }
+                }
+            }
+
+            for (int i = 0; i < count; i++) {
+                int u = neighbours[i];
+                link(head, next, prev, u, degree[u]);
+                minDegree = Math.min(minDegree, degree[u]);
+            }
+        }
+        return perm;
+    }
+
+    private static boolean isAdjacent(int[][] adj, int[] adjLength, int a, int b) {
+        int[] list = adj[a];
+        for (int i = 0; i < adjLength[a]; i++)
+            if (list[i] == b)
+                return true;
+        return false;
+    }
+
+    private static int[][] addEdge(int[][] adj, int[] adjLength, int a, int b) {
+        for (int k = 0; k < 2; k++) {
+            if (adjLength[a] == adj[a].length)
+                adj[a] = Arrays.copyOf(adj[a], adj[a].length * 2);
+            adj[a][adjLength[a]++] = b;
+            int swap = a; a = b; b = swap;
+        }
+        return adj;
+    }
+
+    private static void link(int[] head, int[] next, int[] prev, int node, int degree) {
+        next[node] = head[degree];
+        prev[node] = -1;
+        if (head[degree] >= 0)
+            prev[head[degree]] = node;
+        head[degree] = node;
+    }
+
+    private static void unlink(int[] head, int[] next, int[] prev, int node, int degree) {
+        if (prev[node] >= 0)
+            next[prev[node]] = next[node];
+        else
+            head[degree] = next[node];
+        if (next[node] >= 0)
+            prev[next[node]] = prev[node];
+    }
+
+    /**
+     * Find position of a column in a row's storage
+     * @param row Row
+     * @param col Col
+     * @return Index into cols / vals, or -1 if not stored
+     */
+    private int indexOf(int row, int col) {
+        for (int i = rowStart[row] + rowLength[row] - 1; i >= rowStart[row]; i--)
+            if (cols[i] == col)
+                return i;
+        return -1;
+    }
+
+    private void append(int row, int col, double value) {
+        if (sharedCols) {
+            cols = cols.clone();
+            sharedCols = false;
+        }
+
+        int length = rowLength[row];
+        if (length == rowCapacity[row]) {
+            // Move the row to the end with double the capacity
+            int capacity = Math.max(length * 2, INITIAL_ROW_CAPACITY);
+            if (used + capacity > cols.length) {
+                int newLength = Math.max(cols.length * 2, used + capacity);
+                cols = Arrays.copyOf(cols, newLength);
+                vals = Arrays.copyOf(vals, newLength);
+            }
+            System.arraycopy(cols, rowStart[row], cols, used, length);
+            System.arraycopy(vals, rowStart[row], vals, used, length);
+            rowStart[row] = used;
+            rowCapacity[row] = capacity;
+            used += capacity;
+        }
+        cols[rowStart[row] + length] = col;
+        vals[rowStart[row] + length] = value;
+        rowLength[row]++;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("SparseCircuitMatrix: " + size + " x " + size +
+                ", " + getNonZeroCount() + " stored entries\n");
+        for (int row = 0; row < size; row++) {
+            builder.append(row).append(":");
+            for (int i = rowStart[row], end = i + rowLength[row]; i < end; i++)
+                builder.append(" (").append(cols[i]).append(", ").append(vals[i]).append(")");
+            builder.append("\n");
+        }
+        return builder.toString();
+    }
+}
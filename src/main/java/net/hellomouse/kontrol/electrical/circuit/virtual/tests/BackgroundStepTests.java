@@ -0,0 +1,56 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.tests.TestConstants.EPSILON;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * Tests for stepping circuits on another thread, with the
+ * solution published when the step is finished.
+ * @author Bowserinator
+ */
+class BackgroundStepTests {
+    /**
+     * 10 V source into a 100 ohm divider (5 V), source changed to 20 V and stepped on another thread.
+     * The owning thread should read 5 V until the step is finished, a resistance changed before
+     * then (300 ohms to ground) should be used by the next step
+     */
+    @Test
+    @DisplayName("Double buffered solution")
+    void test1() throws InterruptedException {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualVoltageSource V1 = new VirtualVoltageSource(10);
+        VirtualResistor R2 = new VirtualResistor(100);
+        circuit.addComponent(V1, 1, 0);
+        circuit.addComponent(new VirtualResistor(100), 1, 2);
+        circuit.addComponent(R2, 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+        assertEquals(5.0, circuit.getNodalVoltage(2), EPSILON);
+
+        V1.setVoltage(20);
+        double[] solved = new double[1];
+        circuit.beginBackgroundStep();
+        Thread thread = new Thread(() -> {
+            circuit.stepInBackground();
+            solved[0] = circuit.getNodalVoltage(2);
+        });
+        thread.start();
+        thread.join();
+
+        assertEquals(10.0, solved[0], EPSILON);
+        assertEquals(5.0, circuit.getNodalVoltage(2), EPSILON);
+        R2.setResistance(300);
+        assertEquals(5.0, circuit.getNodalVoltage(2), EPSILON);
+
+        circuit.finishBackgroundStep();
+        assertEquals(10.0, circuit.getNodalVoltage(2), EPSILON);
+        circuit.step();
+        assertEquals(15.0, circuit.getNodalVoltage(2), EPSILON);
+    }
+}
@@ -195,4 +195,32 @@ class BasicTests {
         assertEquals(5.0, circuit.getNodalVoltage(2), EPSILON);
         assertEquals(-5.0, R1.getVoltage(), EPSILON);
     }
+
+    /**
+     * getNodalVoltages() returns the solution array directly, it should match
+     * getNodalVoltage() for every node and be replaced (not modified) on re-solve
+     */
+    @Test
+    @DisplayName("getNodalVoltages() matches getNodalVoltage()")
+    void test7() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualVoltageSource V1 = new VirtualVoltageSource(10);
+
+        circuit.addComponent(V1, 1, 0);
+        circuit.addComponent(new VirtualResistor(1000), 1, 2);
+        circuit.addComponent(new VirtualResistor(1000), 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        double[] voltages = circuit.getNodalVoltages();
+        assertEquals(3, voltages.length);
+        for (int node = 0; node < voltages.length; node++)
+            assertEquals(circuit.getNodalVoltage(node), voltages[node], EPSILON);
+        assertEquals(5.0, voltages[2], EPSILON);
+
+        V1.setVoltage(20);
+        circuit.solve();
+        assertEquals(5.0, voltages[2], EPSILON);
+        assertEquals(10.0, circuit.getNodalVoltages()[2], EPSILON);
+    }
 }
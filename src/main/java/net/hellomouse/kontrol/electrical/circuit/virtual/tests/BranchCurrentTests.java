@@ -0,0 +1,142 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.tests.TestConstants.EPSILON;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * Tests for currents of voltage sources, diodes and inductors, which are
+ * solved directly (branch currents) instead of from series resistors.
+ * @author Bowserinator
+ */
+class BranchCurrentTests {
+    /**
+     * 10 V source with a 500 ohm resistor and a voltage divider (2 1 kilo-ohm)
+     * both directly across it, so there is no single series resistor
+     */
+    @Test
+    @DisplayName("Voltage source with parallel loads")
+    void test1() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualVoltageSource V1 = new VirtualVoltageSource(10);
+
+        circuit.addComponent(V1, 1, 0);
+        circuit.addComponent(new VirtualResistor(500), 1, 0);
+        circuit.addComponent(new VirtualResistor(1000), 1, 2);
+        circuit.addComponent(new VirtualResistor(1000), 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        assertEquals(-(10.0 / 500 + 10.0 / 2000), V1.getCurrent(), EPSILON);
+        assertEquals(-V1.getCurrent(), circuit.getCurrentThrough(0, 1), EPSILON);
+    }
+
+    /**
+     * 10 V source, 2 diodes (V_Fwd = 0.7) directly in series and 2 parallel
+     * 1 kilo-ohm resistors. Neither diode has a resistor on both sides
+     */
+    @Test
+    @DisplayName("Diodes in series without resistors")
+    void test2() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualVoltageSource V1 = new VirtualVoltageSource(10);
+        VirtualDiode D1 = new VirtualDiode(0.7);
+        VirtualDiode D2 = new VirtualDiode(0.7);
+
+        circuit.addComponent(V1, 1, 0);
+        circuit.addComponent(D1, 1, 2);
+        circuit.addComponent(D2, 2, 3);
+        circuit.addComponent(new VirtualResistor(1000), 3, 0);
+        circuit.addComponent(new VirtualResistor(1000), 3, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        double I = (10.0 - 1.4) / 500.0;
+        assertEquals(I, D1.getCurrent(), EPSILON);
+        assertEquals(I, D2.getCurrent(), EPSILON);
+        assertEquals(-I, V1.getCurrent(), EPSILON);
+    }
+
+    /**
+     * Reverse biased diode in series with a 5 V source and 100 ohm
+     * resistor should not conduct
+     */
+    @Test
+    @DisplayName("Reverse diode")
+    void test3() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualVoltageSource V1 = new VirtualVoltageSource(5);
+        VirtualDiode D1 = new VirtualDiode(0.7);
+
+        circuit.addComponent(V1, 1, 0);
+        circuit.addComponent(D1, 2, 1);
+        circuit.addComponent(new VirtualResistor(100), 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        assertEquals(0.0, D1.getCurrent(), EPSILON);
+        assertEquals(0.0, V1.getCurrent(), EPSILON);
+    }
+
+    /**
+     * RL (10 V, 10 mH, 1 ohm) and RC (10 V, 50 ohm, 1 mF) circuits, the inductor and
+     * capacitor currents should match the series resistor every tick
+     */
+    @Test
+    @DisplayName("Inductor and capacitor currents match series resistor")
+    void test4() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualInductor L1 = new VirtualInductor(0.01);
+        VirtualCapacitor C1 = new VirtualCapacitor(0.001);
+        VirtualResistor R1 = new VirtualResistor(1);
+        VirtualResistor R2 = new VirtualResistor(50);
+
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        circuit.addComponent(L1, 1, 2);
+        circuit.addComponent(R1, 2, 0);
+        circuit.addComponent(R2, 1, 3);
+        circuit.addComponent(C1, 3, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+
+        for (int i = 0; i < 100; i++) {
+            circuit.solve();
+            assertEquals(R1.getCurrent(), L1.getCurrent(), EPSILON);
+            assertEquals(R2.getCurrent(), C1.getCurrent(), EPSILON);
+            circuit.tick();
+        }
+        circuit.solve();
+        assertEquals(10.0, L1.getCurrent(), EPSILON);
+        assertEquals(0.0, C1.getCurrent(), EPSILON);
+    }
+
+    /**
+     * Voltage source added after the circuit was solved, its current and power should
+     * be 0 (like an inductor's previous current) until the circuit is solved again
+     */
+    @Test
+    @DisplayName("Voltage source added after solving")
+    void test5() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualVoltageSource V1 = new VirtualVoltageSource(10);
+        VirtualVoltageSource V2 = new VirtualVoltageSource(5);
+
+        circuit.addComponent(V1, 1, 0);
+        circuit.addComponent(new VirtualResistor(100), 1, 0);
+        circuit.addComponent(new VirtualResistor(100), 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        circuit.addComponent(V2, 2, 0);
+        assertEquals(0.0, V2.getCurrent(), EPSILON);
+        assertEquals(0.0, V2.getPower(), EPSILON);
+
+        circuit.solve();
+        assertEquals(-0.1, V1.getCurrent(), EPSILON);
+        assertEquals(-0.05, V2.getCurrent(), EPSILON);
+    }
+}
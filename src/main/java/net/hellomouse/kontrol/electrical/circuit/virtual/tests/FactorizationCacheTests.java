@@ -0,0 +1,140 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.tests.TestConstants.EPSILON;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests for re-using the factored matrix between solves when
+ * only the right hand side (source values) changes.
+ * @author Bowserinator
+ */
+class FactorizationCacheTests {
+    private static VirtualCircuit uncachedCircuit() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        circuit.changeSettings(new VirtualCircuit.VirtualCircuitSettings().cacheFactorization(false));
+        return circuit;
+    }
+
+    /**
+     * RC circuit (10 V, 50 ohm, 1 mF) ticked 200 times. The capacitor resistance
+     * only changes on the first tick, so the cached circuit should only factor a
+     * few times while giving the same voltages as a circuit that always re-factors.
+     */
+    @Test
+    @DisplayName("RC circuit re-uses factorization")
+    void test1() {
+        VirtualCircuit cached = new VirtualCircuit();
+        VirtualCircuit uncached = uncachedCircuit();
+        VirtualCapacitor C1 = new VirtualCapacitor(0.001);
+        VirtualCapacitor C2 = new VirtualCapacitor(0.001);
+
+        cached.addComponent(new VirtualVoltageSource(10), 1, 0);
+        cached.addComponent(new VirtualResistor(50), 1, 2);
+        cached.addComponent(C1, 2, 0);
+        uncached.addComponent(new VirtualVoltageSource(10), 1, 0);
+        uncached.addComponent(new VirtualResistor(50), 1, 2);
+        uncached.addComponent(C2, 2, 0);
+
+        for (int i = 0; i < 200; i++) {
+            cached.solve();
+            uncached.solve();
+            assertEquals(C2.getVoltage(), C1.getVoltage(), EPSILON);
+            cached.tick();
+            uncached.tick();
+        }
+
+        assertTrue(cached.getFactorizationCount() <= 3);
+        assertEquals(200, uncached.getFactorizationCount());
+    }
+
+    /**
+     * RL circuit (10 V, 1 ohm, 10 mH), same as above but for inductors
+     */
+    @Test
+    @DisplayName("RL circuit re-uses factorization")
+    void test2() {
+        VirtualCircuit cached = new VirtualCircuit();
+        VirtualCircuit uncached = uncachedCircuit();
+        VirtualInductor L1 = new VirtualInductor(0.01);
+        VirtualInductor L2 = new VirtualInductor(0.01);
+
+        cached.addComponent(new VirtualVoltageSource(10), 1, 0);
+        cached.addComponent(new VirtualResistor(1), 1, 2);
+        cached.addComponent(L1, 2, 0);
+        uncached.addComponent(new VirtualVoltageSource(10), 1, 0);
+        uncached.addComponent(new VirtualResistor(1), 1, 2);
+        uncached.addComponent(L2, 2, 0);
+
+        for (int i = 0; i < 200; i++) {
+            cached.solve();
+            uncached.solve();
+            assertEquals(L2.getCurrent(), L1.getCurrent(), EPSILON);
+            cached.tick();
+            uncached.tick();
+        }
+
+        assertTrue(cached.getFactorizationCount() <= 3);
+    }
+
+    /**
+     * Voltage divider (10 V, 1 kilo-ohm and 1 kilo-ohm), then the second
+     * resistor is changed to 3 kilo-ohm. Changing a resistance must invalidate
+     * the cached factorization (low rank updates are disabled, see LowRankUpdateTests)
+     */
+    @Test
+    @DisplayName("Changing resistance re-factors")
+    void test3() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        circuit.changeSettings(new VirtualCircuit.VirtualCircuitSettings().maxLowRankUpdates(0));
+        VirtualResistor R1 = new VirtualResistor(1000);
+        VirtualResistor R2 = new VirtualResistor(1000);
+
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        circuit.addComponent(R1, 1, 2);
+        circuit.addComponent(R2, 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+        assertEquals(-5.0, R2.getVoltage(), EPSILON);
+
+        // Same value, nothing to re-factor
+        int factorizations = circuit.getFactorizationCount();
+        R2.setResistance(1000);
+        circuit.solve();
+        assertEquals(factorizations, circuit.getFactorizationCount());
+
+        R2.setResistance(3000);
+        circuit.solve();
+        assertEquals(factorizations + 1, circuit.getFactorizationCount());
+        assertEquals(-7.5, R2.getVoltage(), EPSILON);
+    }
+
+    /**
+     * Voltage source voltage only affects the right hand side, changing
+     * it should give a new solution without re-factoring
+     */
+    @Test
+    @DisplayName("Changing source voltage does not re-factor")
+    void test4() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualVoltageSource V1 = new VirtualVoltageSource(10);
+        VirtualResistor R1 = new VirtualResistor(1000);
+
+        circuit.addComponent(V1, 1, 0);
+        circuit.addComponent(R1, 1, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        int factorizations = circuit.getFactorizationCount();
+        V1.setVoltage(20);
+        circuit.solve();
+        assertEquals(factorizations, circuit.getFactorizationCount());
+        assertEquals(0.02, R1.getCurrent(), EPSILON);
+    }
+}
@@ -0,0 +1,119 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.IntegrationMethod;
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuitConstants.DT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests for integration methods and adaptive sub-stepping of capacitors and inductors.
+ * @author Bowserinator
+ */
+class IntegrationTests {
+    /**
+     * Build an RC circuit (10 V, 20 ohm, 1 mF, tau = 20 ms) and step it
+     * @param settings Circuit settings
+     * @param steps Number of steps
+     * @return Capacitor voltage after stepping
+     */
+    private static double stepRC(VirtualCircuit.VirtualCircuitSettings settings, int steps) {
+        VirtualCircuit circuit = new VirtualCircuit();
+        circuit.changeSettings(settings);
+        VirtualCapacitor C1 = new VirtualCapacitor(0.001);
+
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        circuit.addComponent(new VirtualResistor(20), 1, 2);
+        circuit.addComponent(C1, 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        for (int i = 0; i < steps; i++)
+            circuit.step();
+        return Math.abs(C1.getVoltage());
+    }
+
+    /**
+     * RC circuit with a time constant smaller than DT, stepped once. Adaptive
+     * stepping should be much closer to the exact voltage than a single step
+     */
+    @Test
+    @DisplayName("Adaptive stepping RC accuracy")
+    void test1() {
+        double exact = 10 * (1 - Math.exp(-DT / 0.02));
+        for (IntegrationMethod method : IntegrationMethod.values()) {
+            double fixed = stepRC(new VirtualCircuit.VirtualCircuitSettings().integrationMethod(method), 1);
+            double adaptive = stepRC(new VirtualCircuit.VirtualCircuitSettings().integrationMethod(method).adaptiveStepping(true), 1);
+
+            assertTrue(Math.abs(adaptive - exact) < Math.abs(fixed - exact));
+            assertEquals(exact, adaptive, 0.05);
+        }
+    }
+
+    /**
+     * RC circuit (10 V, 1 kilo-ohm, 1 mF, tau = 1 s) stepped 20 times with each method,
+     * compared to the exact voltage. The second order methods should be more accurate
+     */
+    @Test
+    @DisplayName("Second order methods")
+    void test2() {
+        double[] errors = new double[IntegrationMethod.values().length];
+        for (IntegrationMethod method : IntegrationMethod.values()) {
+            VirtualCircuit circuit = new VirtualCircuit();
+            circuit.changeSettings(new VirtualCircuit.VirtualCircuitSettings().integrationMethod(method));
+            VirtualCapacitor C1 = new VirtualCapacitor(0.001);
+
+            circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+            circuit.addComponent(new VirtualResistor(1000), 1, 2);
+            circuit.addComponent(C1, 2, 0);
+            circuit.addComponent(new VirtualGround(), 0, 0);
+            circuit.solve();
+            for (int i = 0; i < 20; i++)
+                circuit.step();
+
+            double exact = 10 * (1 - Math.exp(-20 * DT));
+            errors[method.ordinal()] = Math.abs(Math.abs(C1.getVoltage()) - exact);
+        }
+
+        // The first step is always backward Euler, so the second order methods aren't exact
+        assertTrue(errors[IntegrationMethod.TRAPEZOIDAL.ordinal()] < errors[IntegrationMethod.BACKWARD_EULER.ordinal()] / 4);
+        assertTrue(errors[IntegrationMethod.BDF2.ordinal()] < errors[IntegrationMethod.BACKWARD_EULER.ordinal()] / 4);
+    }
+
+    /**
+     * RL circuit (10 V, 1 ohm, 10 mH) with adaptive stepping. Once the current
+     * settles each step should only need 1 solve, re-using the factored matrix
+     */
+    @Test
+    @DisplayName("Adaptive stepping settles")
+    void test3() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        circuit.changeSettings(new VirtualCircuit.VirtualCircuitSettings()
+                .integrationMethod(IntegrationMethod.TRAPEZOIDAL).adaptiveStepping(true));
+        VirtualInductor L1 = new VirtualInductor(0.01);
+
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        circuit.addComponent(new VirtualResistor(1), 1, 2);
+        circuit.addComponent(L1, 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        circuit.step();
+        assertTrue(circuit.getSubStepCount() > 1);
+        assertEquals(10 * (1 - Math.exp(-DT / 0.01)), L1.getCurrent(), 0.05);
+
+        for (int i = 0; i < 20; i++)
+            circuit.step();
+        int subSteps = circuit.getSubStepCount();
+        int factorizations = circuit.getFactorizationCount();
+        circuit.step();
+        assertEquals(subSteps + 1, circuit.getSubStepCount());
+        assertEquals(factorizations, circuit.getFactorizationCount());
+        assertEquals(10.0, L1.getCurrent(), 1e-3);
+    }
+}
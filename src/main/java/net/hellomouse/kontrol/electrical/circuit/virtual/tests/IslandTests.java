@@ -0,0 +1,90 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.tests.TestConstants.EPSILON;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * Tests for splitting a circuit into independent islands, which
+ * are solved as separate (smaller) matrices.
+ * @author Bowserinator
+ */
+class IslandTests {
+    /**
+     * Add a 10 V source with a voltage divider (2 100 ohm resistors), grounded at node0
+     * @param circuit Circuit to add to
+     * @param node0 Ground node, uses node0 to node0 + 2
+     */
+    private static void addDivider(VirtualCircuit circuit, int node0) {
+        circuit.addComponent(new VirtualVoltageSource(10), node0 + 1, node0);
+        circuit.addComponent(new VirtualResistor(100), node0 + 1, node0 + 2);
+        circuit.addComponent(new VirtualResistor(100), node0 + 2, node0);
+        circuit.addComponent(new VirtualGround(), node0, node0);
+    }
+
+    /**
+     * 2 voltage dividers that share no nodes should be solved as 2 islands
+     */
+    @Test
+    @DisplayName("Separate grounded circuits")
+    void test1() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        addDivider(circuit, 0);
+        addDivider(circuit, 3);
+        circuit.solve();
+
+        assertEquals(2, circuit.getIslands().size());
+        assertEquals(5.0, circuit.getNodalVoltage(2), EPSILON);
+        assertEquals(5.0, circuit.getNodalVoltage(5), EPSILON);
+    }
+
+    /**
+     * Voltage divider connected to 2 100 ohm resistors through an open switch (1e9 ohm).
+     * The resistors float, so they take the voltage of the node across the switch
+     * (10 V). No ground should be added to the circuit
+     */
+    @Test
+    @DisplayName("Floating island behind open switch")
+    void test2() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        addDivider(circuit, 0);
+        circuit.addComponent(new VirtualResistor(1e9), 1, 3);
+        circuit.addComponent(new VirtualResistor(100), 3, 4);
+        circuit.addComponent(new VirtualResistor(100), 4, 5);
+        int componentCount = circuit.getComponents().size();
+        circuit.solve();
+
+        assertEquals(2, circuit.getIslands().size());
+        assertEquals(componentCount, circuit.getComponents().size());
+        assertEquals(10.0, circuit.getNodalVoltage(3), EPSILON);
+        assertEquals(10.0, circuit.getNodalVoltage(5), EPSILON);
+    }
+
+    /**
+     * 16 voltage dividers solved in parallel should match solving them one by one
+     */
+    @Test
+    @DisplayName("Parallel solving matches sequential")
+    void test3() {
+        VirtualCircuit sequential = new VirtualCircuit();
+        VirtualCircuit parallel = new VirtualCircuit();
+        sequential.changeSettings(new VirtualCircuit.VirtualCircuitSettings().parallelIslandThreshold(Integer.MAX_VALUE));
+        parallel.changeSettings(new VirtualCircuit.VirtualCircuitSettings().parallelIslandThreshold(0));
+
+        for (int i = 0; i < 16; i++) {
+            addDivider(sequential, i * 3);
+            addDivider(parallel, i * 3);
+        }
+        sequential.solve();
+        parallel.solve();
+
+        assertEquals(16, parallel.getIslands().size());
+        for (int i = 0; i < 16 * 3; i++)
+            assertEquals(sequential.getNodalVoltage(i), parallel.getNodalVoltage(i), EPSILON);
+    }
+}
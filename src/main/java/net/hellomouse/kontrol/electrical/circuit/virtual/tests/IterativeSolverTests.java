@@ -0,0 +1,146 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import net.hellomouse.kontrol.electrical.circuit.virtual.solver.ConjugateGradientSolver.Preconditioner;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.tests.TestConstants.EPSILON;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests for solving large islands iteratively (preconditioned conjugate gradient),
+ * solutions should match the direct solver.
+ * @author Bowserinator
+ */
+class IterativeSolverTests {
+    private static final int GRID_SIZE = 30;
+
+    private static VirtualCircuit iterativeCircuit(Preconditioner preconditioner) {
+        VirtualCircuit circuit = new VirtualCircuit();
+        circuit.changeSettings(new VirtualCircuit.VirtualCircuitSettings()
+                .iterativeSolver(preconditioner).iterativeThreshold(0).iterativeTolerance(1e-12));
+        return circuit;
+    }
+
+    /**
+     * Add a GRID_SIZE x GRID_SIZE grid of 1 to 2 ohm resistors, node ids 0 ... GRID_SIZE^2 - 1
+     * @param circuit Circuit to add to
+     */
+    private static void addGrid(VirtualCircuit circuit) {
+        for (int y = 0; y < GRID_SIZE; y++) {
+            for (int x = 0; x < GRID_SIZE; x++) {
+                int node = y * GRID_SIZE + x;
+                if (x < GRID_SIZE - 1)
+                    circuit.addComponent(new VirtualResistor(1 + (node % 7) / 7.0), node, node + 1);
+                if (y < GRID_SIZE - 1)
+                    circuit.addComponent(new VirtualResistor(1 + (node % 5) / 5.0), node, node + GRID_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Grid grounded at one corner with 2 A into the opposite corner and 0.5 A into the
+     * center, with both preconditioners. Voltages should match the direct solver
+     */
+    @Test
+    @DisplayName("Resistor grid with current sources")
+    void test1() {
+        VirtualCircuit direct = new VirtualCircuit();
+        VirtualCircuit jacobi = iterativeCircuit(Preconditioner.JACOBI);
+        VirtualCircuit cholesky = iterativeCircuit(Preconditioner.INCOMPLETE_CHOLESKY);
+        int last = GRID_SIZE * GRID_SIZE - 1;
+
+        for (VirtualCircuit circuit : new VirtualCircuit[] { direct, jacobi, cholesky }) {
+            addGrid(circuit);
+            circuit.addComponent(new VirtualCurrentSource(2), last, 0);
+            circuit.addComponent(new VirtualCurrentSource(0.5), last / 2, 0);
+            circuit.addComponent(new VirtualGround(), 0, 0);
+            circuit.solve();
+        }
+
+        assertEquals(1, jacobi.getIterativeSolveCount());
+        assertEquals(1, cholesky.getIterativeSolveCount());
+        for (int node = 0; node <= last; node++) {
+            assertEquals(direct.getNodalVoltage(node), jacobi.getNodalVoltage(node), EPSILON);
+            assertEquals(direct.getNodalVoltage(node), cholesky.getNodalVoltage(node), EPSILON);
+        }
+    }
+
+    /**
+     * Grid fed by a 10 V source (from ground) and a diode, with a 5 V source floating between 2 other
+     * grid nodes. Only the second can't be solved iteratively, and should fall back to the direct solver
+     */
+    @Test
+    @DisplayName("Voltage sources")
+    void test2() {
+        int last = GRID_SIZE * GRID_SIZE - 1;
+        int source = last + 1;
+        VirtualVoltageSource[] sources = new VirtualVoltageSource[3];
+        VirtualCircuit[] circuits = new VirtualCircuit[] {
+                new VirtualCircuit(), iterativeCircuit(Preconditioner.INCOMPLETE_CHOLESKY), iterativeCircuit(Preconditioner.INCOMPLETE_CHOLESKY)
+        };
+
+        for (int i = 0; i < circuits.length; i++) {
+            VirtualCircuit circuit = circuits[i];
+            sources[i] = new VirtualVoltageSource(10);
+            addGrid(circuit);
+            circuit.addComponent(sources[i], source, 0);
+            circuit.addComponent(new VirtualDiode(0.7), source, last);
+            circuit.addComponent(new VirtualGround(), 0, 0);
+            if (i == 2)
+                circuit.addComponent(new VirtualVoltageSource(5), GRID_SIZE - 1, last - GRID_SIZE + 1);
+            circuit.solve();
+        }
+
+        assertTrue(circuits[1].getIterativeSolveCount() > 0);
+        assertEquals(0, circuits[2].getIterativeSolveCount());
+        assertEquals(0, circuits[1].getIterativeFallbackCount());
+        assertEquals(sources[0].getCurrent(), sources[1].getCurrent(), EPSILON);
+        for (int node = 0; node <= source; node++)
+            assertEquals(circuits[0].getNodalVoltage(node), circuits[1].getNodalVoltage(node), EPSILON);
+        assertEquals(5.0, circuits[2].getNodalVoltage(GRID_SIZE - 1) - circuits[2].getNodalVoltage(last - GRID_SIZE + 1), EPSILON);
+    }
+
+    /**
+     * Grid grounded at a corner and charged through a capacitor (1 mF, 10 ohms) from a 10 V source.
+     * Each tick starts from the last solution and should match the direct solver. With too
+     * few iterations allowed, solves should fall back to the direct solver
+     */
+    @Test
+    @DisplayName("Warm start and fallback")
+    void test3() {
+        int last = GRID_SIZE * GRID_SIZE - 1;
+        VirtualCircuit direct = new VirtualCircuit();
+        VirtualCircuit iterative = iterativeCircuit(Preconditioner.JACOBI);
+        VirtualCircuit limited = new VirtualCircuit();
+        limited.changeSettings(new VirtualCircuit.VirtualCircuitSettings()
+                .iterativeSolver(Preconditioner.JACOBI).iterativeThreshold(0).maxIterativeIterations(2));
+
+        for (VirtualCircuit circuit : new VirtualCircuit[] { direct, iterative, limited }) {
+            addGrid(circuit);
+            circuit.addComponent(new VirtualVoltageSource(10), last + 1, 0);
+            circuit.addComponent(new VirtualResistor(10), last + 1, last + 2);
+            circuit.addComponent(new VirtualCapacitor(0.001), last + 2, last);
+            circuit.addComponent(new VirtualGround(), 0, 0);
+        }
+
+        for (int i = 0; i < 50; i++) {
+            for (VirtualCircuit circuit : new VirtualCircuit[] { direct, iterative, limited }) {
+                circuit.solve();
+                circuit.tick();
+            }
+            for (int node = 0; node <= last + 2; node++) {
+                assertEquals(direct.getNodalVoltage(node), iterative.getNodalVoltage(node), EPSILON);
+                assertEquals(direct.getNodalVoltage(node), limited.getNodalVoltage(node), EPSILON);
+            }
+        }
+
+        assertEquals(50, iterative.getIterativeSolveCount());
+        assertEquals(0, iterative.getIterativeFallbackCount());
+        assertTrue(limited.getIterativeFallbackCount() > 0);
+    }
+}
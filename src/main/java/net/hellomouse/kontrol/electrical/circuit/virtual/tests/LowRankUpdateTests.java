@@ -0,0 +1,154 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.tests.TestConstants.EPSILON;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests for low rank updates of the cached factorization
+ * when a few resistances (switches) change.
+ * @author Bowserinator
+ */
+class LowRankUpdateTests {
+    private static final double SWITCH_OPEN_R = 1e9;
+    private static final double SWITCH_CLOSED_R = 1e-3;
+
+    /**
+     * Builds a ladder: a 10 V source, a chain of 1 ohm resistors and a switch
+     * (resistor) from every chain node to ground
+     * @param circuit Circuit to add to
+     * @param rungs Number of chain nodes
+     * @return Switches, in order of chain node
+     */
+    private static ArrayList<VirtualResistor> buildSwitchboard(VirtualCircuit circuit, int rungs) {
+        ArrayList<VirtualResistor> switches = new ArrayList<>();
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        for (int i = 1; i <= rungs; i++) {
+            circuit.addComponent(new VirtualResistor(1), i, i + 1);
+            VirtualResistor sw = new VirtualResistor(SWITCH_OPEN_R);
+            circuit.addComponent(sw, i + 1, 0);
+            switches.add(sw);
+        }
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        return switches;
+    }
+
+    /**
+     * Toggle one random switch every solve, results should match a
+     * circuit that always re-factors, while rarely factoring.
+     */
+    @Test
+    @DisplayName("Random switch toggles match full re-factor")
+    void test1() {
+        VirtualCircuit updated = new VirtualCircuit();
+        VirtualCircuit refactored = new VirtualCircuit();
+        refactored.changeSettings(new VirtualCircuit.VirtualCircuitSettings().cacheFactorization(false));
+
+        ArrayList<VirtualResistor> updatedSwitches = buildSwitchboard(updated, 20);
+        ArrayList<VirtualResistor> refactoredSwitches = buildSwitchboard(refactored, 20);
+        updated.solve();
+        refactored.solve();
+
+        Random random = new Random(1234);
+        for (int i = 0; i < 100; i++) {
+            int index = random.nextInt(4); // Only a few different switches so updates don't pile up
+            double R = updatedSwitches.get(index).getResistance() == SWITCH_OPEN_R ? SWITCH_CLOSED_R : SWITCH_OPEN_R;
+            updatedSwitches.get(index).setResistance(R);
+            refactoredSwitches.get(index).setResistance(R);
+            updated.solve();
+            refactored.solve();
+
+            for (int node = 0; node <= refactored.getHighestNodeID(); node++)
+                assertEquals(refactored.getNodalVoltage(node), updated.getNodalVoltage(node), EPSILON);
+        }
+
+        assertTrue(updated.getLowRankUpdateCount() > 0);
+        assertTrue(updated.getFactorizationCount() < 10);
+    }
+
+    /**
+     * Closing more switches than maxLowRankUpdates allows should
+     * fall back to factoring the matrix again
+     */
+    @Test
+    @DisplayName("Too many changes re-factors")
+    void test2() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        circuit.changeSettings(new VirtualCircuit.VirtualCircuitSettings().maxLowRankUpdates(2));
+        ArrayList<VirtualResistor> switches = buildSwitchboard(circuit, 10);
+        circuit.solve();
+        int factorizations = circuit.getFactorizationCount();
+
+        // Switch from last chain node to ground, 1 row changes
+        // 10 V over 10 ohms of chain + closed switch
+        switches.get(9).setResistance(SWITCH_CLOSED_R);
+        circuit.solve();
+        assertEquals(factorizations, circuit.getFactorizationCount());
+        assertEquals(10.0 / (10 + SWITCH_CLOSED_R), switches.get(9).getCurrent(), EPSILON);
+
+        // 3 rows now differ from the factored matrix
+        // Closed switch at node 5 shorts almost everything after it
+        switches.get(3).setResistance(SWITCH_CLOSED_R);
+        switches.get(5).setResistance(SWITCH_CLOSED_R);
+        circuit.solve();
+        assertEquals(factorizations + 1, circuit.getFactorizationCount());
+        assertEquals(10.0 / (4 + SWITCH_CLOSED_R), switches.get(3).getCurrent(), 0.01);
+    }
+
+    /**
+     * Same as test1 but a 15 x 15 resistor grid with the sparse solver,
+     * switches connect random grid nodes to ground
+     */
+    @Test
+    @DisplayName("Sparse grid switch toggles match full re-factor")
+    void test3() {
+        int n = 15;
+        VirtualCircuit updated = new VirtualCircuit();
+        VirtualCircuit refactored = new VirtualCircuit();
+        updated.changeSettings(new VirtualCircuit.VirtualCircuitSettings().sparseThreshold(0));
+        refactored.changeSettings(new VirtualCircuit.VirtualCircuitSettings().sparseThreshold(0).cacheFactorization(false));
+
+        ArrayList<VirtualResistor> updatedSwitches = new ArrayList<>();
+        ArrayList<VirtualResistor> refactoredSwitches = new ArrayList<>();
+        for (VirtualCircuit circuit : new VirtualCircuit[] { updated, refactored }) {
+            for (int y = 0; y < n; y++) {
+                for (int x = 0; x < n; x++) {
+                    int node = y * n + x + 1;
+                    if (x < n - 1) circuit.addComponent(new VirtualResistor(1), node, node + 1);
+                    if (y < n - 1) circuit.addComponent(new VirtualResistor(1), node, node + n);
+                }
+            }
+            for (int i = 0; i < 5; i++) {
+                VirtualResistor sw = new VirtualResistor(SWITCH_OPEN_R);
+                circuit.addComponent(sw, 20 + 40 * i, 0);
+                (circuit == updated ? updatedSwitches : refactoredSwitches).add(sw);
+            }
+            circuit.addComponent(new VirtualVoltageSource(5), 1, 0);
+            circuit.addComponent(new VirtualGround(), 0, 0);
+            circuit.solve();
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < 50; i++) {
+            int index = random.nextInt(5);
+            double R = updatedSwitches.get(index).getResistance() == SWITCH_OPEN_R ? SWITCH_CLOSED_R : SWITCH_OPEN_R;
+            updatedSwitches.get(index).setResistance(R);
+            refactoredSwitches.get(index).setResistance(R);
+            updated.solve();
+            refactored.solve();
+
+            for (int node = 0; node <= n * n; node++)
+                assertEquals(refactored.getNodalVoltage(node), updated.getNodalVoltage(node), EPSILON);
+        }
+        assertTrue(updated.getLowRankUpdateCount() > 0);
+    }
+}
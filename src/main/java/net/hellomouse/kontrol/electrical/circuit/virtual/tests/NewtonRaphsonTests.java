@@ -0,0 +1,109 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.tests.TestConstants.EPSILON;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests for solving non-linear components (diodes) with Newton-Raphson iteration.
+ * @author Bowserinator
+ */
+class NewtonRaphsonTests {
+    /**
+     * 5 V source, 1 kilo-ohm resistor and a Shockley diode (V_fwd = 0.7 at 10 mA). The diode
+     * voltage should solve 5 - V = 1000 I_s (e^(V / V_t) - 1), found here by bisection
+     */
+    @Test
+    @DisplayName("Shockley diode and resistor")
+    void test1() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualDiode D1 = new VirtualDiode(0.7).model(VirtualDiode.Model.SHOCKLEY);
+        VirtualResistor R1 = new VirtualResistor(1000);
+
+        circuit.addComponent(new VirtualVoltageSource(5), 1, 0);
+        circuit.addComponent(R1, 1, 2);
+        circuit.addComponent(D1, 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        double Vt = VirtualDiode.THERMAL_VOLTAGE;
+        double Is = VirtualDiode.DEFAULT_REFERENCE_CURRENT / Math.expm1(0.7 / Vt);
+        double low = 0.0, high = 0.7;
+        for (int i = 0; i < 100; i++) {
+            double V = (low + high) / 2;
+            if ((5 - V) / 1000 > Is * Math.expm1(V / Vt)) low = V;
+            else high = V;
+        }
+
+        assertEquals(0, circuit.getNonConvergedCount());
+        assertEquals(low, D1.getVoltage(), EPSILON);
+        assertEquals((5 - low) / 1000, R1.getCurrent(), EPSILON);
+        assertEquals(R1.getCurrent(), D1.getCurrent(), EPSILON);
+    }
+
+    /**
+     * LED wall: 12 V source through a shared 10 ohm resistor to 64 LEDs (V_fwd = 2) in
+     * parallel, each with its own resistor (100 to 163 ohms) to ground. All LEDs turn on, and
+     * both models should converge within the iteration limit
+     */
+    @Test
+    @DisplayName("LED wall converges")
+    void test2() {
+        for (VirtualDiode.Model model : VirtualDiode.Model.values()) {
+            VirtualCircuit circuit = new VirtualCircuit();
+            ArrayList<VirtualDiode> leds = new ArrayList<>();
+
+            circuit.addComponent(new VirtualVoltageSource(12), 1, 0);
+            circuit.addComponent(new VirtualResistor(10), 1, 2);
+            circuit.addComponent(new VirtualGround(), 0, 0);
+            for (int i = 0; i < 64; i++) {
+                VirtualDiode led = new VirtualDiode(2).model(model);
+                circuit.addComponent(led, 2, 3 + i);
+                circuit.addComponent(new VirtualResistor(100 + i), 3 + i, 0);
+                leds.add(led);
+            }
+            circuit.solve();
+
+            assertEquals(0, circuit.getNonConvergedCount());
+            assertTrue(circuit.getLastNewtonIterations() <= VirtualCircuit.VirtualCircuitSettings.DEFAULT_MAX_ITERATIONS);
+            for (VirtualDiode led : leds)
+                assertTrue(led.getCurrent() > 0.0);
+
+            // Solving again starts from the last operating point
+            circuit.solve();
+            assertEquals(0, circuit.getLastNewtonIterations());
+        }
+    }
+
+    /**
+     * Piecewise linear LED wall should match the ideal diode result: with all LEDs on,
+     * node 2 is at V and sum((V - 2) / R_i) = (12 - V) / 10
+     */
+    @Test
+    @DisplayName("Piecewise linear LED wall")
+    void test3() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        circuit.addComponent(new VirtualVoltageSource(12), 1, 0);
+        circuit.addComponent(new VirtualResistor(10), 1, 2);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        double G = 0.0;
+        for (int i = 0; i < 16; i++) {
+            circuit.addComponent(new VirtualDiode(2), 2, 3 + i);
+            circuit.addComponent(new VirtualResistor(100 + i), 3 + i, 0);
+            G += 1.0 / (100 + i);
+        }
+        circuit.solve();
+
+        double V = (12.0 / 10 + 2 * G) / (1.0 / 10 + G);
+        assertEquals(0, circuit.getNonConvergedCount());
+        assertEquals(V, circuit.getNodalVoltage(2), EPSILON);
+    }
+}
@@ -0,0 +1,133 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.tests.TestConstants.EPSILON;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Tests for restoring a saved circuit (component state and solution) into
+ * new components, as Circuit does when a world is loaded.
+ * @author Bowserinator
+ */
+class PersistenceTests {
+    /**
+     * 10 V source, 10 ohm resistor, 0.1 H inductor and 0.01 F capacitor in series
+     * @return Circuit, not solved
+     */
+    private static VirtualCircuit createRLC() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        circuit.addComponent(new VirtualResistor(10), 1, 2);
+        circuit.addComponent(new VirtualInductor(0.1), 2, 3);
+        circuit.addComponent(new VirtualCapacitor(0.01), 3, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        return circuit;
+    }
+
+    /**
+     * Copy a circuit's saved state into an identical circuit
+     * @param saved Circuit to save
+     * @param restored Circuit with the same components, not solved
+     * @return Did restoreSolution succeed?
+     */
+    private static boolean restore(VirtualCircuit saved, VirtualCircuit restored) {
+        ArrayList<AbstractVirtualComponent> from = saved.getComponents();
+        ArrayList<AbstractVirtualComponent> to = restored.getComponents();
+        double[] branchCurrents = new double[0];
+        for (int i = 0; i < from.size(); i++) {
+            to.get(i).loadState(from.get(i).saveState());
+            if (from.get(i).getBranchIndex() >= 0) {
+                branchCurrents = Arrays.copyOf(branchCurrents, Math.max(branchCurrents.length, to.get(i).getBranchIndex() + 1));
+                branchCurrents[to.get(i).getBranchIndex()] = saved.getBranchCurrent(from.get(i).getBranchIndex());
+            }
+        }
+        return restored.restoreSolution(saved.getHighestNodeID() + 1, saved.getNodalVoltages(), branchCurrents, saved.isSleeping());
+    }
+
+    /**
+     * RLC circuit stepped for 20 ticks, then restored into new components. Both
+     * should have the same solution without solving, and the same solution
+     * after 20 more ticks (capacitor charge and inductor current are kept)
+     */
+    @Test
+    @DisplayName("Restored RLC circuit continues")
+    void test1() {
+        VirtualCircuit saved = createRLC();
+        saved.solve();
+        for (int i = 0; i < 20; i++)
+            saved.step();
+
+        VirtualCircuit restored = createRLC();
+        assertTrue(restore(saved, restored));
+        assertArrayEquals(saved.getNodalVoltages(), restored.getNodalVoltages(), EPSILON);
+        assertEquals(0, restored.getFactorizationCount());
+
+        for (int i = 0; i < 20; i++) {
+            saved.step();
+            restored.step();
+            assertArrayEquals(saved.getNodalVoltages(), restored.getNodalVoltages(), EPSILON);
+        }
+    }
+
+    /**
+     * Resistor divider stepped until it sleeps, then restored. The restored circuit
+     * should keep sleeping (not be solved) until a component changes
+     */
+    @Test
+    @DisplayName("Restored circuit keeps sleeping")
+    void test2() {
+        VirtualCircuit saved = new VirtualCircuit();
+        saved.addComponent(new VirtualVoltageSource(10), 1, 0);
+        saved.addComponent(new VirtualResistor(100), 1, 2);
+        saved.addComponent(new VirtualResistor(100), 2, 0);
+        saved.addComponent(new VirtualGround(), 0, 0);
+        for (int i = 0; i < 50; i++)
+            saved.step();
+        assertTrue(saved.isSleeping());
+
+        VirtualCircuit restored = new VirtualCircuit();
+        VirtualVoltageSource V1 = new VirtualVoltageSource(10);
+        restored.addComponent(V1, 1, 0);
+        restored.addComponent(new VirtualResistor(100), 1, 2);
+        restored.addComponent(new VirtualResistor(100), 2, 0);
+        restored.addComponent(new VirtualGround(), 0, 0);
+        assertTrue(restore(saved, restored));
+
+        restored.step();
+        assertTrue(restored.isSleeping());
+        assertEquals(0, restored.getFactorizationCount());
+        assertEquals(5.0, restored.getNodalVoltage(2), EPSILON);
+
+        V1.setVoltage(20);
+        restored.step();
+        assertEquals(10.0, restored.getNodalVoltage(2), EPSILON);
+    }
+
+    /**
+     * A solution saved with fewer nodes (3 instead of the 4 used by components) or
+     * another number of branches should be rejected. More nodes (5) are added as free nodes
+     */
+    @Test
+    @DisplayName("Mismatched solution is rejected")
+    void test3() {
+        VirtualCircuit restored = createRLC();
+        int branches = 0;
+        for (AbstractVirtualComponent comp : restored.getComponents())
+            if (comp.getBranchIndex() >= 0)
+                branches++;
+
+        assertFalse(restored.restoreSolution(3, new double[3], new double[branches], false));
+        assertFalse(restored.restoreSolution(4, new double[4], new double[branches + 1], false));
+        assertFalse(restored.isSolved());
+        assertTrue(restored.restoreSolution(5, new double[5], new double[branches], false));
+        assertEquals(5, restored.getHighestNodeID() + 1);
+    }
+}
@@ -0,0 +1,145 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.tests.TestConstants.EPSILON;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests for removing nodes that only connect resistors before
+ * solving (series chains and star nodes, ie cables).
+ * @author Bowserinator
+ */
+class ReductionTests {
+    private static VirtualCircuit unreducedCircuit() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        circuit.changeSettings(new VirtualCircuit.VirtualCircuitSettings().maxReductionDegree(0));
+        return circuit;
+    }
+
+    /**
+     * Add a cable of 0.01 ohm resistors from node1 to node2, each block adds a
+     * center node and 2 resistors like CableBlockEntity
+     * @param circuit Circuit to add to
+     * @param node1 Start node
+     * @param node2 End node
+     * @param blocks Number of blocks
+     * @param nextNode First unused node id
+     * @return Next unused node id
+     */
+    private static int addCable(VirtualCircuit circuit, int node1, int node2, int blocks, int nextNode) {
+        int prev = node1;
+        for (int i = 0; i < blocks; i++) {
+            int center = nextNode++;
+            int next = i == blocks - 1 ? node2 : nextNode++;
+            circuit.addComponent(new VirtualResistor(0.01), prev, center);
+            circuit.addComponent(new VirtualResistor(0.01), center, next);
+            prev = next;
+        }
+        return nextNode;
+    }
+
+    /**
+     * 10 V source through a 200 block cable into a 100 ohm resistor. The cable is
+     * 4 ohms total and all its nodes (and node 2, which only connects resistors) should
+     * be removed, with voltages along it the same as without reduction
+     */
+    @Test
+    @DisplayName("Long cable")
+    void test1() {
+        VirtualCircuit reduced = new VirtualCircuit();
+        VirtualCircuit unreduced = unreducedCircuit();
+        VirtualResistor R1 = new VirtualResistor(100);
+        VirtualResistor R2 = new VirtualResistor(100);
+
+        for (VirtualCircuit circuit : new VirtualCircuit[] { reduced, unreduced }) {
+            circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+            circuit.addComponent(circuit == reduced ? R1 : R2, 2, 0);
+            circuit.addComponent(new VirtualGround(), 0, 0);
+            addCable(circuit, 1, 2, 200, 3);
+            circuit.solve();
+        }
+
+        assertEquals(400, reduced.getRemovedNodeCount());
+        assertEquals(10.0 / 104.0, R1.getCurrent(), EPSILON);
+        for (int node = 0; node <= unreduced.getHighestNodeID(); node++)
+            assertEquals(unreduced.getNodalVoltage(node), reduced.getNodalVoltage(node), EPSILON);
+    }
+
+    /**
+     * 3 cables meeting at a junction block (star node with 3 resistors), going
+     * to a 10 V source and 2 loads (50, 200 ohms). Currents of the removed resistors
+     * should be the same as without reduction
+     */
+    @Test
+    @DisplayName("Cable junction")
+    void test2() {
+        VirtualCircuit reduced = new VirtualCircuit();
+        VirtualCircuit unreduced = unreducedCircuit();
+
+        for (VirtualCircuit circuit : new VirtualCircuit[] { reduced, unreduced }) {
+            circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+            circuit.addComponent(new VirtualResistor(50), 2, 0);
+            circuit.addComponent(new VirtualResistor(200), 3, 0);
+            circuit.addComponent(new VirtualGround(), 0, 0);
+
+            // Junction: center node 4 with resistors to nodes 5, 6, 7
+            circuit.addComponent(new VirtualResistor(0.01), 4, 5);
+            circuit.addComponent(new VirtualResistor(0.01), 4, 6);
+            circuit.addComponent(new VirtualResistor(0.01), 4, 7);
+            int nextNode = addCable(circuit, 1, 5, 10, 8);
+            nextNode = addCable(circuit, 6, 2, 10, nextNode);
+            addCable(circuit, 7, 3, 10, nextNode);
+            circuit.solve();
+        }
+
+        assertTrue(reduced.getRemovedNodeCount() > 0);
+        for (int node = 0; node <= unreduced.getHighestNodeID(); node++)
+            assertEquals(unreduced.getNodalVoltage(node), reduced.getNodalVoltage(node), EPSILON);
+
+        ArrayList<AbstractVirtualComponent> reducedComponents = reduced.getComponents();
+        ArrayList<AbstractVirtualComponent> unreducedComponents = unreduced.getComponents();
+        for (int i = 0; i < reducedComponents.size(); i++)
+            assertEquals(unreducedComponents.get(i).getCurrent(), reducedComponents.get(i).getCurrent(), EPSILON);
+    }
+
+    /**
+     * Cable with a switch in the middle, toggled a few times. Results should
+     * match a circuit without reduction
+     */
+    @Test
+    @DisplayName("Switch in cable")
+    void test3() {
+        VirtualCircuit reduced = new VirtualCircuit();
+        VirtualCircuit unreduced = unreducedCircuit();
+        VirtualResistor reducedSwitch = new VirtualResistor(0.01);
+        VirtualResistor unreducedSwitch = new VirtualResistor(0.01);
+
+        for (VirtualCircuit circuit : new VirtualCircuit[] { reduced, unreduced }) {
+            circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+            circuit.addComponent(new VirtualResistor(100), 2, 0);
+            circuit.addComponent(new VirtualGround(), 0, 0);
+            circuit.addComponent(circuit == reduced ? reducedSwitch : unreducedSwitch, 3, 4);
+            int nextNode = addCable(circuit, 1, 3, 20, 5);
+            addCable(circuit, 4, 2, 20, nextNode);
+        }
+
+        for (int i = 0; i < 4; i++) {
+            double R = i % 2 == 0 ? 0.01 : 1e9;
+            reducedSwitch.setResistance(R);
+            unreducedSwitch.setResistance(R);
+            reduced.solve();
+            unreduced.solve();
+
+            for (int node = 0; node <= unreduced.getHighestNodeID(); node++)
+                assertEquals(unreduced.getNodalVoltage(node), reduced.getNodalVoltage(node), EPSILON);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.tests.TestConstants.EPSILON;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+/**
+ * Tests for circuits sleeping at steady state, and waking up on changes.
+ * @author Bowserinator
+ */
+class SleepTests {
+    /**
+     * RC circuit (10 V, 50 ohm, 1 mF) charges and sleeps. Changing
+     * the source voltage should wake it and charge to the new voltage
+     */
+    @Test
+    @DisplayName("Charged capacitor sleeps")
+    void test1() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualVoltageSource V1 = new VirtualVoltageSource(10);
+        VirtualCapacitor C1 = new VirtualCapacitor(0.001);
+
+        circuit.addComponent(V1, 1, 0);
+        circuit.addComponent(new VirtualResistor(50), 1, 2);
+        circuit.addComponent(C1, 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        for (int i = 0; i < 200 && !circuit.isSleeping(); i++)
+            circuit.step();
+        assertTrue(circuit.isSleeping());
+        assertEquals(10.0, Math.abs(C1.getVoltage()), EPSILON);
+
+        int steps = circuit.getSubStepCount();
+        circuit.step();
+        assertEquals(steps, circuit.getSubStepCount());
+
+        V1.setVoltage(5);
+        assertFalse(circuit.isSleeping());
+        for (int i = 0; i < 200 && !circuit.isSleeping(); i++)
+            circuit.step();
+        assertTrue(circuit.isSleeping());
+        assertEquals(5.0, Math.abs(C1.getVoltage()), EPSILON);
+    }
+
+    /**
+     * Sleeping RL circuit (10 V, 1 ohm, 10 mH) with a switch (resistor) in parallel
+     * with the load. Closing the switch should wake the circuit
+     */
+    @Test
+    @DisplayName("Switch wakes circuit")
+    void test2() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualInductor L1 = new VirtualInductor(0.01);
+        VirtualResistor S1 = new VirtualResistor(1e9);
+
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        circuit.addComponent(L1, 1, 2);
+        circuit.addComponent(new VirtualResistor(1), 2, 0);
+        circuit.addComponent(S1, 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        for (int i = 0; i < 200 && !circuit.isSleeping(); i++)
+            circuit.step();
+        assertTrue(circuit.isSleeping());
+
+        S1.setResistance(1);
+        assertFalse(circuit.isSleeping());
+        for (int i = 0; i < 200 && !circuit.isSleeping(); i++)
+            circuit.step();
+        assertEquals(20.0, L1.getCurrent(), EPSILON);
+    }
+
+    /**
+     * Circuit with sleeping turned off should never sleep
+     */
+    @Test
+    @DisplayName("Sleep disabled")
+    void test3() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        circuit.changeSettings(new VirtualCircuit.VirtualCircuitSettings().sleepSteps(0));
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        circuit.addComponent(new VirtualResistor(50), 1, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+
+        for (int i = 0; i < 100; i++)
+            circuit.step();
+        assertFalse(circuit.isSleeping());
+        assertEquals(100, circuit.getSubStepCount());
+    }
+}
@@ -0,0 +1,154 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.tests.TestConstants.EPSILON;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+
+/**
+ * Tests that the sparse solver gives the same results as
+ * the dense one. Sparse solving is forced with sparseThreshold(0)
+ * @author Bowserinator
+ */
+class SparseSolverTests {
+    private static VirtualCircuit sparseCircuit() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        circuit.changeSettings(new VirtualCircuit.VirtualCircuitSettings().sparseThreshold(0));
+        return circuit;
+    }
+
+    /**
+     * Voltage source (10 V) with a voltage divider of 1 kilo-ohm
+     * and 3 kilo-ohm resistors in series
+     */
+    @Test
+    @DisplayName("Voltage divider (sparse)")
+    void test1() {
+        VirtualCircuit circuit = sparseCircuit();
+        VirtualResistor R1 = new VirtualResistor(1000);
+        VirtualResistor R2 = new VirtualResistor(3000);
+
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        circuit.addComponent(R1, 1, 2);
+        circuit.addComponent(R2, 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        assertEquals(-2.5, R1.getVoltage(), EPSILON);
+        assertEquals(-7.5, R2.getVoltage(), EPSILON);
+        assertEquals(0.0025, R1.getCurrent(), EPSILON);
+    }
+
+    /**
+     * Voltage source (10 V), 1 kilo-ohm resistor and diode (V_Fwd = 0.7)
+     * in series, same as the dense circuit in DiodeRTests
+     */
+    @Test
+    @DisplayName("Diode + resistor (sparse)")
+    void test2() {
+        VirtualCircuit circuit = sparseCircuit();
+        VirtualResistor R1 = new VirtualResistor(1000);
+        VirtualDiode D1 = new VirtualDiode(0.7);
+
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        circuit.addComponent(R1, 1, 2);
+        circuit.addComponent(D1, 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        assertEquals(-9.3, R1.getVoltage(), EPSILON);
+        assertEquals(0.7, D1.getVoltage(), EPSILON);
+    }
+
+    /**
+     * RC circuit without a ground (one is auto-added), stepped
+     * for a while with both solvers, results should match every tick
+     */
+    @Test
+    @DisplayName("RC circuit matches dense over time")
+    void test3() {
+        VirtualCircuit dense = new VirtualCircuit();
+        VirtualCircuit sparse = sparseCircuit();
+        VirtualCapacitor C1 = new VirtualCapacitor(0.001);
+        VirtualCapacitor C2 = new VirtualCapacitor(0.001);
+
+        dense.addComponent(new VirtualVoltageSource(10), 1, 0);
+        dense.addComponent(new VirtualResistor(50), 1, 2);
+        dense.addComponent(C1, 2, 0);
+        sparse.addComponent(new VirtualVoltageSource(10), 1, 0);
+        sparse.addComponent(new VirtualResistor(50), 1, 2);
+        sparse.addComponent(C2, 2, 0);
+
+        for (int i = 0; i < 100; i++) {
+            dense.solve();
+            sparse.solve();
+            assertEquals(C1.getVoltage(), C2.getVoltage(), EPSILON);
+            dense.tick();
+            sparse.tick();
+        }
+    }
+
+    /**
+     * 30 x 30 grid of 1 ohm resistors, one corner at 1 V and the opposite
+     * corner grounded. Every node voltage should match the dense solver.
+     */
+    @Test
+    @DisplayName("30x30 resistor grid matches dense")
+    void test4() {
+        int n = 30;
+        VirtualCircuit dense = new VirtualCircuit();
+        VirtualCircuit sparse = sparseCircuit();
+
+        for (VirtualCircuit circuit : new VirtualCircuit[] { dense, sparse }) {
+            for (int y = 0; y < n; y++) {
+                for (int x = 0; x < n; x++) {
+                    int node = y * n + x + 1;
+                    if (x < n - 1) circuit.addComponent(new VirtualResistor(1), node, node + 1);
+                    if (y < n - 1) circuit.addComponent(new VirtualResistor(1), node, node + n);
+                }
+            }
+            circuit.addComponent(new VirtualVoltageSource(1), 1, 0);
+            circuit.addComponent(new VirtualResistor(1), n * n, 0);
+            circuit.addComponent(new VirtualGround(), 0, 0);
+            circuit.solve();
+        }
+
+        for (int node = 0; node <= n * n; node++)
+            assertEquals(dense.getNodalVoltage(node), sparse.getNodalVoltage(node), EPSILON);
+    }
+
+    /**
+     * 2000 branches of a 100 ohm resistor, 1 ohm, 2 V source (a fixed forward voltage, as a
+     * lit LED) and 1 ohm in series from a 10 V supply node to ground, about 6000 nodes.
+     * The supply and ground nodes are hubs shared by every branch, as a supply bus feeding
+     * many loads. Branch voltages should be exact, and the solve should not slow down
+     * from fill-in around the hubs
+     */
+    @Test
+    @DisplayName("Supply bus with 2000 branches (sparse)")
+    void test5() {
+        int branches = 2000;
+        VirtualCircuit circuit = sparseCircuit();
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        for (int i = 0; i < branches; i++) {
+            int node = 3 * i + 2;
+            circuit.addComponent(new VirtualResistor(100), 1, node);
+            circuit.addComponent(new VirtualResistor(1), node, node + 1);
+            circuit.addComponent(new VirtualVoltageSource(2), node + 1, node + 2);
+            circuit.addComponent(new VirtualResistor(1), node + 2, 0);
+        }
+        circuit.addComponent(new VirtualGround(), 0, 0);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(2), () -> { circuit.solve(); });
+        double current = (10.0 - 2.0) / 102;
+        for (int i = 0; i < branches; i++)
+            assertEquals(10.0 - 100 * current, circuit.getNodalVoltage(3 * i + 2), EPSILON);
+    }
+}
@@ -10,6 +10,8 @@ import org.junit.jupiter.api.Test;
  * Just for measuring performance, always pass unless
  * something crashes. Recommended to run one by one
  * as there might be optimization behind the scenes.
+ * For numbers that can be compared between changes, use
+ * the JMH benchmarks in src/jmh (./gradlew jmh) instead.
  * @author Bowserinator
  */
 class SpeedTests {
@@ -0,0 +1,284 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualStampContext;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.conditions.ICustomCondition;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.tests.TestConstants.EPSILON;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+
+/**
+ * Tests for components that stamp themselves (ICustomCondition),
+ * including components with more than 2 nodes.
+ * @author Bowserinator
+ */
+class StampTests {
+    /** 3 terminal component, equal resistors between every pair of its nodes (delta) */
+    private static class VirtualDelta extends AbstractVirtualComponent implements ICustomCondition {
+        private final double resistance;
+
+        VirtualDelta(double resistance) { this.resistance = resistance; }
+
+        @Override
+        public void stamp(VirtualStampContext context) {
+            context.conductance(node1, node2, 1 / resistance);
+            context.conductance(node2, extraNodes[0], 1 / resistance);
+            context.conductance(extraNodes[0], node1, 1 / resistance);
+        }
+    }
+
+    /** Current source from node1 to node2 of gm * (V_extra0 - V_extra1) */
+    private static class VirtualTransconductance extends AbstractVirtualComponent implements ICustomCondition {
+        private final double gm;
+
+        VirtualTransconductance(double gm) { this.gm = gm; }
+
+        @Override
+        public void stamp(VirtualStampContext context) {
+            int row1 = context.nodeRow(node1), row2 = context.nodeRow(node2);
+            int controlRow1 = context.nodeRow(extraNodes[0]), controlRow2 = context.nodeRow(extraNodes[1]);
+            context.addMatrix(row1, controlRow1, -gm);
+            context.addMatrix(row1, controlRow2, gm);
+            context.addMatrix(row2, controlRow1, gm);
+            context.addMatrix(row2, controlRow2, -gm);
+        }
+    }
+
+    /** Resistor from node1 to node2, or to extra node 0 when the second node is selected */
+    private static class VirtualSelector extends AbstractVirtualComponent implements ICustomCondition {
+        private final double resistance;
+        private boolean second = false;
+
+        VirtualSelector(double resistance) { this.resistance = resistance; }
+
+        void select(boolean second) {
+            if (this.second != second)
+                markStampPatternDirty();
+            this.second = second;
+        }
+
+        @Override
+        public void stamp(VirtualStampContext context) {
+            context.conductance(node1, second ? extraNodes[0] : node2, 1 / resistance);
+        }
+    }
+
+    /** Resistors in parallel from node1 to node2, changing the count only marks the matrix dirty */
+    private static class VirtualParallel extends AbstractVirtualComponent implements ICustomCondition {
+        private final double resistance;
+        private int count = 1;
+
+        VirtualParallel(double resistance) { this.resistance = resistance; }
+
+        void setCount(int count) {
+            this.count = count;
+            markMatrixDirty();
+        }
+
+        @Override
+        public void stamp(VirtualStampContext context) {
+            for (int i = 0; i < count; i++)
+                context.conductance(node1, node2, 1 / resistance);
+        }
+    }
+
+    /**
+     * 10 V source across 2 corners of a 300 ohm delta, with the third corner loaded by a 100 ohm
+     * resistor to ground. Should match 3 separate resistors
+     */
+    @Test
+    @DisplayName("Multi-terminal component")
+    void test1() {
+        VirtualCircuit custom = new VirtualCircuit();
+        VirtualCircuit separate = new VirtualCircuit();
+
+        for (VirtualCircuit circuit : new VirtualCircuit[] { custom, separate }) {
+            circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+            circuit.addComponent(new VirtualResistor(100), 3, 0);
+            circuit.addComponent(new VirtualGround(), 0, 0);
+        }
+        custom.addComponent(new VirtualDelta(300), 1, 2, 3);
+        separate.addComponent(new VirtualResistor(300), 1, 2);
+        separate.addComponent(new VirtualResistor(300), 2, 3);
+        separate.addComponent(new VirtualResistor(300), 3, 1);
+        custom.solve();
+        separate.solve();
+
+        for (int node = 0; node <= 3; node++)
+            assertEquals(separate.getNodalVoltage(node), custom.getNodalVoltage(node), EPSILON);
+    }
+
+    /**
+     * Transconductance (10 mS) controlled by a 2 V source, into a 100 ohm load. Should be
+     * the same as a 20 mA current source into the load
+     */
+    @Test
+    @DisplayName("Controlled current source")
+    void test2() {
+        VirtualCircuit custom = new VirtualCircuit();
+        VirtualCircuit reference = new VirtualCircuit();
+
+        for (VirtualCircuit circuit : new VirtualCircuit[] { custom, reference }) {
+            circuit.addComponent(new VirtualVoltageSource(2), 1, 0);
+            circuit.addComponent(new VirtualResistor(1000), 1, 0);
+            circuit.addComponent(new VirtualResistor(100), 2, 0);
+            circuit.addComponent(new VirtualGround(), 0, 0);
+        }
+        custom.addComponent(new VirtualTransconductance(0.01), 2, 0, 1, 0);
+        reference.addComponent(new VirtualCurrentSource(0.02), 2, 0);
+        custom.solve();
+        reference.solve();
+
+        assertEquals(2.0, Math.abs(custom.getNodalVoltage(2)), EPSILON);
+        assertEquals(reference.getNodalVoltage(2), custom.getNodalVoltage(2), EPSILON);
+    }
+
+    /**
+     * Ladder of resistors from a 10 V source, dense and sparse. Changing a resistance re-uses the
+     * stamp plan, making a resistor hi-Z changes it. Should match a new circuit every time
+     */
+    @Test
+    @DisplayName("Re-assembly with a stamp plan")
+    void test3() {
+        VirtualCircuit dense = new VirtualCircuit();
+        VirtualCircuit sparse = new VirtualCircuit();
+        sparse.changeSettings(new VirtualCircuit.VirtualCircuitSettings().sparseThreshold(0));
+        VirtualResistor[][] changed = new VirtualResistor[2][];
+
+        VirtualCircuit[] circuits = new VirtualCircuit[] { dense, sparse };
+        for (int i = 0; i < circuits.length; i++) {
+            changed[i] = addLadder(circuits[i], 10.0, 100.0);
+            circuits[i].solve();
+        }
+
+        double[] resistances = new double[] { 50.0, 200.0, 1e9, 75.0 };
+        for (int step = 0; step < resistances.length; step++) {
+            VirtualCircuit reference = new VirtualCircuit();
+            VirtualResistor[] referenceChanged = addLadder(reference, 10.0, resistances[step]);
+            referenceChanged[1].setHiZ(step == 2);
+            reference.solve();
+
+            for (int i = 0; i < circuits.length; i++) {
+                changed[i][0].setResistance(resistances[step]);
+                changed[i][1].setHiZ(step == 2);
+                circuits[i].solve();
+                for (int node = 0; node <= 4; node++)
+                    assertEquals(reference.getNodalVoltage(node), circuits[i].getNodalVoltage(node), EPSILON);
+            }
+        }
+    }
+
+    /**
+     * 10 V source switched between a 100 ohm and a 300 ohm load by a selector, dense and sparse.
+     * Switching writes the same number of entries to different places once the stamp plan
+     * is validated. Should match a resistor to the selected load every time
+     */
+    @Test
+    @DisplayName("Stamp pattern change after the plan is validated")
+    void test4() {
+        VirtualCircuit dense = new VirtualCircuit();
+        VirtualCircuit sparse = new VirtualCircuit();
+        sparse.changeSettings(new VirtualCircuit.VirtualCircuitSettings().sparseThreshold(0));
+        VirtualSelector[] selectors = new VirtualSelector[2];
+
+        VirtualCircuit[] circuits = new VirtualCircuit[] { dense, sparse };
+        for (int i = 0; i < circuits.length; i++) {
+            selectors[i] = new VirtualSelector(100);
+            addSelectorLoads(circuits[i]);
+            circuits[i].addComponent(selectors[i], 1, 2, 3);
+            for (int j = 0; j < 3; j++)
+                circuits[i].solve();
+        }
+
+        for (int step = 0; step < 4; step++) {
+            boolean second = step % 2 == 0;
+            VirtualCircuit reference = new VirtualCircuit();
+            addSelectorLoads(reference);
+            reference.addComponent(new VirtualResistor(100), 1, second ? 3 : 2);
+            reference.solve();
+
+            for (int i = 0; i < circuits.length; i++) {
+                selectors[i].select(second);
+                for (int j = 0; j < 3; j++) {
+                    circuits[i].solve();
+                    for (int node = 0; node <= 3; node++)
+                        assertEquals(reference.getNodalVoltage(node), circuits[i].getNodalVoltage(node), EPSILON);
+                }
+            }
+        }
+    }
+
+    /**
+     * 10 V source into 100 ohm resistors in parallel, dense and sparse. Changing the count writes
+     * more or fewer entries than the validated stamp plan, without marking its pattern dirty.
+     * Should be recorded again and match a single resistor of the combined resistance
+     */
+    @Test
+    @DisplayName("Write count change after the plan is validated")
+    void test5() {
+        VirtualCircuit dense = new VirtualCircuit();
+        VirtualCircuit sparse = new VirtualCircuit();
+        sparse.changeSettings(new VirtualCircuit.VirtualCircuitSettings().sparseThreshold(0));
+        VirtualParallel[] parallels = new VirtualParallel[2];
+
+        VirtualCircuit[] circuits = new VirtualCircuit[] { dense, sparse };
+        for (int i = 0; i < circuits.length; i++) {
+            parallels[i] = new VirtualParallel(100);
+            circuits[i].addComponent(new VirtualVoltageSource(10), 1, 0);
+            circuits[i].addComponent(new VirtualResistor(100), 1, 2);
+            circuits[i].addComponent(parallels[i], 2, 0);
+            circuits[i].addComponent(new VirtualGround(), 0, 0);
+        }
+
+        // Each count is assembled twice, so the plan is validated before the next change
+        int[] counts = new int[] { 1, 3, 1, 4, 2 };
+        for (int count : counts) {
+            double load = 100.0 / count;
+            for (int i = 0; i < circuits.length; i++) {
+                for (int j = 0; j < 2; j++) {
+                    parallels[i].setCount(count);
+                    circuits[i].solve();
+                    assertEquals(10.0 * load / (100.0 + load), circuits[i].getNodalVoltage(2), EPSILON);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add a 10 V source from node 1 to ground (node 0), and loads of 100 ohms from node 2
+     * and 300 ohms from node 3 to ground
+     * @param circuit Circuit to add to
+     */
+    private static void addSelectorLoads(VirtualCircuit circuit) {
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        circuit.addComponent(new VirtualResistor(100), 2, 0);
+        circuit.addComponent(new VirtualResistor(300), 3, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+    }
+
+    /**
+     * Add a source of voltage from node 1 to ground (node 0), then a ladder through nodes 1 ... 4
+     * with rungs to ground
+     * @param circuit Circuit to add to
+     * @param voltage Source voltage
+     * @param resistance Resistance of the rung at node 2
+     * @return The rung at node 2 (resistance) and the ladder resistor from 3 to 4
+     */
+    private static VirtualResistor[] addLadder(VirtualCircuit circuit, double voltage, double resistance) {
+        VirtualResistor rung = new VirtualResistor(resistance);
+        VirtualResistor last = new VirtualResistor(30);
+        circuit.addComponent(new VirtualVoltageSource(voltage), 1, 0);
+        circuit.addComponent(new VirtualResistor(10), 1, 2);
+        circuit.addComponent(rung, 2, 0);
+        circuit.addComponent(new VirtualResistor(20), 2, 3);
+        circuit.addComponent(new VirtualResistor(40), 3, 0);
+        circuit.addComponent(last, 3, 4);
+        circuit.addComponent(new VirtualResistor(60), 4, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        return new VirtualResistor[] { rung, last };
+    }
+}
@@ -0,0 +1,123 @@
+package net.hellomouse.kontrol.electrical.circuit.virtual.tests;
+
+import net.hellomouse.kontrol.electrical.circuit.virtual.VirtualCircuit;
+import net.hellomouse.kontrol.electrical.circuit.virtual.components.*;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static net.hellomouse.kontrol.electrical.circuit.virtual.tests.TestConstants.EPSILON;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+
+/**
+ * Tests for changing a circuit after it was solved (removing components,
+ * re-using nodes and merging circuits), should match a circuit built from scratch.
+ * @author Bowserinator
+ */
+class TopologyTests {
+    /**
+     * 10 V source into 100 ohms to node 2, loaded by 100 ohms and a 200 ohm chain through node 3.
+     * Removing the chain leaves node 3 without components, which is re-used for 2 x 50 ohms
+     */
+    @Test
+    @DisplayName("Remove components and re-use nodes")
+    void test1() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualResistor chain1 = new VirtualResistor(100);
+        VirtualResistor chain2 = new VirtualResistor(100);
+        circuit.addComponent(new VirtualVoltageSource(10), 1, 0);
+        circuit.addComponent(new VirtualResistor(100), 1, 2);
+        circuit.addComponent(new VirtualResistor(100), 2, 0);
+        circuit.addComponent(chain1, 2, 3);
+        circuit.addComponent(chain2, 3, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+
+        assertTrue(circuit.removeComponent(chain1));
+        assertTrue(circuit.removeComponent(chain2));
+        assertFalse(circuit.removeComponent(chain2));
+        circuit.solve();
+        assertEquals(5.0, circuit.getNodalVoltage(2), EPSILON);
+
+        int node = circuit.allocateNode();
+        assertEquals(3, node);
+        assertEquals(4, circuit.allocateNode());
+        circuit.addComponent(new VirtualResistor(50), 2, node);
+        circuit.addComponent(new VirtualResistor(50), node, 0);
+        circuit.solve();
+        assertEquals(10.0 / 3, circuit.getNodalVoltage(2), EPSILON);
+        assertEquals(10.0 / 6, circuit.getNodalVoltage(node), EPSILON);
+    }
+
+    /**
+     * 5 V and 10 V sources each loaded by a resistor. Removing the first shifts the branch
+     * index of the second, removing both leaves no energy source
+     */
+    @Test
+    @DisplayName("Remove branches and sources")
+    void test2() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualVoltageSource source1 = new VirtualVoltageSource(5);
+        VirtualVoltageSource source2 = new VirtualVoltageSource(10);
+        circuit.addComponent(source1, 1, 0);
+        circuit.addComponent(source2, 2, 0);
+        circuit.addComponent(new VirtualResistor(100), 1, 0);
+        circuit.addComponent(new VirtualResistor(200), 2, 0);
+        circuit.addComponent(new VirtualGround(), 0, 0);
+        circuit.solve();
+        double current = source2.getCurrent();
+
+        circuit.removeComponent(source1);
+        assertEquals(0, source2.getBranchIndex());
+        assertEquals(current, source2.getCurrent(), EPSILON);
+        circuit.solve();
+        assertEquals(current, source2.getCurrent(), EPSILON);
+        assertEquals(0.05, Math.abs(current), EPSILON);
+        assertEquals(10.0, circuit.getNodalVoltage(2), EPSILON);
+
+        circuit.removeComponent(source2);
+        assertEquals(0, circuit.getEnergySourceCount());
+        circuit.solve();
+        assertEquals(0.0, circuit.getNodalVoltage(2), EPSILON);
+    }
+
+    /**
+     * A 10 V source into a 100 ohm resistor, merged with a separate 2 x 100 ohm chain that is then
+     * connected to it with 100 ohms and grounded with 100 ohms. Should match the same circuit built at once
+     */
+    @Test
+    @DisplayName("Merge circuits")
+    void test3() {
+        VirtualCircuit circuit = new VirtualCircuit();
+        VirtualCircuit other = new VirtualCircuit();
+        VirtualCircuit reference = new VirtualCircuit();
+
+        for (VirtualCircuit c : new VirtualCircuit[] { circuit, reference }) {
+            c.addComponent(new VirtualVoltageSource(10), 1, 0);
+            c.addComponent(new VirtualResistor(100), 1, 2);
+            c.addComponent(new VirtualGround(), 0, 0);
+        }
+        other.addComponent(new VirtualResistor(100), 0, 1);
+        other.addComponent(new VirtualResistor(100), 1, 2);
+        circuit.solve();
+        other.solve();
+
+        int offset = circuit.merge(other);
+        assertEquals(3, offset);
+        assertEquals(0, other.getComponents().size());
+        circuit.addComponent(new VirtualResistor(100), 2, offset);
+        circuit.addComponent(new VirtualResistor(100), offset + 2, 0);
+        circuit.solve();
+
+        reference.addComponent(new VirtualResistor(100), 3, 4);
+        reference.addComponent(new VirtualResistor(100), 4, 5);
+        reference.addComponent(new VirtualResistor(100), 2, 3);
+        reference.addComponent(new VirtualResistor(100), 5, 0);
+        reference.solve();
+
+        for (int node = 0; node <= 5; node++)
+            assertEquals(reference.getNodalVoltage(node), circuit.getNodalVoltage(node), EPSILON);
+    }
+}
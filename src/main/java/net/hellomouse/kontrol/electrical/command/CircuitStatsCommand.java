@@ -0,0 +1,80 @@
+package net.hellomouse.kontrol.electrical.command;
+
+import com.mojang.brigadier.arguments.IntegerArgumentType;
+import com.mojang.brigadier.builder.LiteralArgumentBuilder;
+import net.hellomouse.kontrol.electrical.circuit.Circuit;
+import net.hellomouse.kontrol.electrical.circuit.CircuitManager;
+import net.hellomouse.kontrol.electrical.circuit.CircuitProfile;
+import net.hellomouse.kontrol.electrical.circuit.IHasCircuitManager;
+import net.hellomouse.kontrol.util.FormatUtil;
+import net.minecraft.server.command.CommandManager;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.LiteralText;
+import net.minecraft.util.math.BlockPos;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+
+
+/**
+ * /kontrol stats [count]: lists the circuits in the current world that took the most
+ * time to update (see CircuitProfile), with their position and sizes
+ * @author Bowserinator
+ */
+public class CircuitStatsCommand {
+    public static final int DEFAULT_COUNT = 5;
+    public static final int MAX_COUNT = 50;
+
+    /**
+     * Build the stats sub-command
+     * @return Command node
+     */
+    public static LiteralArgumentBuilder<ServerCommandSource> build() {
+        return CommandManager.literal("stats")
+            .executes(context -> run(context.getSource(), DEFAULT_COUNT))
+            .then(CommandManager.argument("count", IntegerArgumentType.integer(1, MAX_COUNT))
+                .executes(context -> run(context.getSource(), IntegerArgumentType.getInteger(context, "count"))));
+    }
+
+    /**
+     * List the most expensive circuits
+     * @param source Command source, circuits in its world are listed
+     * @param count Number of circuits to list
+     * @return Number of circuits listed
+     */
+    private static int run(ServerCommandSource source, int count) {
+        CircuitManager manager = ((IHasCircuitManager)source.getWorld()).getCircuitManager();
+        ArrayList<Circuit> circuits = new ArrayList<>(manager.getCircuits());
+        circuits.sort(Comparator.comparingDouble((Circuit circuit) -> circuit.getProfile().getAverageTime()).reversed());
+
+        source.sendFeedback(new LiteralText(String.format("%d circuits (%d queued), last tick %s (budget %s), %d deferred (%d total, longest %d ticks), %d active blocks",
+                circuits.size(), manager.getQueuedCount(), time(manager.getLastUpdateTime()), time(manager.getSolveBudget() * 1e6),
+                manager.getDeferredCount(), manager.getTotalDeferredCount(), manager.getMaxDeferredTicks(),
+                manager.getActiveCount())), false);
+
+        int listed = Math.min(count, circuits.size());
+        for (int i = 0; i < listed; i++) {
+            Circuit circuit = circuits.get(i);
+            CircuitProfile profile = circuit.getProfile();
+            BlockPos pos = circuit.getPosition();
+
+            source.sendFeedback(new LiteralText(String.format("#%d %s: %s avg, %s last, %d nodes, %d components",
+                    i + 1, pos == null ? "(empty)" : pos.toShortString(), time(profile.getAverageTime()),
+                    time(profile.getTotalTime()), profile.getNodeCount(), profile.getComponentCount())), false);
+            source.sendFeedback(new LiteralText(String.format("    server thread %s, worker %s, rebuild %s",
+                    time(profile.getUpdateTime()), time(profile.getBackgroundTime()), time(profile.getRebuildTime()))), false);
+            source.sendFeedback(new LiteralText(String.format("    assembly %s, factor %s, solve %s, %d newton iterations",
+                    time(profile.getAssemblyTime()), time(profile.getFactorizationTime()), time(profile.getSolveTime()),
+                    profile.getNewtonIterations())), false);
+            source.sendFeedback(new LiteralText(String.format("    thermal %s, %s allocated",
+                    time(profile.getThermalTime()), FormatUtil.SIFormat(profile.getThermalAllocatedBytes(), 1, "B"))), false);
+        }
+        return listed;
+    }
+
+    private static String time(double nanoseconds) {
+        return FormatUtil.SIFormat(nanoseconds * 1e-9, 2, "s");
+    }
+
+    private CircuitStatsCommand() {}
+}
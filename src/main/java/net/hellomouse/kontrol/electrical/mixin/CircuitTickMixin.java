@@ -1,8 +1,14 @@
 package net.hellomouse.kontrol.electrical.mixin;
 
+import net.hellomouse.kontrol.Kontrol;
 import net.hellomouse.kontrol.electrical.circuit.CircuitManager;
-import net.hellomouse.kontrol.electrical.circuit.IHasCircuitManager;
+import net.hellomouse.kontrol.electrical.circuit.CircuitState;
+import net.hellomouse.kontrol.electrical.circuit.ElectricalBlockIndex;
+import net.hellomouse.kontrol.electrical.circuit.ICircuitWorld;
+import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.server.world.ServerWorld;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.profiler.Profiler;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
@@ -11,29 +17,63 @@ import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
 
 /**
- * Injects a CircuitManager into ServerWorld, makes the circuit manager
- * solve all the circuits after ticking all block entities
+ * Injects a CircuitManager into ServerWorld (and implements ICircuitWorld), makes the circuit manager
+ * solve all the circuits after ticking all block entities. Circuits stepped in
+ * the background are published before block entities are ticked. Circuits saved with
+ * the world are loaded on the first tick, see CircuitState
  * @author Bowserinator
  */
 @Mixin(ServerWorld.class)
-public abstract class CircuitTickMixin implements IHasCircuitManager {
+public abstract class CircuitTickMixin implements ICircuitWorld {
     @Unique
-    public CircuitManager circuitManager = new CircuitManager();
+    public CircuitManager circuitManager = new CircuitManager().solveBudget(Kontrol.CONFIG.getSolveBudget());
+    @Unique
+    private boolean circuitStateLoaded = false;
+    @Unique
+    private final ElectricalBlockIndex electricalBlocks = new ElectricalBlockIndex();
 
     @Override
     public CircuitManager getCircuitManager() {
         return circuitManager;
     }
 
+    @Override
+    public ElectricalBlockIndex getElectricalBlocks() {
+        return electricalBlocks;
+    }
+
+    @Override
+    public Profiler getCircuitProfiler() {
+        return ((ServerWorld)(Object)this).getProfiler();
+    }
+
+    @Override
+    public double getSquaredDistanceToPlayer(BlockPos pos) {
+        double closest = Double.MAX_VALUE;
+        for (ServerPlayerEntity player : ((ServerWorld)(Object)this).getPlayers())
+            closest = Math.min(closest, player.squaredDistanceTo(pos.getX() + 0.5, pos.getY() + 0.5, pos.getZ() + 0.5));
+        return closest;
+    }
+
+    @Inject(at = @At("HEAD"), method = "tick(Ljava/util/function/BooleanSupplier;)V")
+    private void preTick(CallbackInfo info) {
+        Profiler profiler = getCircuitProfiler();
+        profiler.push("kontrolCircuitsPublish");
+        if (!circuitStateLoaded) {
+            ServerWorld world = (ServerWorld)(Object)this;
+            world.getPersistentStateManager().getOrCreate(() -> new CircuitState(circuitManager), CircuitState.ID);
+            circuitStateLoaded = true;
+        }
+        circuitManager.preTick();
+        profiler.pop();
+    }
+
     // TODO: maybe inject after method was called, not in method itself
     @Inject(at = @At("TAIL"), method = "tick(Ljava/util/function/BooleanSupplier;)V")
     private void tick(CallbackInfo info) {
-        // gO THROUGH ALL CIRCUITS
-        // if (dirty()) - resolve
-        // if (invalid) - mark invalid, delete all references from blockEntities
-        // solving should be on another thread that is synced at end of tick?
-        // (also a start tick thread that begins solve)
-        // TODO keep track of profiler
+        Profiler profiler = getCircuitProfiler();
+        profiler.push("kontrolCircuits");
         circuitManager.postTick();
+        profiler.pop();
     }
 }
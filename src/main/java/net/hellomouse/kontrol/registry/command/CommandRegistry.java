@@ -0,0 +1,26 @@
+package net.hellomouse.kontrol.registry.command;
+
+import net.fabricmc.fabric.api.command.v1.CommandRegistrationCallback;
+import net.hellomouse.kontrol.Kontrol;
+import net.hellomouse.kontrol.electrical.command.CircuitStatsCommand;
+import net.minecraft.server.command.CommandManager;
+
+
+/**
+ * Registers the /kontrol command and its sub-commands
+ * @author Bowserinator
+ */
+public class CommandRegistry {
+    // Permission level required for admin sub-commands (same as /gamerule)
+    public static final int ADMIN_PERMISSION_LEVEL = 2;
+
+    public static void register() {
+        CommandRegistrationCallback.EVENT.register((dispatcher, dedicated) -> dispatcher.register(
+            CommandManager.literal(Kontrol.MOD_ID)
+                .requires(source -> source.hasPermissionLevel(ADMIN_PERMISSION_LEVEL))
+                .then(CircuitStatsCommand.build())
+        ));
+    }
+
+    private CommandRegistry() {}
+}